@@ -0,0 +1,312 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.util.Arrays;
+
+/**
+ * Encodes strings into the Base64 form used for the path parameters of the PLIST service and
+ * decodes them again. The result is the same as Base64 encoding the UTF-8 bytes and URL encoding
+ * the Base64 string, but it is produced in a single pass without intermediate strings and arrays.
+ * <p>
+ * Encoding writes the standard alphabet with <code>+</code>, <code>/</code> and the padding
+ * percent-encoded, so the URLs stay identical to the ones created by earlier versions. Decoding
+ * additionally accepts the URL-safe alphabet (<code>-</code> and <code>_</code>), unescaped
+ * <code>+</code> and <code>/</code> and missing padding. Characters outside of the alphabets are
+ * skipped.
+ */
+public final class Base64UrlCodec
+{
+
+  private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+    .toCharArray();
+
+  private static final byte[] VALUES = new byte[128];
+
+  static {
+    for (int i = 0; i < VALUES.length; i++) {
+      VALUES[i] = -1;
+    }
+    for (int i = 0; i < ALPHABET.length; i++) {
+      VALUES[ALPHABET[i]] = (byte) i;
+    }
+    VALUES['-'] = 62;
+    VALUES['_'] = 63;
+  }
+
+  /**
+   * Buffers larger than this are not kept for the next call of the thread.
+   */
+  private static final int MAX_RETAINED_BUFFER = 8 * 1024;
+
+  private static final ThreadLocal<StringBuilder> ENCODE_BUFFER = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue()
+    {
+      return new StringBuilder(256);
+    }
+  };
+
+  private static final ThreadLocal<byte[]> DECODE_BUFFER = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue()
+    {
+      return new byte[256];
+    }
+  };
+
+  private Base64UrlCodec()
+  {
+  }
+
+  /**
+   * @return the encoded string or <code>null</code> if <code>string</code> is <code>null</code>
+   */
+  public static String encode(CharSequence string)
+  {
+    if (string == null) {
+      return null;
+    }
+    StringBuilder buffer = ENCODE_BUFFER.get();
+    buffer.setLength(0);
+    String encoded = encode(buffer, string).toString();
+    if (buffer.capacity() > MAX_RETAINED_BUFFER) {
+      ENCODE_BUFFER.remove();
+    }
+    return encoded;
+  }
+
+  /**
+   * Encodes the concatenation of the parts and appends the result, e.g.
+   * <code>encode(url, "title", "=", title)</code>. A <code>null</code> part is encoded as
+   * <code>"null"</code> like in a string concatenation.
+   * 
+   * @return <code>out</code>
+   */
+  public static StringBuilder encode(StringBuilder out, CharSequence... parts)
+  {
+    int bits = 0; //up to three pending bytes
+    int pending = 0;
+    for (CharSequence part : parts) {
+      if (part == null) {
+        part = "null";
+      }
+      for (int i = 0, length = part.length(); i < length; i++) {
+        char c = part.charAt(i);
+        int utf8; //the UTF-8 bytes of the character, most significant byte first
+        int count;
+        if (c < 0x80) {
+          utf8 = c;
+          count = 1;
+        }
+        else if (c < 0x800) {
+          utf8 = (0xc0 | c >> 6) << 8 | 0x80 | c & 0x3f;
+          count = 2;
+        }
+        else if (!Character.isSurrogate(c)) {
+          utf8 = (0xe0 | c >> 12) << 16 | (0x80 | c >> 6 & 0x3f) << 8 | 0x80 | c & 0x3f;
+          count = 3;
+        }
+        else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(part.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, part.charAt(++i));
+          utf8 = (0xf0 | codePoint >> 18) << 24 | (0x80 | codePoint >> 12 & 0x3f) << 16
+                | (0x80 | codePoint >> 6 & 0x3f) << 8 | 0x80 | codePoint & 0x3f;
+          count = 4;
+        }
+        else {
+          utf8 = '?'; //malformed surrogate, replaced like String.getBytes does
+          count = 1;
+        }
+        for (int shift = (count - 1) * 8; shift >= 0; shift -= 8) {
+          bits = bits << 8 | utf8 >>> shift & 0xff;
+          if (++pending == 3) {
+            append(out, bits >> 18);
+            append(out, bits >> 12);
+            append(out, bits >> 6);
+            append(out, bits);
+            bits = 0;
+            pending = 0;
+          }
+        }
+      }
+    }
+    if (pending == 1) {
+      append(out, bits >> 2);
+      append(out, bits << 4);
+      out.append("%3D%3D");
+    }
+    else if (pending == 2) {
+      append(out, bits >> 10);
+      append(out, bits >> 4);
+      append(out, bits << 2);
+      out.append("%3D");
+    }
+    return out;
+  }
+
+  private static void append(StringBuilder out, int value)
+  {
+    char c = ALPHABET[value & 0x3f];
+    if (c == '+') {
+      out.append("%2B");
+    }
+    else if (c == '/') {
+      out.append("%2F");
+    }
+    else {
+      out.append(c);
+    }
+  }
+
+  /**
+   * @return the decoded string or <code>null</code> if <code>encoded</code> is <code>null</code>
+   * @throws IllegalArgumentException
+   *           if <code>encoded</code> contains an incomplete or invalid percent escape
+   */
+  public static String decode(CharSequence encoded)
+  {
+    if (encoded == null) {
+      return null;
+    }
+    return decode(encoded, 0, encoded.length());
+  }
+
+  /**
+   * Decodes the characters from <code>start</code> (inclusive) to <code>end</code> (exclusive)
+   * without copying them first.
+   * 
+   * @throws IllegalArgumentException
+   *           if the range contains an incomplete or invalid percent escape
+   */
+  public static String decode(CharSequence encoded, int start, int end)
+  {
+    byte[] bytes = decodeBuffer(end - start);
+    return new String(bytes, 0, decode(encoded, start, end, bytes), PrecompiledTemplate.UTF_8);
+  }
+
+  /**
+   * Decodes the characters from <code>start</code> (inclusive) to <code>end</code> (exclusive) into
+   * the bytes they represent.
+   * 
+   * @throws IllegalArgumentException
+   *           if the range contains an incomplete or invalid percent escape
+   */
+  public static byte[] decodeBytes(CharSequence encoded, int start, int end)
+  {
+    byte[] bytes = decodeBuffer(end - start);
+    return Arrays.copyOf(bytes, decode(encoded, start, end, bytes));
+  }
+
+  /**
+   * Encodes the bytes with the URL-safe alphabet (<code>-</code> and <code>_</code>) and without
+   * padding, so the result needs no escaping in a URL.
+   * 
+   * @return <code>out</code>
+   */
+  public static StringBuilder encodeBytes(StringBuilder out, byte[] bytes, int offset, int length)
+  {
+    int end = offset + length;
+    int i = offset;
+    for (; i + 2 < end; i += 3) {
+      int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i + 2] & 0xff;
+      out.append(urlSafe(bits >> 18)).append(urlSafe(bits >> 12)).append(urlSafe(bits >> 6)).append(urlSafe(bits));
+    }
+    if (end - i == 1) {
+      int bits = bytes[i] & 0xff;
+      out.append(urlSafe(bits >> 2)).append(urlSafe(bits << 4));
+    }
+    else if (end - i == 2) {
+      int bits = (bytes[i] & 0xff) << 8 | bytes[i + 1] & 0xff;
+      out.append(urlSafe(bits >> 10)).append(urlSafe(bits >> 4)).append(urlSafe(bits << 2));
+    }
+    return out;
+  }
+
+  private static char urlSafe(int value)
+  {
+    char c = ALPHABET[value & 0x3f];
+    return c == '+' ? '-' : c == '/' ? '_' : c;
+  }
+
+  private static byte[] decodeBuffer(int length)
+  {
+    byte[] bytes = DECODE_BUFFER.get();
+    if (bytes.length < length * 3 / 4 + 3) {
+      bytes = new byte[length * 3 / 4 + 3];
+      if (bytes.length <= MAX_RETAINED_BUFFER) {
+        DECODE_BUFFER.set(bytes);
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the number of bytes written to <code>bytes</code>
+   */
+  private static int decode(CharSequence encoded, int start, int end, byte[] bytes)
+  {
+    int bits = 0;
+    int pending = 0;
+    int count = 0;
+    for (int i = start; i < end; i++) {
+      char c = encoded.charAt(i);
+      if (c == '%') {
+        if (i + 2 >= end) {
+          throw new IllegalArgumentException("Incomplete escape at index " + i + ": " + encoded);
+        }
+        c = (char) (hex(encoded, i + 1) << 4 | hex(encoded, i + 2));
+        i += 2;
+      }
+      if (c == '=') {
+        break;
+      }
+      int value = c < VALUES.length ? VALUES[c] : -1;
+      if (value < 0) {
+        continue;
+      }
+      bits = bits << 6 | value;
+      if (++pending == 4) {
+        bytes[count++] = (byte) (bits >> 16);
+        bytes[count++] = (byte) (bits >> 8);
+        bytes[count++] = (byte) bits;
+        bits = 0;
+        pending = 0;
+      }
+    }
+    if (pending == 2) {
+      bytes[count++] = (byte) (bits >> 4);
+    }
+    else if (pending == 3) {
+      bytes[count++] = (byte) (bits >> 10);
+      bytes[count++] = (byte) (bits >> 2);
+    }
+    return count;
+  }
+
+  private static int hex(CharSequence encoded, int index)
+  {
+    int value = Character.digit(encoded.charAt(index), 16);
+    if (value < 0) {
+      throw new IllegalArgumentException("Invalid escape at index " + (index - 1) + ": " + encoded);
+    }
+    return value;
+  }
+
+}
@@ -0,0 +1,452 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.BUNDLE_IDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.BUNDLE_VERSION;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.IPA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.OTA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.REFERER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.TITLE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the records of a bulk request one by one from a stream, each record holds the parameters
+ * of one App as a {@link PlistToken}. Two formats are supported:
+ * <ul>
+ * <li>CSV as of RFC 4180 with the columns Referer, title, bundleIdentifier, bundleVersion,
+ * ipaClassifier and otaClassifier in this order. A first line containing a column named Referer is
+ * a header, its column names define the order instead; unknown columns are ignored.</li>
+ * <li>JSON objects with the same names as keys, either one after the other (e.g. one per line) or
+ * as elements of one array. Values are strings or <code>null</code>, unknown keys are ignored.</li>
+ * </ul>
+ * Empty values are read as <code>null</code>. A value longer than {@link #MAX_FIELD_LENGTH} or a
+ * record longer than {@link #MAX_RECORD_LENGTH} characters makes the stream malformed. The reader is
+ * not thread safe.
+ */
+public abstract class BulkRecordReader implements Closeable
+{
+
+  /**
+   * The names of the values in the order of the {@link PlistToken} fields.
+   */
+  final static String[] NAMES = { REFERER, TITLE, BUNDLE_IDENTIFIER, BUNDLE_VERSION, IPA_CLASSIFIER,
+        OTA_CLASSIFIER };
+
+  /**
+   * The maximum number of characters of a value.
+   */
+  public final static int MAX_FIELD_LENGTH = 4096;
+  /**
+   * The maximum number of characters of a record including separators and unknown values.
+   */
+  public final static int MAX_RECORD_LENGTH = 16384;
+
+  private final Reader in;
+  private int next = -2;
+  private int line = 1;
+  private int length = -1;
+
+  BulkRecordReader(Reader in)
+  {
+    this.in = in;
+  }
+
+  public static BulkRecordReader forCsv(Reader in)
+  {
+    return new Csv(in);
+  }
+
+  public static BulkRecordReader forJson(Reader in)
+  {
+    return new Json(in);
+  }
+
+  /**
+   * @return the next record or <code>null</code> at the end of the stream
+   * @throws IllegalArgumentException
+   *           if the stream is malformed
+   */
+  public abstract PlistToken read() throws IOException;
+
+  /**
+   * @return the line of the stream the reader is at, starting with 1
+   */
+  public int getLine()
+  {
+    return line;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    in.close();
+  }
+
+  int peek() throws IOException
+  {
+    if (next == -2) {
+      next = in.read();
+    }
+    return next;
+  }
+
+  int take() throws IOException
+  {
+    int c = peek();
+    next = -2;
+    if (c == '\n') {
+      line++;
+    }
+    if (c >= 0 && length >= 0 && ++length > MAX_RECORD_LENGTH) {
+      throw malformed("Record longer than " + MAX_RECORD_LENGTH + " characters");
+    }
+    return c;
+  }
+
+  /**
+   * Starts counting the characters of the next record, separators between records are not counted.
+   */
+  void startRecord()
+  {
+    length = 0;
+  }
+
+  void endRecord()
+  {
+    length = -1;
+  }
+
+  void append(StringBuilder value, int c)
+  {
+    if (value.length() >= MAX_FIELD_LENGTH) {
+      throw malformed("Value longer than " + MAX_FIELD_LENGTH + " characters");
+    }
+    value.append((char) c);
+  }
+
+  IllegalArgumentException malformed(String message)
+  {
+    return new IllegalArgumentException(String.format("%s in line %d", message, line));
+  }
+
+  static int indexOf(String name)
+  {
+    for (int i = 0; i < NAMES.length; i++) {
+      if (NAMES[i].equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  static PlistToken toToken(String[] values)
+  {
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null && values[i].isEmpty()) {
+        values[i] = null;
+      }
+    }
+    return new PlistToken(values[0], values[1], values[2], values[3], values[4], values[5]);
+  }
+
+  private final static class Csv extends BulkRecordReader
+  {
+    private int[] columns;
+
+    Csv(Reader in)
+    {
+      super(in);
+    }
+
+    @Override
+    public PlistToken read() throws IOException
+    {
+      List<String> row;
+      do {
+        row = readRow();
+        if (row == null) {
+          return null;
+        }
+      }
+      while (row.size() == 1 && row.get(0).isEmpty());
+
+      if (columns == null) {
+        columns = getColumns(row);
+        if (columns != null) {
+          return read();
+        }
+        columns = new int[NAMES.length];
+        for (int i = 0; i < columns.length; i++) {
+          columns[i] = i;
+        }
+      }
+      String[] values = new String[NAMES.length];
+      for (int i = 0; i < columns.length && i < row.size(); i++) {
+        if (columns[i] >= 0) {
+          values[columns[i]] = row.get(i).trim();
+        }
+      }
+      return toToken(values);
+    }
+
+    /**
+     * @return the field of each column or <code>null</code> if the row is no header
+     */
+    private static int[] getColumns(List<String> row)
+    {
+      int[] columns = new int[row.size()];
+      boolean header = false;
+      for (int i = 0; i < columns.length; i++) {
+        columns[i] = indexOf(row.get(i).trim());
+        header |= columns[i] == 0;
+      }
+      return header ? columns : null;
+    }
+
+    private List<String> readRow() throws IOException
+    {
+      if (peek() < 0) {
+        return null;
+      }
+      startRecord();
+      List<String> row = new ArrayList<String>(NAMES.length);
+      StringBuilder value = new StringBuilder();
+      boolean quoted = false;
+      for (;;) {
+        int c = take();
+        if (quoted) {
+          if (c < 0) {
+            throw malformed("Unterminated quote");
+          }
+          if (c == '"') {
+            if (peek() == '"') {
+              take();
+              append(value, '"');
+            }
+            else {
+              quoted = false;
+            }
+          }
+          else {
+            append(value, c);
+          }
+        }
+        else if (c == '"') {
+          quoted = true;
+        }
+        else if (c == ',') {
+          row.add(value.toString());
+          value.setLength(0);
+        }
+        else if (c == '\r' && peek() == '\n') {
+          continue;
+        }
+        else if (c == '\n' || c < 0) {
+          row.add(value.toString());
+          endRecord();
+          return row;
+        }
+        else {
+          append(value, c);
+        }
+      }
+    }
+  }
+
+  private final static class Json extends BulkRecordReader
+  {
+    private boolean array;
+
+    Json(Reader in)
+    {
+      super(in);
+    }
+
+    @Override
+    public PlistToken read() throws IOException
+    {
+      int c = skipSeparators();
+      if (c == '[' && !array) {
+        take();
+        array = true;
+        c = skipSeparators();
+      }
+      if (c == ']' && array) {
+        take();
+        array = false;
+        c = skipSeparators();
+      }
+      if (c < 0) {
+        if (array) {
+          throw malformed("Unterminated array");
+        }
+        return null;
+      }
+      if (c != '{') {
+        throw malformed(String.format("Unexpected '%c'", (char) c));
+      }
+      startRecord();
+      take();
+      PlistToken record = readObject();
+      endRecord();
+      return record;
+    }
+
+    private PlistToken readObject() throws IOException
+    {
+      String[] values = new String[NAMES.length];
+      if (skipWhitespace() == '}') {
+        take();
+        return toToken(values);
+      }
+      for (;;) {
+        expect('"');
+        int index = indexOf(readString());
+        expect(':');
+        String value = readValue();
+        if (index >= 0) {
+          values[index] = value;
+        }
+        int c = skipWhitespace();
+        take();
+        if (c == '}') {
+          return toToken(values);
+        }
+        if (c != ',') {
+          throw malformed("Expected ',' or '}'");
+        }
+      }
+    }
+
+    private String readValue() throws IOException
+    {
+      int c = skipWhitespace();
+      if (c == '"') {
+        take();
+        return readString();
+      }
+      StringBuilder literal = new StringBuilder();
+      while ((c = peek()) >= 0 && c != ',' && c != '}' && !Character.isWhitespace(c)) {
+        append(literal, take());
+      }
+      String value = literal.toString();
+      if (value.equals("null")) {
+        return null;
+      }
+      if (value.isEmpty() || c < 0 || value.indexOf('{') >= 0 || value.indexOf('[') >= 0 || value.indexOf('"') >= 0) {
+        throw malformed("Expected a string value");
+      }
+      return value;
+    }
+
+    private String readString() throws IOException
+    {
+      StringBuilder value = new StringBuilder();
+      for (;;) {
+        int c = take();
+        if (c < 0 || c == '\n') {
+          throw malformed("Unterminated string");
+        }
+        if (c == '"') {
+          return value.toString();
+        }
+        if (c == '\\') {
+          c = take();
+          switch (c) {
+          case 'b':
+            append(value, '\b');
+            break;
+          case 'f':
+            append(value, '\f');
+            break;
+          case 'n':
+            append(value, '\n');
+            break;
+          case 'r':
+            append(value, '\r');
+            break;
+          case 't':
+            append(value, '\t');
+            break;
+          case 'u':
+            append(value, readHex());
+            break;
+          case '"':
+          case '\\':
+          case '/':
+            append(value, c);
+            break;
+          default:
+            throw malformed("Invalid escape");
+          }
+        }
+        else {
+          append(value, c);
+        }
+      }
+    }
+
+    private int readHex() throws IOException
+    {
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        int digit = Character.digit(take(), 16);
+        if (digit < 0) {
+          throw malformed("Invalid unicode escape");
+        }
+        value = value << 4 | digit;
+      }
+      return value;
+    }
+
+    private void expect(char expected) throws IOException
+    {
+      if (skipWhitespace() != expected) {
+        throw malformed(String.format("Expected '%c'", expected));
+      }
+      take();
+    }
+
+    private int skipWhitespace() throws IOException
+    {
+      int c;
+      while ((c = peek()) >= 0 && Character.isWhitespace(c)) {
+        take();
+      }
+      return c;
+    }
+
+    private int skipSeparators() throws IOException
+    {
+      int c;
+      while ((c = skipWhitespace()) == ',') {
+        take();
+      }
+      return c;
+    }
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.velocity.exception.ResourceNotFoundException;
+
+/**
+ * {@link ITemplateEngine} returning templates compiled into Java classes at build time. Compiled
+ * templates are subclasses of {@link PrecompiledTemplate} registered in
+ * <code>META-INF/services/com.sap.prd.mobile.ios.ota.lib.PrecompiledTemplate</code>, they are looked up
+ * by their template name. Templates read from the file system and templates without a compiled
+ * class are loaded by the fallback engine.
+ */
+public class CompiledTemplateEngine implements ITemplateEngine
+{
+
+  private final static Logger LOG = Logger.getLogger(CompiledTemplateEngine.class.getSimpleName());
+
+  private final ITemplateEngine fallback;
+  private final Map<String, PrecompiledTemplate> compiled;
+
+  /**
+   * Loads the compiled templates visible to the context class loader, or the class loader of this
+   * class if there is no context class loader.
+   * 
+   * @param fallback
+   *          the engine used for templates which have not been compiled
+   */
+  public CompiledTemplateEngine(ITemplateEngine fallback)
+  {
+    this(fallback, Thread.currentThread().getContextClassLoader() == null ? CompiledTemplateEngine.class
+      .getClassLoader() : Thread.currentThread().getContextClassLoader());
+  }
+
+  public CompiledTemplateEngine(ITemplateEngine fallback, ClassLoader classLoader)
+  {
+    if (fallback == null) throw new NullPointerException("fallback");
+    this.fallback = fallback;
+    this.compiled = load(classLoader);
+  }
+
+  private static Map<String, PrecompiledTemplate> load(ClassLoader classLoader)
+  {
+    Map<String, PrecompiledTemplate> templates = new HashMap<String, PrecompiledTemplate>();
+    Iterator<PrecompiledTemplate> it = ServiceLoader.load(PrecompiledTemplate.class, classLoader).iterator();
+    while (true) {
+      try {
+        if (!it.hasNext()) {
+          break;
+        }
+        PrecompiledTemplate template = it.next();
+        templates.put(template.getName(), template);
+        LOG.fine(String.format("Using compiled template '%s' (%s)", template.getName(), template.getClass()
+          .getName()));
+      }
+      catch (ServiceConfigurationError e) {
+        LOG.log(Level.WARNING, "Cannot load compiled template", e);
+      }
+    }
+    return templates;
+  }
+
+  @Override
+  public ITemplate getTemplate(String templateName) throws ResourceNotFoundException
+  {
+    if (!new File(templateName).isFile()) {
+      PrecompiledTemplate template = compiled.get(templateName.startsWith("/") ? templateName.substring(1)
+            : templateName);
+      if (template != null) {
+        return template;
+      }
+    }
+    return fallback.getTemplate(templateName);
+  }
+
+  /**
+   * @return <code>true</code> if a compiled class exists for the template
+   */
+  public boolean isCompiled(String templateName)
+  {
+    return compiled.containsKey(templateName);
+  }
+
+}
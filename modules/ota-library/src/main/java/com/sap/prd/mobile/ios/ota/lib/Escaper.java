@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+/**
+ * Escapes the characters with a special meaning in XML or HTML text and attribute values. The
+ * replacements are looked up in a table indexed by the character, a string without such characters
+ * is returned as it is without any copying.
+ */
+public final class Escaper
+{
+
+  /**
+   * Escapes <code>&amp; &lt; &gt; " '</code> with the predefined XML entities.
+   */
+  public static final Escaper XML = new Escaper("XML", "&apos;");
+
+  /**
+   * Escapes <code>&amp; &lt; &gt; " '</code>, the apostrophe as numeric reference since
+   * <code>&amp;apos;</code> is not defined in HTML 4.
+   */
+  public static final Escaper HTML = new Escaper("HTML", "&#39;");
+
+  private final String name;
+  private final String[] replacements = new String['>' + 1];
+
+  private Escaper(String name, String apostrophe)
+  {
+    this.name = name;
+    replacements['&'] = "&amp;";
+    replacements['<'] = "&lt;";
+    replacements['>'] = "&gt;";
+    replacements['"'] = "&quot;";
+    replacements['\''] = apostrophe;
+  }
+
+  /**
+   * Selects the escaping by the file extension of the template.
+   * 
+   * @return {@link #XML} for <code>.plist</code> and <code>.xml</code>, {@link #HTML} for
+   *         <code>.htm</code> and <code>.html</code>, <code>null</code> for all other templates
+   */
+  public static Escaper forTemplate(String templateName)
+  {
+    String name = templateName.toLowerCase();
+    if (name.endsWith(".plist") || name.endsWith(".xml")) {
+      return XML;
+    }
+    if (name.endsWith(".html") || name.endsWith(".htm")) {
+      return HTML;
+    }
+    return null;
+  }
+
+  /**
+   * @return the escaped string, the string itself if there is nothing to escape
+   */
+  public String escape(String value)
+  {
+    int length = value.length();
+    int i = 0;
+    while (i < length && replacement(value.charAt(i)) == null) {
+      i++;
+    }
+    if (i == length) {
+      return value;
+    }
+    StringBuilder escaped = new StringBuilder(length + 16).append(value, 0, i);
+    for (; i < length; i++) {
+      char c = value.charAt(i);
+      String replacement = replacement(c);
+      if (replacement == null) {
+        escaped.append(c);
+      }
+      else {
+        escaped.append(replacement);
+      }
+    }
+    return escaped.toString();
+  }
+
+  private String replacement(char c)
+  {
+    return c < replacements.length ? replacements[c] : null;
+  }
+
+  @Override
+  public String toString()
+  {
+    return name;
+  }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Concurrent registry of generators per template name.
+ * <p>
+ * Lookups of loaded generators take no lock. A missing generator is created exactly once, threads
+ * asking for the same template in the meantime wait for that single creation. A template which
+ * cannot be loaded is not kept, the next lookup tries again.
+ * <p>
+ * The number of generators is bounded, the least recently used one is evicted when a new template
+ * exceeds the bound. An evicted generator no longer watches its template file but can still be used
+ * by requests holding it.
+ */
+public class GeneratorRegistry<G extends VelocityBase<?>> implements GeneratorRegistryMBean
+{
+
+  static final int DEFAULT_MAXIMUM_SIZE = 32;
+
+  /**
+   * Time in nanoseconds within which repeated lookups of a generator do not update its access time.
+   * Keeps concurrent lookups of a popular template from writing the same field over and over.
+   */
+  private static final long ACCESS_RESOLUTION = 1000000L;
+
+  private static final Logger LOG = Logger.getLogger(GeneratorRegistry.class.getSimpleName());
+
+  /**
+   * Creates the generator for a template name.
+   */
+  public interface Factory<G>
+  {
+    public G create(String templateName);
+  }
+
+  private final ConcurrentMap<String, Entry<G>> entries = new ConcurrentHashMap<String, Entry<G>>();
+  private final Factory<G> factory;
+  private final Object evictionLock = new Object();
+  private final AtomicLong evictions = new AtomicLong();
+  private volatile int maximumSize;
+
+  public GeneratorRegistry(int maximumSize, Factory<G> factory)
+  {
+    if (maximumSize < 1) throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+    this.maximumSize = maximumSize;
+    this.factory = factory;
+  }
+
+  /**
+   * Returns the generator for the template, creating it if it is not registered yet.
+   * 
+   * @throws org.apache.velocity.exception.ResourceNotFoundException
+   *           if the template does not exist
+   */
+  public G get(final String templateName)
+  {
+    Entry<G> entry = entries.get(templateName);
+    if (entry == null) {
+      Entry<G> created = new Entry<G>(new FutureTask<G>(new Callable<G>() {
+        @Override
+        public G call()
+        {
+          return factory.create(templateName);
+        }
+      }));
+      entry = entries.putIfAbsent(templateName, created);
+      if (entry == null) {
+        entry = created;
+        created.task.run();
+        evict();
+      }
+    }
+    else {
+      entry.touch();
+    }
+    try {
+      return entry.task.get();
+    }
+    catch (ExecutionException e) {
+      entries.remove(templateName, entry);
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IllegalStateException("Cannot create generator for '" + templateName + "'", cause);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for generator of '" + templateName + "'", e);
+    }
+  }
+
+  private void evict()
+  {
+    if (entries.size() <= maximumSize) {
+      return;
+    }
+    synchronized (evictionLock) {
+      while (entries.size() > maximumSize) {
+        Map.Entry<String, Entry<G>> eldest = null;
+        for (Map.Entry<String, Entry<G>> candidate : entries.entrySet()) {
+          if (candidate.getValue().task.isDone()
+                && (eldest == null || candidate.getValue().lastAccess - eldest.getValue().lastAccess < 0)) {
+            eldest = candidate;
+          }
+        }
+        if (eldest == null) {
+          return;
+        }
+        if (entries.remove(eldest.getKey(), eldest.getValue())) {
+          evictions.incrementAndGet();
+          G generator = eldest.getValue().getGenerator();
+          if (generator != null) {
+            generator.release();
+          }
+          LOG.info(String.format("Evicted generator for template '%s'", eldest.getKey()));
+        }
+      }
+    }
+  }
+
+  @Override
+  public int getSize()
+  {
+    return entries.size();
+  }
+
+  @Override
+  public int getMaximumSize()
+  {
+    return maximumSize;
+  }
+
+  @Override
+  public void setMaximumSize(int maximumSize)
+  {
+    if (maximumSize < 1) throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+    this.maximumSize = maximumSize;
+    evict();
+  }
+
+  @Override
+  public long getEvictionCount()
+  {
+    return evictions.get();
+  }
+
+  @Override
+  public long getEstimatedMemory()
+  {
+    long memory = 0;
+    for (Entry<G> entry : entries.values()) {
+      G generator = entry.getGenerator();
+      if (generator != null) {
+        memory += generator.estimateTemplateSize();
+      }
+    }
+    return memory;
+  }
+
+  @Override
+  public String[] getTemplateNames()
+  {
+    List<String> names = new ArrayList<String>(entries.keySet());
+    Collections.sort(names);
+    return names.toArray(new String[names.size()]);
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("GeneratorRegistry[size=%d, maximumSize=%d, evictions=%d]", getSize(), maximumSize,
+          evictions.get());
+  }
+
+  private static class Entry<G>
+  {
+    final FutureTask<G> task;
+    volatile long lastAccess = System.nanoTime();
+
+    Entry(FutureTask<G> task)
+    {
+      this.task = task;
+    }
+
+    void touch()
+    {
+      long now = System.nanoTime();
+      if (now - lastAccess > ACCESS_RESOLUTION) {
+        lastAccess = now;
+      }
+    }
+
+    /**
+     * @return the generator or <code>null</code> if it is not created yet or its creation failed
+     */
+    G getGenerator()
+    {
+      if (!task.isDone()) {
+        return null;
+      }
+      try {
+        return task.get();
+      }
+      catch (ExecutionException e) {
+        return null;
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+  }
+
+}
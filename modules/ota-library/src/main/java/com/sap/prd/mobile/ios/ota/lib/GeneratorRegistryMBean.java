@@ -0,0 +1,50 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+/**
+ * Management interface of the {@link GeneratorRegistry}.
+ */
+public interface GeneratorRegistryMBean
+{
+  /**
+   * @return the number of resident generators
+   */
+  public int getSize();
+
+  public int getMaximumSize();
+
+  /**
+   * Changes the bound, evicting least recently used generators if necessary.
+   */
+  public void setMaximumSize(int maximumSize);
+
+  public long getEvictionCount();
+
+  /**
+   * @return the estimated heap memory held by the templates of all resident generators in bytes
+   */
+  public long getEstimatedMemory();
+
+  /**
+   * @return the names of the resident templates
+   */
+  public String[] getTemplateNames();
+}
@@ -0,0 +1,221 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes documents in the gzip format (RFC 1952). The native {@link Deflater} instances are pooled
+ * and reused, documents smaller than a threshold are not worth compressing.
+ * <p>
+ * The compressor counts the compressed bytes and the time spent in the deflater, so the bytes saved
+ * can be weighed against the CPU spent.
+ */
+public class GzipCompressor implements GzipCompressorMBean
+{
+
+  private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+  private static final int TRAILER_LENGTH = 8;
+  private static final int BUFFER_SIZE = 8192;
+
+  private final int level;
+  private final int minimumBytes;
+  private final BlockingQueue<Slot> pool;
+
+  private final AtomicLong compressed = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicLong uncompressedBytes = new AtomicLong();
+  private final AtomicLong compressedBytes = new AtomicLong();
+  private final AtomicLong nanos = new AtomicLong();
+
+  /**
+   * @param level
+   *          the compression level, see {@link Deflater#setLevel(int)}
+   * @param minimumBytes
+   *          documents with less bytes are not compressed
+   */
+  public GzipCompressor(int level, int minimumBytes)
+  {
+    if (level != Deflater.DEFAULT_COMPRESSION && (level < 0 || level > 9)) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    if (minimumBytes < 0) throw new IllegalArgumentException("minimumBytes must not be negative: " + minimumBytes);
+    this.level = level;
+    this.minimumBytes = minimumBytes;
+    this.pool = new ArrayBlockingQueue<Slot>(2 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @return <code>true</code> if a document of this length is compressed. A document which is not
+   *         compressed is counted as skipped.
+   */
+  public boolean isCompressible(int length)
+  {
+    if (length < minimumBytes) {
+      skipped.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return the compressed document
+   */
+  public byte[] compress(byte[] content)
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 3 + HEADER.length + TRAILER_LENGTH);
+    try {
+      compress(content, out);
+    }
+    catch (IOException e) {
+      throw new IllegalStateException(e); //should never happen
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes the compressed document to <code>out</code> while it is deflated, the compressed
+   * document is not kept in memory. <code>out</code> is neither flushed nor closed.
+   */
+  public void compress(byte[] content, OutputStream out) throws IOException
+  {
+    Slot slot = acquire();
+    try {
+      Deflater deflater = slot.deflater;
+      CRC32 crc = new CRC32();
+      crc.update(content, 0, content.length);
+      out.write(HEADER);
+      long written = HEADER.length + TRAILER_LENGTH;
+      long deflating = 0;
+      deflater.setInput(content);
+      deflater.finish();
+      while (!deflater.finished()) {
+        long start = System.nanoTime();
+        int length = deflater.deflate(slot.buffer);
+        deflating += System.nanoTime() - start;
+        out.write(slot.buffer, 0, length);
+        written += length;
+      }
+      writeInt(out, (int) crc.getValue());
+      writeInt(out, content.length);
+      compressed.incrementAndGet();
+      uncompressedBytes.addAndGet(content.length);
+      compressedBytes.addAndGet(written);
+      nanos.addAndGet(deflating);
+    }
+    finally {
+      release(slot);
+    }
+  }
+
+  private static void writeInt(OutputStream out, int value) throws IOException
+  {
+    out.write(value);
+    out.write(value >>> 8);
+    out.write(value >>> 16);
+    out.write(value >>> 24);
+  }
+
+  private Slot acquire()
+  {
+    Slot slot = pool.poll();
+    return slot == null ? new Slot(level) : slot;
+  }
+
+  private void release(Slot slot)
+  {
+    slot.deflater.reset();
+    if (!pool.offer(slot)) {
+      slot.deflater.end();
+    }
+  }
+
+  @Override
+  public long getCompressedCount()
+  {
+    return compressed.get();
+  }
+
+  @Override
+  public long getSkippedCount()
+  {
+    return skipped.get();
+  }
+
+  @Override
+  public long getUncompressedBytes()
+  {
+    return uncompressedBytes.get();
+  }
+
+  @Override
+  public long getCompressedBytes()
+  {
+    return compressedBytes.get();
+  }
+
+  @Override
+  public long getSavedBytes()
+  {
+    return getUncompressedBytes() - getCompressedBytes();
+  }
+
+  @Override
+  public long getCompressionMillis()
+  {
+    return nanos.get() / 1000000;
+  }
+
+  @Override
+  public int getMinimumBytes()
+  {
+    return minimumBytes;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("GzipCompressor[compressed=%d, skipped=%d, bytes=%d->%d, millis=%d]",
+          getCompressedCount(), getSkippedCount(), getUncompressedBytes(), getCompressedBytes(),
+          getCompressionMillis());
+  }
+
+  /**
+   * A raw deflater with its output buffer.
+   */
+  private static class Slot
+  {
+    final Deflater deflater;
+    final byte[] buffer = new byte[BUFFER_SIZE];
+
+    Slot(int level)
+    {
+      deflater = new Deflater(level, true);
+    }
+  }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+/**
+ * Management interface of the {@link GzipCompressor}.
+ */
+public interface GzipCompressorMBean
+{
+  /**
+   * @return number of compressed documents
+   */
+  public long getCompressedCount();
+
+  /**
+   * @return number of documents sent uncompressed because they are smaller than the threshold
+   */
+  public long getSkippedCount();
+
+  public long getUncompressedBytes();
+
+  public long getCompressedBytes();
+
+  /**
+   * @return difference between the uncompressed and the compressed bytes
+   */
+  public long getSavedBytes();
+
+  /**
+   * @return time spent in the deflater
+   */
+  public long getCompressionMillis();
+
+  public int getMinimumBytes();
+}
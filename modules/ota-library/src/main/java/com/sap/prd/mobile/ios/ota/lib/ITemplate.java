@@ -0,0 +1,66 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * A template loaded by an {@link ITemplateEngine}. Implementations have to be thread safe, a
+ * single instance is merged concurrently by all requests using the same template.
+ */
+public interface ITemplate
+{
+  /**
+   * @return the name of the template, e.g. <code>template.html</code>
+   */
+  public String getName();
+
+  /**
+   * Merges the template with the given key/value pairs and writes the result to the writer.
+   * References without a value are written as they appear in the template.
+   * 
+   * @param mappings
+   *          the values referenced by the template
+   * @param writer
+   *          the target of the merge
+   * @throws IOException
+   */
+  public void merge(Map<String, Object> mappings, Writer writer) throws IOException;
+
+  /**
+   * Merges the template with the given key/value pairs and writes the result UTF-8 encoded to the
+   * stream. The stream is neither flushed nor closed.
+   * 
+   * @param mappings
+   *          the values referenced by the template
+   * @param out
+   *          the target of the merge
+   * @throws IOException
+   */
+  public void merge(Map<String, Object> mappings, OutputStream out) throws IOException;
+
+  /**
+   * @return an estimate of the heap memory held by the template in bytes
+   */
+  public long estimateSize();
+}
@@ -0,0 +1,38 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import org.apache.velocity.exception.ResourceNotFoundException;
+
+/**
+ * Loads the templates used by the generators. The template name is either the path of a file or
+ * the name of a resource on the classpath.
+ */
+public interface ITemplateEngine
+{
+  /**
+   * @param templateName
+   *          path of a template file or name of a template resource
+   * @return the loaded template, never <code>null</code>
+   * @throws ResourceNotFoundException
+   *           if neither a file nor a resource exists for <code>templateName</code>
+   */
+  public ITemplate getTemplate(String templateName) throws ResourceNotFoundException;
+}
@@ -0,0 +1,111 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Map made of a shared base map and a small map on top of it holding the values of a single
+ * render. The base map is never modified and can be shared by all renders without copying it.
+ * Lookups check the top map first, a key in the top map hides the same key in the base map even if
+ * its value is <code>null</code>. Modifications only affect the top map.
+ */
+class LayeredMap<K, V> extends AbstractMap<K, V>
+{
+
+  private final Map<? extends K, ? extends V> base;
+  private final Map<K, V> top;
+
+  /**
+   * @param base
+   *          the shared values, <code>null</code> for none
+   * @param expectedSize
+   *          the number of values expected in the top map
+   */
+  LayeredMap(Map<? extends K, ? extends V> base, int expectedSize)
+  {
+    this.base = base == null ? Collections.<K, V> emptyMap() : base;
+    this.top = new HashMap<K, V>(Math.max(4, expectedSize * 4 / 3 + 1));
+  }
+
+  /**
+   * @return the shared base map
+   */
+  Map<? extends K, ? extends V> getBase()
+  {
+    return base;
+  }
+
+  @Override
+  public V get(Object key)
+  {
+    V value = top.get(key);
+    if (value != null || top.containsKey(key)) {
+      return value;
+    }
+    return base.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key)
+  {
+    return top.containsKey(key) || base.containsKey(key);
+  }
+
+  @Override
+  public V put(K key, V value)
+  {
+    V previous = get(key);
+    top.put(key, value);
+    return previous;
+  }
+
+  /**
+   * Removes the value from the top map. A value of the base map becomes visible again.
+   */
+  @Override
+  public V remove(Object key)
+  {
+    return top.remove(key);
+  }
+
+  @Override
+  public void clear()
+  {
+    top.clear();
+  }
+
+  /**
+   * @return a snapshot of the merged entries, intended for diagnostics only
+   */
+  @Override
+  public Set<Map.Entry<K, V>> entrySet()
+  {
+    Map<K, V> merged = new LinkedHashMap<K, V>(base);
+    merged.putAll(top);
+    return Collections.unmodifiableMap(merged).entrySet();
+  }
+
+}
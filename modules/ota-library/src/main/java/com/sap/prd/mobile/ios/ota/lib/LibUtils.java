@@ -23,22 +23,25 @@ import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang.StringUtils;
-import org.sonatype.plexus.components.cipher.Base64;
 
 public class LibUtils
 {
 
+  /**
+   * Maximum number of memoized IPA URLs. The memo is dropped as a whole when it is full, the
+   * referers of the currently requested apps are back in it after their next request.
+   */
+  static final int MAX_IPA_URLS = 1024;
+
+  private static final ConcurrentMap<IpaUrlKey, URL> IPA_URLS = new ConcurrentHashMap<IpaUrlKey, URL>();
+
   public static URL buildUrl(String urlPrefix, String urlSuffix) throws MalformedURLException
   {
-    String urlPrefixFixed = urlPrefix.trim();
-    while (urlPrefixFixed.endsWith("/")) { //Remove trailing '/'
-      urlPrefixFixed = urlPrefixFixed.substring(0, urlPrefixFixed.length() - 1);
-    }
-    URL url = new URL(urlPrefixFixed + "/" + urlSuffix);
-    return url;
+    return UrlBuilder.forPrefix(urlPrefix, urlPrefix.length() + urlSuffix.length() + 1).path(urlSuffix).toUrl();
   }
 
   /**
@@ -58,27 +61,66 @@ public class LibUtils
   public static URL generateDirectIpaUrl(String referer, String ipaClassifier, String otaClassifier)
         throws MalformedURLException
   {
-    int idx = referer.lastIndexOf(".");
-    if (idx > 0 && idx > referer.length() - 6) {
-      String ipaUrl = referer.substring(0, idx) + ".ipa";
-      if (!StringUtils.isEmpty(otaClassifier)) {
-        if (!StringUtils.isEmpty(ipaClassifier)) {
-          ipaUrl = replaceLast(ipaUrl, "-" + otaClassifier, "-" + ipaClassifier);
-        }
-        else {
-          ipaUrl = replaceLast(ipaUrl, "-" + otaClassifier, "");
-        }
+    if (referer == null) {
+      throw new NullPointerException("referer");
+    }
+    IpaUrlKey key = new IpaUrlKey(referer, ipaClassifier, otaClassifier);
+    URL url = IPA_URLS.get(key);
+    if (url == null) {
+      url = new URL(buildDirectIpaUrl(referer, ipaClassifier, otaClassifier));
+      if (IPA_URLS.size() >= MAX_IPA_URLS) {
+        IPA_URLS.clear();
+      }
+      IPA_URLS.put(key, url);
+    }
+    return url;
+  }
+
+  /**
+   * Replaces the file extension of the referer by <code>.ipa</code> and the last occurrence of
+   * <code>-otaClassifier</code> by <code>-ipaClassifier</code>. The result is built in a single
+   * buffer, the classifier is searched with one backward scan over the referer.
+   */
+  static String buildDirectIpaUrl(String referer, String ipaClassifier, String otaClassifier)
+        throws MalformedURLException
+  {
+    int idx = referer.lastIndexOf('.');
+    if (idx <= 0 || idx <= referer.length() - 6) {
+      throw new MalformedURLException("Referer does not end with a file (e.g. .htm)");
+    }
+    boolean hasIpaClassifier = !StringUtils.isEmpty(ipaClassifier);
+    int start = idx, end = idx;
+    if (!StringUtils.isEmpty(otaClassifier)) {
+      int found = lastIndexOfClassifier(referer, idx, otaClassifier);
+      if (found < 0) {
+        hasIpaClassifier = false; //nothing to replace
       }
       else {
-        if (!StringUtils.isEmpty(ipaClassifier)) {
-          ipaUrl = ipaUrl.substring(0, idx) + "-" + ipaClassifier + ".ipa";
-        }
+        start = found;
+        end = found + 1 + otaClassifier.length();
       }
-      return new URL(ipaUrl);
     }
-    else {
-      throw new MalformedURLException("Referer does not end with a file (e.g. .htm)");
+    StringBuilder ipaUrl = new StringBuilder(idx + 5 + (hasIpaClassifier ? ipaClassifier.length() + 1 : 0));
+    ipaUrl.append(referer, 0, start);
+    if (hasIpaClassifier) {
+      ipaUrl.append('-').append(ipaClassifier);
+    }
+    return ipaUrl.append(referer, end, idx).append(".ipa").toString();
+  }
+
+  /**
+   * @return the index of the last <code>-classifier</code> in <code>string</code> ending before
+   *         <code>end</code> or -1
+   */
+  private static int lastIndexOfClassifier(String string, int end, String classifier)
+  {
+    int length = classifier.length();
+    for (int i = end - length - 1; i >= 0; i--) {
+      if (string.charAt(i) == '-' && string.regionMatches(i + 1, classifier, 0, length)) {
+        return i;
+      }
     }
+    return -1;
   }
 
   public static String replaceLast(String string, String searchString, String replaceString)
@@ -98,17 +140,58 @@ public class LibUtils
     }
   }
 
+  /**
+   * Clears the memoized IPA URLs.
+   */
+  static void clearIpaUrls()
+  {
+    IPA_URLS.clear();
+  }
+
+  private static final class IpaUrlKey
+  {
+    private final String referer, ipaClassifier, otaClassifier;
+    private final int hash;
+
+    IpaUrlKey(String referer, String ipaClassifier, String otaClassifier)
+    {
+      this.referer = referer;
+      this.ipaClassifier = ipaClassifier;
+      this.otaClassifier = otaClassifier;
+      int h = referer.hashCode();
+      h = 31 * h + (ipaClassifier == null ? 0 : ipaClassifier.hashCode());
+      this.hash = 31 * h + (otaClassifier == null ? 0 : otaClassifier.hashCode());
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj) return true;
+      if (!(obj instanceof IpaUrlKey)) return false;
+      IpaUrlKey other = (IpaUrlKey) obj;
+      return hash == other.hash && referer.equals(other.referer)
+            && StringUtils.equals(ipaClassifier, other.ipaClassifier)
+            && StringUtils.equals(otaClassifier, other.otaClassifier);
+    }
+  }
+
+  /**
+   * Encodes the string like {@link java.net.URLEncoder#encode(String, String)} with UTF-8.
+   */
   public static String urlEncode(String string)
   {
     if (string == null) {
       return null;
     }
-    try {
-      return URLEncoder.encode(string, "UTF-8");
-    }
-    catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e); //should never happen
-    }
+    StringBuilder encoded = new StringBuilder(string.length() + 16);
+    UrlBuilder.appendEncoded(encoded, string);
+    return encoded.toString();
   }
 
   public static String urlDecode(String string)
@@ -124,36 +207,24 @@ public class LibUtils
     }
   }
 
+  /**
+   * Base64 encodes the UTF-8 bytes of the string and URL encodes the result.
+   * 
+   * @see Base64UrlCodec#encode(CharSequence)
+   */
   public static String encode(String string)
   {
-    if (string == null) {
-      return null;
-    }
-    try {
-      byte[] bytes = string.getBytes("UTF-8");
-      byte[] base64Bytes = Base64.encodeBase64(bytes);
-      String base64String = new String(base64Bytes, "US-ASCII");
-      return URLEncoder.encode(base64String, "UTF-8");
-    }
-    catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e); //should never happen
-    }
+    return Base64UrlCodec.encode(string);
   }
 
+  /**
+   * Reverts {@link #encode(String)}.
+   * 
+   * @see Base64UrlCodec#decode(CharSequence)
+   */
   public static String decode(String string)
   {
-    if (string == null) {
-      return null;
-    }
-    try {
-      String urlDecodedString = URLDecoder.decode(string, "UTF-8");
-      byte[] urlDecodedBytes = urlDecodedString.getBytes("US-ASCII");
-      byte[] decodedBase64Bytes = Base64.decodeBase64(urlDecodedBytes);
-      return new String(decodedBase64Bytes, "UTF-8");
-    }
-    catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e); //should never happen
-    }
+    return Base64UrlCodec.decode(string);
   }
 
 }
@@ -22,12 +22,14 @@ package com.sap.prd.mobile.ios.ota.lib;
 import java.io.FileNotFoundException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 
 import com.sap.prd.mobile.ios.ota.lib.OtaBuildHtmlGenerator.Parameters;
+import com.sap.prd.mobile.ios.ota.lib.VelocityBase.IParameters;
 
 /**
  * This class generates the HTML page which is created during the build and uploaded to Nexus.
@@ -47,9 +49,24 @@ public class OtaBuildHtmlGenerator extends VelocityBase<Parameters>
 
   /**
    * Parameters required for the <code>OtaBuildHtmlGenerator</code>.
+   * <p>
+   * Instances are immutable and can be used as keys. The HTML service URL is compared by its
+   * external form, the configuration by identity. The class may be extended to provide further
+   * values through {@link #getMappings()}.
    */
-  public static class Parameters extends com.sap.prd.mobile.ios.ota.lib.VelocityBase.Parameters
+  public static class Parameters implements IParameters
   {
+    private final URL htmlServiceUrl;
+    private final String htmlServiceUrlString;
+    private final String htmlUrl;
+    private final String title;
+    private final String bundleIdentifier;
+    private final String bundleVersion;
+    private final String ipaClassifier;
+    private final String otaClassifier;
+    private final Map<String, String> initParams;
+    private final int hash;
+
     /**
      * @param htmlServiceUrl
      *          The URL of the OTA HTML Service
@@ -72,45 +89,118 @@ public class OtaBuildHtmlGenerator extends VelocityBase<Parameters>
           String ipaClassifier, String otaClassifier, Map<String, String> initParams)
           throws MalformedURLException
     {
-      super();
-      URL htmlUrl = OtaHtmlGenerator.generateHtmlServiceUrl(htmlServiceUrl, title, bundleIdentifier, bundleVersion,
-            ipaClassifier, otaClassifier);
-      mappings.put(HTML_URL, htmlUrl.toExternalForm());
+      this.htmlServiceUrl = htmlServiceUrl;
+      this.htmlServiceUrlString = htmlServiceUrl.toExternalForm();
+      this.htmlUrl = OtaHtmlGenerator.htmlServiceUrl(htmlServiceUrlString, title, bundleIdentifier, bundleVersion,
+            ipaClassifier, otaClassifier);
+      this.title = title;
+      this.bundleIdentifier = bundleIdentifier;
+      this.bundleVersion = bundleVersion;
+      this.ipaClassifier = ipaClassifier;
+      this.otaClassifier = otaClassifier;
+      this.initParams = initParams;
+      this.hash = Arrays.hashCode(new Object[] { htmlUrl, ipaClassifier, otaClassifier,
+            System.identityHashCode(initParams) });
+    }
+
+    public String getHtmlUrl()
+    {
+      return htmlUrl;
+    }
+
+    /**
+     * @return the URL without its last path segment, e.g. the root of the OTA service for the URL of
+     *         the HTML service
+     */
+    static String getServiceRoot(String serviceUrl)
+    {
+      int end = serviceUrl.length();
+      while (end > 0 && serviceUrl.charAt(end - 1) == '/') {
+        end--;
+      }
+      return serviceUrl.substring(0, Math.max(0, serviceUrl.lastIndexOf('/', end - 1)));
+    }
+
+    /**
+     * The values of the page, the configuration values override them. Created per call. The page is
+     * not served by the OTA service, so the asset URLs are absolute.
+     */
+    @Override
+    public Map<String, Object> getMappings()
+    {
+      Map<String, Object> mappings = new HashMap<String, Object>(16);
+      mappings.putAll(StaticAssets.getInstance().getUrls(getServiceRoot(htmlServiceUrlString)));
+      mappings.put(HTML_URL, htmlUrl);
       mappings.put(HTML_SERVICE_URL, htmlServiceUrl);
       mappings.put(TITLE, title);
       mappings.put(BUNDLE_IDENTIFIER, bundleIdentifier);
       mappings.put(BUNDLE_VERSION, bundleVersion);
       mappings.put(IPA_CLASSIFIER, ipaClassifier);
-      mappings.put(OTA_CLASSIFIER, otaClassifier);
-      if(initParams != null) {
-        for(String name : initParams.keySet()) {
-          mappings.put(name, initParams.get(name));
-        }
-      }
+      mappings.put(OTA_CLASSIFIER, otaClassifier);
+      if (initParams != null) {
+        mappings.putAll(initParams);
+      }
+      return mappings;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj) return true;
+      if (obj == null || obj.getClass() != getClass()) return false;
+      Parameters other = (Parameters) obj;
+      return hash == other.hash && initParams == other.initParams && htmlUrl.equals(other.htmlUrl)
+            && htmlServiceUrlString.equals(other.htmlServiceUrlString)
+            && StringUtils.equals(ipaClassifier, other.ipaClassifier)
+            && StringUtils.equals(otaClassifier, other.otaClassifier) && StringUtils.equals(title, other.title)
+            && StringUtils.equals(bundleIdentifier, other.bundleIdentifier)
+            && StringUtils.equals(bundleVersion, other.bundleVersion);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("Parameters[htmlUrl=%s, ipaClassifier=%s, otaClassifier=%s]", htmlUrl, ipaClassifier,
+            otaClassifier);
     }
   }
 
 
   static final String DEFAULT_TEMPLATE = "buildTemplate.html";
-  private static Map<String, OtaBuildHtmlGenerator> instances = new HashMap<String, OtaBuildHtmlGenerator>();
-
-  public static OtaBuildHtmlGenerator getInstance() {
-    return getInstance(null);
-  }
+  private static final GeneratorRegistry<OtaBuildHtmlGenerator> instances =
+        new GeneratorRegistry<OtaBuildHtmlGenerator>(GeneratorRegistry.DEFAULT_MAXIMUM_SIZE,
+              new GeneratorRegistry.Factory<OtaBuildHtmlGenerator>() {
+                @Override
+                public OtaBuildHtmlGenerator create(String template)
+                {
+                  return new OtaBuildHtmlGenerator(template);
+                }
+              });
+
+  public static OtaBuildHtmlGenerator getInstance() {
+    return getInstance(null);
+  }
   
-  public static synchronized OtaBuildHtmlGenerator getInstance(String template)
-  {
-    if(StringUtils.isEmpty(template)) {
-      template = DEFAULT_TEMPLATE;
-    }
-    OtaBuildHtmlGenerator instance;
-    if (!instances.keySet().contains(template)) {
-      instance = new OtaBuildHtmlGenerator(template);
-      instances.put(template, instance);
-    } else {
-      instance = instances.get(template);
+  public static OtaBuildHtmlGenerator getInstance(String template)
+  {
+    if(StringUtils.isEmpty(template)) {
+      template = DEFAULT_TEMPLATE;
     }
-    return instance;
+    return instances.get(template);
+  }
+
+  /**
+   * @return the registry holding the generators per template
+   */
+  public static GeneratorRegistryMBean getRegistry()
+  {
+    return instances;
   }
 
   private OtaBuildHtmlGenerator(String template)
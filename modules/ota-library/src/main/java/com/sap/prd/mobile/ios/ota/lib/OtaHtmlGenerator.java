@@ -21,12 +21,16 @@ package com.sap.prd.mobile.ios.ota.lib;
 
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
 
 import com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator.Parameters;
+import com.sap.prd.mobile.ios.ota.lib.VelocityBase.IParameters;
 
 /**
  * This class generates the HTML page which is created by the OTA HTML service.
@@ -44,9 +48,22 @@ public class OtaHtmlGenerator extends VelocityBase<Parameters>
   
   /**
    * Parameters required for the <code>OtaHtmlGenerator</code>.
+   * <p>
+   * Instances are immutable and can be used as keys, e.g. for caching rendered pages. Referer and
+   * classifiers are only kept as the IPA URL derived from them. The configuration is compared by
+   * identity, it is shared by all requests and replaced as a whole when it changes. Subclasses
+   * which add values in {@link #getMappings()} also have to override <code>equals</code> and
+   * <code>hashCode</code> if their instances serve as keys.
    */
-  public static class Parameters extends com.sap.prd.mobile.ios.ota.lib.VelocityBase.Parameters
+  public static class Parameters implements IParameters
   {
+    private final String ipaUrl;
+    private final String bundleIdentifier;
+    private final String plistUrl;
+    private final String title;
+    private final Map<String, String> initParams;
+    private final int hash;
+
     /**
      * @param referer
      *          The original referer to the initial HTML page (e.g. in Nexus)
@@ -58,56 +75,156 @@ public class OtaHtmlGenerator extends VelocityBase<Parameters>
      *          The complete OTA PLIST Service URL for this App containing all parameters.
      * @param ipaClassifier
      *          The classifier used in the IPA artifact. If null no classifier will be used.
-     * @param otaClassifier
-     *          The classifier used in the OTA HTML artifact. If null no classifier will be used.
-     * @throws MalformedURLException
-     */
-    public Parameters(String referer, String title, String bundleIdentifier, URL plistUrl, String ipaClassifier,
-          String otaClassifier, Map<String, String> initParams)
-          throws MalformedURLException
+     * @param otaClassifier
+     *          The classifier used in the OTA HTML artifact. If null no classifier will be used.
+     * @param initParams
+     *          Additional values available in the template. The map is not copied, it must not be
+     *          modified while the page is generated.
+     * @throws MalformedURLException
+     */
+    public Parameters(String referer, String title, String bundleIdentifier, URL plistUrl, String ipaClassifier,
+          String otaClassifier, Map<String, String> initParams)
+          throws MalformedURLException
+    {
+      this(referer, title, bundleIdentifier, plistUrl.toExternalForm(), ipaClassifier, otaClassifier, initParams);
+    }
+
+    /**
+     * Same as {@link #Parameters(String, String, String, URL, String, String, Map)} with the PLIST
+     * Service URL as string, e.g. as composed by
+     * {@link OtaPlistGenerator#compactPlistRequestUrl(String, String, String, String, String, String, String)}.
+     */
+    public Parameters(String referer, String title, String bundleIdentifier, String plistUrl, String ipaClassifier,
+          String otaClassifier, Map<String, String> initParams)
+          throws MalformedURLException
     {
-      super();
-      URL ipaUrl = LibUtils.generateDirectIpaUrl(referer, ipaClassifier, otaClassifier);
-      if(initParams != null) {
-        mappings.putAll(initParams);
+      if (plistUrl == null) {
+        throw new NullPointerException("plistUrl");
       }
-      mappings.put(IPA_URL, ipaUrl.toExternalForm());
+      this.ipaUrl = LibUtils.generateDirectIpaUrl(referer, ipaClassifier, otaClassifier).toExternalForm();
+      this.bundleIdentifier = bundleIdentifier;
+      this.plistUrl = plistUrl;
+      this.title = title;
+      this.initParams = initParams;
+      this.hash = Arrays.hashCode(new Object[] { ipaUrl, bundleIdentifier, plistUrl, title,
+            System.identityHashCode(initParams) });
+    }
+
+    public String getIpaUrl()
+    {
+      return ipaUrl;
+    }
+
+    public String getBundleIdentifier()
+    {
+      return bundleIdentifier;
+    }
+
+    public String getPlistUrl()
+    {
+      return plistUrl;
+    }
+
+    public String getTitle()
+    {
+      return title;
+    }
+
+    /**
+     * The page values on top of the configuration, created per call. The configuration provides the
+     * asset URLs. Without configuration it is unknown where the page and the assets are served, so
+     * the assets are inlined as <code>data:</code> URLs.
+     */
+    @Override
+    public Map<String, Object> getMappings()
+    {
+      Map<String, Object> mappings = new LayeredMap<String, Object>(initParams == null ? StaticAssets.getInstance()
+        .getInlineUrls() : initParams, 4);
+      mappings.put(IPA_URL, ipaUrl);
       mappings.put(BUNDLE_IDENTIFIER, bundleIdentifier);
-      mappings.put(PLIST_URL, plistUrl.toExternalForm());
-      mappings.put(TITLE, title);
+      mappings.put(PLIST_URL, plistUrl);
+      mappings.put(TITLE, title);
+      return mappings;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj) return true;
+      if (obj == null || obj.getClass() != getClass()) return false;
+      Parameters other = (Parameters) obj;
+      return hash == other.hash && initParams == other.initParams && ipaUrl.equals(other.ipaUrl)
+            && plistUrl.equals(other.plistUrl) && StringUtils.equals(bundleIdentifier, other.bundleIdentifier)
+            && StringUtils.equals(title, other.title);
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("Parameters[ipaUrl=%s, bundleIdentifier=%s, plistUrl=%s, title=%s]", ipaUrl,
+            bundleIdentifier, plistUrl, title);
     }
   }
 
   static final String DEFAULT_TEMPLATE = "template.html";
-  private static Map<String, OtaHtmlGenerator> instances = new HashMap<String, OtaHtmlGenerator>();
+  private static final GeneratorRegistry<OtaHtmlGenerator> instances = new GeneratorRegistry<OtaHtmlGenerator>(
+        GeneratorRegistry.DEFAULT_MAXIMUM_SIZE, new GeneratorRegistry.Factory<OtaHtmlGenerator>() {
+          @Override
+          public OtaHtmlGenerator create(String template)
+          {
+            return new OtaHtmlGenerator(template);
+          }
+        });
 
-  public static OtaHtmlGenerator getInstance() {
-    return getInstance(null);
-  }
-
-  public static synchronized OtaHtmlGenerator getInstance(String template)
-  {
-    if(StringUtils.isEmpty(template)) {
-      template = DEFAULT_TEMPLATE;
-    }
-
-    OtaHtmlGenerator instance;
+  public static OtaHtmlGenerator getInstance() {
+    return getInstance(null);
+  }
 
-    if (!instances.keySet().contains(template)) {
-      instance = new OtaHtmlGenerator(template);
-      instances.put(template, instance);
-    } else {
-      instance = instances.get(template);
+  public static OtaHtmlGenerator getInstance(String template)
+  {
+    if(StringUtils.isEmpty(template)) {
+      template = DEFAULT_TEMPLATE;
     }
-
-    return instance;
+    return instances.get(template);
+  }
+
+  /**
+   * @return the registry holding the generators per template
+   */
+  public static GeneratorRegistryMBean getRegistry()
+  {
+    return instances;
   }
 
+  /**
+   * The values which differ per page, all other references only depend on the configuration.
+   */
+  private static final Set<String> PAGE_VALUES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+        IPA_URL, BUNDLE_IDENTIFIER, PLIST_URL, TITLE)));
+
   private OtaHtmlGenerator(String template)
-  {
+  {
     super(template);
   }
 
+  /**
+   * Pre-evaluates the references to the configuration values. Pages generated with {@link Parameters}
+   * created with the same <code>initParams</code> instance only merge the page values afterwards.
+   * 
+   * @param initParams
+   *          the configuration, must not be modified afterwards
+   */
+  public void specialize(Map<String, String> initParams)
+  {
+    specialize(initParams, PAGE_VALUES);
+  }
+
   /**
    * Generates the URL for a specific request to the HTML service.
    * 
@@ -129,16 +246,26 @@ public class OtaHtmlGenerator extends VelocityBase<Parameters>
   public static URL generateHtmlServiceUrl(URL htmlServiceUrl, String title, String bundleIdentifier,
         String bundleVersion, String ipaClassifier, String otaClassifier) throws MalformedURLException
   {
-    return new URL(String.format("%s?%s=%s&%s=%s&%s=%s%s%s",
-          htmlServiceUrl.toExternalForm(),
-          TITLE, LibUtils.urlEncode(title),
-          BUNDLE_IDENTIFIER, LibUtils.urlEncode(bundleIdentifier),
-          BUNDLE_VERSION, LibUtils.urlEncode(bundleVersion),
-          (StringUtils.isEmpty(ipaClassifier) ? "" :
-                String.format("&%s=%s", IPA_CLASSIFIER, LibUtils.urlEncode(ipaClassifier))),
-          (StringUtils.isEmpty(otaClassifier) ? "" :
-                String.format("&%s=%s", OTA_CLASSIFIER, LibUtils.urlEncode(otaClassifier)))
-      ));
+    return new URL(htmlServiceUrl(htmlServiceUrl.toExternalForm(), title, bundleIdentifier, bundleVersion, ipaClassifier,
+          otaClassifier));
+  }
+
+  /**
+   * Composes the URL for a specific request to the HTML service, the parameters are the same as
+   * for {@link #generateHtmlServiceUrl(URL, String, String, String, String, String)}.
+   * 
+   * @return the URL as string
+   */
+  public static String htmlServiceUrl(String htmlServiceUrl, String title, String bundleIdentifier,
+        String bundleVersion, String ipaClassifier, String otaClassifier)
+  {
+    return new UrlBuilder(htmlServiceUrl, htmlServiceUrl.length() + 160)
+      .query(TITLE, title)
+      .query(BUNDLE_IDENTIFIER, bundleIdentifier)
+      .query(BUNDLE_VERSION, bundleVersion)
+      .queryIfNotEmpty(IPA_CLASSIFIER, ipaClassifier)
+      .queryIfNotEmpty(OTA_CLASSIFIER, otaClassifier)
+      .toString();
   }
 
 }
@@ -19,17 +19,26 @@
  */
 package com.sap.prd.mobile.ios.ota.lib;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 
 import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.Parameters;
+import com.sap.prd.mobile.ios.ota.lib.VelocityBase.IParameters;
 
 /**
  * This class generates the PLIST file which is created by the OTA PLIST service.
+ * <p>
+ * The bundled template is not merged by a template engine, the manifest is written directly by the
+ * {@link PlistManifestWriter}. A template engine is only involved for other templates.
  */
 public class OtaPlistGenerator extends VelocityBase<Parameters>
 {
@@ -44,9 +53,19 @@ public class OtaPlistGenerator extends VelocityBase<Parameters>
 
   /**
    * Parameters required for the <code>OtaPlistGenerator</code>.
+   * <p>
+   * Instances are immutable and can be used as keys, e.g. for caching rendered manifests. Referer
+   * and classifiers are only kept as the IPA URL derived from them, so all requests resulting in the
+   * same manifest have equal parameters. A subclass may add values for a custom template by
+   * overriding {@link #getMappings()}; instances of different classes are never equal.
    */
-  public static class Parameters extends com.sap.prd.mobile.ios.ota.lib.VelocityBase.Parameters
+  public static class Parameters implements IParameters
   {
+    private final String ipaUrl;
+    private final String bundleIdentifier;
+    private final String bundleVersion;
+    private final String title;
+    private final int hash;
 
     /**
      * @param referer
@@ -67,41 +86,153 @@ public class OtaPlistGenerator extends VelocityBase<Parameters>
           String ipaClassifier, String otaClassifier)
           throws MalformedURLException
     {
-      super();
-      URL ipaURL = LibUtils.generateDirectIpaUrl(referer, ipaClassifier, otaClassifier);
-      mappings.put(IPA_URL, ipaURL.toExternalForm());
+      this.ipaUrl = LibUtils.generateDirectIpaUrl(referer, ipaClassifier, otaClassifier).toExternalForm();
+      this.bundleIdentifier = bundleIdentifier;
+      this.bundleVersion = bundleVersion;
+      this.title = title;
+      this.hash = Arrays.hashCode(new Object[] { ipaUrl, bundleIdentifier, bundleVersion, title });
+    }
+
+    public String getIpaUrl()
+    {
+      return ipaUrl;
+    }
+
+    public String getBundleIdentifier()
+    {
+      return bundleIdentifier;
+    }
+
+    public String getBundleVersion()
+    {
+      return bundleVersion;
+    }
+
+    public String getTitle()
+    {
+      return title;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj) return true;
+      if (obj == null || obj.getClass() != getClass()) return false;
+      Parameters other = (Parameters) obj;
+      return hash == other.hash && ipaUrl.equals(other.ipaUrl)
+            && StringUtils.equals(bundleIdentifier, other.bundleIdentifier)
+            && StringUtils.equals(bundleVersion, other.bundleVersion) && StringUtils.equals(title, other.title);
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("Parameters[ipaUrl=%s, bundleIdentifier=%s, bundleVersion=%s, title=%s]", ipaUrl,
+            bundleIdentifier, bundleVersion, title);
+    }
+
+    /**
+     * The map is only created for templates merged by a template engine.
+     */
+    @Override
+    public Map<String, Object> getMappings()
+    {
+      Map<String, Object> mappings = new HashMap<String, Object>(8);
+      mappings.put(IPA_URL, ipaUrl);
       mappings.put(BUNDLE_IDENTIFIER, bundleIdentifier);
       mappings.put(BUNDLE_VERSION, bundleVersion);
       mappings.put(TITLE, title);
+      return mappings;
     }
   }
 
-  private static final String DEFAULT_TEMPLATE = "template.plist";
-  private static OtaPlistGenerator instance = null;
+  static final String DEFAULT_TEMPLATE = "template.plist";
 
-  public static synchronized OtaPlistGenerator getInstance()
+  /**
+   * Lazy holder, the instance is created on first access without taking a lock on every call.
+   */
+  private static class InstanceHolder
   {
-    if (instance == null) {
-      instance = new OtaPlistGenerator();
+    static final OtaPlistGenerator instance = new OtaPlistGenerator(DEFAULT_TEMPLATE);
+  }
+
+  private static final GeneratorRegistry<OtaPlistGenerator> instances = new GeneratorRegistry<OtaPlistGenerator>(
+        GeneratorRegistry.DEFAULT_MAXIMUM_SIZE, new GeneratorRegistry.Factory<OtaPlistGenerator>() {
+          @Override
+          public OtaPlistGenerator create(String template)
+          {
+            return new OtaPlistGenerator(template);
+          }
+        });
+
+  public static OtaPlistGenerator getInstance()
+  {
+    return InstanceHolder.instance;
+  }
+
+  /**
+   * @param template
+   *          the template overriding the bundled one, <code>null</code> or empty for the bundled
+   *          template
+   */
+  public static OtaPlistGenerator getInstance(String template)
+  {
+    if (StringUtils.isEmpty(template) || DEFAULT_TEMPLATE.equals(template)) {
+      return getInstance();
     }
-    return instance;
+    return instances.get(template);
   }
 
-  private OtaPlistGenerator()
-  {
-    super(DEFAULT_TEMPLATE);
+  private final boolean manifest;
+
+  private OtaPlistGenerator(String template)
+  {
+    super(template);
+    this.manifest = DEFAULT_TEMPLATE.equals(template);
   }
 
   @Override
-  public synchronized String generate(Parameters parameters) throws IOException
+  public void generate(PrintWriter writer, Parameters parameters) throws IOException
   {
-    return super.generate(parameters);
+    if (manifest) {
+      PlistManifestWriter.write(writer, parameters.ipaUrl, parameters.bundleIdentifier, parameters.bundleVersion,
+            parameters.title);
+    }
+    else {
+      super.generate(writer, parameters);
+    }
   }
 
   @Override
-  public synchronized void generate(PrintWriter writer, Parameters parameters) throws IOException
+  public void generate(OutputStream out, Parameters parameters) throws IOException
   {
-    super.generate(writer, parameters);
+    if (manifest) {
+      PlistManifestWriter.write(out, parameters.ipaUrl, parameters.bundleIdentifier, parameters.bundleVersion,
+            parameters.title);
+    }
+    else {
+      super.generate(out, parameters);
+    }
+  }
+
+  /**
+   * Generates the complete document UTF-8 encoded. The array length is the exact content length.
+   */
+  public byte[] generateBytes(Parameters parameters) throws IOException
+  {
+    if (manifest) {
+      return PlistManifestWriter.toByteArray(parameters.ipaUrl, parameters.bundleIdentifier,
+            parameters.bundleVersion, parameters.title);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+    super.generate(out, parameters);
+    return out.toByteArray();
   }
 
   /**
@@ -126,20 +257,72 @@ public class OtaPlistGenerator extends VelocityBase<Parameters>
    */
   public static URL generatePlistRequestUrl(String plistServiceUrl, String referer, String title,
         String bundleIdentifier, String bundleVersion, String ipaClassifier, String otaClassifier) throws IOException
+  {
+    return new URL(plistRequestUrl(plistServiceUrl, referer, title, bundleIdentifier, bundleVersion, ipaClassifier,
+          otaClassifier));
+  }
+
+  /**
+   * Composes the URL for a specific request to the PLIST service, the parameters are the same as
+   * for {@link #generatePlistRequestUrl(String, String, String, String, String, String, String)}.
+   * 
+   * @return the URL as string
+   */
+  public static String plistRequestUrl(String plistServiceUrl, String referer, String title,
+        String bundleIdentifier, String bundleVersion, String ipaClassifier, String otaClassifier)
+  {
+    if (plistServiceUrl == null) {
+      throw new NullPointerException("serviceUrl null");
+    }
+    UrlBuilder url = new UrlBuilder(plistServiceUrl, plistServiceUrl.length() + 256)
+      .encodedSegment(REFERER, referer)
+      .encodedSegment(TITLE, title)
+      .encodedSegment(BUNDLE_IDENTIFIER, bundleIdentifier)
+      .encodedSegment(BUNDLE_VERSION, bundleVersion);
+    if (!StringUtils.isEmpty(ipaClassifier)) {
+      url.encodedSegment(IPA_CLASSIFIER, ipaClassifier);
+    }
+    if (!StringUtils.isEmpty(otaClassifier)) {
+      url.encodedSegment(OTA_CLASSIFIER, otaClassifier);
+    }
+    return url.toString();
+  }
+
+  /**
+   * Generates the URL for a specific request to the PLIST service in the compact format
+   * <code>&lt;plistServiceUrl&gt;/v1/&lt;token&gt;</code>, see {@link PlistToken}. The parameters
+   * are the same as for
+   * {@link #generatePlistRequestUrl(String, String, String, String, String, String, String)}.
+   * 
+   * @return the URL
+   * @throws IOException
+   */
+  public static URL generateCompactPlistRequestUrl(String plistServiceUrl, String referer, String title,
+        String bundleIdentifier, String bundleVersion, String ipaClassifier, String otaClassifier) throws IOException
+  {
+    return new URL(compactPlistRequestUrl(plistServiceUrl, referer, title, bundleIdentifier, bundleVersion,
+          ipaClassifier, otaClassifier));
+  }
+
+  /**
+   * Same as
+   * {@link #generateCompactPlistRequestUrl(String, String, String, String, String, String, String)}
+   * without parsing the result.
+   * 
+   * @return the URL as string
+   */
+  public static String compactPlistRequestUrl(String plistServiceUrl, String referer, String title,
+        String bundleIdentifier, String bundleVersion, String ipaClassifier, String otaClassifier)
   {
     if (plistServiceUrl == null) {
       throw new NullPointerException("serviceUrl null");
     }
-    String urlString = String.format("%s/%s/%s/%s/%s%s%s",
-          plistServiceUrl,
-          LibUtils.encode(REFERER + "=" + referer),
-          LibUtils.encode(TITLE + "=" + title),
-          LibUtils.encode(BUNDLE_IDENTIFIER + "=" + bundleIdentifier),
-          LibUtils.encode(BUNDLE_VERSION + "=" + bundleVersion),
-          (StringUtils.isEmpty(ipaClassifier) ? "" : "/" + LibUtils.encode(IPA_CLASSIFIER + "=" + ipaClassifier)),
-          (StringUtils.isEmpty(otaClassifier) ? "" : "/" + LibUtils.encode(OTA_CLASSIFIER + "=" + otaClassifier))
-      );
-    return new URL(urlString);
+    StringBuilder url = new StringBuilder(plistServiceUrl.length() + 256).append(plistServiceUrl)
+      .append('/').append(PlistToken.VERSION_1).append('/');
+    new PlistToken(referer, title, bundleIdentifier, bundleVersion,
+          StringUtils.isEmpty(ipaClassifier) ? null : ipaClassifier,
+          StringUtils.isEmpty(otaClassifier) ? null : otaClassifier).appendTo(url);
+    return url.toString();
   }
 
 }
@@ -0,0 +1,161 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Writes the OTA manifest PLIST without a template engine. The document is the same as the one
+ * produced from the bundled <code>template.plist</code>; the fixed parts are kept UTF-8 encoded and
+ * only the four values are escaped and encoded per document.
+ * <p>
+ * A missing value is written as the reference the template would show, e.g. <code>$title</code>.
+ */
+public final class PlistManifestWriter
+{
+
+  private static final String NL = "\r\n";
+
+  private static final String[] SEGMENTS = {
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + NL
+              + "<!DOCTYPE plist PUBLIC \"-//Apple//DTD PLIST 1.0//EN\" \"http://www.apple.com/DTDs/PropertyList-1.0.dtd\">" + NL
+              + "<plist version=\"1.0\">" + NL
+              + "<dict>" + NL
+              + "\t<key>items</key>" + NL
+              + "\t<array>" + NL
+              + "\t\t<dict>" + NL
+              + "\t\t\t<key>assets</key>" + NL
+              + "\t\t\t<array>" + NL
+              + "\t\t\t\t<dict>" + NL
+              + "\t\t\t\t\t<key>kind</key>" + NL
+              + "\t\t\t\t\t<string>software-package</string>" + NL
+              + "\t\t\t\t\t<key>url</key>" + NL
+              + "\t\t\t\t\t<string>",
+        "</string>" + NL
+              + "\t\t\t\t</dict>" + NL
+              + "\t\t\t</array>" + NL
+              + "\t\t\t<key>metadata</key>" + NL
+              + "\t\t\t<dict>" + NL
+              + "\t\t\t\t<key>bundle-identifier</key>" + NL
+              + "\t\t\t\t<string>",
+        "</string>" + NL
+              + "\t\t\t\t<key>bundle-version</key>" + NL
+              + "\t\t\t\t<string>",
+        "</string>" + NL
+              + "\t\t\t\t<key>kind</key>" + NL
+              + "\t\t\t\t<string>software</string>" + NL
+              + "\t\t\t\t<key>title</key>" + NL
+              + "\t\t\t\t<string>",
+        "</string>" + NL
+              + "\t\t\t</dict>" + NL
+              + "\t\t</dict>" + NL
+              + "\t</array>" + NL
+              + "</dict>" + NL
+              + "</plist>" + NL };
+
+  private static final String[] REFERENCES = { "$" + OtaPlistGenerator.IPA_URL,
+        "$" + OtaPlistGenerator.BUNDLE_IDENTIFIER, "$" + OtaPlistGenerator.BUNDLE_VERSION,
+        "$" + OtaPlistGenerator.TITLE };
+
+  private static final byte[][] ENCODED_SEGMENTS = encode(SEGMENTS);
+  private static final int SEGMENTS_LENGTH = length(ENCODED_SEGMENTS);
+
+  private PlistManifestWriter()
+  {
+  }
+
+  /**
+   * @return the complete manifest, the array length is the exact content length
+   */
+  public static byte[] toByteArray(String ipaUrl, String bundleIdentifier, String bundleVersion, String title)
+  {
+    byte[][] values = encodeValues(ipaUrl, bundleIdentifier, bundleVersion, title);
+    byte[] manifest = new byte[SEGMENTS_LENGTH + length(values)];
+    int position = 0;
+    for (int i = 0; i < values.length; i++) {
+      System.arraycopy(ENCODED_SEGMENTS[i], 0, manifest, position, ENCODED_SEGMENTS[i].length);
+      position += ENCODED_SEGMENTS[i].length;
+      System.arraycopy(values[i], 0, manifest, position, values[i].length);
+      position += values[i].length;
+    }
+    System.arraycopy(ENCODED_SEGMENTS[values.length], 0, manifest, position, ENCODED_SEGMENTS[values.length].length);
+    return manifest;
+  }
+
+  /**
+   * Writes the manifest UTF-8 encoded to the stream. The stream is neither flushed nor closed.
+   */
+  public static void write(OutputStream out, String ipaUrl, String bundleIdentifier, String bundleVersion,
+        String title) throws IOException
+  {
+    byte[][] values = encodeValues(ipaUrl, bundleIdentifier, bundleVersion, title);
+    for (int i = 0; i < values.length; i++) {
+      out.write(ENCODED_SEGMENTS[i]);
+      out.write(values[i]);
+    }
+    out.write(ENCODED_SEGMENTS[values.length]);
+  }
+
+  /**
+   * Writes the manifest to the writer. The writer is neither flushed nor closed.
+   */
+  public static void write(Writer writer, String ipaUrl, String bundleIdentifier, String bundleVersion,
+        String title) throws IOException
+  {
+    String[] values = { ipaUrl, bundleIdentifier, bundleVersion, title };
+    for (int i = 0; i < values.length; i++) {
+      writer.write(SEGMENTS[i]);
+      writer.write(values[i] == null ? REFERENCES[i] : Escaper.XML.escape(values[i]));
+    }
+    writer.write(SEGMENTS[values.length]);
+  }
+
+  private static byte[][] encodeValues(String ipaUrl, String bundleIdentifier, String bundleVersion, String title)
+  {
+    return new byte[][] { encodeValue(ipaUrl, 0), encodeValue(bundleIdentifier, 1), encodeValue(bundleVersion, 2),
+          encodeValue(title, 3) };
+  }
+
+  private static byte[] encodeValue(String value, int slot)
+  {
+    return (value == null ? REFERENCES[slot] : Escaper.XML.escape(value)).getBytes(PrecompiledTemplate.UTF_8);
+  }
+
+  private static byte[][] encode(String[] strings)
+  {
+    byte[][] encoded = new byte[strings.length][];
+    for (int i = 0; i < strings.length; i++) {
+      encoded[i] = strings[i].getBytes(PrecompiledTemplate.UTF_8);
+    }
+    return encoded;
+  }
+
+  private static int length(byte[][] arrays)
+  {
+    int length = 0;
+    for (byte[] array : arrays) {
+      length += array.length;
+    }
+    return length;
+  }
+
+}
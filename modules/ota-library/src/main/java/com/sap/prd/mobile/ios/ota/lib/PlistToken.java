@@ -0,0 +1,201 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.util.Arrays;
+
+/**
+ * The compact form of the PLIST request parameters: all values are packed into one binary token
+ * which is encoded with the URL-safe Base64 alphabet. The request URL is
+ * <code>&lt;plistServiceUrl&gt;/v1/&lt;token&gt;</code> instead of one encoded
+ * <code>key=value</code> segment per parameter.
+ * <p>
+ * Format version 1 stores the values in the order referer, title, bundle identifier, bundle
+ * version, IPA classifier, OTA classifier. Each value is written as its UTF-8 length plus one in
+ * unsigned LEB128 followed by the UTF-8 bytes; a length of 0 stands for <code>null</code>. Trailing
+ * <code>null</code> values are omitted.
+ */
+public final class PlistToken
+{
+
+  /**
+   * The path segment preceding a token of format version 1.
+   */
+  public final static String VERSION_1 = "v1";
+
+  private final static int FIELDS = 6;
+
+  private final String[] values;
+
+  public PlistToken(String referer, String title, String bundleIdentifier, String bundleVersion,
+        String ipaClassifier, String otaClassifier)
+  {
+    this(new String[] { referer, title, bundleIdentifier, bundleVersion, ipaClassifier, otaClassifier });
+  }
+
+  private PlistToken(String[] values)
+  {
+    this.values = values;
+  }
+
+  public String getReferer()
+  {
+    return values[0];
+  }
+
+  public String getTitle()
+  {
+    return values[1];
+  }
+
+  public String getBundleIdentifier()
+  {
+    return values[2];
+  }
+
+  public String getBundleVersion()
+  {
+    return values[3];
+  }
+
+  public String getIpaClassifier()
+  {
+    return values[4];
+  }
+
+  public String getOtaClassifier()
+  {
+    return values[5];
+  }
+
+  /**
+   * Appends the encoded token.
+   * 
+   * @return <code>out</code>
+   */
+  public StringBuilder appendTo(StringBuilder out)
+  {
+    byte[] bytes = toBytes();
+    return Base64UrlCodec.encodeBytes(out, bytes, 0, bytes.length);
+  }
+
+  /**
+   * @return the binary form of the token, before Base64 encoding
+   */
+  byte[] toBytes()
+  {
+    int fields = FIELDS;
+    while (fields > 0 && values[fields - 1] == null) {
+      fields--;
+    }
+    byte[][] encoded = new byte[fields][];
+    int length = 0;
+    for (int i = 0; i < fields; i++) {
+      encoded[i] = values[i] == null ? null : values[i].getBytes(PrecompiledTemplate.UTF_8);
+      length += 5 + (encoded[i] == null ? 0 : encoded[i].length);
+    }
+    byte[] bytes = new byte[length];
+    int pos = 0;
+    for (int i = 0; i < fields; i++) {
+      int prefix = encoded[i] == null ? 0 : encoded[i].length + 1;
+      while (prefix >= 0x80) {
+        bytes[pos++] = (byte) (prefix | 0x80);
+        prefix >>>= 7;
+      }
+      bytes[pos++] = (byte) prefix;
+      if (encoded[i] != null) {
+        System.arraycopy(encoded[i], 0, bytes, pos, encoded[i].length);
+        pos += encoded[i].length;
+      }
+    }
+    return Arrays.copyOf(bytes, pos);
+  }
+
+  /**
+   * Decodes the token from <code>start</code> (inclusive) to <code>end</code> (exclusive).
+   * 
+   * @throws IllegalArgumentException
+   *           if the token is malformed
+   */
+  public static PlistToken decode(CharSequence encoded, int start, int end)
+  {
+    byte[] bytes = Base64UrlCodec.decodeBytes(encoded, start, end);
+    return fromBytes(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Reads the binary form of a token.
+   * 
+   * @throws IllegalArgumentException
+   *           if the bytes are malformed
+   */
+  static PlistToken fromBytes(byte[] bytes, int offset, int length)
+  {
+    String[] values = new String[FIELDS];
+    int pos = offset;
+    int end = offset + length;
+    for (int i = 0; i < FIELDS && pos < end; i++) {
+      int prefix = 0;
+      for (int shift = 0;; shift += 7) {
+        if (pos == end || shift > 28) {
+          throw new IllegalArgumentException("Malformed length in PLIST token");
+        }
+        byte b = bytes[pos++];
+        prefix |= (b & 0x7f) << shift;
+        if (b >= 0) {
+          break;
+        }
+      }
+      if (prefix < 0 || prefix - 1 > end - pos) {
+        throw new IllegalArgumentException("Truncated PLIST token");
+      }
+      if (prefix > 0) {
+        values[i] = new String(bytes, pos, prefix - 1, PrecompiledTemplate.UTF_8);
+        pos += prefix - 1;
+      }
+    }
+    if (pos < end) {
+      throw new IllegalArgumentException("Unexpected data at the end of the PLIST token");
+    }
+    return new PlistToken(values);
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    return obj instanceof PlistToken && Arrays.equals(values, ((PlistToken) obj).values);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return Arrays.hashCode(values);
+  }
+
+  /**
+   * @return the encoded token
+   */
+  @Override
+  public String toString()
+  {
+    return appendTo(new StringBuilder()).toString();
+  }
+
+}
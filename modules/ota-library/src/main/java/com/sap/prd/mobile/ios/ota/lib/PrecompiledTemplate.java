@@ -0,0 +1,426 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A template compiled into a flat list of static text segments and variable slots. Merging writes
+ * the segments and the slot values alternately, there is no parse tree and no reflection involved.
+ * <p>
+ * The rendering is the same as with Velocity: a reference without a value is written as it appears
+ * in the template.
+ * <p>
+ * For byte oriented output the static segments are UTF-8 encoded once when the template is
+ * created, only the slot values are encoded during the merge.
+ * <p>
+ * A template created with {@link #escaping(Escaper, Set)} escapes the values of the given slots
+ * before they are written. References without a value are written as they are.
+ */
+public class PrecompiledTemplate implements ITemplate
+{
+
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Rough heap overhead of an object or array header plus reference, used for size estimates.
+   */
+  static final int OBJECT_OVERHEAD = 24;
+
+  private static final String[] DIRECTIVES = { "set", "if", "elseif", "else", "end", "foreach", "include",
+        "parse", "macro", "stop", "break", "define", "evaluate", "literal" };
+
+  private final String name;
+  private final String[] texts;
+  private final String[] slots;
+  private final String[] references;
+  private final byte[][] encodedTexts;
+  private final byte[][] encodedReferences;
+  private final Escaper escaper;
+  private final Set<String> escapedNames;
+  private final boolean[] escaped;
+
+  /**
+   * @param name
+   *          the template name
+   * @param texts
+   *          the static text segments, one more than there are slots
+   * @param slots
+   *          the names of the referenced values
+   * @param references
+   *          the references as they appear in the template, written if a slot has no value
+   */
+  protected PrecompiledTemplate(String name, String[] texts, String[] slots, String[] references)
+  {
+    if (texts.length != slots.length + 1 || references.length != slots.length) {
+      throw new IllegalArgumentException("Expected " + (slots.length + 1) + " text segments and " + slots.length
+            + " references for " + slots.length + " slots");
+    }
+    this.name = name;
+    this.texts = texts;
+    this.slots = slots;
+    this.references = references;
+    this.encodedTexts = encode(texts);
+    this.encodedReferences = encode(references);
+    this.escaper = null;
+    this.escapedNames = null;
+    this.escaped = new boolean[slots.length];
+  }
+
+  private PrecompiledTemplate(PrecompiledTemplate template, Escaper escaper, Set<String> escapedNames)
+  {
+    this.name = template.name;
+    this.texts = template.texts;
+    this.slots = template.slots;
+    this.references = template.references;
+    this.encodedTexts = template.encodedTexts;
+    this.encodedReferences = template.encodedReferences;
+    this.escaper = escaper;
+    this.escapedNames = escapedNames;
+    this.escaped = new boolean[slots.length];
+    for (int i = 0; i < slots.length; i++) {
+      escaped[i] = escaper != null && escapedNames.contains(slots[i]);
+    }
+  }
+
+  /**
+   * @param escaper
+   *          the escaping of the slot values, <code>null</code> for none
+   * @param names
+   *          the names of the escaped values, the values of all other slots are written as they are
+   * @return a template with the same content which escapes the values with the given escaper
+   */
+  public PrecompiledTemplate escaping(Escaper escaper, Set<String> names)
+  {
+    if (escaper == this.escaper && (escaper == null || names.equals(escapedNames))) {
+      return this;
+    }
+    return new PrecompiledTemplate(this, escaper, names);
+  }
+
+  /**
+   * @return the escaping of the slot values, <code>null</code> if they are written as they are
+   */
+  public Escaper getEscaper()
+  {
+    return escaper;
+  }
+
+  private String toString(int slot, Object value)
+  {
+    return escaped[slot] ? escaper.escape(value.toString()) : value.toString();
+  }
+
+  /**
+   * Joins the parts of a text segment. Used by generated subclasses, a single string constant in a
+   * class file is limited to 64 KB.
+   */
+  protected static String text(String... parts)
+  {
+    StringBuilder text = new StringBuilder();
+    for (String part : parts) {
+      text.append(part);
+    }
+    return text.toString();
+  }
+
+  /**
+   * @return the static text segments, one more than there are slots
+   */
+  public String[] getTexts()
+  {
+    return texts.clone();
+  }
+
+  /**
+   * @return the names of the referenced values
+   */
+  public String[] getSlots()
+  {
+    return slots.clone();
+  }
+
+  /**
+   * @return the references as they appear in the template
+   */
+  public String[] getReferences()
+  {
+    return references.clone();
+  }
+
+  private static byte[][] encode(String[] strings)
+  {
+    byte[][] encoded = new byte[strings.length][];
+    for (int i = 0; i < strings.length; i++) {
+      encoded[i] = strings[i].getBytes(UTF_8);
+    }
+    return encoded;
+  }
+
+  @Override
+  public String getName()
+  {
+    return name;
+  }
+
+  @Override
+  public void merge(Map<String, Object> mappings, Writer writer) throws IOException
+  {
+    for (int i = 0; i < slots.length; i++) {
+      writer.write(texts[i]);
+      Object value = mappings.get(slots[i]);
+      writer.write(value == null ? references[i] : toString(i, value));
+    }
+    writer.write(texts[slots.length]);
+  }
+
+  @Override
+  public void merge(Map<String, Object> mappings, OutputStream out) throws IOException
+  {
+    for (int i = 0; i < slots.length; i++) {
+      out.write(encodedTexts[i]);
+      Object value = mappings.get(slots[i]);
+      out.write(value == null ? encodedReferences[i] : toString(i, value).getBytes(UTF_8));
+    }
+    out.write(encodedTexts[slots.length]);
+  }
+
+  /**
+   * Creates a template in which all references except the live ones are evaluated once: references
+   * with a constant value are replaced by that value, all others by the reference itself as it
+   * would be rendered without a value. Only the live references remain slots. Constant values are
+   * escaped like slot values.
+   * 
+   * @param constants
+   *          the values which do not change between renders
+   * @param live
+   *          the names of the values which are provided per render
+   */
+  public PrecompiledTemplate specialize(Map<String, ?> constants, Set<String> live)
+  {
+    List<String> newTexts = new ArrayList<String>();
+    List<String> newSlots = new ArrayList<String>();
+    List<String> newReferences = new ArrayList<String>();
+    StringBuilder text = new StringBuilder(texts[0]);
+    for (int i = 0; i < slots.length; i++) {
+      if (live.contains(slots[i])) {
+        newTexts.add(text.toString());
+        newSlots.add(slots[i]);
+        newReferences.add(references[i]);
+        text.setLength(0);
+      }
+      else {
+        Object value = constants.get(slots[i]);
+        text.append(value == null ? references[i] : toString(i, value));
+      }
+      text.append(texts[i + 1]);
+    }
+    newTexts.add(text.toString());
+    return new PrecompiledTemplate(name, newTexts.toArray(new String[newTexts.size()]),
+          newSlots.toArray(new String[newSlots.size()]), newReferences.toArray(new String[newReferences.size()]))
+      .escaping(escaper, escapedNames);
+  }
+
+  /**
+   * @return the number of references evaluated per render
+   */
+  public int getSlotCount()
+  {
+    return slots.length;
+  }
+
+  /**
+   * @return the share of the template source which is static text, between 0 and 1
+   */
+  public double getStaticRatio()
+  {
+    long staticLength = 0;
+    for (String text : texts) {
+      staticLength += text.length();
+    }
+    long referenceLength = 0;
+    for (String reference : references) {
+      referenceLength += reference.length();
+    }
+    return staticLength + referenceLength == 0 ? 1 : (double) staticLength / (staticLength + referenceLength);
+  }
+
+  @Override
+  public long estimateSize()
+  {
+    return OBJECT_OVERHEAD + estimateSize(texts) + estimateSize(slots) + estimateSize(references)
+          + estimateSize(encodedTexts) + estimateSize(encodedReferences);
+  }
+
+  private static long estimateSize(String[] strings)
+  {
+    long size = OBJECT_OVERHEAD;
+    for (String string : strings) {
+      size += 2 * OBJECT_OVERHEAD + 2L * string.length();
+    }
+    return size;
+  }
+
+  private static long estimateSize(byte[][] arrays)
+  {
+    long size = OBJECT_OVERHEAD;
+    for (byte[] array : arrays) {
+      size += OBJECT_OVERHEAD + array.length;
+    }
+    return size;
+  }
+
+  /**
+   * Compiles the template source into static text segments and slots.
+   * 
+   * @param name
+   *          the template name
+   * @param source
+   *          the template source
+   * @return the compiled template or <code>null</code> if the template uses Velocity features
+   *         other than simple references
+   */
+  public static PrecompiledTemplate compile(String name, String source)
+  {
+    List<String> texts = new ArrayList<String>();
+    List<String> slots = new ArrayList<String>();
+    List<String> references = new ArrayList<String>();
+    int textStart = 0;
+    int length = source.length();
+    int i = 0;
+    while (i < length) {
+      char c = source.charAt(i);
+      if (c == '\\') {
+        if (i + 1 < length && (source.charAt(i + 1) == '$' || source.charAt(i + 1) == '#')) {
+          return null; //escaped reference or directive
+        }
+        i++;
+      }
+      else if (c == '#') {
+        if (isDirective(source, i + 1)) {
+          return null;
+        }
+        i++;
+      }
+      else if (c == '$') {
+        boolean formal = i + 1 < length && source.charAt(i + 1) == '{';
+        int idStart = formal ? i + 2 : i + 1;
+        if (idStart < length && source.charAt(idStart) == '!') {
+          return null; //quiet reference
+        }
+        int idEnd = identifierEnd(source, idStart);
+        if (idEnd == idStart) {
+          if (formal) return null;
+          i++; //just a dollar sign
+          continue;
+        }
+        int end;
+        if (formal) {
+          if (idEnd >= length || source.charAt(idEnd) != '}') {
+            return null; //method call, property or index within ${...}
+          }
+          end = idEnd + 1;
+        }
+        else {
+          if (idEnd < length && (source.charAt(idEnd) == '[' ||
+                (source.charAt(idEnd) == '.' && identifierEnd(source, idEnd + 1) > idEnd + 1))) {
+            return null; //index, property or method call
+          }
+          end = idEnd;
+        }
+        texts.add(source.substring(textStart, i));
+        slots.add(source.substring(idStart, idEnd));
+        references.add(source.substring(i, end));
+        textStart = end;
+        i = end;
+      }
+      else {
+        i++;
+      }
+    }
+    texts.add(source.substring(textStart));
+    return new PrecompiledTemplate(name, texts.toArray(new String[texts.size()]),
+          slots.toArray(new String[slots.size()]), references.toArray(new String[references.size()]));
+  }
+
+  /**
+   * Velocity identifiers start with a letter followed by letters, digits, '-' or '_'.
+   * 
+   * @return the index after the identifier starting at <code>start</code>, <code>start</code> if
+   *         there is none
+   */
+  private static int identifierEnd(String source, int start)
+  {
+    if (start >= source.length() || !isLetter(source.charAt(start))) {
+      return start;
+    }
+    int i = start + 1;
+    while (i < source.length()) {
+      char c = source.charAt(i);
+      if (!isLetter(c) && !(c >= '0' && c <= '9') && c != '-' && c != '_') {
+        break;
+      }
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isLetter(char c)
+  {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  /**
+   * Checks if the text after a '#' starts a comment, a directive or a macro call. Anything else,
+   * like the colors in a style sheet, is written as is by Velocity.
+   */
+  private static boolean isDirective(String source, int start)
+  {
+    if (start >= source.length()) {
+      return false;
+    }
+    char c = source.charAt(start);
+    if (c == '#' || c == '*' || c == '{' || c == '@' || c == '[') {
+      return true;
+    }
+    int idEnd = identifierEnd(source, start);
+    if (idEnd == start) {
+      return false;
+    }
+    for (String directive : DIRECTIVES) {
+      if (source.startsWith(directive, start)) {
+        return true;
+      }
+    }
+    int i = idEnd;
+    while (i < source.length() && Character.isWhitespace(source.charAt(i))) {
+      i++;
+    }
+    return i < source.length() && source.charAt(i) == '(';
+  }
+
+}
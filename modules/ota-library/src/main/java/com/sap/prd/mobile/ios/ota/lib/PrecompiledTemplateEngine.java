@@ -0,0 +1,129 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.logging.Logger;
+
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.exception.VelocityException;
+import org.apache.velocity.runtime.RuntimeConstants;
+
+/**
+ * {@link ITemplateEngine} which compiles templates consisting only of static text and simple
+ * references (<code>$name</code> or <code>${name}</code>) into a {@link PrecompiledTemplate}.
+ * Templates using any other Velocity feature are loaded by the fallback engine.
+ */
+public class PrecompiledTemplateEngine implements ITemplateEngine
+{
+
+  private final static Logger LOG = Logger.getLogger(PrecompiledTemplateEngine.class.getSimpleName());
+
+  /**
+   * The encoding Velocity uses to read templates, templates have to be read the same way by both
+   * engines.
+   */
+  static final String TEMPLATE_ENCODING = RuntimeConstants.ENCODING_DEFAULT;
+
+  private final ITemplateEngine fallback;
+
+  /**
+   * @param fallback
+   *          the engine used for templates which cannot be precompiled
+   */
+  public PrecompiledTemplateEngine(ITemplateEngine fallback)
+  {
+    if (fallback == null) throw new NullPointerException("fallback");
+    this.fallback = fallback;
+  }
+
+  @Override
+  public ITemplate getTemplate(String templateName) throws ResourceNotFoundException
+  {
+    String name;
+    InputStream in;
+    try {
+      File templateFile = new File(templateName);
+      if (templateFile.isFile()) {
+        name = templateFile.getName();
+        in = new FileInputStream(templateFile);
+      }
+      else {
+        name = templateName;
+        in = getResourceAsStream(templateName);
+      }
+    }
+    catch (IOException e) {
+      throw new VelocityException("Cannot read template '" + templateName + "'", e);
+    }
+    if (in == null) throw new ResourceNotFoundException("Neither file nor resource found for '" + templateName + "'");
+
+    PrecompiledTemplate template;
+    try {
+      template = PrecompiledTemplate.compile(name, read(in));
+    }
+    catch (IOException e) {
+      throw new VelocityException("Cannot read template '" + templateName + "'", e);
+    }
+    if (template == null) {
+      LOG.fine(String.format("Template '%s' uses Velocity directives, using fallback engine", templateName));
+      return fallback.getTemplate(templateName);
+    }
+    return template;
+  }
+
+  /**
+   * Same lookup order as the Velocity <code>ClasspathResourceLoader</code>: context class loader
+   * first, then the class loader of this class.
+   */
+  static InputStream getResourceAsStream(String resourceName)
+  {
+    String name = resourceName.startsWith("/") ? resourceName.substring(1) : resourceName;
+    ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+    InputStream in = contextClassLoader == null ? null : contextClassLoader.getResourceAsStream(name);
+    if (in == null) {
+      in = PrecompiledTemplateEngine.class.getClassLoader().getResourceAsStream(name);
+    }
+    return in;
+  }
+
+  private static String read(InputStream in) throws IOException
+  {
+    try {
+      Reader reader = new InputStreamReader(in, TEMPLATE_ENCODING);
+      StringBuilder sb = new StringBuilder();
+      char[] buffer = new char[4096];
+      int read;
+      while ((read = reader.read(buffer)) >= 0) {
+        sb.append(buffer, 0, read);
+      }
+      return sb.toString();
+    }
+    finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,537 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-memory cache for rendered documents. The bound is the total number of cached bytes.
+ * <p>
+ * Eviction follows the W-TinyLFU policy: new entries enter a small LRU window. Entries leaving the
+ * window only stay in the main area if they have been requested more often than the entry they
+ * would replace, the request frequencies are tracked in a compact count-min sketch. This way a scan
+ * over many one-off keys does not evict the frequently requested documents. Each entry moved out of
+ * the window is compared with the oldest entry of the main area.
+ * <p>
+ * Lookups record the access in a lock-free read buffer. The buffer is applied to the frequencies
+ * and the eviction order under the lock, by the lookup which fills it to the drain threshold if the
+ * lock is free and at the latest by the next update. A lookup only waits for the lock if the buffer
+ * is full, so no access is lost.
+ * 
+ * @param <K>
+ *          the key type, has to implement <code>equals</code> and <code>hashCode</code>
+ */
+public class RenderCache<K> implements RenderCacheMBean
+{
+
+  private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+  /**
+   * Expected average size of a cached document, used to size the frequency sketch.
+   */
+  private static final int AVERAGE_ENTRY_BYTES = 4096;
+
+  /**
+   * Capacity of the read buffer, a power of two.
+   */
+  static final int READ_BUFFER_SIZE = 128;
+  private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+  /**
+   * Number of buffered accesses at which a lookup drains the buffer if the lock is free.
+   */
+  private static final int DRAIN_THRESHOLD = 32;
+
+  private final ConcurrentHashMap<K, Node<K>> data = new ConcurrentHashMap<K, Node<K>>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final FrequencySketch sketch;
+  /**
+   * The accesses not yet applied: the node of a hit or the key of a miss.
+   */
+  private final AtomicReferenceArray<Object> readBuffer = new AtomicReferenceArray<Object>(READ_BUFFER_SIZE);
+  private final AtomicLong readBufferWrites = new AtomicLong();
+  private volatile long readBufferReads; //only written under the lock
+
+  private final long maximumBytes;
+  private final long windowMaximum;
+  private final long protectedMaximum;
+
+  private final Queue<K> window = new Queue<K>();
+  private final Queue<K> probation = new Queue<K>();
+  private final Queue<K> protectedQueue = new Queue<K>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong rejections = new AtomicLong();
+
+  /**
+   * @param maximumBytes
+   *          the maximum number of bytes held by the cache
+   */
+  public RenderCache(long maximumBytes)
+  {
+    if (maximumBytes <= 0) throw new IllegalArgumentException("maximumBytes has to be positive: " + maximumBytes);
+    this.maximumBytes = maximumBytes;
+    this.windowMaximum = Math.max(1, maximumBytes / 100);
+    this.protectedMaximum = (long) ((maximumBytes - windowMaximum) * 0.8);
+    this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(256, maximumBytes / AVERAGE_ENTRY_BYTES)));
+  }
+
+  /**
+   * @return the cached bytes or <code>null</code>
+   */
+  public byte[] get(K key)
+  {
+    Node<K> node = data.get(key);
+    if (node == null) {
+      misses.incrementAndGet();
+    }
+    else {
+      hits.incrementAndGet();
+    }
+    record(node == null ? key : node);
+    return node == null ? null : node.value;
+  }
+
+  private void record(Object access)
+  {
+    for (;;) {
+      long writes = readBufferWrites.get();
+      long pending = writes - readBufferReads;
+      if (pending >= READ_BUFFER_SIZE) {
+        lock.lock();
+        try {
+          if (drainReadBuffer() == 0) {
+            Thread.yield(); //the oldest access is still being written
+          }
+        }
+        finally {
+          lock.unlock();
+        }
+      }
+      else if (readBufferWrites.compareAndSet(writes, writes + 1)) {
+        readBuffer.lazySet((int) writes & READ_BUFFER_MASK, access);
+        if (pending + 1 >= DRAIN_THRESHOLD && lock.tryLock()) {
+          try {
+            drainReadBuffer();
+          }
+          finally {
+            lock.unlock();
+          }
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Applies the buffered accesses in order, stops at an access which is still being written.
+   * 
+   * @return the number of accesses applied
+   */
+  @SuppressWarnings("unchecked")
+  private int drainReadBuffer()
+  {
+    long reads = readBufferReads;
+    long writes = readBufferWrites.get();
+    int applied = 0;
+    for (; reads < writes; reads++, applied++) {
+      int index = (int) reads & READ_BUFFER_MASK;
+      Object access = readBuffer.get(index);
+      if (access == null) {
+        break;
+      }
+      readBuffer.lazySet(index, null);
+      if (access instanceof Node) {
+        Node<K> node = (Node<K>) access;
+        sketch.increment(node.key.hashCode());
+        if (node.queue >= 0) {
+          onAccess(node);
+        }
+      }
+      else {
+        sketch.increment(access.hashCode());
+      }
+    }
+    readBufferReads = reads;
+    return applied;
+  }
+
+  /**
+   * Adds the value to the cache. Documents larger than the cache are not added.
+   */
+  public void put(K key, byte[] value)
+  {
+    if (value.length > maximumBytes) {
+      rejections.incrementAndGet();
+      return;
+    }
+    Node<K> node = new Node<K>(key, value);
+    lock.lock();
+    try {
+      drainReadBuffer();
+      Node<K> old = data.put(key, node);
+      if (old != null) {
+        unlink(old);
+      }
+      window.addFirst(node, WINDOW);
+      evict();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void clear()
+  {
+    lock.lock();
+    try {
+      drainReadBuffer();
+      for (Node<K> node : data.values()) {
+        node.queue = -1;
+      }
+      data.clear();
+      window.clear();
+      probation.clear();
+      protectedQueue.clear();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the estimated request frequency of the key including all buffered accesses
+   */
+  int frequency(K key)
+  {
+    lock.lock();
+    try {
+      drainReadBuffer();
+      return sketch.frequency(key.hashCode());
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  private void onAccess(Node<K> node)
+  {
+    switch (node.queue) {
+    case WINDOW:
+      window.moveToFirst(node);
+      break;
+    case PROBATION:
+      probation.remove(node);
+      protectedQueue.addFirst(node, PROTECTED);
+      while (protectedQueue.weight > protectedMaximum) {
+        Node<K> demoted = protectedQueue.last();
+        protectedQueue.remove(demoted);
+        probation.addFirst(demoted, PROBATION);
+      }
+      break;
+    case PROTECTED:
+      protectedQueue.moveToFirst(node);
+      break;
+    }
+  }
+
+  /**
+   * Moves the entries over the window size to the main area. While the cache is too large, each of
+   * them in turn is compared with the oldest probation entry which did not come from the window
+   * now, the less frequently requested one is evicted. Then the oldest entries are evicted.
+   */
+  private void evict()
+  {
+    List<Node<K>> candidates = null;
+    while (window.weight > windowMaximum) {
+      Node<K> candidate = window.last();
+      window.remove(candidate);
+      probation.addFirst(candidate, PROBATION);
+      if (candidates == null) {
+        candidates = new ArrayList<Node<K>>(4);
+      }
+      candidate.candidate = true;
+      candidates.add(candidate);
+    }
+    int next = 0;
+    while (getWeightedSize() > maximumBytes) {
+      Node<K> candidate = null;
+      while (candidate == null && candidates != null && next < candidates.size()) {
+        candidate = candidates.get(next++);
+        if (candidate.queue != PROBATION) {
+          candidate = null; //already evicted
+        }
+      }
+      Node<K> victim = probation.last();
+      if (victim == null) {
+        victim = protectedQueue.last() != null ? protectedQueue.last() : window.last();
+      }
+      else if (candidate != null && !victim.candidate
+            && sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+        victim = candidate;
+      }
+      unlink(victim);
+      data.remove(victim.key, victim);
+      evictions.incrementAndGet();
+    }
+    if (candidates != null) {
+      for (Node<K> candidate : candidates) {
+        candidate.candidate = false;
+      }
+    }
+  }
+
+  private void unlink(Node<K> node)
+  {
+    switch (node.queue) {
+    case WINDOW:
+      window.remove(node);
+      break;
+    case PROBATION:
+      probation.remove(node);
+      break;
+    case PROTECTED:
+      protectedQueue.remove(node);
+      break;
+    }
+    node.queue = -1;
+  }
+
+  @Override
+  public long getHitCount()
+  {
+    return hits.get();
+  }
+
+  @Override
+  public long getMissCount()
+  {
+    return misses.get();
+  }
+
+  @Override
+  public long getEvictionCount()
+  {
+    return evictions.get();
+  }
+
+  @Override
+  public long getRejectionCount()
+  {
+    return rejections.get();
+  }
+
+  @Override
+  public int getSize()
+  {
+    return data.size();
+  }
+
+  @Override
+  public long getWeightedSize()
+  {
+    return window.weight + probation.weight + protectedQueue.weight;
+  }
+
+  @Override
+  public long getMaximumBytes()
+  {
+    return maximumBytes;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("RenderCache[size=%d, bytes=%d/%d, hits=%d, misses=%d, evictions=%d, rejections=%d]",
+          getSize(), getWeightedSize(), maximumBytes, getHitCount(), getMissCount(), getEvictionCount(),
+          getRejectionCount());
+  }
+
+  private static class Node<K>
+  {
+    final K key;
+    final byte[] value;
+    int queue = -1;
+    /**
+     * Set while the node is compared for admission to the main area.
+     */
+    boolean candidate;
+    Node<K> prev, next;
+
+    Node(K key, byte[] value)
+    {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Doubly linked LRU list, the most recently used node is first.
+   */
+  private static class Queue<K>
+  {
+    private Node<K> first, last;
+    long weight;
+
+    void addFirst(Node<K> node, int queue)
+    {
+      node.queue = queue;
+      node.prev = null;
+      node.next = first;
+      if (first == null) {
+        last = node;
+      }
+      else {
+        first.prev = node;
+      }
+      first = node;
+      weight += node.value.length;
+    }
+
+    void remove(Node<K> node)
+    {
+      if (node.prev == null) {
+        first = node.next;
+      }
+      else {
+        node.prev.next = node.next;
+      }
+      if (node.next == null) {
+        last = node.prev;
+      }
+      else {
+        node.next.prev = node.prev;
+      }
+      node.prev = node.next = null;
+      weight -= node.value.length;
+    }
+
+    void moveToFirst(Node<K> node)
+    {
+      if (node != first) {
+        int queue = node.queue;
+        remove(node);
+        addFirst(node, queue);
+      }
+    }
+
+    Node<K> last()
+    {
+      return last;
+    }
+
+    void clear()
+    {
+      first = last = null;
+      weight = 0;
+    }
+  }
+
+  /**
+   * Count-min sketch with four 4-bit counters per key. All counters are halved after a sample
+   * period so that the frequencies reflect recent history.
+   */
+  static class FrequencySketch
+  {
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+        0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    FrequencySketch(int expectedEntries)
+    {
+      int length = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+      table = new long[length];
+      tableMask = length - 1;
+      sampleSize = 10 * length;
+    }
+
+    int frequency(int hashCode)
+    {
+      int hash = spread(hashCode);
+      int start = (hash & 3) << 2;
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < 4; i++) {
+        int index = indexOf(hash, i);
+        int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+        frequency = Math.min(frequency, count);
+      }
+      return frequency;
+    }
+
+    void increment(int hashCode)
+    {
+      int hash = spread(hashCode);
+      int start = (hash & 3) << 2;
+      boolean added = false;
+      for (int i = 0; i < 4; i++) {
+        added |= incrementAt(indexOf(hash, i), start + i);
+      }
+      if (added && ++size >= sampleSize) {
+        reset();
+      }
+    }
+
+    private boolean incrementAt(int index, int counter)
+    {
+      int offset = counter << 2;
+      long mask = 0xfL << offset;
+      if ((table[index] & mask) != mask) {
+        table[index] += 1L << offset;
+        return true;
+      }
+      return false;
+    }
+
+    private void reset()
+    {
+      for (int i = 0; i < table.length; i++) {
+        table[i] = (table[i] >>> 1) & RESET_MASK;
+      }
+      size = size >>> 1;
+    }
+
+    private int indexOf(int hash, int i)
+    {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      h += h >>> 32;
+      return ((int) h) & tableMask;
+    }
+
+    private static int spread(int x)
+    {
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      return (x >>> 16) ^ x;
+    }
+  }
+
+}
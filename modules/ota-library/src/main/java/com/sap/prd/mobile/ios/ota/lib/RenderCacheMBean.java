@@ -0,0 +1,45 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+/**
+ * Management interface of the {@link RenderCache}.
+ */
+public interface RenderCacheMBean
+{
+  public long getHitCount();
+
+  public long getMissCount();
+
+  public long getEvictionCount();
+
+  /**
+   * @return number of entries not admitted because they are larger than the cache
+   */
+  public long getRejectionCount();
+
+  public int getSize();
+
+  public long getWeightedSize();
+
+  public long getMaximumBytes();
+
+  public void clear();
+}
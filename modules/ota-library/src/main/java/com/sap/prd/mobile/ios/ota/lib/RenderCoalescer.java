@@ -0,0 +1,105 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent renders of the same document. The first request for a key renders it,
+ * requests for the same key arriving in the meantime wait for that render and get the same bytes.
+ * Nothing is kept once the render is finished, combine it with a {@link RenderCache} to keep the
+ * results.
+ * 
+ * @param <K>
+ *          the key type, has to implement <code>equals</code> and <code>hashCode</code>
+ */
+public class RenderCoalescer<K>
+{
+
+  private final ConcurrentMap<K, FutureTask<byte[]>> renders = new ConcurrentHashMap<K, FutureTask<byte[]>>();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * Renders the document for the key or waits for the render already running for an equal key.
+   * 
+   * @throws IOException
+   *           if the render failed, all waiting requests get the same exception
+   */
+  public byte[] render(K key, Callable<byte[]> renderer) throws IOException
+  {
+    FutureTask<byte[]> task = renders.get(key);
+    if (task == null) {
+      FutureTask<byte[]> created = new FutureTask<byte[]>(renderer);
+      task = renders.putIfAbsent(key, created);
+      if (task == null) {
+        task = created;
+        try {
+          created.run();
+        }
+        finally {
+          renders.remove(key, created);
+        }
+      }
+      else {
+        coalesced.incrementAndGet();
+      }
+    }
+    else {
+      coalesced.incrementAndGet();
+    }
+    try {
+      return task.get();
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IOException("Cannot render document for " + key, cause);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the document of " + key, e);
+    }
+  }
+
+  /**
+   * @return the number of requests which got the result of a render started by another request
+   */
+  public long getCoalescedCount()
+  {
+    return coalesced.get();
+  }
+
+  /**
+   * @return the number of renders currently running
+   */
+  public int getRunningCount()
+  {
+    return renders.size();
+  }
+
+}
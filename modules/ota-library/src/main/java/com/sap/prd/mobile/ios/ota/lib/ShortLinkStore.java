@@ -0,0 +1,471 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Maps short IDs to {@link PlistToken}s. The tokens are appended to a memory mapped data file, the
+ * IDs are kept in a hash table in a second memory mapped file. Resolving an ID is one lookup in the
+ * hash table plus one read from the data file. Both files survive a restart as they are, only if the
+ * index file is missing or damaged it is rebuilt from the data file.
+ * <p>
+ * An ID is derived from the hash of the token, so storing the same token twice returns the same ID.
+ * IDs are 48 bits written as 8 characters of the URL-safe Base64 alphabet.
+ * <p>
+ * Data file: magic, version, end of the last record (long), number of records (long), followed by
+ * records of the token length (int) and the token bytes. Index file: magic, version, capacity, number of entries, followed by
+ * slots of ID + 1 (long, 0 for an empty slot) and record offset (long). Changes are written to the
+ * mapped files and reach the disk when the operating system writes back the pages or the store is
+ * closed.
+ */
+public class ShortLinkStore implements Closeable
+{
+
+  final static String DATA_FILE = "links.dat";
+  final static String INDEX_FILE = "links.idx";
+
+  public final static int ID_LENGTH = 8;
+
+  /**
+   * Maximum size of a token in bytes, the size of a long URL.
+   */
+  public final static int MAX_TOKEN_SIZE = 8 * 1024;
+
+  private final static int MAGIC = 0x4f544153; //"OTAS"
+  private final static int VERSION = 1;
+  private final static int DATA_HEADER_SIZE = 24;
+  private final static int INDEX_HEADER_SIZE = 16;
+  private final static int SLOT_SIZE = 16;
+  private final static int INITIAL_CAPACITY = 1024;
+  private final static long INITIAL_DATA_SIZE = 1024 * 1024;
+  private final static long ID_MASK = (1L << 48) - 1;
+
+  private final static Logger LOG = Logger.getLogger(ShortLinkStore.class.getSimpleName());
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final File directory;
+  private final long maxBytes;
+  private final int maxLinks;
+
+  private RandomAccessFile dataFile;
+  private MappedByteBuffer data;
+  private long end;
+
+  private RandomAccessFile indexFile;
+  private MappedByteBuffer index;
+  private int capacity;
+  private int size;
+
+  /**
+   * Opens the store in the directory, the directory and the files are created if they do not exist.
+   * 
+   * @throws IOException
+   *           if the files cannot be opened or are not store files
+   */
+  public ShortLinkStore(File directory) throws IOException
+  {
+    this(directory, Integer.MAX_VALUE, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Same as {@link #ShortLinkStore(File)} with a quota. Links which are already stored can still
+   * be put when the quota is reached.
+   * 
+   * @param maxBytes
+   *          the maximum size of the data file, at most 2 GB are supported
+   * @param maxLinks
+   *          the maximum number of links
+   */
+  public ShortLinkStore(File directory, long maxBytes, int maxLinks) throws IOException
+  {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create directory " + directory);
+    }
+    this.directory = directory;
+    this.maxBytes = Math.min(maxBytes, Integer.MAX_VALUE);
+    this.maxLinks = maxLinks;
+    openData();
+    try {
+      if (!openIndex()) {
+        rebuildIndex();
+      }
+    }
+    catch (IOException e) {
+      dataFile.close();
+      throw e;
+    }
+  }
+
+  private void openData() throws IOException
+  {
+    dataFile = new RandomAccessFile(new File(directory, DATA_FILE), "rw");
+    boolean created = dataFile.length() < DATA_HEADER_SIZE;
+    data = dataFile.getChannel().map(MapMode.READ_WRITE, 0, Math.max(dataFile.length(), INITIAL_DATA_SIZE));
+    if (created) {
+      data.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, DATA_HEADER_SIZE).putLong(16, 0);
+    }
+    else if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+      dataFile.close();
+      throw new IOException(new File(directory, DATA_FILE) + " is not a short link store");
+    }
+    end = data.getLong(8);
+  }
+
+  /**
+   * @return <code>false</code> if the index is missing or does not match the data file
+   */
+  private boolean openIndex() throws IOException
+  {
+    File file = new File(directory, INDEX_FILE);
+    if (file.length() >= INDEX_HEADER_SIZE) {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, raf.length());
+      int bufferCapacity = buffer.getInt(8);
+      if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && Integer.bitCount(bufferCapacity) == 1
+            && raf.length() == INDEX_HEADER_SIZE + (long) bufferCapacity * SLOT_SIZE
+            && buffer.getInt(12) == data.getLong(16)) {
+        indexFile = raf;
+        index = buffer;
+        capacity = bufferCapacity;
+        size = buffer.getInt(12);
+        return true;
+      }
+      raf.close();
+    }
+    return false;
+  }
+
+  /**
+   * Only needed if the index file is lost or the process stopped between appending a record and
+   * adding it to the index.
+   */
+  private void rebuildIndex() throws IOException
+  {
+    long records = data.getLong(16);
+    if (records > 0) {
+      LOG.warning(String.format("Rebuilding the short link index of %d records in %s", records, directory));
+    }
+    int newCapacity = INITIAL_CAPACITY;
+    while (records > newCapacity * 7L / 10) {
+      newCapacity *= 2;
+    }
+    createIndex(newCapacity);
+    for (long offset = DATA_HEADER_SIZE; offset < end; offset += 4 + data.getInt((int) offset)) {
+      byte[] token = read(offset);
+      for (int attempt = 0;; attempt++) {
+        long id = id(token, attempt);
+        if (find(id) < 0) {
+          insert(id, offset);
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces the index file by an empty one with the given capacity. The new file is prepared next
+   * to the old one and moved over it.
+   */
+  private void createIndex(int newCapacity) throws IOException
+  {
+    File file = new File(directory, INDEX_FILE);
+    File tmp = new File(directory, INDEX_FILE + ".tmp");
+    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+    raf.setLength(0);
+    MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_WRITE, 0,
+          INDEX_HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+    buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, newCapacity).putInt(12, 0);
+    if (indexFile != null) {
+      for (int slot = 0; slot < capacity; slot++) {
+        long key = index.getLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE);
+        if (key != 0) {
+          insert(buffer, newCapacity, key - 1, index.getLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE + 8));
+        }
+      }
+      buffer.putInt(12, size);
+      indexFile.close();
+    }
+    buffer.force();
+    raf.close(); //the mapping stays valid
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    indexFile = new RandomAccessFile(file, "rw");
+    index = buffer;
+    capacity = newCapacity;
+    size = buffer.getInt(12);
+  }
+
+  /**
+   * Stores the token.
+   * 
+   * @return the ID of the token
+   * @throws IllegalArgumentException
+   *           if the token is larger than {@link #MAX_TOKEN_SIZE}
+   * @throws FullException
+   *           if a new token would exceed the quota
+   */
+  public String put(PlistToken token) throws IOException
+  {
+    byte[] bytes = token.toBytes();
+    if (bytes.length > MAX_TOKEN_SIZE) {
+      throw new IllegalArgumentException(String.format("Token size %d exceeds %d", bytes.length, MAX_TOKEN_SIZE));
+    }
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      for (int attempt = 0;; attempt++) {
+        long id = id(bytes, attempt);
+        long offset = find(id);
+        if (offset < 0) {
+          insert(id, append(bytes));
+          return format(id);
+        }
+        if (equals(offset, bytes)) {
+          return format(id);
+        }
+        //different token with the same ID, try the next one
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the token or <code>null</code> if there is no token with this ID
+   */
+  public PlistToken get(String id) throws IOException
+  {
+    long value = parse(id);
+    if (value < 0) {
+      return null;
+    }
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      long offset = find(value);
+      if (offset < 0) {
+        return null;
+      }
+      byte[] bytes = read(offset);
+      return PlistToken.fromBytes(bytes, 0, bytes.length);
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of stored tokens
+   */
+  public int size()
+  {
+    lock.readLock().lock();
+    try {
+      return size;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    lock.writeLock().lock();
+    try {
+      if (data == null) {
+        return;
+      }
+      data.force();
+      index.force();
+      dataFile.close();
+      indexFile.close();
+      data = null;
+      index = null;
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void checkOpen() throws IOException
+  {
+    if (data == null) {
+      throw new IOException("Short link store closed");
+    }
+  }
+
+  private long append(byte[] bytes) throws IOException
+  {
+    long offset = end;
+    long newEnd = offset + 4 + bytes.length;
+    if (newEnd > maxBytes || size >= maxLinks) {
+      throw new FullException(String.format("Short link store full: %s (%d links, %d bytes)", directory, size,
+            offset));
+    }
+    if (newEnd > data.capacity()) {
+      data.force();
+      data = dataFile.getChannel().map(MapMode.READ_WRITE, 0,
+            Math.min(maxBytes, Math.max(newEnd, 2L * data.capacity())));
+    }
+    data.putInt((int) offset, bytes.length);
+    ByteBuffer view = data.duplicate();
+    view.position((int) offset + 4);
+    view.put(bytes);
+    end = newEnd;
+    data.putLong(8, end); //the record is complete before it is referenced
+    data.putLong(16, data.getLong(16) + 1);
+    return offset;
+  }
+
+  private byte[] read(long offset)
+  {
+    ByteBuffer view = data.duplicate();
+    view.position((int) offset);
+    byte[] bytes = new byte[view.getInt()];
+    view.get(bytes);
+    return bytes;
+  }
+
+  private boolean equals(long offset, byte[] bytes)
+  {
+    if (data.getInt((int) offset) != bytes.length) {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      if (data.get((int) offset + 4 + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the offset of the record or -1 if the ID is unknown
+   */
+  private long find(long id)
+  {
+    int mask = capacity - 1;
+    for (int slot = (int) mix(id) & mask;; slot = (slot + 1) & mask) {
+      long key = index.getLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE);
+      if (key == 0) {
+        return -1;
+      }
+      if (key == id + 1) {
+        return index.getLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE + 8);
+      }
+    }
+  }
+
+  private void insert(long id, long offset) throws IOException
+  {
+    if (size + 1 > capacity * 7L / 10) {
+      createIndex(capacity * 2);
+    }
+    insert(index, capacity, id, offset);
+    index.putInt(12, ++size);
+  }
+
+  private static void insert(ByteBuffer index, int capacity, long id, long offset)
+  {
+    int mask = capacity - 1;
+    int slot = (int) mix(id) & mask;
+    while (index.getLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE) != 0) {
+      slot = (slot + 1) & mask;
+    }
+    index.putLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE + 8, offset);
+    index.putLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE, id + 1); //the key is written last
+  }
+
+  private static long mix(long id)
+  {
+    return id ^ id >>> 24;
+  }
+
+  /**
+   * FNV-1a hash of the token and the attempt, reduced to 48 bits.
+   */
+  static long id(byte[] token, int attempt)
+  {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : token) {
+      hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    hash = (hash ^ attempt) * 0x100000001b3L;
+    return (hash ^ hash >>> 48) & ID_MASK;
+  }
+
+  static String format(long id)
+  {
+    byte[] bytes = new byte[6];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (id >>> (40 - 8 * i));
+    }
+    return Base64UrlCodec.encodeBytes(new StringBuilder(ID_LENGTH), bytes, 0, bytes.length).toString();
+  }
+
+  /**
+   * @return the ID or -1 if <code>id</code> is not a valid ID
+   */
+  static long parse(String id)
+  {
+    if (id == null || id.length() != ID_LENGTH) {
+      return -1;
+    }
+    for (int i = 0; i < ID_LENGTH; i++) {
+      char c = id.charAt(i);
+      if (!(c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-' || c == '_')) {
+        return -1;
+      }
+    }
+    long value = 0;
+    for (byte b : Base64UrlCodec.decodeBytes(id, 0, ID_LENGTH)) {
+      value = value << 8 | (b & 0xff);
+    }
+    return value;
+  }
+
+  /**
+   * Thrown if a token does not fit into the quota of the store.
+   */
+  public static class FullException extends IOException
+  {
+    private static final long serialVersionUID = 1L;
+
+    FullException(String message)
+    {
+      super(message);
+    }
+  }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * The style sheets and images shared by the bundled templates. They are loaded once from the
+ * <code>assets</code> folder of the class path and kept in memory.
+ * <p>
+ * Each asset is published under a fingerprinted name which contains a hash of its content, e.g.
+ * <code>ota.1f0c3a9d2b7e4c55.css</code>. A changed asset gets a new name, so the fingerprinted URLs
+ * can be cached forever. The templates find the URLs in variables named after the asset:
+ * <code>ota.css</code> is <code>$otaCssUrl</code>, <code>title.png</code> is
+ * <code>$titlePngUrl</code>.
+ */
+public final class StaticAssets
+{
+
+  /**
+   * The path of the assets below the service root and in the class path.
+   */
+  public final static String PATH = "assets";
+
+  private final static String[] BUNDLED = { "ota.css", "title.png", "topbar.png", "poweredByProduction.png" };
+  private final static int FINGERPRINT_BYTES = 8;
+  private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static class Holder
+  {
+    static final StaticAssets INSTANCE = new StaticAssets(BUNDLED);
+  }
+
+  private final Map<String, Asset> assets = new HashMap<String, Asset>();
+  private final Map<String, String> relativeUrls;
+  private final Map<String, String> inlineUrls;
+
+  StaticAssets(String... names)
+  {
+    Map<String, String> urls = new LinkedHashMap<String, String>();
+    Map<String, String> inline = new LinkedHashMap<String, String>();
+    for (String name : names) {
+      Asset asset = new Asset(name, load(name));
+      assets.put(name, asset);
+      assets.put(asset.getFingerprintedName(), asset);
+      urls.put(getVariableName(name), PATH + "/" + asset.getFingerprintedName());
+      inline.put(getVariableName(name), getDataUrl(asset));
+    }
+    relativeUrls = Collections.unmodifiableMap(urls);
+    inlineUrls = Collections.unmodifiableMap(inline);
+  }
+
+  public static StaticAssets getInstance()
+  {
+    return Holder.INSTANCE;
+  }
+
+  /**
+   * @param name
+   *          the fingerprinted or the plain name of the asset
+   * @return the asset or <code>null</code> if there is no such asset
+   */
+  public Asset get(String name)
+  {
+    return name == null ? null : assets.get(name);
+  }
+
+  /**
+   * @param baseUrl
+   *          the URL of the service root without trailing '/', <code>null</code> for URLs relative
+   *          to the service root
+   * @return the template variables with the fingerprinted URLs of all assets
+   */
+  public Map<String, String> getUrls(String baseUrl)
+  {
+    if (baseUrl == null) {
+      return relativeUrls;
+    }
+    Map<String, String> urls = new LinkedHashMap<String, String>();
+    for (Map.Entry<String, String> entry : relativeUrls.entrySet()) {
+      urls.put(entry.getKey(), baseUrl + "/" + entry.getValue());
+    }
+    return urls;
+  }
+
+  /**
+   * @return the template variables with <code>data:</code> URLs holding the content of all assets,
+   *         for pages generated without knowing where the assets are served
+   */
+  public Map<String, String> getInlineUrls()
+  {
+    return inlineUrls;
+  }
+
+  /**
+   * @return the template variable of the asset, e.g. <code>otaCssUrl</code> for
+   *         <code>ota.css</code>
+   */
+  public static String getVariableName(String name)
+  {
+    StringBuilder variable = new StringBuilder(name.length() + 3);
+    boolean upper = false;
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (Character.isLetterOrDigit(c)) {
+        variable.append(upper ? Character.toUpperCase(c) : c);
+        upper = false;
+      }
+      else {
+        upper = variable.length() > 0;
+      }
+    }
+    return variable.append("Url").toString();
+  }
+
+  private static String getDataUrl(Asset asset)
+  {
+    byte[] content = asset.getContent();
+    StringBuilder url = new StringBuilder(content.length * 4 / 3 + 64).append("data:")
+      .append(asset.getContentType()).append(";base64,");
+    int start = url.length();
+    Base64UrlCodec.encodeBytes(url, content, 0, content.length);
+    for (int i = start; i < url.length(); i++) { //data URLs take the standard alphabet
+      char c = url.charAt(i);
+      if (c == '-') {
+        url.setCharAt(i, '+');
+      }
+      else if (c == '_') {
+        url.setCharAt(i, '/');
+      }
+    }
+    while ((url.length() - start) % 4 != 0) {
+      url.append('=');
+    }
+    return url.toString();
+  }
+
+  private static byte[] load(String name)
+  {
+    InputStream in = StaticAssets.class.getClassLoader().getResourceAsStream(PATH + "/" + name);
+    if (in == null) {
+      throw new IllegalStateException("Asset not found: " + name);
+    }
+    try {
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) >= 0;) {
+          out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("Cannot read asset " + name, e);
+    }
+  }
+
+  /**
+   * An asset held in memory. The byte arrays are shared and must not be modified.
+   */
+  public static final class Asset
+  {
+    private final String name;
+    private final String fingerprintedName;
+    private final String contentType;
+    private final byte[] content;
+    private final byte[] gzipContent;
+    private final String etag;
+    private final String gzipETag;
+
+    Asset(String name, byte[] content)
+    {
+      this.name = name;
+      this.content = content;
+      this.contentType = getContentType(name);
+      String fingerprint = fingerprint(content);
+      int dot = name.lastIndexOf('.');
+      this.fingerprintedName = dot < 0 ? name + "." + fingerprint : name.substring(0, dot + 1) + fingerprint
+            + name.substring(dot);
+      this.etag = "\"" + fingerprint + "\"";
+      this.gzipETag = "\"" + fingerprint + "-gzip\"";
+      byte[] compressed = null;
+      if (!contentType.startsWith("image/") || contentType.startsWith("image/svg")) {
+        compressed = new GzipCompressor(Deflater.BEST_COMPRESSION, 0).compress(content);
+      }
+      this.gzipContent = compressed != null && compressed.length < content.length ? compressed : null;
+    }
+
+    public String getName()
+    {
+      return name;
+    }
+
+    public String getFingerprintedName()
+    {
+      return fingerprintedName;
+    }
+
+    public String getContentType()
+    {
+      return contentType;
+    }
+
+    public byte[] getContent()
+    {
+      return content;
+    }
+
+    /**
+     * @return the content gzip encoded or <code>null</code> if compression does not pay off
+     */
+    public byte[] getGzipContent()
+    {
+      return gzipContent;
+    }
+
+    /**
+     * @return the quoted entity tag, derived from the fingerprint
+     */
+    public String getETag()
+    {
+      return etag;
+    }
+
+    /**
+     * @return the quoted entity tag of the gzip encoded content
+     */
+    public String getGzipETag()
+    {
+      return gzipETag;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("Asset[%s, %s, %d bytes]", fingerprintedName, contentType, content.length);
+    }
+
+    private static String getContentType(String name)
+    {
+      String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+      if (extension.equals("css")) return "text/css;charset=UTF-8";
+      if (extension.equals("js")) return "application/javascript;charset=UTF-8";
+      if (extension.equals("png")) return "image/png";
+      if (extension.equals("gif")) return "image/gif";
+      if (extension.equals("jpg") || extension.equals("jpeg")) return "image/jpeg";
+      if (extension.equals("svg")) return "image/svg+xml";
+      return "application/octet-stream";
+    }
+
+    private static String fingerprint(byte[] content)
+    {
+      byte[] digest;
+      try {
+        digest = MessageDigest.getInstance("SHA-256").digest(content);
+      }
+      catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e); //every JRE has SHA-256
+      }
+      char[] fingerprint = new char[2 * FINGERPRINT_BYTES];
+      for (int i = 0; i < FINGERPRINT_BYTES; i++) {
+        fingerprint[2 * i] = HEX[digest[i] >> 4 & 0xf];
+        fingerprint[2 * i + 1] = HEX[digest[i] & 0xf];
+      }
+      return new String(fingerprint);
+    }
+  }
+
+}
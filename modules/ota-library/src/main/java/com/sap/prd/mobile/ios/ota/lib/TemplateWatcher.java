@@ -0,0 +1,249 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches template files for modifications with a NIO <code>WatchService</code>. Editors and
+ * deployment tools usually produce several events for one change, so listeners are only notified
+ * once no further event arrived for the debounce delay. Listeners are called on a background
+ * thread, never on a request thread.
+ */
+public class TemplateWatcher
+{
+
+  static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+  private static final Logger LOG = Logger.getLogger(TemplateWatcher.class.getSimpleName());
+
+  private static class InstanceHolder
+  {
+    static final TemplateWatcher INSTANCE = new TemplateWatcher(DEFAULT_DEBOUNCE_MILLIS);
+  }
+
+  public static TemplateWatcher getInstance()
+  {
+    return InstanceHolder.INSTANCE;
+  }
+
+  private final long debounceMillis;
+  private final Map<Path, WatchKey> directories = new HashMap<Path, WatchKey>();
+  private final Map<Path, List<Runnable>> listeners = new HashMap<Path, List<Runnable>>();
+  private final Map<Path, ScheduledFuture<?>> pending = new HashMap<Path, ScheduledFuture<?>>();
+  private WatchService watchService;
+  private ScheduledExecutorService scheduler;
+
+  TemplateWatcher(long debounceMillis)
+  {
+    this.debounceMillis = debounceMillis;
+  }
+
+  /**
+   * Registers a listener which is notified after the file has been modified or replaced.
+   */
+  public synchronized void watch(File file, Runnable listener) throws IOException
+  {
+    Path path = file.toPath().toAbsolutePath().normalize();
+    Path directory = path.getParent();
+    if (watchService == null) {
+      start();
+    }
+    if (!directories.containsKey(directory)) {
+      directories.put(directory, directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY));
+    }
+    List<Runnable> fileListeners = listeners.get(path);
+    if (fileListeners == null) {
+      fileListeners = new ArrayList<Runnable>();
+      listeners.put(path, fileListeners);
+    }
+    fileListeners.add(listener);
+  }
+
+  /**
+   * Removes a listener registered with {@link #watch(File, Runnable)}. The directory is no longer
+   * watched once the last listener for a file in it has been removed.
+   */
+  public synchronized void unwatch(File file, Runnable listener)
+  {
+    Path path = file.toPath().toAbsolutePath().normalize();
+    List<Runnable> fileListeners = listeners.get(path);
+    if (fileListeners == null || !fileListeners.remove(listener) || !fileListeners.isEmpty()) {
+      return;
+    }
+    listeners.remove(path);
+    Path directory = path.getParent();
+    for (Path watched : listeners.keySet()) {
+      if (watched.getParent().equals(directory)) {
+        return;
+      }
+    }
+    WatchKey key = directories.remove(directory);
+    if (key != null) {
+      key.cancel();
+    }
+  }
+
+  /**
+   * Stops the background threads and drops all listeners. The watcher can be used again afterwards.
+   */
+  public synchronized void close()
+  {
+    if (watchService == null) {
+      return;
+    }
+    try {
+      watchService.close();
+    }
+    catch (IOException e) {
+      LOG.log(Level.WARNING, "Cannot close template watch service", e);
+    }
+    scheduler.shutdownNow();
+    watchService = null;
+    scheduler = null;
+    directories.clear();
+    listeners.clear();
+    pending.clear();
+  }
+
+  private void start() throws IOException
+  {
+    watchService = FileSystems.getDefault().newWatchService();
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, "ota-template-reload");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.setRemoveOnCancelPolicy(true);
+    scheduler = executor;
+
+    final WatchService service = watchService;
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run()
+      {
+        processEvents(service);
+      }
+    }, "ota-template-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void processEvents(WatchService service)
+  {
+    while (true) {
+      WatchKey key;
+      try {
+        key = service.take();
+      }
+      catch (InterruptedException e) {
+        return;
+      }
+      catch (ClosedWatchServiceException e) {
+        return;
+      }
+      Path directory = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == OVERFLOW) {
+          scheduleDirectory(directory);
+        }
+        else {
+          schedule(directory.resolve((Path) event.context()));
+        }
+      }
+      key.reset();
+    }
+  }
+
+  private synchronized void scheduleDirectory(Path directory)
+  {
+    for (Path path : new ArrayList<Path>(listeners.keySet())) {
+      if (path.getParent().equals(directory)) {
+        schedule(path);
+      }
+    }
+  }
+
+  private synchronized void schedule(final Path path)
+  {
+    if (scheduler == null || !listeners.containsKey(path)) {
+      return;
+    }
+    ScheduledFuture<?> previous = pending.get(path);
+    if (previous != null) {
+      previous.cancel(false);
+    }
+    pending.put(path, scheduler.schedule(new Runnable() {
+      @Override
+      public void run()
+      {
+        notifyListeners(path);
+      }
+    }, debounceMillis, TimeUnit.MILLISECONDS));
+  }
+
+  private void notifyListeners(Path path)
+  {
+    List<Runnable> fileListeners;
+    synchronized (this) {
+      pending.remove(path);
+      List<Runnable> registered = listeners.get(path);
+      if (registered == null) {
+        return;
+      }
+      fileListeners = new ArrayList<Runnable>(registered);
+    }
+    LOG.info(String.format("Template '%s' has been modified", path));
+    for (Runnable listener : fileListeners) {
+      try {
+        listener.run();
+      }
+      catch (RuntimeException e) {
+        LOG.log(Level.WARNING, String.format("Listener for template '%s' failed", path), e);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Composes a URL from a base, path segments and query parameters in one pre-sized buffer. The
+ * components are encoded while they are appended, {@link #toString()} returns the URL without
+ * parsing it again.
+ * <p>
+ * Query values are encoded like {@link java.net.URLEncoder} with UTF-8, path segments added with
+ * {@link #encodedSegment(String, String)} like {@link Base64UrlCodec}. Instances are not thread
+ * safe.
+ */
+public final class UrlBuilder
+{
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * Characters which are not encoded in query values, see {@link java.net.URLEncoder}.
+   */
+  private static final boolean[] UNRESERVED = new boolean[128];
+
+  static {
+    for (char c = 'a'; c <= 'z'; c++) {
+      UNRESERVED[c] = true;
+      UNRESERVED[c - 'a' + 'A'] = true;
+    }
+    for (char c = '0'; c <= '9'; c++) {
+      UNRESERVED[c] = true;
+    }
+    UNRESERVED['.'] = UNRESERVED['-'] = UNRESERVED['*'] = UNRESERVED['_'] = true;
+  }
+
+  private final StringBuilder url;
+  private boolean hasQuery;
+
+  /**
+   * @param base
+   *          the beginning of the URL, appended as is
+   * @param expectedLength
+   *          the expected length of the complete URL
+   */
+  public UrlBuilder(String base, int expectedLength)
+  {
+    url = new StringBuilder(Math.max(expectedLength, base.length() + 16)).append(base);
+    hasQuery = base.indexOf('?') >= 0;
+  }
+
+  public UrlBuilder(String base)
+  {
+    this(base, base.length() + 128);
+  }
+
+  /**
+   * Creates a builder for the prefix without leading and trailing whitespace and without trailing
+   * '/'. A subsequent {@link #path(String)} adds exactly one '/'.
+   */
+  public static UrlBuilder forPrefix(String prefix, int expectedLength)
+  {
+    int start = 0, end = prefix.length();
+    while (start < end && prefix.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && (prefix.charAt(end - 1) <= ' ' || prefix.charAt(end - 1) == '/')) {
+      end--;
+    }
+    return new UrlBuilder(start == 0 && end == prefix.length() ? prefix : prefix.substring(start, end),
+          expectedLength);
+  }
+
+  /**
+   * Appends '/' and the segment as is.
+   */
+  public UrlBuilder path(String segment)
+  {
+    url.append('/').append(segment);
+    return this;
+  }
+
+  /**
+   * Appends '/' and the Base64 encoded <code>name=value</code>, see
+   * {@link Base64UrlCodec#encode(StringBuilder, CharSequence...)}.
+   */
+  public UrlBuilder encodedSegment(String name, String value)
+  {
+    Base64UrlCodec.encode(url.append('/'), name, "=", value);
+    return this;
+  }
+
+  /**
+   * Appends the query parameter, the value is URL encoded. A <code>null</code> value is appended
+   * as the string "null".
+   */
+  public UrlBuilder query(String name, String value)
+  {
+    url.append(hasQuery ? '&' : '?').append(name).append('=');
+    hasQuery = true;
+    appendEncoded(url, value == null ? "null" : value);
+    return this;
+  }
+
+  /**
+   * Appends the query parameter unless the value is <code>null</code> or empty.
+   */
+  public UrlBuilder queryIfNotEmpty(String name, String value)
+  {
+    if (value != null && value.length() > 0) {
+      query(name, value);
+    }
+    return this;
+  }
+
+  public int length()
+  {
+    return url.length();
+  }
+
+  /**
+   * @return the URL, parsed
+   */
+  public URL toUrl() throws MalformedURLException
+  {
+    return new URL(url.toString());
+  }
+
+  @Override
+  public String toString()
+  {
+    return url.toString();
+  }
+
+  /**
+   * Appends the string encoded like {@link java.net.URLEncoder#encode(String, String)} with UTF-8.
+   * Unpaired surrogates are encoded as '?'.
+   */
+  static void appendEncoded(StringBuilder out, CharSequence s)
+  {
+    int length = s.length();
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 128) {
+        if (UNRESERVED[c]) {
+          out.append(c);
+        }
+        else if (c == ' ') {
+          out.append('+');
+        }
+        else {
+          appendByte(out, c);
+        }
+      }
+      else if (c < 0x800) {
+        appendByte(out, 0xc0 | c >> 6);
+        appendByte(out, 0x80 | c & 0x3f);
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        appendByte(out, 0xf0 | codePoint >> 18);
+        appendByte(out, 0x80 | codePoint >> 12 & 0x3f);
+        appendByte(out, 0x80 | codePoint >> 6 & 0x3f);
+        appendByte(out, 0x80 | codePoint & 0x3f);
+      }
+      else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        appendByte(out, '?');
+      }
+      else {
+        appendByte(out, 0xe0 | c >> 12);
+        appendByte(out, 0x80 | c >> 6 & 0x3f);
+        appendByte(out, 0x80 | c & 0x3f);
+      }
+    }
+  }
+
+  private static void appendByte(StringBuilder out, int b)
+  {
+    out.append('%').append(HEX[b >> 4 & 0xf]).append(HEX[b & 0xf]);
+  }
+
+}
@@ -20,17 +20,28 @@
 package com.sap.prd.mobile.ios.ota.lib;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import org.apache.velocity.Template;
-import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
-import org.apache.velocity.exception.ResourceNotFoundException;
-import org.apache.velocity.runtime.RuntimeConstants;
 import org.apache.velocity.util.StringUtils;
 
 import com.sap.prd.mobile.ios.ota.lib.VelocityBase.IParameters;
@@ -38,33 +49,327 @@ import com.sap.prd.mobile.ios.ota.lib.VelocityBase.IParameters;
 /**
  * Base class for the Velocity based Generators Each generator has to provide an IParameters
  * implementation to provide the parameters used in the template.
+ * <p>
+ * Templates are loaded by an {@link ITemplateEngine}. By default templates compiled at build time
+ * are used as they are, other templates containing only static text and simple references are
+ * precompiled when loaded, all remaining templates are handled by Velocity.
+ * <p>
+ * Templates read from a file are watched by the {@link TemplateWatcher}. After a modification the
+ * template is parsed again on the watcher thread and swapped in atomically; renders which are
+ * already running finish with the previous version.
+ * <p>
+ * The values taken from the request, see {@link #ESCAPED_VALUES}, are escaped according to the
+ * template type, see {@link Escaper#forTemplate(String)}: XML for PLIST templates, HTML for HTML
+ * templates. All other values such as custom context parameters are inserted as they are, so they
+ * may contain markup.
+ * <p>
+ * The fingerprint of a template identifies the output it renders across restarts and releases: it
+ * is a digest of the template text and the build of this library, whose code merges and escapes
+ * the values.
  * 
  * @param <P>
  */
 public abstract class VelocityBase<P extends IParameters>
 {
 
-  protected final Template template;
+  private static final ITemplateEngine DEFAULT_ENGINE = new CompiledTemplateEngine(new PrecompiledTemplateEngine(
+        new VelocityTemplateEngine()));
+  private static final Logger LOG = Logger.getLogger(VelocityBase.class.getSimpleName());
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * The version and build time of this library, written into <code>version.properties</code> by
+   * the build.
+   */
+  static final String LIBRARY_BUILD = loadLibraryBuild();
+
+  /**
+   * The names of the values which come from a request and are escaped when inserted.
+   */
+  public static final Set<String> ESCAPED_VALUES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+        OtaPlistGenerator.TITLE, OtaPlistGenerator.BUNDLE_IDENTIFIER, OtaPlistGenerator.BUNDLE_VERSION,
+        OtaPlistGenerator.IPA_URL, OtaPlistGenerator.IPA_CLASSIFIER, OtaPlistGenerator.OTA_CLASSIFIER,
+        OtaHtmlGenerator.PLIST_URL, OtaBuildHtmlGenerator.HTML_URL, OtaBuildHtmlGenerator.HTML_SERVICE_URL)));
+
+  protected volatile ITemplate template;
   protected final String templateName;
+  private final ITemplateEngine engine;
+  private volatile long templateVersion;
+  private volatile String templateFingerprint;
+  private File watchedFile;
+  private Runnable reloader;
+  private volatile Specialization specialization;
 
   protected VelocityBase(String templateName)
+  {
+    this(templateName, DEFAULT_ENGINE);
+  }
+
+  protected VelocityBase(String templateName, ITemplateEngine engine)
   {
     if (StringUtils.nullTrim(templateName) == null) throw new IllegalArgumentException("templateName not specified");
-    VelocityEngine ve = new VelocityEngine();
-    ve.setProperty(RuntimeConstants.RESOURCE_LOADER, "class,jar,file");
-    ve.setProperty("class.resource.loader.class", "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
-    ve.setProperty("jar.resource.loader.class", "org.apache.velocity.runtime.resource.loader.JarResourceLoader");
+    this.engine = engine;
+    template = escaping(engine.getTemplate(templateName), templateName);
+    templateFingerprint = fingerprint(templateName, template);
     File templateFile = new File(templateName);
     if (templateFile.isFile()) {
-      ve.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH, templateFile.getParent());
-      template = ve.getTemplate(templateFile.getName());
-      this.templateName = template==null ? null : templateFile.getAbsolutePath();
+      this.templateName = templateFile.getAbsolutePath();
+      watch(templateFile);
     }
     else {
-      template = ve.getTemplate(templateName);
-      this.templateName = template==null ? null : templateName;
+      this.templateName = templateName;
+    }
+  }
+
+  /**
+   * @return the template escaping the inserted request values as required by its type
+   */
+  private static ITemplate escaping(ITemplate template, String templateName)
+  {
+    Escaper escaper = Escaper.forTemplate(templateName);
+    if (template instanceof PrecompiledTemplate) {
+      return ((PrecompiledTemplate) template).escaping(escaper, ESCAPED_VALUES);
+    }
+    if (template instanceof VelocityTemplateEngine.VelocityTemplate) {
+      return ((VelocityTemplateEngine.VelocityTemplate) template).escaping(escaper, ESCAPED_VALUES);
+    }
+    if (escaper != null) {
+      LOG.warning(String.format("Template '%s' of type %s does not support escaping, values are inserted as they are",
+            templateName, template.getClass().getName()));
+    }
+    return template;
+  }
+
+  private void watch(File templateFile)
+  {
+    Runnable reloader = new Runnable() {
+      @Override
+      public void run()
+      {
+        reload();
+      }
+    };
+    try {
+      TemplateWatcher.getInstance().watch(templateFile, reloader);
+      this.watchedFile = templateFile;
+      this.reloader = reloader;
+    }
+    catch (IOException e) {
+      LOG.log(Level.WARNING, String.format("Cannot watch template '%s', modifications require a restart",
+            templateFile), e);
+    }
+  }
+
+  /**
+   * Loads the template again and swaps it in. If the template cannot be loaded the previous version
+   * stays active.
+   * 
+   * @return <code>true</code> if the new template has been swapped in
+   */
+  public synchronized boolean reload()
+  {
+    ITemplate reloaded;
+    try {
+      reloaded = escaping(engine.getTemplate(templateName), templateName);
+    }
+    catch (RuntimeException e) {
+      LOG.log(Level.WARNING, String.format("Cannot reload template '%s', keeping the previous version",
+            templateName), e);
+      return false;
+    }
+    template = reloaded;
+    templateFingerprint = fingerprint(templateName, reloaded);
+    templateVersion++;
+    LOG.info(String.format("Reloaded template '%s' (version %d)", templateName, templateVersion));
+    Specialization previous = specialization;
+    if (previous != null) {
+      specialize(previous.constants, previous.live);
+    }
+    return true;
+  }
+
+  /**
+   * Pre-evaluates all references of the template which do not depend on the values provided per
+   * render. Renders whose mappings are a {@link LayeredMap} on top of exactly the given constants
+   * (the same instance) use the pre-evaluated template, all other renders the complete one. Only
+   * precompiled templates can be pre-evaluated, templates using Velocity directives are always
+   * merged completely.
+   * <p>
+   * Calling this method again with the same constants does nothing, so it is cheap to call it per
+   * render.
+   * 
+   * @param constants
+   *          the values which do not change between renders
+   * @param live
+   *          the names of the values provided per render
+   */
+  protected void specialize(Map<String, ?> constants, Set<String> live)
+  {
+    Specialization current = specialization;
+    if (current != null && current.constants == constants && current.source == template) {
+      return;
+    }
+    synchronized (this) {
+      ITemplate source = template;
+      current = specialization;
+      if (current != null && current.constants == constants && current.source == source) {
+        return;
+      }
+      if (!(source instanceof PrecompiledTemplate)) {
+        LOG.info(String.format("Template '%s' uses Velocity directives and cannot be pre-evaluated",
+              templateName));
+        specialization = new Specialization(source, constants, live, source);
+        return;
+      }
+      PrecompiledTemplate precompiled = (PrecompiledTemplate) source;
+      PrecompiledTemplate specialized = precompiled.specialize(constants, live);
+      LOG.info(String.format("Pre-evaluated template '%s': %d of %d references static, %.1f%% of the template "
+            + "is static text now (%.1f%% before)", templateName,
+            precompiled.getSlotCount() - specialized.getSlotCount(), precompiled.getSlotCount(),
+            specialized.getStaticRatio() * 100, precompiled.getStaticRatio() * 100));
+      specialization = new Specialization(source, constants, live, specialized);
+    }
+  }
+
+  /**
+   * @return the template to merge with the mappings, the pre-evaluated one if it fits
+   */
+  private ITemplate templateFor(Map<String, Object> mappings)
+  {
+    ITemplate current = template;
+    Specialization specialized = specialization;
+    if (specialized != null && specialized.source == current && mappings instanceof LayeredMap
+          && ((LayeredMap<?, ?>) mappings).getBase() == specialized.constants) {
+      return specialized.template;
+    }
+    return current;
+  }
+
+  private static class Specialization
+  {
+    final ITemplate source;
+    final Map<String, ?> constants;
+    final Set<String> live;
+    final ITemplate template;
+
+    Specialization(ITemplate source, Map<String, ?> constants, Set<String> live, ITemplate template)
+    {
+      this.source = source;
+      this.constants = constants;
+      this.live = live;
+      this.template = template;
+    }
+  }
+
+  /**
+   * Stops watching the template file. The generator can still be used but no longer picks up
+   * modifications.
+   */
+  synchronized void release()
+  {
+    if (reloader != null) {
+      TemplateWatcher.getInstance().unwatch(watchedFile, reloader);
+      reloader = null;
     }
-    if(template == null) throw new ResourceNotFoundException("Neither file nor resource found for '"+templateName+"'");
+  }
+
+  /**
+   * @return an estimate of the heap memory held by the current template in bytes
+   */
+  public long estimateTemplateSize()
+  {
+    return template.estimateSize();
+  }
+
+  /**
+   * @return a number which is incremented each time the template has been reloaded, it starts with
+   *         0 in each process
+   */
+  public long getTemplateVersion()
+  {
+    return templateVersion;
+  }
+
+  /**
+   * @return 16 hex digits which change with the text of the template and the library build, the
+   *         same in every process rendering the same template with the same library
+   */
+  public String getTemplateFingerprint()
+  {
+    return templateFingerprint;
+  }
+
+  /**
+   * Digests the text of the template as read from the file or the class path. A template which is
+   * only available as compiled class is identified by its class. Templates included with
+   * <code>#parse</code> are not part of the digest.
+   */
+  private static String fingerprint(String templateName, ITemplate template)
+  {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); //every JRE has SHA-256
+    }
+    digest.update(LIBRARY_BUILD.getBytes(PrecompiledTemplate.UTF_8));
+    digest.update((byte) 0);
+    try {
+      File file = new File(templateName);
+      InputStream in = file.isFile() ? new FileInputStream(file) : PrecompiledTemplateEngine
+        .getResourceAsStream(templateName);
+      if (in == null) {
+        digest.update(template.getClass().getName().getBytes(PrecompiledTemplate.UTF_8));
+      }
+      else {
+        try {
+          byte[] buffer = new byte[4096];
+          for (int read; (read = in.read(buffer)) >= 0;) {
+            digest.update(buffer, 0, read);
+          }
+        }
+        finally {
+          in.close();
+        }
+      }
+    }
+    catch (IOException e) {
+      LOG.log(Level.WARNING, String.format("Cannot read template '%s' for its fingerprint", templateName), e);
+      digest.update(String.valueOf(System.nanoTime()).getBytes(PrecompiledTemplate.UTF_8)); //unique
+    }
+    byte[] hash = digest.digest();
+    char[] fingerprint = new char[16];
+    for (int i = 0; i < 8; i++) {
+      fingerprint[2 * i] = HEX[hash[i] >> 4 & 0xf];
+      fingerprint[2 * i + 1] = HEX[hash[i] & 0xf];
+    }
+    return new String(fingerprint);
+  }
+
+  private static String loadLibraryBuild()
+  {
+    Properties properties = new Properties();
+    InputStream in = VelocityBase.class.getResourceAsStream("version.properties");
+    try {
+      if (in != null) {
+        try {
+          properties.load(in);
+        }
+        finally {
+          in.close();
+        }
+      }
+    }
+    catch (IOException e) {
+      LOG.log(Level.WARNING, "Cannot read the library version", e);
+    }
+    String version = properties.getProperty("version");
+    if (version == null || version.startsWith("${")) {
+      //not built by Maven, e.g. in an IDE: unique per start so no stale output is ever matched
+      return "unknown-" + System.currentTimeMillis();
+    }
+    return version + " " + properties.getProperty("build");
   }
 
   public String generate(P parameters) throws IOException
@@ -77,14 +382,45 @@ public abstract class VelocityBase<P extends IParameters>
     return swriter.getBuffer().toString();
   }
 
-  public synchronized void generate(PrintWriter writer, P parameters) throws IOException
+  /**
+   * Merges the template with the given parameters. The loaded template is only read, so this
+   * method can be called concurrently without any locking.
+   */
+  public void generate(PrintWriter writer, P parameters) throws IOException
   {
-    VelocityContext context = new VelocityContext();
     Map<String, Object> mappings = parameters.getMappings();
-    for (String key : mappings.keySet()) {
-      context.put(key, mappings.get(key));
-    }
-    template.merge(context, writer);
+    templateFor(mappings).merge(mappings, writer);
+  }
+
+  /**
+   * Merges the template with the given parameters and writes the result UTF-8 encoded to the
+   * stream. The stream is neither flushed nor closed.
+   */
+  public void generate(OutputStream out, P parameters) throws IOException
+  {
+    Map<String, Object> mappings = parameters.getMappings();
+    templateFor(mappings).merge(mappings, out);
+  }
+
+  /**
+   * Merges the template with the given parameters and writes the result UTF-8 encoded to the
+   * channel. The channel is not closed.
+   */
+  public void generate(WritableByteChannel channel, P parameters) throws IOException
+  {
+    generate(Channels.newOutputStream(channel), parameters);
+  }
+
+  /**
+   * Merges the template with the given parameters and puts the result UTF-8 encoded into the
+   * buffer, starting at its current position.
+   * 
+   * @throws BufferOverflowException
+   *           if the remaining space in the buffer is not sufficient
+   */
+  public void generate(ByteBuffer buffer, P parameters) throws IOException
+  {
+    generate(new ByteBufferOutputStream(buffer), parameters);
   }
 
   static interface IParameters
@@ -106,6 +442,15 @@ public abstract class VelocityBase<P extends IParameters>
       this.mappings = new HashMap<String, Object>();
     }
 
+    /**
+     * @param mappings
+     *          the map the parameters are put into, e.g. a {@link LayeredMap} on top of shared values
+     */
+    protected Parameters(Map<String, Object> mappings)
+    {
+      this.mappings = mappings;
+    }
+
     @Override
     public Map<String, Object> getMappings()
     {
@@ -119,4 +464,26 @@ public abstract class VelocityBase<P extends IParameters>
     return templateName;
   }
 
+  private static class ByteBufferOutputStream extends OutputStream
+  {
+    private final ByteBuffer buffer;
+
+    ByteBufferOutputStream(ByteBuffer buffer)
+    {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b)
+    {
+      buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+      buffer.put(b, off, len);
+    }
+  }
+
 }
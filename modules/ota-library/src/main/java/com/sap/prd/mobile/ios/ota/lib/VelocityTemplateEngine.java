@@ -0,0 +1,260 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.event.EventCartridge;
+import org.apache.velocity.app.event.ReferenceInsertionEventHandler;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.node.Node;
+
+/**
+ * {@link ITemplateEngine} backed by Velocity. Supports the complete Velocity template language.
+ * <p>
+ * All instances share one Velocity runtime per class loader for the templates on the class path,
+ * so the loaders, directives and introspection caches are only set up once. Templates from the file
+ * system are loaded by a runtime with a file loader rooted at the directory of the template, so
+ * <code>#parse</code> and <code>#include</code> find the files next to it. These runtimes are
+ * shared by all templates of a directory, at most {@value #MAX_FILE_RUNTIMES} are kept.
+ */
+public class VelocityTemplateEngine implements ITemplateEngine
+{
+
+  private static class RuntimeHolder
+  {
+    static final RuntimeInstance RUNTIME = createRuntime();
+
+    private static RuntimeInstance createRuntime()
+    {
+      RuntimeInstance runtime = new RuntimeInstance();
+      runtime.setProperty(RuntimeConstants.RESOURCE_LOADER, "class,jar");
+      runtime.setProperty("class.resource.loader.class", "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+      runtime.setProperty("jar.resource.loader.class", "org.apache.velocity.runtime.resource.loader.JarResourceLoader");
+      runtime.init();
+      return runtime;
+    }
+  }
+
+  /**
+   * Maximum number of template directories with their own runtime.
+   */
+  static final int MAX_FILE_RUNTIMES = 16;
+
+  private static final Map<File, RuntimeInstance> FILE_RUNTIMES = new LinkedHashMap<File, RuntimeInstance>(
+        MAX_FILE_RUNTIMES, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<File, RuntimeInstance> eldest)
+    {
+      return size() > MAX_FILE_RUNTIMES;
+    }
+  };
+
+  @Override
+  public ITemplate getTemplate(String templateName) throws ResourceNotFoundException
+  {
+    RuntimeInstance runtime = RuntimeHolder.RUNTIME;
+    Template template;
+    File templateFile = new File(templateName);
+    if (templateFile.isFile()) {
+      File directory = templateFile.getAbsoluteFile().getParentFile();
+      template = getFileRuntime(directory).getTemplate(templateFile.getName());
+    }
+    else {
+      template = runtime.getTemplate(templateName);
+    }
+    if (template == null) throw new ResourceNotFoundException("Neither file nor resource found for '" + templateName + "'");
+    return new VelocityTemplate(template);
+  }
+
+  /**
+   * @return the runtime loading the files of the directory, templates on the class path are found as
+   *         well. Files are read again for each call, they are not cached by Velocity.
+   */
+  static RuntimeInstance getFileRuntime(File directory)
+  {
+    synchronized (FILE_RUNTIMES) {
+      RuntimeInstance runtime = FILE_RUNTIMES.get(directory);
+      if (runtime == null) {
+        runtime = new RuntimeInstance();
+        runtime.setProperty(RuntimeConstants.RESOURCE_LOADER, "file,class,jar");
+        runtime.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH, directory.getPath());
+        runtime.setProperty("class.resource.loader.class", "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+        runtime.setProperty("jar.resource.loader.class", "org.apache.velocity.runtime.resource.loader.JarResourceLoader");
+        runtime.init();
+        FILE_RUNTIMES.put(directory, runtime);
+      }
+      return runtime;
+    }
+  }
+
+  static class VelocityTemplate implements ITemplate
+  {
+    /**
+     * Rough heap size of a syntax tree node with its token, used for size estimates.
+     */
+    private static final int NODE_SIZE = 128;
+
+    private final Template template;
+    private final EscapingHandler escaping;
+    private volatile long size = -1;
+
+    VelocityTemplate(Template template)
+    {
+      this(template, null, null);
+    }
+
+    private VelocityTemplate(Template template, Escaper escaper, Set<String> names)
+    {
+      this.template = template;
+      this.escaping = escaper == null ? null : new EscapingHandler(escaper, names);
+    }
+
+    /**
+     * @param escaper
+     *          the escaping of the inserted reference values, <code>null</code> for none
+     * @param names
+     *          the names of the escaped values. A reference is escaped if it starts with one of
+     *          them, e.g. <code>$title</code>, <code>${title}</code> or
+     *          <code>$title.toUpperCase()</code>.
+     * @return a template sharing the parsed template which escapes the inserted values
+     */
+    VelocityTemplate escaping(Escaper escaper, Set<String> names)
+    {
+      if (escaper == getEscaper() && (escaper == null || names.equals(escaping.names))) {
+        return this;
+      }
+      return new VelocityTemplate(template, escaper, names);
+    }
+
+    Escaper getEscaper()
+    {
+      return escaping == null ? null : escaping.escaper;
+    }
+
+    @Override
+    public String getName()
+    {
+      return template.getName();
+    }
+
+    @Override
+    public void merge(Map<String, Object> mappings, Writer writer) throws IOException
+    {
+      //the mappings back the context directly, values set by the template end up in the map
+      VelocityContext context = new VelocityContext(mappings);
+      if (escaping != null) {
+        EventCartridge cartridge = new EventCartridge();
+        cartridge.addReferenceInsertionEventHandler(escaping);
+        cartridge.attachToContext(context);
+      }
+      template.merge(context, writer);
+    }
+
+    @Override
+    public void merge(Map<String, Object> mappings, OutputStream out) throws IOException
+    {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, PrecompiledTemplate.UTF_8));
+      merge(mappings, writer);
+      writer.flush();
+    }
+
+    @Override
+    public long estimateSize()
+    {
+      if (size < 0) {
+        size = PrecompiledTemplate.OBJECT_OVERHEAD + estimateSize((Node) template.getData());
+      }
+      return size;
+    }
+
+    /**
+     * Escapes the values of the references to the given names inserted into the output.
+     */
+    private static class EscapingHandler implements ReferenceInsertionEventHandler
+    {
+      final Escaper escaper;
+      final Set<String> names;
+
+      EscapingHandler(Escaper escaper, Set<String> names)
+      {
+        this.escaper = escaper;
+        this.names = names;
+      }
+
+      @Override
+      public Object referenceInsert(String reference, Object value)
+      {
+        if (value == null || !names.contains(name(reference))) {
+          return value;
+        }
+        return escaper.escape(value.toString());
+      }
+
+      /**
+       * @return the name of the value a reference like <code>$!{title.length()}</code> starts with
+       */
+      private static String name(String reference)
+      {
+        int start = 0;
+        while (start < reference.length() && "$!{".indexOf(reference.charAt(start)) >= 0) {
+          start++;
+        }
+        int end = start;
+        while (end < reference.length() && (Character.isLetterOrDigit(reference.charAt(end))
+              || reference.charAt(end) == '_' || reference.charAt(end) == '-')) {
+          end++;
+        }
+        return reference.substring(start, end);
+      }
+    }
+
+    private static long estimateSize(Node node)
+    {
+      if (node == null) {
+        return 0;
+      }
+      int children = node.jjtGetNumChildren();
+      if (children == 0) {
+        return NODE_SIZE + 2L * node.literal().length();
+      }
+      long size = NODE_SIZE;
+      for (int i = 0; i < children; i++) {
+        size += estimateSize(node.jjtGetChild(i));
+      }
+      return size;
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Random;
+
+import org.junit.Test;
+import org.sonatype.plexus.components.cipher.Base64;
+
+public class Base64UrlCodecTest
+{
+
+  private final static String referer = "Referer=http://hostname:8080/path/MyApp.htm";
+
+  @Test
+  public void testSameAsLegacyEncoding() throws UnsupportedEncodingException
+  {
+    for (String string : new String[] { "", "a", "ab", "abc", "abcd", referer, "title=My App",
+          "\u00e4\u00f6\u00fc\u00df", "\u20ac 100", "\ud83d\ude00", "bad \ud83d surrogate", "\ude00",
+          OtaPlistGeneratorTest.long_referer, OtaPlistGeneratorTest.long_title }) {
+      assertEquals(legacyEncode(string), Base64UrlCodec.encode(string));
+      assertEquals(legacyDecode(legacyEncode(string)), Base64UrlCodec.decode(legacyEncode(string)));
+    }
+    Random random = new Random(4711);
+    for (int i = 0; i < 1000; i++) {
+      char[] chars = new char[random.nextInt(64)];
+      for (int j = 0; j < chars.length; j++) {
+        chars[j] = (char) (random.nextBoolean() ? random.nextInt(128) : random.nextInt(Character.MAX_VALUE + 1));
+      }
+      String string = new String(chars);
+      assertEquals(legacyEncode(string), Base64UrlCodec.encode(string));
+      assertEquals(legacyDecode(legacyEncode(string)), Base64UrlCodec.decode(legacyEncode(string)));
+    }
+  }
+
+  @Test
+  public void testEncodeParts()
+  {
+    assertEquals("x/" + Base64UrlCodec.encode(referer),
+          Base64UrlCodec.encode(new StringBuilder("x/"), "Referer", "=", "http://hostname:8080/path/MyApp.htm")
+            .toString());
+    assertEquals(Base64UrlCodec.encode("title=null"), Base64UrlCodec.encode(new StringBuilder(), "title", "=", null)
+      .toString());
+  }
+
+  @Test
+  public void testLenientDecode()
+  {
+    assertNull(Base64UrlCodec.encode(null));
+    assertNull(Base64UrlCodec.decode(null));
+    assertEquals("?>?", Base64UrlCodec.decode("Pz4%2FPw%3D%3D").substring(0, 3));
+    assertEquals("?>??", Base64UrlCodec.decode("Pz4_Pw")); //URL-safe alphabet without padding
+    assertEquals("?>??", Base64UrlCodec.decode("Pz4/Pw=="));
+    assertEquals("?>??", Base64UrlCodec.decode("Pz4%2fPw%3d%3d"));
+    assertEquals("abc", Base64UrlCodec.decode("YW\nJj"));
+    assertEquals("abc", Base64UrlCodec.decode("x/YWJj/y", 2, 6));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIncompleteEscape()
+  {
+    Base64UrlCodec.decode("YWJj%3");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidEscape()
+  {
+    Base64UrlCodec.decode("YWJj%xy");
+  }
+
+  /**
+   * Compares the throughput with the previous implementation, the results are printed.
+   */
+  @Test
+  public void testThroughput() throws UnsupportedEncodingException
+  {
+    String encoded = Base64UrlCodec.encode(referer);
+    for (int round = 0; round < 2; round++) { //the first round warms up
+      int iterations = 200000;
+      long checksum = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        checksum += legacyDecode(legacyEncode(referer)).length();
+      }
+      long legacy = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        checksum -= Base64UrlCodec.decode(Base64UrlCodec.encode(referer)).length();
+      }
+      long codec = System.nanoTime() - start;
+      assertEquals(0, checksum);
+      assertEquals(referer, Base64UrlCodec.decode(encoded));
+      if (round > 0) {
+        System.out.println(String.format("encode+decode: legacy %.0f ops/s, codec %.0f ops/s", iterations
+              / (legacy / 1e9), iterations / (codec / 1e9)));
+      }
+    }
+  }
+
+  private static String legacyEncode(String string) throws UnsupportedEncodingException
+  {
+    return URLEncoder.encode(new String(Base64.encodeBase64(string.getBytes("UTF-8")), "US-ASCII"), "UTF-8");
+  }
+
+  private static String legacyDecode(String string) throws UnsupportedEncodingException
+  {
+    return new String(Base64.decodeBase64(URLDecoder.decode(string, "UTF-8").getBytes("US-ASCII")), "UTF-8");
+  }
+
+}
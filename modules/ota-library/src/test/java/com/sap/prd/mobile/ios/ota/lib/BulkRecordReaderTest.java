@@ -0,0 +1,173 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BulkRecordReaderTest
+{
+
+  private final static String referer = "http://hostname:8080/path/MyApp.htm";
+
+  @Test
+  public void testCsv() throws IOException
+  {
+    List<PlistToken> records = read(BulkRecordReader.forCsv(new StringReader(referer
+          + ",MyApp,com.sap.xyz.MyApp,1.0.2\r\n\r\n" + referer + ",\"My, \"\"quoted\"\" App\",,1.0,ipa,ota\n")));
+    assertEquals(2, records.size());
+    assertEquals(new PlistToken(referer, "MyApp", "com.sap.xyz.MyApp", "1.0.2", null, null), records.get(0));
+    assertEquals(new PlistToken(referer, "My, \"quoted\" App", null, "1.0", "ipa", "ota"), records.get(1));
+  }
+
+  @Test
+  public void testCsvHeader() throws IOException
+  {
+    List<PlistToken> records = read(BulkRecordReader.forCsv(new StringReader(
+          "title,build,referer,bundleVersion\nMyApp,42," + referer + ",1.0.2")));
+    assertEquals(1, records.size());
+    assertEquals(new PlistToken(referer, "MyApp", null, "1.0.2", null, null), records.get(0));
+  }
+
+  @Test
+  public void testCsvUnterminatedQuote() throws IOException
+  {
+    BulkRecordReader reader = BulkRecordReader.forCsv(new StringReader(referer + ",MyApp\n" + referer
+          + ",\"MyApp\n"));
+    reader.read();
+    try {
+      reader.read();
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      assertEquals("Unterminated quote in line 3", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testJsonLines() throws IOException
+  {
+    List<PlistToken> records = read(BulkRecordReader.forJson(new StringReader("{\"Referer\":\"" + referer
+          + "\",\"title\":\"My \\\"App\\\" \\u00e4\",\"bundleVersion\":1.0,\"extra\":true}\n"
+          + "{\"referer\": \"" + referer + "\", \"ipaClassifier\": null, \"otaClassifier\": \"\"}\n\n{}")));
+    assertEquals(3, records.size());
+    assertEquals(new PlistToken(referer, "My \"App\" \u00e4", null, "1.0", null, null), records.get(0));
+    assertEquals(new PlistToken(referer, null, null, null, null, null), records.get(1));
+    assertEquals(new PlistToken(null, null, null, null, null, null), records.get(2));
+  }
+
+  @Test
+  public void testJsonArray() throws IOException
+  {
+    List<PlistToken> records = read(BulkRecordReader.forJson(new StringReader("[ {\"Referer\":\"" + referer
+          + "\",\"title\":\"A\"},\n {\"Referer\":\"" + referer + "\",\"title\":\"B\"} ]")));
+    assertEquals(2, records.size());
+    assertEquals("A", records.get(0).getTitle());
+    assertEquals("B", records.get(1).getTitle());
+  }
+
+  @Test
+  public void testMalformedJson() throws IOException
+  {
+    assertMalformed("{\"Referer\":\"" + referer + "\"}\n{\"title\" \"A\"}", "Expected ':' in line 2");
+    assertMalformed("{\"title\":{\"a\":\"b\"}}", "Expected a string value in line 1");
+    assertMalformed("{\"title\":\"A\"", "Expected ',' or '}' in line 1");
+    assertMalformed("[{\"title\":\"A\"}", "Unterminated array in line 1");
+    assertMalformed("\"title\"", "Unexpected '\"' in line 1");
+    assertMalformed("{\"title\":\"\\x\"}", "Invalid escape in line 1");
+  }
+
+  @Test
+  public void testLengthLimits() throws IOException
+  {
+    String field = repeat('a', BulkRecordReader.MAX_FIELD_LENGTH);
+    assertEquals(field, read(BulkRecordReader.forCsv(new StringReader(referer + "," + field))).get(0).getTitle());
+    assertEquals(field, read(BulkRecordReader.forJson(new StringReader("{\"title\":\"" + field + "\"}"))).get(0)
+      .getTitle());
+
+    String message = "Value longer than " + BulkRecordReader.MAX_FIELD_LENGTH + " characters in line 1";
+    assertMalformed(BulkRecordReader.forCsv(new StringReader(referer + ",\"" + field + "a\"")), message);
+    assertMalformed(BulkRecordReader.forJson(new StringReader("{\"title\":\"" + field + "a\"}")), message);
+    assertMalformed(BulkRecordReader.forJson(new StringReader("{\"title\":" + field + "1}")), message);
+
+    StringBuilder columns = new StringBuilder(referer);
+    StringBuilder keys = new StringBuilder("{");
+    while (columns.length() <= BulkRecordReader.MAX_RECORD_LENGTH) {
+      columns.append(',').append(field);
+      keys.append("\"unknown\":\"").append(field).append("\",");
+    }
+    message = "Record longer than " + BulkRecordReader.MAX_RECORD_LENGTH + " characters in line 1";
+    assertMalformed(BulkRecordReader.forCsv(new StringReader(columns.toString())), message);
+    assertMalformed(BulkRecordReader.forJson(new StringReader(keys.append("}").toString())), message);
+  }
+
+  @Test
+  public void testSeparatorsNotCounted() throws IOException
+  {
+    String separators = repeat(' ', BulkRecordReader.MAX_RECORD_LENGTH);
+    String record = "{\"title\":\"A\"}";
+    assertEquals(2, read(BulkRecordReader.forJson(new StringReader(record + separators + record))).size());
+  }
+
+  private static String repeat(char c, int count)
+  {
+    StringBuilder value = new StringBuilder(count);
+    for (int i = 0; i < count; i++) {
+      value.append(c);
+    }
+    return value.toString();
+  }
+
+  private static void assertMalformed(String json, String message) throws IOException
+  {
+    assertMalformed(BulkRecordReader.forJson(new StringReader(json)), message);
+  }
+
+  private static void assertMalformed(BulkRecordReader reader, String message) throws IOException
+  {
+    try {
+      read(reader);
+      fail(message);
+    }
+    catch (IllegalArgumentException e) {
+      assertEquals(message, e.getMessage());
+    }
+  }
+
+  private static List<PlistToken> read(BulkRecordReader reader) throws IOException
+  {
+    List<PlistToken> records = new ArrayList<PlistToken>();
+    for (PlistToken record; (record = reader.read()) != null;) {
+      records.add(record);
+    }
+    assertNull(reader.read());
+    reader.close();
+    return records;
+  }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CompiledTemplateEngineTest
+{
+
+  static final String TEMPLATE_NAME = "compiledTestTemplate.html";
+
+  private final ITemplateEngine fallback = new VelocityTemplateEngine();
+  private final CompiledTemplateEngine engine = new CompiledTemplateEngine(fallback);
+
+  @Test
+  public void testCompiledTemplate() throws IOException
+  {
+    assertTrue(engine.isCompiled(TEMPLATE_NAME));
+    ITemplate template = engine.getTemplate(TEMPLATE_NAME);
+    assertTrue(template instanceof CompiledTestTemplate);
+    assertSame(template, engine.getTemplate("/" + TEMPLATE_NAME));
+
+    Map<String, Object> mappings = new HashMap<String, Object>();
+    mappings.put("title", "MyApp");
+    StringWriter writer = new StringWriter();
+    template.merge(mappings, writer);
+    assertEquals("<h1>MyApp</h1>", writer.toString());
+  }
+
+  @Test
+  public void testFallback() throws IOException
+  {
+    assertFalse(engine.isCompiled("template.html"));
+    assertFalse(engine.getTemplate("template.html") instanceof CompiledTestTemplate);
+
+    File file = new File(System.getProperty("java.io.tmpdir"), TEMPLATE_NAME);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write("<h2>$title</h2>".getBytes("UTF-8"));
+    }
+    finally {
+      out.close();
+    }
+    try {
+      //templates on the file system are never replaced by compiled classes
+      assertFalse(engine.getTemplate(file.getAbsolutePath()) instanceof CompiledTestTemplate);
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Registered in <code>META-INF/services</code> of the test resources, as the template compiler
+   * would do.
+   */
+  public static class CompiledTestTemplate extends PrecompiledTemplate
+  {
+    public CompiledTestTemplate()
+    {
+      super(TEMPLATE_NAME, new String[] { text("<h1>"), text("</h1>") }, new String[] { "title" },
+            new String[] { "$title" });
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.junit.Test;
+
+public class EscaperTest
+{
+
+  @Test
+  public void testEscape()
+  {
+    assertEquals("a&amp;&amp;b&lt;c&gt;&quot;d&quot;&apos;", Escaper.XML.escape("a&&b<c>\"d\"'"));
+    assertEquals("a&amp;&amp;b&lt;c&gt;&quot;d&quot;&#39;", Escaper.HTML.escape("a&&b<c>\"d\"'"));
+    assertEquals("\u00c4pp \u20ac &amp; \ud83d\ude00", Escaper.HTML.escape("\u00c4pp \u20ac & \ud83d\ude00"));
+  }
+
+  @Test
+  public void testNothingToEscape()
+  {
+    String plain = "http://hostname:8080/path/MyApp.ipa?x=1;y=\u00c4";
+    assertSame(plain, Escaper.XML.escape(plain));
+    assertSame(plain, Escaper.HTML.escape(plain));
+    assertSame("", Escaper.XML.escape(""));
+  }
+
+  @Test
+  public void testForTemplate()
+  {
+    assertSame(Escaper.XML, Escaper.forTemplate("template.plist"));
+    assertSame(Escaper.XML, Escaper.forTemplate("/tmp/Manifest.XML"));
+    assertSame(Escaper.HTML, Escaper.forTemplate("template.html"));
+    assertSame(Escaper.HTML, Escaper.forTemplate("C:\\templates\\page.HTM"));
+    assertNull(Escaper.forTemplate("template.txt"));
+  }
+
+  /**
+   * Compares the throughput with the escaping of commons-lang for a value without and a value with
+   * characters to escape, the numbers are printed.
+   */
+  @Test
+  public void testThroughput()
+  {
+    String[] values = { "http://hostname:8080/path/MyApp-Production-iphoneos.ipa", "Tom & Jerry's <App> \"1.0\"" };
+    int iterations = 200000;
+    for (int round = 0; round < 2; round++) { //the first round warms up
+      for (String value : values) {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+          checksum += StringEscapeUtils.escapeHtml(value).length();
+        }
+        long commonsLang = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+          checksum -= Escaper.HTML.escape(value).length();
+        }
+        long escaper = System.nanoTime() - start;
+        assertEquals(value.contains("'") ? -4 * iterations : 0, checksum); //commons-lang keeps the apostrophe
+        if (round > 0) {
+          System.out.println(String.format("escape '%s': commons-lang %.0f ops/s, Escaper %.0f ops/s", value,
+                iterations / (commonsLang / 1e9), iterations / (escaper / 1e9)));
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.VelocityBase.Parameters;
+
+public class GeneratorRegistryTest
+{
+
+  private static class Generator extends VelocityBase<Parameters>
+  {
+    Generator(String templateName)
+    {
+      super(templateName);
+    }
+  }
+
+  private static class CountingFactory implements GeneratorRegistry.Factory<Generator>
+  {
+    final AtomicInteger created = new AtomicInteger();
+    final CountDownLatch release;
+
+    CountingFactory(CountDownLatch release)
+    {
+      this.release = release;
+    }
+
+    @Override
+    public Generator create(String templateName)
+    {
+      created.incrementAndGet();
+      try {
+        release.await();
+      }
+      catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+      return new Generator(templateName);
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testCreatedExactlyOnce() throws Exception
+  {
+    CountDownLatch release = new CountDownLatch(1);
+    CountingFactory factory = new CountingFactory(release);
+    final GeneratorRegistry<Generator> registry = new GeneratorRegistry<Generator>(4, factory);
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Generator>> results = new ArrayList<Future<Generator>>();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(new Callable<Generator>() {
+          @Override
+          public Generator call()
+          {
+            return registry.get("template.html");
+          }
+        }));
+      }
+      Thread.sleep(100);
+      release.countDown();
+      Generator generator = results.get(0).get();
+      for (Future<Generator> result : results) {
+        assertSame(generator, result.get());
+      }
+      assertEquals(1, factory.created.get());
+      assertEquals(1, registry.getSize());
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() throws Exception
+  {
+    CountingFactory factory = new CountingFactory(new CountDownLatch(0));
+    GeneratorRegistry<Generator> registry = new GeneratorRegistry<Generator>(2, factory);
+
+    Generator html = registry.get("template.html");
+    registry.get("template.plist");
+    Thread.sleep(5);
+    assertSame(html, registry.get("template.html"));
+    registry.get("buildTemplate.html");
+
+    assertEquals(2, registry.getSize());
+    assertEquals(1, registry.getEvictionCount());
+    assertArrayEquals(new String[] { "buildTemplate.html", "template.html" }, registry.getTemplateNames());
+    assertTrue(registry.getEstimatedMemory() > 0);
+
+    registry.setMaximumSize(1);
+    assertArrayEquals(new String[] { "buildTemplate.html" }, registry.getTemplateNames());
+    assertEquals(3, factory.created.get());
+  }
+
+  @Test
+  public void testFailureIsNotCached()
+  {
+    CountingFactory factory = new CountingFactory(new CountDownLatch(0));
+    GeneratorRegistry<Generator> registry = new GeneratorRegistry<Generator>(2, factory);
+    for (int i = 0; i < 2; i++) {
+      try {
+        registry.get("doesnotexist.htm");
+        fail("ResourceNotFoundException expected");
+      }
+      catch (ResourceNotFoundException e) {
+        //expected
+      }
+    }
+    assertEquals(2, factory.created.get());
+    assertEquals(0, registry.getSize());
+  }
+
+}
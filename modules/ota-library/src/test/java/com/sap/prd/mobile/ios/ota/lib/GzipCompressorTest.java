@@ -0,0 +1,138 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class GzipCompressorTest
+{
+
+  @Test
+  public void testCompress() throws IOException
+  {
+    GzipCompressor compressor = new GzipCompressor(Deflater.DEFAULT_COMPRESSION, 0);
+    byte[] html = OtaHtmlGenerator.getInstance().generate(
+          new OtaHtmlGenerator.Parameters("http://hostname:8080/path/MyApp.htm", "MyApp", "com.sap.xyz.MyApp",
+                "http://ota-server:8080/OTAService/PLIST/abc", null, null, null)).getBytes("UTF-8");
+    for (int i = 0; i < 3; i++) { //the deflater is reused
+      byte[] compressed = compressor.compress(html);
+      assertArrayEquals(html, gunzip(compressed));
+      assertTrue(compressed.length < html.length);
+    }
+    assertArrayEquals(new byte[0], gunzip(compressor.compress(new byte[0])));
+
+    assertEquals(4, compressor.getCompressedCount());
+    assertEquals(3L * html.length, compressor.getUncompressedBytes());
+    assertTrue(compressor.getSavedBytes() > 0);
+    assertEquals(compressor.getUncompressedBytes() - compressor.getCompressedBytes(), compressor.getSavedBytes());
+  }
+
+  @Test
+  public void testStreaming() throws IOException
+  {
+    GzipCompressor compressor = new GzipCompressor(Deflater.BEST_SPEED, 0);
+    byte[] content = new byte[100000]; //larger than the buffer, not compressible
+    new Random(42).nextBytes(content);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    compressor.compress(content, out);
+    assertArrayEquals(content, gunzip(out.toByteArray()));
+    assertEquals(out.size(), compressor.getCompressedBytes());
+  }
+
+  @Test
+  public void testThreshold()
+  {
+    GzipCompressor compressor = new GzipCompressor(Deflater.DEFAULT_COMPRESSION, 1024);
+    assertFalse(compressor.isCompressible(1023));
+    assertTrue(compressor.isCompressible(1024));
+    assertEquals(1, compressor.getSkippedCount());
+    assertEquals(1024, compressor.getMinimumBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLevel()
+  {
+    new GzipCompressor(10, 0);
+  }
+
+  /**
+   * Compares the pooled deflater with a new {@link GZIPOutputStream} per document, the times are
+   * printed.
+   */
+  @Test
+  public void testThroughput() throws IOException
+  {
+    StringBuilder document = new StringBuilder();
+    while (document.length() < 8192) {
+      document.append("<tr><td class=\"title\">Install App: MyApp</td><td>com.sap.xyz.MyApp</td></tr>\n");
+    }
+    byte[] content = document.toString().getBytes("UTF-8");
+    GzipCompressor compressor = new GzipCompressor(Deflater.DEFAULT_COMPRESSION, 0);
+    int iterations = 2000;
+    long checksum = 0;
+    for (int round = 0; round < 2; round++) { //the first round warms up
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length);
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(content);
+        gzip.close();
+        checksum += out.size();
+      }
+      long streams = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        checksum -= compressor.compress(content).length;
+      }
+      long pooled = System.nanoTime() - start;
+      if (round == 1) {
+        System.out.println(String.format("GZIPOutputStream: %.1f us, pooled deflater: %.1f us per document",
+              streams / 1e3 / iterations, pooled / 1e3 / iterations));
+      }
+    }
+    assertEquals(0, checksum);
+  }
+
+  private static byte[] gunzip(byte[] compressed) throws IOException
+  {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int read; (read = in.read(buffer)) >= 0;) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+}
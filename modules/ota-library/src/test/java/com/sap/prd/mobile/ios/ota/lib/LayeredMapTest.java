@@ -0,0 +1,70 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class LayeredMapTest
+{
+
+  @Test
+  public void testTopHidesBase()
+  {
+    Map<String, String> base = new HashMap<String, String>();
+    base.put("title", "Base");
+    base.put("logo", "logo.png");
+    Map<String, String> shared = Collections.unmodifiableMap(base);
+
+    LayeredMap<String, Object> map = new LayeredMap<String, Object>(shared, 2);
+    assertEquals("Base", map.get("title"));
+    assertEquals("Base", map.put("title", "Top"));
+    assertEquals("Top", map.get("title"));
+    map.put("logo", null);
+    assertTrue(map.containsKey("logo"));
+    assertNull(map.get("logo"));
+    assertEquals(2, map.size());
+
+    map.remove("title");
+    assertEquals("Base", map.get("title"));
+    assertEquals("Base", base.get("title"));
+    assertEquals("logo.png", base.get("logo"));
+  }
+
+  @Test
+  public void testWithoutBase()
+  {
+    LayeredMap<String, Object> map = new LayeredMap<String, Object>(null, 2);
+    assertFalse(map.containsKey("title"));
+    map.put("title", "Top");
+    assertEquals(Collections.singletonMap("title", "Top"), map);
+    map.clear();
+    assertTrue(map.isEmpty());
+  }
+
+}
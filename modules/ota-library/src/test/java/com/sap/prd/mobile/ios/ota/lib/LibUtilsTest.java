@@ -20,11 +20,14 @@
 package com.sap.prd.mobile.ios.ota.lib;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.net.URL;
 
 import org.junit.Test;
 
@@ -62,6 +65,33 @@ public class LibUtilsTest
     }
   }
 
+  @Test
+  public void testGenerateDirectIpaUrlClassifierNotFound() throws MalformedURLException
+  {
+    assertEquals("http://localhost:8080/abc/test.ipa", LibUtils.generateDirectIpaUrl(
+          "http://localhost:8080/abc/test.htm", "Production-iphoneos", "OTA").toExternalForm());
+    assertEquals("http://localhost:8080/abc/testOTA.ipa", LibUtils.generateDirectIpaUrl(
+          "http://localhost:8080/abc/testOTA.htm", null, "OTA").toExternalForm());
+    assertEquals("http://localhost:8080/abc-OTA/test.ipa", LibUtils.generateDirectIpaUrl(
+          "http://localhost:8080/abc-OTA/test-OTA.htm", null, "OTA").toExternalForm());
+  }
+
+  @Test
+  public void testGenerateDirectIpaUrlMemoized() throws MalformedURLException
+  {
+    LibUtils.clearIpaUrls();
+    URL url = LibUtils.generateDirectIpaUrl("http://localhost:8080/abc/test-OTA.htm", "ipa", "OTA");
+    assertSame(url, LibUtils.generateDirectIpaUrl("http://localhost:8080/abc/test-OTA.htm", "ipa", "OTA"));
+    assertNotSame(url, LibUtils.generateDirectIpaUrl("http://localhost:8080/abc/test-OTA.htm", null, "OTA"));
+    assertEquals("http://localhost:8080/abc/test.ipa",
+          LibUtils.generateDirectIpaUrl("http://localhost:8080/abc/test-OTA.htm", null, "OTA").toExternalForm());
+    for (int i = 0; i < LibUtils.MAX_IPA_URLS + 10; i++) {
+      assertEquals("http://localhost:8080/abc/test" + i + ".ipa",
+            LibUtils.generateDirectIpaUrl("http://localhost:8080/abc/test" + i + ".htm", null, null).toExternalForm());
+    }
+    assertNotSame(url, LibUtils.generateDirectIpaUrl("http://localhost:8080/abc/test-OTA.htm", "ipa", "OTA"));
+  }
+
   @Test
   public void testUrlurlEncodeurlDecode()
   {
@@ -26,12 +26,15 @@ import static com.sap.prd.mobile.ios.ota.lib.OtaBuildHtmlGenerator.OTA_CLASSIFIE
 import static com.sap.prd.mobile.ios.ota.lib.OtaBuildHtmlGenerator.TITLE;
 import static com.sap.prd.mobile.ios.ota.lib.TestUtils.assertContains;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.velocity.exception.ResourceNotFoundException;
 import org.junit.Test;
@@ -63,7 +66,7 @@ public class OtaBuildHtmlGeneratorTest
     assertContains(
           "<iframe id=\"iframe\" src=\""
                 + HTML_SERVICE
-                + "?title=MyApp&bundleIdentifier=com.sap.xyz.MyApp&bundleVersion=1.0.2&ipaClassifier=ipaClassifier&otaClassifier=otaClassifier\"",
+                + "?title=MyApp&amp;bundleIdentifier=com.sap.xyz.MyApp&amp;bundleVersion=1.0.2&amp;ipaClassifier=ipaClassifier&amp;otaClassifier=otaClassifier\"",
           generated);
     assertContains("<form action=\"" + HTML_SERVICE + "\"", generated);
     assertContains("<input type=\"hidden\" name=\"title\" value=\"MyApp\">", generated);
@@ -71,6 +74,38 @@ public class OtaBuildHtmlGeneratorTest
     assertContains("<input type=\"hidden\" name=\"bundleVersion\" value=\"1.0.2\">", generated);
     assertContains("<input type=\"hidden\" name=\"ipaClassifier\" value=\"ipaClassifier\">", generated);
     assertContains("<input type=\"hidden\" name=\"otaClassifier\" value=\"otaClassifier\">", generated);
+    assertContains("<link rel=\"stylesheet\" type=\"text/css\" href=\"http://apple-ota.wdf.sap.corp:8080/ota-service/"
+          + StaticAssets.PATH + "/" + StaticAssets.getInstance().get("ota.css").getFingerprintedName() + "\">",
+          generated);
+  }
+
+  @Test
+  public void testGetServiceRoot()
+  {
+    assertEquals("http://host:8080/ota-service", Parameters.getServiceRoot("http://host:8080/ota-service/HTML"));
+    assertEquals("http://host:8080/ota-service", Parameters.getServiceRoot("http://host:8080/ota-service/HTML//"));
+    assertEquals("http://host:8080", Parameters.getServiceRoot("http://host:8080/HTML"));
+  }
+
+  @Test
+  public void testParametersAsKey() throws IOException
+  {
+    URL htmlServiceUrl = new URL(HTML_SERVICE);
+    Map<String, String> config = new HashMap<String, String>();
+    Parameters parameters = new Parameters(htmlServiceUrl, title, bundleIdentifier, bundleVersion, ipaClassifier,
+          otaClassifier, config);
+    Parameters equal = new Parameters(new URL(HTML_SERVICE), title, bundleIdentifier, bundleVersion, ipaClassifier,
+          otaClassifier, config);
+    assertEquals(parameters, equal);
+    assertEquals(parameters.hashCode(), equal.hashCode());
+    assertFalse(parameters.equals(new Parameters(htmlServiceUrl, "Other", bundleIdentifier, bundleVersion,
+          ipaClassifier, otaClassifier, config)));
+    assertFalse(parameters.equals(new Parameters(htmlServiceUrl, title, bundleIdentifier, bundleVersion,
+          ipaClassifier, otaClassifier, new HashMap<String, String>())));
+
+    config.put(TITLE, "Overridden");
+    assertEquals("Overridden", parameters.getMappings().get(TITLE));
+    assertEquals(htmlServiceUrl, parameters.getMappings().get(OtaBuildHtmlGenerator.HTML_SERVICE_URL));
   }
 
   @Test
@@ -103,7 +138,7 @@ public class OtaBuildHtmlGeneratorTest
     assertContains(
           "<a href=\""
                 + HTML_SERVICE
-                + "?title=MyApp&bundleIdentifier=com.sap.xyz.MyApp&bundleVersion=1.0.2&ipaClassifier=ipaClassifier&otaClassifier=otaClassifier\"",
+                + "?title=MyApp&amp;bundleIdentifier=com.sap.xyz.MyApp&amp;bundleVersion=1.0.2&amp;ipaClassifier=ipaClassifier&amp;otaClassifier=otaClassifier\"",
           generated);
   }
 
@@ -21,14 +21,19 @@ package com.sap.prd.mobile.ios.ota.lib;
 
 import static com.sap.prd.mobile.ios.ota.lib.TestUtils.assertContains;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -69,6 +74,23 @@ public class OtaHtmlGeneratorTest
     assertEquals(checkIpaURL, checkIpaLinkMatcher.group(1));
   }
 
+  @Test
+  public void testAssetUrls() throws IOException
+  {
+    URL plistURL = OtaPlistGenerator.generatePlistRequestUrl(plistServiceUrl, referer, title,
+          bundleIdentifier, bundleVersion, ipaClassifier, otaClassifier);
+    String stylesheet = StaticAssets.PATH + "/" + StaticAssets.getInstance().get("ota.css").getFingerprintedName();
+    String generated = OtaHtmlGenerator.getInstance().generate(
+          new Parameters(referer, title, bundleIdentifier, plistURL, null, null, null));
+    assertContains("<link rel=\"stylesheet\" type=\"text/css\" href=\""
+          + StaticAssets.getInstance().getInlineUrls().get("otaCssUrl") + "\">", generated); //no base known
+
+    Map<String, String> config = new HashMap<String, String>(StaticAssets.getInstance().getUrls("/ota-service"));
+    generated = OtaHtmlGenerator.getInstance().generate(
+          new Parameters(referer, title, bundleIdentifier, plistURL, null, null, config));
+    assertContains("href=\"/ota-service/" + stylesheet + "\"", generated);
+  }
+
   @Test
   public void testAlternativeTemplateByResource() throws IOException
   {
@@ -91,6 +113,90 @@ public class OtaHtmlGeneratorTest
     checkAlternativeResult(plistURL, generated);
   }
 
+  @Test
+  public void testSpecialized() throws IOException
+  {
+    URL plistURL = OtaPlistGenerator.generatePlistRequestUrl(plistServiceUrl, referer, title,
+          bundleIdentifier, bundleVersion, ipaClassifier, otaClassifier);
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("googleAnalyticsId", "UA-4711");
+    config.put(OtaHtmlGenerator.TITLE, "Not used, page values win");
+    OtaHtmlGenerator generator = OtaHtmlGenerator.getInstance("alternativeTemplate.html");
+    String expected = generator.generate(new Parameters(referer, title, bundleIdentifier, plistURL, null, null,
+          config));
+
+    generator.specialize(config);
+    String generated = generator.generate(new Parameters(referer, title, bundleIdentifier, plistURL, null, null,
+          config));
+    assertEquals(expected, generated);
+    checkAlternativeResult(plistURL, generated);
+    assertContains("UA-4711", generated);
+
+    Map<String, String> otherConfig = new HashMap<String, String>(config);
+    otherConfig.put("googleAnalyticsId", "UA-0815");
+    assertContains("UA-0815", generator.generate(new Parameters(referer, title, bundleIdentifier, plistURL, null,
+          null, otherConfig)));
+  }
+
+  @Test
+  public void testParametersAsKey() throws IOException
+  {
+    URL plistURL = OtaPlistGenerator.generatePlistRequestUrl(plistServiceUrl, referer, title,
+          bundleIdentifier, bundleVersion, null, null);
+    Parameters parameters = new Parameters(referer, title, bundleIdentifier, plistURL, null, null, initParams);
+    Parameters equal = new Parameters(referer, title, bundleIdentifier, plistURL.toExternalForm(), "", "",
+          initParams);
+    assertEquals(parameters, equal);
+    assertEquals(parameters.hashCode(), equal.hashCode());
+    assertEquals(checkIpaURL, parameters.getIpaUrl());
+    assertFalse(parameters.equals(new Parameters(referer, "Other", bundleIdentifier, plistURL, null, null,
+          initParams)));
+    assertFalse(parameters.equals(new Parameters(referer, title, bundleIdentifier, plistURL, null, null,
+          new HashMap<String, String>(initParams))));
+    assertEquals(title, parameters.getMappings().get(OtaHtmlGenerator.TITLE));
+  }
+
+  @Test
+  public void testEscapedValues() throws IOException
+  {
+    String specialTitle = "Tom & Jerry's <App>";
+    URL plistURL = OtaPlistGenerator.generatePlistRequestUrl(plistServiceUrl, referer, specialTitle,
+          bundleIdentifier, bundleVersion, null, null);
+    String generated = OtaHtmlGenerator.getInstance().generate(
+          new Parameters(referer, specialTitle, bundleIdentifier, plistURL, null, null, initParams));
+    assertContains("Install App: Tom &amp; Jerry&#39;s &lt;App&gt;", generated);
+
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("googleAnalyticsId", "\"UA-4711\"");
+    OtaHtmlGenerator generator = OtaHtmlGenerator.getInstance("alternativeTemplate.html");
+    generator.specialize(config);
+    generated = generator.generate(new Parameters(referer, specialTitle, bundleIdentifier, plistURL, null, null,
+          config));
+    assertContains("Install App: Tom &amp; Jerry&#39;s &lt;App&gt;", generated);
+    assertContains("\"UA-4711\"", generated); //configuration is inserted as it is
+  }
+
+  @Test
+  public void testEscapedValuesInVelocityTemplate() throws IOException
+  {
+    File template = File.createTempFile("template", ".html");
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(template), "UTF-8");
+      writer.write("#if($title)<h2>$title</h2>#end$missing${title.length()}$!{banner}");
+      writer.close();
+      URL plistURL = OtaPlistGenerator.generatePlistRequestUrl(plistServiceUrl, referer, title,
+            bundleIdentifier, bundleVersion, null, null);
+      Map<String, String> config = new HashMap<String, String>(initParams);
+      config.put("banner", "<b>Beta</b>");
+      String generated = OtaHtmlGenerator.getInstance(template.getAbsolutePath()).generate(
+            new Parameters(referer, "Tom & Jerry's <App>", bundleIdentifier, plistURL, null, null, config));
+      assertEquals("<h2>Tom &amp; Jerry&#39;s &lt;App&gt;</h2>$missing19<b>Beta</b>", generated);
+    }
+    finally {
+      template.delete();
+    }
+  }
+
   private void checkAlternativeResult(URL plistURL, String generated)
   {
     assertContains("ALTERNATIVE HTML TEMPLATE", generated);
@@ -20,11 +20,23 @@
 package com.sap.prd.mobile.ios.ota.lib;
 
 import static com.sap.prd.mobile.ios.ota.lib.TestUtils.assertContains;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 import org.junit.Test;
@@ -124,4 +136,119 @@ public class OtaPlistGeneratorTest
 
   }
 
+  @Test
+  public void testGenerateBytes() throws IOException
+  {
+    Parameters parameters = new Parameters(referer, "My\u00c4pp \u20ac", bundleIdentifier, bundleVersion, null, null);
+    byte[] expected = OtaPlistGenerator.getInstance().generate(parameters).getBytes("UTF-8");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OtaPlistGenerator.getInstance().generate(out, parameters);
+    assertArrayEquals(expected, out.toByteArray());
+
+    out = new ByteArrayOutputStream();
+    OtaPlistGenerator.getInstance().generate(Channels.newChannel(out), parameters);
+    assertArrayEquals(expected, out.toByteArray());
+
+    ByteBuffer buffer = ByteBuffer.allocate(expected.length + 10);
+    OtaPlistGenerator.getInstance().generate(buffer, parameters);
+    assertEquals(expected.length, buffer.position());
+    byte[] bytes = new byte[expected.length];
+    buffer.flip();
+    buffer.get(bytes);
+    assertArrayEquals(expected, bytes);
+  }
+
+  @Test
+  public void testOverriddenTemplate() throws IOException
+  {
+    File template = File.createTempFile("manifest", ".plist");
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(template), "UTF-8");
+      writer.write("<plist>#if($title)<string>$title</string>#end</plist>");
+      writer.close();
+
+      OtaPlistGenerator generator = OtaPlistGenerator.getInstance(template.getAbsolutePath());
+      Parameters parameters = new Parameters(referer, title, bundleIdentifier, bundleVersion, null, null);
+      assertEquals("<plist><string>MyApp</string></plist>", generator.generate(parameters));
+      assertArrayEquals("<plist><string>MyApp</string></plist>".getBytes("UTF-8"), generator.generateBytes(parameters));
+      assertSame(OtaPlistGenerator.getInstance(), OtaPlistGenerator.getInstance(null));
+      assertSame(OtaPlistGenerator.getInstance(), OtaPlistGenerator.getInstance(""));
+    }
+    finally {
+      template.delete();
+    }
+  }
+
+  @Test
+  public void testParametersAsKey() throws IOException
+  {
+    Parameters parameters = new Parameters(referer, title, bundleIdentifier, bundleVersion, null, null);
+    Parameters equal = new Parameters(referer, title, bundleIdentifier, bundleVersion, "", "");
+    assertEquals(parameters, equal);
+    assertEquals(parameters.hashCode(), equal.hashCode());
+    assertEquals(parameters, new Parameters(referer.replace(".htm", ".html"), title, bundleIdentifier,
+          bundleVersion, null, null)); //same IPA URL
+    assertFalse(parameters.equals(new Parameters(referer, title, bundleIdentifier, "2.0", null, null)));
+    assertFalse(parameters.equals(new Parameters(referer, title, bundleIdentifier, bundleVersion, "ipa", null)));
+    assertEquals(title, parameters.getMappings().get(OtaPlistGenerator.TITLE));
+  }
+
+  @Test
+  public void testOverriddenTemplateEscaped() throws IOException
+  {
+    File template = File.createTempFile("manifest", ".plist");
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(template), "UTF-8");
+      writer.write("<plist>#if($title)<string>$title</string>#end</plist>");
+      writer.close();
+
+      OtaPlistGenerator generator = OtaPlistGenerator.getInstance(template.getAbsolutePath());
+      Parameters parameters = new Parameters(referer, "Tom & Jerry's <App>", bundleIdentifier, bundleVersion, null,
+            null);
+      assertEquals("<plist><string>Tom &amp; Jerry&apos;s &lt;App&gt;</string></plist>",
+            generator.generate(parameters));
+      assertContains("<string>Tom &amp; Jerry&apos;s &lt;App&gt;</string>",
+            OtaPlistGenerator.getInstance().generate(parameters));
+    }
+    finally {
+      template.delete();
+    }
+  }
+
+  @Test
+  public void testParametersSubclass() throws IOException
+  {
+    File template = File.createTempFile("manifest", ".plist");
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(template), "UTF-8");
+      writer.write("<plist><string>$title</string><string>$channel</string></plist>");
+      writer.close();
+
+      Parameters parameters = new Parameters(referer, title, bundleIdentifier, bundleVersion, null, null) {
+        @Override
+        public Map<String, Object> getMappings()
+        {
+          Map<String, Object> mappings = super.getMappings();
+          mappings.put("channel", "beta");
+          return mappings;
+        }
+      };
+      assertEquals("<plist><string>" + title + "</string><string>beta</string></plist>", OtaPlistGenerator
+        .getInstance(template.getAbsolutePath()).generate(parameters));
+      assertFalse(parameters.equals(new Parameters(referer, title, bundleIdentifier, bundleVersion, null, null)));
+      assertFalse(new Parameters(referer, title, bundleIdentifier, bundleVersion, null, null).equals(parameters));
+    }
+    finally {
+      template.delete();
+    }
+  }
+
+  @Test(expected = BufferOverflowException.class)
+  public void testGenerateBufferTooSmall() throws IOException
+  {
+    OtaPlistGenerator.getInstance().generate(ByteBuffer.allocate(100),
+          new Parameters(referer, title, bundleIdentifier, bundleVersion, null, null));
+  }
+
 }
@@ -0,0 +1,80 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PlistManifestWriterTest
+{
+
+  private final static String ipaUrl = "http://hostname:8080/path/MyApp.ipa";
+  private final static String bundleIdentifier = "com.sap.xyz.MyApp";
+  private final static String bundleVersion = "1.0.2";
+
+  @Test
+  public void testSameResultAsTemplate() throws IOException
+  {
+    Map<String, Object> mappings = new HashMap<String, Object>();
+    mappings.put(OtaPlistGenerator.IPA_URL, ipaUrl);
+    mappings.put(OtaPlistGenerator.BUNDLE_IDENTIFIER, bundleIdentifier);
+    mappings.put(OtaPlistGenerator.BUNDLE_VERSION, bundleVersion);
+    mappings.put(OtaPlistGenerator.TITLE, "My\u00c4pp \u20ac");
+    StringWriter expected = new StringWriter();
+    new VelocityTemplateEngine().getTemplate(OtaPlistGenerator.DEFAULT_TEMPLATE).merge(mappings, expected);
+
+    StringWriter writer = new StringWriter();
+    PlistManifestWriter.write(writer, ipaUrl, bundleIdentifier, bundleVersion, "My\u00c4pp \u20ac");
+    assertEquals(expected.toString(), writer.toString());
+
+    byte[] bytes = PlistManifestWriter.toByteArray(ipaUrl, bundleIdentifier, bundleVersion, "My\u00c4pp \u20ac");
+    assertArrayEquals(expected.toString().getBytes("UTF-8"), bytes);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PlistManifestWriter.write(out, ipaUrl, bundleIdentifier, bundleVersion, "My\u00c4pp \u20ac");
+    assertArrayEquals(bytes, out.toByteArray());
+  }
+
+  @Test
+  public void testValuesAreEscaped() throws IOException
+  {
+    String manifest = new String(PlistManifestWriter.toByteArray(ipaUrl + "?a=1&b=2", bundleIdentifier,
+          bundleVersion, "<Tom & \"Jerry's\">"), "UTF-8");
+    TestUtils.assertContains("<string>" + ipaUrl + "?a=1&amp;b=2</string>", manifest);
+    TestUtils.assertContains("<string>&lt;Tom &amp; &quot;Jerry&apos;s&quot;&gt;</string>", manifest);
+  }
+
+  @Test
+  public void testMissingValuesAsReferences() throws IOException
+  {
+    String manifest = new String(PlistManifestWriter.toByteArray(ipaUrl, null, bundleVersion, null), "UTF-8");
+    TestUtils.assertContains("<string>$bundleIdentifier</string>", manifest);
+    TestUtils.assertContains("<string>$title</string>", manifest);
+  }
+
+}
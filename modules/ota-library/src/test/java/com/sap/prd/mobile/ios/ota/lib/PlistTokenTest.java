@@ -0,0 +1,96 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+
+import org.junit.Test;
+
+public class PlistTokenTest
+{
+
+  @Test
+  public void testRoundTrip()
+  {
+    assertRoundTrip(new PlistToken("http://hostname:8080/path/MyApp.htm", "MyApp", "com.sap.xyz.MyApp", "1.0.2",
+          "ipa", "ota"));
+    assertRoundTrip(new PlistToken("http://hostname/\u00e4\u20ac\ud83d\ude00", "", null, "1.0", null, "ota"));
+    assertRoundTrip(new PlistToken(OtaPlistGeneratorTest.long_referer, OtaPlistGeneratorTest.long_title,
+          OtaPlistGeneratorTest.long_identifier, OtaPlistGeneratorTest.long_version, null, null));
+    assertRoundTrip(new PlistToken(null, null, null, null, null, null));
+  }
+
+  @Test
+  public void testTrailingNullsOmitted()
+  {
+    assertEquals("", new PlistToken(null, null, null, null, null, null).toString());
+    String token = new PlistToken("r", "t", "b", "v", null, null).toString();
+    assertTrue(token.length() < new PlistToken("r", "t", "b", "v", "i", null).toString().length());
+    assertTrue(token.matches("[A-Za-z0-9_-]+"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTruncated()
+  {
+    String token = new PlistToken("http://hostname:8080/path/MyApp.htm", "MyApp", null, null, null, null)
+      .toString();
+    PlistToken.decode(token, 0, token.length() - 4);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTrailingData()
+  {
+    //seven empty values, version 1 has only six
+    String token = Base64UrlCodec.encodeBytes(new StringBuilder(), new byte[] { 1, 1, 1, 1, 1, 1, 1 }, 0, 7)
+      .toString();
+    PlistToken.decode(token, 0, token.length());
+  }
+
+  @Test
+  public void testCompactUrlIsShorter() throws IOException
+  {
+    URL compact = OtaPlistGenerator.generateCompactPlistRequestUrl("http://ota-server:8080/ota-service/PLIST",
+          OtaPlistGeneratorTest.long_referer, OtaPlistGeneratorTest.long_title,
+          OtaPlistGeneratorTest.long_identifier, OtaPlistGeneratorTest.long_version, "", null);
+    URL classic = OtaPlistGenerator.generatePlistRequestUrl("http://ota-server:8080/ota-service/PLIST",
+          OtaPlistGeneratorTest.long_referer, OtaPlistGeneratorTest.long_title,
+          OtaPlistGeneratorTest.long_identifier, OtaPlistGeneratorTest.long_version, "", null);
+    assertTrue(compact.toExternalForm().length() < classic.toExternalForm().length());
+
+    String prefix = "http://ota-server:8080/ota-service/PLIST/" + PlistToken.VERSION_1 + "/";
+    assertTrue(compact.toExternalForm().startsWith(prefix));
+    PlistToken token = PlistToken.decode(compact.toExternalForm(), prefix.length(), compact.toExternalForm()
+      .length());
+    assertEquals(OtaPlistGeneratorTest.long_title, token.getTitle());
+    assertNull(token.getIpaClassifier());
+  }
+
+  private static void assertRoundTrip(PlistToken token)
+  {
+    String encoded = "/" + token + "/";
+    assertEquals(token, PlistToken.decode(encoded, 1, encoded.length() - 1));
+  }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.junit.Test;
+
+public class PrecompiledTemplateEngineTest
+{
+
+  private final ITemplateEngine velocity = new VelocityTemplateEngine();
+  private final ITemplateEngine precompiled = new PrecompiledTemplateEngine(velocity);
+
+  @Test
+  public void testBundledTemplatesArePrecompiled()
+  {
+    assertTrue(precompiled.getTemplate("template.html") instanceof PrecompiledTemplate);
+    assertTrue(precompiled.getTemplate("buildTemplate.html") instanceof PrecompiledTemplate);
+    assertTrue(precompiled.getTemplate("template.plist") instanceof PrecompiledTemplate);
+  }
+
+  @Test
+  public void testSameResultAsVelocity() throws IOException
+  {
+    Map<String, Object> mappings = new HashMap<String, Object>();
+    mappings.put("title", "MyApp");
+    mappings.put("bundleIdentifier", "com.sap.xyz.MyApp");
+    mappings.put("bundleVersion", "1.0.2");
+    mappings.put("ipaUrl", "http://hostname:8080/path/MyApp.ipa");
+    mappings.put("plistUrl", "http://ota-server:8080/OTAService/PLIST/abc");
+    mappings.put("htmlUrl", "http://ota-server:8080/OTAService/HTML?title=MyApp");
+    mappings.put("htmlServiceUrl", new URL("http://ota-server:8080/OTAService/HTML"));
+    mappings.put("ipaClassifier", null); //unresolved references are written as is
+    assertSameResult("template.html", mappings);
+    assertSameResult("buildTemplate.html", mappings);
+    assertSameResult("template.plist", mappings);
+    assertSameResult("alternativeTemplate.html", mappings);
+    assertSameResult(new File("./src/test/resources/alternativeBuildTemplate.html").getAbsolutePath(), mappings);
+  }
+
+  @Test
+  public void testFallbackForDirectives() throws IOException
+  {
+    File file = writeTemplate("#if($title)Install $title#end");
+    ITemplate template = precompiled.getTemplate(file.getAbsolutePath());
+    assertFalse(template instanceof PrecompiledTemplate);
+    assertEquals(file.getName(), template.getName());
+    Map<String, Object> mappings = new HashMap<String, Object>();
+    mappings.put("title", "MyApp");
+    assertEquals("Install MyApp", merge(template, mappings));
+  }
+
+  @Test(expected = ResourceNotFoundException.class)
+  public void testMissingTemplate()
+  {
+    precompiled.getTemplate("doesnotexist.htm");
+  }
+
+  @Test
+  public void testCompile() throws IOException
+  {
+    Map<String, Object> mappings = new HashMap<String, Object>();
+    mappings.put("a", "A");
+    mappings.put("b-c", "BC");
+    assertEquals("xAy", merge(PrecompiledTemplate.compile("t", "x${a}y"), mappings));
+    assertEquals("A.BC.", merge(PrecompiledTemplate.compile("t", "$a.$b-c."), mappings));
+    assertEquals("$1 $ $unknown #e6e6e6 #L%", merge(PrecompiledTemplate.compile("t", "$1 $ $unknown #e6e6e6 #L%"),
+          mappings));
+    assertNotNull(PrecompiledTemplate.compile("t", "no references at all"));
+    assertNull(PrecompiledTemplate.compile("t", "$!a"));
+    assertNull(PrecompiledTemplate.compile("t", "$a.length()"));
+    assertNull(PrecompiledTemplate.compile("t", "${a.b}"));
+    assertNull(PrecompiledTemplate.compile("t", "$a[0]"));
+    assertNull(PrecompiledTemplate.compile("t", "\\$a"));
+    assertNull(PrecompiledTemplate.compile("t", "## comment"));
+    assertNull(PrecompiledTemplate.compile("t", "#* comment *#"));
+    assertNull(PrecompiledTemplate.compile("t", "#set($a = 1)"));
+    assertNull(PrecompiledTemplate.compile("t", "#{else}"));
+    assertNull(PrecompiledTemplate.compile("t", "#myMacro ()"));
+  }
+
+  @Test
+  public void testSpecialize() throws IOException
+  {
+    PrecompiledTemplate template = PrecompiledTemplate.compile("t", "<$config|$title|$missing|$url>");
+    Map<String, Object> constants = new HashMap<String, Object>();
+    constants.put("config", "C");
+    constants.put("title", "Ignored");
+    PrecompiledTemplate specialized = template.specialize(constants,
+          new HashSet<String>(Arrays.asList("title", "url")));
+    assertEquals(4, template.getSlotCount());
+    assertEquals(2, specialized.getSlotCount());
+    assertTrue(specialized.getStaticRatio() > template.getStaticRatio());
+
+    Map<String, Object> mappings = new HashMap<String, Object>();
+    mappings.put("title", "MyApp");
+    assertEquals("<C|MyApp|$missing|$url>", merge(specialized, mappings));
+  }
+
+  private void assertSameResult(String templateName, Map<String, Object> mappings) throws IOException
+  {
+    ITemplate template = precompiled.getTemplate(templateName);
+    assertTrue(templateName + " not precompiled", template instanceof PrecompiledTemplate);
+    ITemplate velocityTemplate = velocity.getTemplate(templateName);
+    assertEquals(velocityTemplate.getName(), template.getName());
+    assertEquals(merge(velocityTemplate, mappings), merge(template, mappings));
+  }
+
+  private static String merge(ITemplate template, Map<String, Object> mappings) throws IOException
+  {
+    StringWriter writer = new StringWriter();
+    template.merge(mappings, writer);
+    return writer.toString();
+  }
+
+  private static File writeTemplate(String content) throws IOException
+  {
+    File file = File.createTempFile("template", ".html");
+    file.deleteOnExit();
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      writer.write(content);
+    }
+    finally {
+      writer.close();
+    }
+    return file;
+  }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Test;
+
+public class RenderCacheTest
+{
+
+  @Test
+  public void testGetPut()
+  {
+    RenderCache<String> cache = new RenderCache<String>(10000);
+    byte[] value = new byte[100];
+    assertNull(cache.get("a"));
+    cache.put("a", value);
+    assertSame(value, cache.get("a"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getSize());
+    assertEquals(100, cache.getWeightedSize());
+
+    byte[] replaced = new byte[200];
+    cache.put("a", replaced);
+    assertSame(replaced, cache.get("a"));
+    assertEquals(1, cache.getSize());
+    assertEquals(200, cache.getWeightedSize());
+
+    cache.clear();
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.getWeightedSize());
+  }
+
+  @Test
+  public void testBoundInBytes()
+  {
+    RenderCache<Integer> cache = new RenderCache<Integer>(10000);
+    for (int i = 0; i < 100; i++) {
+      cache.put(i, new byte[1000]);
+      assertTrue(cache.getWeightedSize() <= 10000);
+    }
+    assertEquals(10, cache.getSize());
+    assertEquals(90, cache.getEvictionCount());
+  }
+
+  @Test
+  public void testTooLarge()
+  {
+    RenderCache<String> cache = new RenderCache<String>(1000);
+    cache.put("a", new byte[1001]);
+    assertNull(cache.get("a"));
+    assertEquals(1, cache.getRejectionCount());
+    assertEquals(0, cache.getWeightedSize());
+  }
+
+  @Test
+  public void testScanDoesNotEvictHotEntries()
+  {
+    RenderCache<String> cache = new RenderCache<String>(100 * 1024);
+    for (int i = 0; i < 50; i++) {
+      cache.put("hot" + i, new byte[1024]);
+    }
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 50; i++) {
+        assertNotNull(cache.get("hot" + i));
+      }
+    }
+    for (int i = 0; i < 5000; i++) {
+      String key = "scan" + i;
+      if (cache.get(key) == null) {
+        cache.put(key, new byte[1024]);
+      }
+      cache.get("hot" + (i % 50)); //the hot entries are still requested during the scan
+    }
+    for (int i = 0; i < 50; i++) {
+      assertNotNull("hot" + i + " evicted by scan", cache.get("hot" + i));
+    }
+    assertTrue(cache.getWeightedSize() <= 100 * 1024);
+  }
+
+  /**
+   * Lookups of several threads at the same time contend for the lock, none of their accesses is
+   * lost for the frequencies.
+   */
+  @Test
+  public void testConcurrentAccessesAreCounted() throws Exception
+  {
+    final RenderCache<String> cache = new RenderCache<String>(10000);
+    cache.put("a", new byte[100]);
+    final int threads = 4;
+    final int lookups = 3; //4 x 3 stays below the maximum count of 15
+    final CyclicBarrier start = new CyclicBarrier(threads);
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread() {
+        @Override
+        public void run()
+        {
+          try {
+            start.await();
+          }
+          catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+          for (int j = 0; j < lookups; j++) {
+            cache.get("a");
+          }
+        }
+      };
+      workers[i].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    assertEquals(threads * lookups, cache.frequency("a"));
+
+    for (int i = 0; i < 10 * RenderCache.READ_BUFFER_SIZE; i++) { //more than the buffer holds
+      cache.get("b" + i);
+    }
+    assertEquals(1, cache.frequency("b0"));
+    assertEquals(1, cache.frequency("b" + (10 * RenderCache.READ_BUFFER_SIZE - 1)));
+  }
+
+  /**
+   * A put moves several entries out of the window at once. Each of them is compared with the
+   * oldest main entry, the frequently requested one survives.
+   */
+  @Test
+  public void testEveryEntryLeavingTheWindowIsCompared()
+  {
+    RenderCache<String> cache = new RenderCache<String>(1000); //window of 10 bytes
+    for (int i = 0; i < 5; i++) {
+      cache.get("hot"); //requested before it is rendered
+    }
+    cache.put("hot", new byte[985]);
+    cache.put("c1", new byte[3]);
+    cache.put("c2", new byte[3]);
+    cache.put("c3", new byte[3]);
+    cache.put("large", new byte[10]); //moves c1, c2 and c3, 4 bytes too many
+
+    assertNotNull(cache.get("hot"));
+    assertNull(cache.get("c1"));
+    assertNull(cache.get("c2"));
+    assertNotNull(cache.get("c3"));
+    assertNotNull(cache.get("large"));
+    assertEquals(998, cache.getWeightedSize());
+  }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RenderCoalescerTest
+{
+
+  @Test(timeout = 10000)
+  public void testConcurrentRendersCoalesced() throws Exception
+  {
+    final RenderCoalescer<String> coalescer = new RenderCoalescer<String>();
+    final AtomicInteger renders = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final byte[] document = "document".getBytes("UTF-8");
+    final Callable<byte[]> renderer = new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception
+      {
+        renders.incrementAndGet();
+        started.countDown();
+        release.await();
+        return document;
+      }
+    };
+
+    int threads = 4;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+      results.add(executor.submit(render(coalescer, "key", renderer)));
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      for (int i = 1; i < threads; i++) {
+        results.add(executor.submit(render(coalescer, "key", renderer)));
+      }
+      while (coalescer.getCoalescedCount() < threads - 1) {
+        Thread.sleep(10);
+      }
+      release.countDown();
+      for (Future<byte[]> result : results) {
+        assertSame(document, result.get());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertEquals(1, renders.get());
+    assertEquals(0, coalescer.getRunningCount());
+
+    coalescer.render("key", renderer); //nothing is kept after the render
+    assertEquals(2, renders.get());
+  }
+
+  @Test
+  public void testFailedRender() throws IOException
+  {
+    RenderCoalescer<String> coalescer = new RenderCoalescer<String>();
+    try {
+      coalescer.render("key", new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception
+        {
+          throw new IOException("failed");
+        }
+      });
+      fail("No exception");
+    }
+    catch (IOException e) {
+      assertEquals("failed", e.getMessage());
+    }
+    assertEquals(0, coalescer.getRunningCount());
+  }
+
+  private static Callable<byte[]> render(final RenderCoalescer<String> coalescer, final String key,
+        final Callable<byte[]> renderer)
+  {
+    return new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception
+      {
+        return coalescer.render(key, renderer);
+      }
+    };
+  }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShortLinkStoreTest
+{
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    directory = File.createTempFile("shortlinks", "");
+    directory.delete();
+  }
+
+  @After
+  public void tearDown()
+  {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testPutAndGet() throws IOException
+  {
+    ShortLinkStore store = new ShortLinkStore(directory);
+    try {
+      PlistToken token = new PlistToken("http://hostname:8080/path/MyApp.htm", "MyApp", "com.sap.xyz.MyApp", "1.0",
+            null, "ota");
+      String id = store.put(token);
+      assertEquals(ShortLinkStore.ID_LENGTH, id.length());
+      assertTrue(id.matches("[A-Za-z0-9_-]+"));
+      assertEquals(token, store.get(id));
+      assertEquals(id, store.put(new PlistToken("http://hostname:8080/path/MyApp.htm", "MyApp",
+            "com.sap.xyz.MyApp", "1.0", null, "ota"))); //same token, same ID
+      assertEquals(1, store.size());
+
+      String other = store.put(new PlistToken("http://hostname:8080/path/MyApp.htm", "Other", null, null, null,
+            null));
+      assertFalse(id.equals(other));
+      assertEquals("Other", store.get(other).getTitle());
+      assertEquals(2, store.size());
+
+      assertNull(store.get("AAAAAAAA"));
+      assertNull(store.get("short"));
+      assertNull(store.get("!!!!!!!!"));
+      assertNull(store.get(null));
+    }
+    finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public void testQuota() throws IOException
+  {
+    ShortLinkStore store = new ShortLinkStore(directory, 1024 * 1024, 2);
+    try {
+      String id = store.put(token(1));
+      store.put(token(2));
+      try {
+        store.put(token(3));
+        fail();
+      }
+      catch (ShortLinkStore.FullException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("2 links"));
+      }
+      assertEquals(id, store.put(token(1))); //stored before
+      assertEquals(2, store.size());
+    }
+    finally {
+      store.close();
+    }
+
+    store = new ShortLinkStore(directory, 1024, 100); //2 links and the header take less than 1 KB
+    int links = 2;
+    try {
+      for (;; links++) {
+        store.put(token(links + 1));
+      }
+    }
+    catch (ShortLinkStore.FullException e) {
+      assertEquals(links, store.size());
+      assertTrue(String.valueOf(links), links > 2 && links < 100);
+    }
+    finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public void testTokenTooLarge() throws IOException
+  {
+    StringBuilder title = new StringBuilder();
+    while (title.length() <= ShortLinkStore.MAX_TOKEN_SIZE) {
+      title.append("MyApp");
+    }
+    ShortLinkStore store = new ShortLinkStore(directory);
+    try {
+      store.put(new PlistToken("http://hostname:8080/path/MyApp.htm", title.toString(), null, null, null, null));
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      assertEquals(0, store.size());
+    }
+    finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public void testGrowAndReopen() throws IOException
+  {
+    List<String> ids = new ArrayList<String>();
+    ShortLinkStore store = new ShortLinkStore(directory);
+    try {
+      for (int i = 0; i < 5000; i++) {
+        ids.add(store.put(token(i)));
+      }
+    }
+    finally {
+      store.close();
+    }
+    long indexModified = new File(directory, ShortLinkStore.INDEX_FILE).lastModified();
+
+    store = new ShortLinkStore(directory);
+    try {
+      assertEquals(5000, store.size());
+      for (int i = 0; i < ids.size(); i++) {
+        assertEquals(token(i), store.get(ids.get(i)));
+      }
+      assertEquals(ids.get(42), store.put(token(42)));
+    }
+    finally {
+      store.close();
+    }
+    assertEquals(indexModified, new File(directory, ShortLinkStore.INDEX_FILE).lastModified());
+  }
+
+  @Test
+  public void testLostIndexIsRebuilt() throws IOException
+  {
+    ShortLinkStore store = new ShortLinkStore(directory);
+    String id;
+    try {
+      id = store.put(token(1));
+      store.put(token(2));
+    }
+    finally {
+      store.close();
+    }
+    assertTrue(new File(directory, ShortLinkStore.INDEX_FILE).delete());
+
+    store = new ShortLinkStore(directory);
+    try {
+      assertEquals(2, store.size());
+      assertEquals(token(1), store.get(id));
+    }
+    finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public void testIdFormat()
+  {
+    long id = ShortLinkStore.id(new byte[] { 1, 2, 3 }, 0);
+    assertEquals(id, ShortLinkStore.parse(ShortLinkStore.format(id)));
+    assertFalse(id == ShortLinkStore.id(new byte[] { 1, 2, 3 }, 1));
+    assertEquals(0, ShortLinkStore.parse("AAAAAAAA"));
+    assertEquals((1L << 48) - 1, ShortLinkStore.parse("________"));
+  }
+
+  private static PlistToken token(int i)
+  {
+    return new PlistToken("http://hostname:8080/path/MyApp" + i + ".htm", "MyApp " + i, "com.sap.xyz.MyApp",
+          "1." + i, null, null);
+  }
+
+}
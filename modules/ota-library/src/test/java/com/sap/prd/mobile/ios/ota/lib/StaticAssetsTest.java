@@ -0,0 +1,125 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.StaticAssets.Asset;
+
+public class StaticAssetsTest
+{
+
+  @Test
+  public void testFingerprintedNames()
+  {
+    StaticAssets assets = StaticAssets.getInstance();
+    Asset css = assets.get("ota.css");
+    assertNotNull(css);
+    assertTrue(css.getFingerprintedName(), css.getFingerprintedName().matches("ota\\.[0-9a-f]{16}\\.css"));
+    assertSame(css, assets.get(css.getFingerprintedName()));
+    assertEquals("text/css;charset=UTF-8", css.getContentType());
+    assertEquals("\"" + css.getFingerprintedName().substring(4, 20) + "\"", css.getETag());
+    assertFalse(css.getETag().equals(css.getGzipETag()));
+
+    Asset title = assets.get("title.png");
+    assertEquals("image/png", title.getContentType());
+    assertNull(title.getGzipContent()); //already compressed
+    assertFalse(title.getFingerprintedName().equals(assets.get("topbar.png").getFingerprintedName()));
+
+    assertNull(assets.get("unknown.css"));
+    assertNull(assets.get(null));
+  }
+
+  @Test
+  public void testGzipContent() throws IOException
+  {
+    Asset css = StaticAssets.getInstance().get("ota.css");
+    assertNotNull(css.getGzipContent());
+    assertTrue(css.getGzipContent().length < css.getContent().length);
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(css.getGzipContent()));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int b; (b = in.read()) >= 0;) {
+      out.write(b);
+    }
+    assertArrayEquals(css.getContent(), out.toByteArray());
+  }
+
+  @Test
+  public void testUrls()
+  {
+    StaticAssets assets = StaticAssets.getInstance();
+    String fingerprinted = assets.get("ota.css").getFingerprintedName();
+    Map<String, String> relative = assets.getUrls(null);
+    assertEquals("assets/" + fingerprinted, relative.get("otaCssUrl"));
+    assertEquals(4, relative.size());
+    assertSame(relative, assets.getUrls(null));
+    assertEquals("http://host/ota-service/assets/" + fingerprinted,
+          assets.getUrls("http://host/ota-service").get("otaCssUrl"));
+    assertEquals("/assets/" + assets.get("poweredByProduction.png").getFingerprintedName(),
+          assets.getUrls("").get("poweredByProductionPngUrl"));
+  }
+
+  @Test
+  public void testInlineUrls()
+  {
+    StaticAssets assets = StaticAssets.getInstance();
+    Map<String, String> inline = assets.getInlineUrls();
+    assertEquals(4, inline.size());
+    for (String name : new String[] { "ota.css", "title.png", "topbar.png", "poweredByProduction.png" }) {
+      Asset asset = assets.get(name);
+      String url = inline.get(StaticAssets.getVariableName(name));
+      String prefix = "data:" + asset.getContentType() + ";base64,";
+      assertTrue(url, url.startsWith(prefix));
+      assertTrue(url, url.substring(prefix.length()).matches("[A-Za-z0-9+/]*={0,2}"));
+      assertEquals(0, (url.length() - prefix.length()) % 4);
+      assertArrayEquals(asset.getContent(), Base64UrlCodec.decodeBytes(url, prefix.length(), url.length()));
+    }
+  }
+
+  @Test
+  public void testVariableName()
+  {
+    assertEquals("otaCssUrl", StaticAssets.getVariableName("ota.css"));
+    assertEquals("poweredByProductionPngUrl", StaticAssets.getVariableName("poweredByProduction.png"));
+    assertEquals("myIconSmallGifUrl", StaticAssets.getVariableName("my-icon_small.gif"));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testMissingAsset()
+  {
+    new StaticAssets("doesnotexist.css");
+  }
+
+}
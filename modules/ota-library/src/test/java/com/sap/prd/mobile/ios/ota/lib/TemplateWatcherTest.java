@@ -0,0 +1,196 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static com.sap.prd.mobile.ios.ota.lib.TestUtils.assertContains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TemplateWatcherTest
+{
+
+  private File directory;
+  private TemplateWatcher watcher;
+
+  @Before
+  public void before() throws IOException
+  {
+    directory = File.createTempFile("templates", "");
+    directory.delete();
+    directory.mkdir();
+    watcher = new TemplateWatcher(100);
+  }
+
+  @After
+  public void after()
+  {
+    watcher.close();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test(timeout = 20000)
+  public void testModificationsAreDebounced() throws Exception
+  {
+    File template = new File(directory, "template.html");
+    write(template, "version 0");
+    final AtomicInteger notifications = new AtomicInteger();
+    final CountDownLatch notified = new CountDownLatch(1);
+    watcher.watch(template, new Runnable() {
+      @Override
+      public void run()
+      {
+        notifications.incrementAndGet();
+        notified.countDown();
+      }
+    });
+
+    for (int i = 1; i <= 5; i++) {
+      write(template, "version " + i);
+    }
+    write(new File(directory, "other.html"), "not watched");
+
+    assertTrue("Listener has not been notified", notified.await(15, TimeUnit.SECONDS));
+    Thread.sleep(500);
+    assertEquals(1, notifications.get());
+  }
+
+  @Test
+  public void testUnwatch() throws Exception
+  {
+    File template = new File(directory, "template.html");
+    write(template, "version 0");
+    final AtomicInteger notifications = new AtomicInteger();
+    Runnable listener = new Runnable() {
+      @Override
+      public void run()
+      {
+        notifications.incrementAndGet();
+      }
+    };
+    watcher.watch(template, listener);
+    watcher.unwatch(template, listener);
+
+    write(template, "version 1");
+    Thread.sleep(500);
+    assertEquals(0, notifications.get());
+  }
+
+  @Test
+  public void testReloadSwapsTemplate() throws Exception
+  {
+    File template = new File(directory, "reload.html");
+    write(template, "<h1>$title</h1>");
+    OtaHtmlGenerator generator = OtaHtmlGenerator.getInstance(template.getAbsolutePath());
+    assertContains("<h1>MyApp</h1>", generate(generator));
+    long version = generator.getTemplateVersion();
+    String fingerprint = generator.getTemplateFingerprint();
+
+    write(template, "<h2>$title</h2>");
+    assertTrue(generator.reload());
+    assertEquals(version + 1, generator.getTemplateVersion());
+    assertFalse(fingerprint.equals(generator.getTemplateFingerprint()));
+    assertContains("<h2>MyApp</h2>", generate(generator));
+  }
+
+  @Test
+  public void testFingerprintFollowsContent() throws Exception
+  {
+    File first = new File(directory, "first.html");
+    File second = new File(directory, "second.html");
+    write(first, "<h4>$title</h4>");
+    write(second, "<h4>$title</h4>");
+    OtaHtmlGenerator generator = OtaHtmlGenerator.getInstance(first.getAbsolutePath());
+    String fingerprint = generator.getTemplateFingerprint();
+    assertTrue(fingerprint.matches("[0-9a-f]{16}"));
+    assertEquals(fingerprint, OtaHtmlGenerator.getInstance(second.getAbsolutePath()).getTemplateFingerprint());
+
+    assertTrue(generator.reload());
+    assertEquals(fingerprint, generator.getTemplateFingerprint()); //reloaded, but not changed
+
+    assertFalse(fingerprint.equals(OtaPlistGenerator.getInstance().getTemplateFingerprint()));
+  }
+
+  @Test
+  public void testBrokenTemplateKeepsPreviousVersion() throws Exception
+  {
+    File template = new File(directory, "broken.html");
+    write(template, "<h1>$title</h1>");
+    OtaHtmlGenerator generator = OtaHtmlGenerator.getInstance(template.getAbsolutePath());
+    long version = generator.getTemplateVersion();
+    String fingerprint = generator.getTemplateFingerprint();
+
+    write(template, "#if($title");
+    assertFalse(generator.reload());
+    assertEquals(version, generator.getTemplateVersion());
+    assertEquals(fingerprint, generator.getTemplateFingerprint());
+    assertContains("<h1>MyApp</h1>", generate(generator));
+  }
+
+  @Test(timeout = 20000)
+  public void testModifiedTemplateIsReloaded() throws Exception
+  {
+    File template = new File(directory, "watched.html");
+    write(template, "<h1>$title</h1>");
+    OtaHtmlGenerator generator = OtaHtmlGenerator.getInstance(template.getAbsolutePath());
+    long version = generator.getTemplateVersion();
+
+    write(template, "<h3>$title</h3>");
+    while (generator.getTemplateVersion() == version) {
+      Thread.sleep(50);
+    }
+    assertContains("<h3>MyApp</h3>", generate(generator));
+  }
+
+  private static String generate(OtaHtmlGenerator generator) throws IOException
+  {
+    return generator.generate(new OtaHtmlGenerator.Parameters("http://hostname:8080/path/MyApp.htm", "MyApp",
+          "com.sap.xyz.MyApp", new URL("http://ota-server:8080/OTAService/PLIST"), null, null, null));
+  }
+
+  private static void write(File file, String content) throws IOException
+  {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      writer.write(content);
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+}
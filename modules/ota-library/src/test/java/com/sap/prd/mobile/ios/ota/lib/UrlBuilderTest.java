@@ -0,0 +1,167 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Random;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+public class UrlBuilderTest
+{
+
+  private final static String htmlServiceUrl = "http://ota-server:8080/OTAService/HTML";
+  private final static String plistServiceUrl = "http://ota-server:8080/OTAService/PLIST";
+
+  @Test
+  public void testQuery()
+  {
+    assertEquals("http://host/a?x=1&y=a+b%26c", new UrlBuilder("http://host/a").query("x", "1").query("y", "a b&c")
+      .toString());
+    assertEquals("http://host/a?p=0&x=null", new UrlBuilder("http://host/a?p=0").query("x", null).toString());
+    assertEquals("http://host/a?x=1", new UrlBuilder("http://host/a").query("x", "1").queryIfNotEmpty("y", "")
+      .queryIfNotEmpty("z", null).toString());
+  }
+
+  @Test
+  public void testPath() throws MalformedURLException
+  {
+    assertEquals("http://host/a/b", UrlBuilder.forPrefix(" http://host/a// ", 0).path("b").toString());
+    assertEquals("http://host/a/b", UrlBuilder.forPrefix("http://host/a", 0).path("b").toString());
+    assertEquals(new URL("http://host/a/b"), UrlBuilder.forPrefix("http://host/a/", 0).path("b").toUrl());
+    assertEquals("http://host/a/" + Base64UrlCodec.encode("title=MyApp"),
+          new UrlBuilder("http://host/a").encodedSegment("title", "MyApp").toString());
+  }
+
+  @Test
+  public void testSameEncodingAsUrlEncoder() throws UnsupportedEncodingException
+  {
+    for (String string : new String[] { "", "abcXYZ019.-*_", " +&=?/%~!'()", "\u00e4\u00f6\u00fc\u00df",
+        "\u20ac\ud83d\ude00", "\ud83d", "x\ude00y", "\u0000\u007f\u0080\u07ff\u0800\uffff" }) {
+      assertEquals(URLEncoder.encode(string, "UTF-8"), LibUtils.urlEncode(string));
+    }
+    Random random = new Random(4711);
+    for (int i = 0; i < 1000; i++) {
+      char[] chars = new char[random.nextInt(20)];
+      for (int j = 0; j < chars.length; j++) {
+        chars[j] = (char) (random.nextBoolean() ? random.nextInt(256) : random.nextInt(0x10000));
+      }
+      String string = new String(chars);
+      assertEquals(URLEncoder.encode(string, "UTF-8"), LibUtils.urlEncode(string));
+    }
+  }
+
+  @Test
+  public void testSameUrlsAsBefore() throws MalformedURLException
+  {
+    assertEquals(legacyHtmlServiceUrl(new URL(htmlServiceUrl), "My App & Co", "com.sap.MyApp", "1.0", null, "OTA"),
+          OtaHtmlGenerator.generateHtmlServiceUrl(new URL(htmlServiceUrl), "My App & Co", "com.sap.MyApp", "1.0",
+                null, "OTA"));
+    assertEquals(legacyHtmlServiceUrl(new URL(htmlServiceUrl), null, "com.sap.MyApp", "1.0", "ipa", ""),
+          OtaHtmlGenerator.generateHtmlServiceUrl(new URL(htmlServiceUrl), null, "com.sap.MyApp", "1.0", "ipa", ""));
+    assertEquals(legacyBuildUrl(" http://host/a// ", "b/c"), LibUtils.buildUrl(" http://host/a// ", "b/c"));
+  }
+
+  /**
+   * Prints the bytes allocated per composed URL with the former <code>String.format</code> based
+   * implementation and with {@link UrlBuilder}.
+   */
+  @Test
+  public void testAllocationPerUrl() throws MalformedURLException
+  {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)
+          || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+      return;
+    }
+    com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+    long id = Thread.currentThread().getId();
+    URL serviceUrl = new URL(htmlServiceUrl);
+    int iterations = 20000;
+    for (int round = 0; round < 2; round++) { //the first round warms up
+      long checksum = 0;
+      long start = allocation.getThreadAllocatedBytes(id);
+      for (int i = 0; i < iterations; i++) {
+        checksum += legacyHtmlServiceUrl(serviceUrl, "MyApp", "com.sap.MyApp", "1.0", null, "OTA").toExternalForm()
+          .length();
+        checksum += legacyBuildUrl(plistServiceUrl, "abc").toExternalForm().length();
+      }
+      long legacy = allocation.getThreadAllocatedBytes(id) - start;
+      start = allocation.getThreadAllocatedBytes(id);
+      for (int i = 0; i < iterations; i++) {
+        checksum -= OtaHtmlGenerator.htmlServiceUrl(htmlServiceUrl, "MyApp", "com.sap.MyApp", "1.0", null, "OTA")
+          .length();
+        checksum -= UrlBuilder.forPrefix(plistServiceUrl, 64).path("abc").toString().length();
+      }
+      long builder = allocation.getThreadAllocatedBytes(id) - start;
+      assertEquals(0, checksum);
+      if (round > 0) {
+        System.out.println(String.format("bytes per URL: String.format %d, UrlBuilder %d", legacy
+              / (2 * iterations), builder / (2 * iterations)));
+      }
+    }
+  }
+
+  private static URL legacyHtmlServiceUrl(URL htmlServiceUrl, String title, String bundleIdentifier,
+        String bundleVersion, String ipaClassifier, String otaClassifier) throws MalformedURLException
+  {
+    return new URL(String.format("%s?%s=%s&%s=%s&%s=%s%s%s",
+          htmlServiceUrl.toExternalForm(),
+          "title", legacyUrlEncode(title),
+          "bundleIdentifier", legacyUrlEncode(bundleIdentifier),
+          "bundleVersion", legacyUrlEncode(bundleVersion),
+          (StringUtils.isEmpty(ipaClassifier) ? "" :
+                String.format("&%s=%s", "ipaClassifier", legacyUrlEncode(ipaClassifier))),
+          (StringUtils.isEmpty(otaClassifier) ? "" :
+                String.format("&%s=%s", "otaClassifier", legacyUrlEncode(otaClassifier)))
+      ));
+  }
+
+  private static URL legacyBuildUrl(String urlPrefix, String urlSuffix) throws MalformedURLException
+  {
+    String urlPrefixFixed = urlPrefix.trim();
+    while (urlPrefixFixed.endsWith("/")) {
+      urlPrefixFixed = urlPrefixFixed.substring(0, urlPrefixFixed.length() - 1);
+    }
+    return new URL(urlPrefixFixed + "/" + urlSuffix);
+  }
+
+  private static String legacyUrlEncode(String string)
+  {
+    if (string == null) {
+      return null;
+    }
+    try {
+      return URLEncoder.encode(string, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static com.sap.prd.mobile.ios.ota.lib.TestUtils.assertContains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class VelocityBaseConcurrencyTest
+{
+
+  private final static String referer = "http://hostname:8080/path/MyApp.htm";
+  private final static String checkIpaURL = "http://hostname:8080/path/MyApp.ipa";
+  private final static String bundleIdentifier = "com.sap.xyz.MyApp";
+  private final static String bundleVersion = "1.0.2";
+  private final static String plistServiceUrl = "http://ota-server:8080/OTAService/PLIST";
+
+  /**
+   * Overrides the bundled manifest, which is written without Velocity, so the renders merge a
+   * Velocity template.
+   */
+  private static File plistTemplate;
+
+  @BeforeClass
+  public static void setUp() throws IOException
+  {
+    plistTemplate = File.createTempFile("manifest", ".plist");
+    Writer writer = new OutputStreamWriter(new FileOutputStream(plistTemplate), "UTF-8");
+    writer.write("<plist><dict><string>$title</string><string>$bundleIdentifier</string>"
+          + "<string>$bundleVersion</string><string>$ipaUrl</string></dict></plist>");
+    writer.close();
+  }
+
+  @AfterClass
+  public static void tearDown()
+  {
+    plistTemplate.delete();
+  }
+
+  private static OtaPlistGenerator getPlistGenerator()
+  {
+    return OtaPlistGenerator.getInstance(plistTemplate.getAbsolutePath());
+  }
+
+  /**
+   * A render which is stuck while writing its output must not prevent other threads from rendering
+   * with the same generator.
+   */
+  @Test(timeout = 10000)
+  public void testBlockedRenderDoesNotBlockOthers() throws Exception
+  {
+    final OtaPlistGenerator generator = getPlistGenerator();
+    final CountDownLatch blockedInMerge = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    Thread blocked = new Thread(new Runnable() {
+      @Override
+      public void run()
+      {
+        try {
+          PrintWriter writer = new PrintWriter(new BlockingWriter(blockedInMerge, release));
+          generator.generate(writer, new OtaPlistGenerator.Parameters(referer, "Blocked", bundleIdentifier,
+                bundleVersion, null, null));
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    blocked.start();
+    try {
+      assertTrue("Blocking render did not start", blockedInMerge.await(5, TimeUnit.SECONDS));
+
+      String generated = generator.generate(new OtaPlistGenerator.Parameters(referer, "Concurrent",
+            bundleIdentifier, bundleVersion, null, null));
+      assertContains("<string>Concurrent</string>", generated);
+      assertContains("<string>" + checkIpaURL + "</string>", generated);
+    }
+    finally {
+      release.countDown();
+      blocked.join();
+    }
+  }
+
+  /**
+   * Renders PLIST and HTML documents with an increasing number of threads. Each result is checked
+   * for cross talk between the threads, the throughput per thread count is printed. With more than
+   * one core the most threads have to beat a single thread, the best of three runs counts.
+   */
+  @Test
+  public void testThroughputWithIncreasingThreads() throws Exception
+  {
+    int cores = Runtime.getRuntime().availableProcessors();
+    int maxThreads = Math.max(2, Math.min(8, cores));
+    render(maxThreads, 200); //warm up
+    double single = 0;
+    double most = 0;
+    int mostThreads = 1;
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      double throughput = 0;
+      for (int run = 0; run < 3; run++) {
+        throughput = Math.max(throughput, measure(threads, 500));
+      }
+      System.out.println(String.format("%d thread(s): %.0f renders/s", threads, throughput));
+      if (threads == 1) {
+        single = throughput;
+      }
+      most = throughput;
+      mostThreads = threads;
+    }
+    if (cores > 1) {
+      assertTrue(String.format("%.0f renders/s with %d threads, %.0f with one", most, mostThreads, single),
+            most > single);
+    }
+  }
+
+  /**
+   * @return the renders per second
+   */
+  private double measure(int threads, int rendersPerThread) throws Exception
+  {
+    long start = System.nanoTime();
+    render(threads, rendersPerThread);
+    long duration = System.nanoTime() - start;
+    return threads * rendersPerThread * 2 / (duration / 1e9);
+  }
+
+  private void render(int threads, final int rendersPerThread) throws Exception
+  {
+    final URL plistUrl = OtaPlistGenerator.generatePlistRequestUrl(plistServiceUrl, referer, "MyApp",
+          bundleIdentifier, bundleVersion, null, null);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      for (int i = 0; i < threads; i++) {
+        final String title = "App" + i;
+        results.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception
+          {
+            for (int j = 0; j < rendersPerThread; j++) {
+              String plist = getPlistGenerator().generate(
+                    new OtaPlistGenerator.Parameters(referer, title, bundleIdentifier, bundleVersion, null, null));
+              assertContains("<string>" + title + "</string>", plist);
+              String html = OtaHtmlGenerator.getInstance().generate(
+                    new OtaHtmlGenerator.Parameters(referer, title, bundleIdentifier, plistUrl, null, null, null));
+              assertContains("Install App: " + title + "</h2>", html);
+            }
+            return rendersPerThread;
+          }
+        }));
+      }
+      for (Future<Integer> result : results) {
+        assertEquals(Integer.valueOf(rendersPerThread), result.get());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  private static class BlockingWriter extends Writer
+  {
+    private final CountDownLatch entered;
+    private final CountDownLatch release;
+
+    BlockingWriter(CountDownLatch entered, CountDownLatch release)
+    {
+      this.entered = entered;
+      this.release = release;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+      entered.countDown();
+      try {
+        release.await();
+      }
+      catch (InterruptedException e) {
+        throw new IOException(e.getMessage());
+      }
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+  }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * Over-the-air deployment library
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VelocityTemplateEngineTest
+{
+
+  private final ITemplateEngine engine = new VelocityTemplateEngine();
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    directory = File.createTempFile("templates", "");
+    directory.delete();
+    directory.mkdir();
+  }
+
+  @After
+  public void tearDown()
+  {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testParseSibling() throws IOException
+  {
+    File template = write("page.html", "<h1>#parse(\"header.vm\")</h1>#include(\"footer.txt\")");
+    write("header.vm", "Install $title");
+    write("footer.txt", "$notParsed");
+    Map<String, Object> mappings = new HashMap<String, Object>();
+    mappings.put("title", "MyApp");
+    assertEquals("<h1>Install MyApp</h1>$notParsed", merge(engine.getTemplate(template.getAbsolutePath()), mappings));
+  }
+
+  @Test
+  public void testFileChangesAreRead() throws IOException
+  {
+    File template = write("page.html", "#parse(\"part.vm\")");
+    write("part.vm", "one");
+    assertEquals("one", merge(engine.getTemplate(template.getAbsolutePath()), new HashMap<String, Object>()));
+    write("part.vm", "two");
+    assertEquals("two", merge(engine.getTemplate(template.getAbsolutePath()), new HashMap<String, Object>()));
+  }
+
+  @Test
+  public void testRuntimePerDirectory()
+  {
+    assertSame(VelocityTemplateEngine.getFileRuntime(directory), VelocityTemplateEngine.getFileRuntime(directory));
+  }
+
+  private File write(String name, String content) throws IOException
+  {
+    File file = new File(directory, name);
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      writer.write(content);
+    }
+    finally {
+      writer.close();
+    }
+    return file;
+  }
+
+  private static String merge(ITemplate template, Map<String, Object> mappings) throws IOException
+  {
+    StringWriter writer = new StringWriter();
+    template.merge(mappings, writer);
+    return writer.toString();
+  }
+
+}
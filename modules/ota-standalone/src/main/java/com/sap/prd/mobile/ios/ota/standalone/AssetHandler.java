@@ -0,0 +1,70 @@
+/*
+ * #%L
+ * Over-the-air deployment standalone server
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.standalone;
+
+import java.io.IOException;
+
+import com.sap.prd.mobile.ios.ota.lib.StaticAssets;
+import com.sap.prd.mobile.ios.ota.lib.StaticAssets.Asset;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves the {@link StaticAssets}, fingerprinted names are cached forever.
+ */
+final class AssetHandler implements HttpHandler
+{
+
+  final static String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+  final static String CACHE_CONTROL = "public, max-age=300";
+
+  private final String path;
+
+  AssetHandler(String path)
+  {
+    this.path = path;
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException
+  {
+    try {
+      String uri = exchange.getRequestURI().getRawPath();
+      String name = uri.length() > path.length() + 1 ? uri.substring(path.length() + 1) : null;
+      Asset asset = StaticAssets.getInstance().get(name);
+      if (asset == null) {
+        Exchanges.sendError(exchange, 404, "Unknown asset");
+        return;
+      }
+      exchange.getResponseHeaders().set("Cache-Control",
+            asset.getFingerprintedName().equals(name) ? IMMUTABLE_CACHE_CONTROL : CACHE_CONTROL);
+      exchange.getResponseHeaders().set("ETag", asset.getETag());
+      if (asset.getETag().equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        exchange.sendResponseHeaders(304, -1);
+        return;
+      }
+      Exchanges.send(exchange, asset.getContentType(), asset.getContent());
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * Over-the-air deployment standalone server
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.standalone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Request and response helpers for the handlers of the {@link OtaStandaloneServer}.
+ */
+final class Exchanges
+{
+
+  final static String REFERER = "Referer";
+
+  /**
+   * Maximum size of a form posted to the HTML endpoint.
+   */
+  final static int MAX_FORM_BYTES = 64 * 1024;
+
+  private Exchanges()
+  {
+  }
+
+  /**
+   * Returns the parameters of the query and, for a POST, of the form in the body. The first
+   * occurrence of a name wins.
+   */
+  static Map<String, String> getParameters(HttpExchange exchange) throws IOException
+  {
+    Map<String, String> parameters = new HashMap<String, String>();
+    parse(exchange.getRequestURI().getRawQuery(), parameters);
+    if ("POST".equals(exchange.getRequestMethod())) {
+      parse(readForm(exchange.getRequestBody()), parameters);
+    }
+    return parameters;
+  }
+
+  /**
+   * Returns the referer from the parameter 'Referer' or from the header 'Referer'. The parameter
+   * has priority.
+   * 
+   * @return the referer or <code>null</code> if there is none
+   */
+  static String getReferer(HttpExchange exchange, Map<String, String> parameters)
+  {
+    String referer = parameters.get(REFERER);
+    return referer == null ? exchange.getRequestHeaders().getFirst(REFERER) : referer;
+  }
+
+  static void send(HttpExchange exchange, String contentType, byte[] content) throws IOException
+  {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    boolean head = "HEAD".equals(exchange.getRequestMethod());
+    exchange.sendResponseHeaders(200, head ? -1 : content.length);
+    if (!head) {
+      OutputStream out = exchange.getResponseBody();
+      out.write(content);
+      out.close();
+    }
+  }
+
+  static void sendError(HttpExchange exchange, int status, String message) throws IOException
+  {
+    byte[] content = message.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain;charset=UTF-8");
+    exchange.sendResponseHeaders(status, content.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(content);
+    out.close();
+  }
+
+  private static void parse(String query, Map<String, String> parameters) throws IOException
+  {
+    if (query == null) {
+      return;
+    }
+    int start = 0;
+    while (start < query.length()) {
+      int end = query.indexOf('&', start);
+      if (end < 0) {
+        end = query.length();
+      }
+      int eq = query.indexOf('=', start);
+      if (eq > start && eq < end) {
+        String name = URLDecoder.decode(query.substring(start, eq), "UTF-8");
+        if (!parameters.containsKey(name)) {
+          parameters.put(name, URLDecoder.decode(query.substring(eq + 1, end), "UTF-8"));
+        }
+      }
+      start = end + 1;
+    }
+  }
+
+  private static String readForm(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream form = new ByteArrayOutputStream(1024);
+    byte[] buffer = new byte[4096];
+    for (int read; (read = in.read(buffer)) >= 0;) {
+      if (form.size() + read > MAX_FORM_BYTES) {
+        throw new IllegalArgumentException("Form exceeds " + MAX_FORM_BYTES + " bytes");
+      }
+      form.write(buffer, 0, read);
+    }
+    return form.toString("UTF-8");
+  }
+
+}
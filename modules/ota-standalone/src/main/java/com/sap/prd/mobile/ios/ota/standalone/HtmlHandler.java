@@ -0,0 +1,133 @@
+/*
+ * #%L
+ * Over-the-air deployment standalone server
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.standalone;
+
+import static com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator.BUNDLE_IDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator.BUNDLE_VERSION;
+import static com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator.IPA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator.OTA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator.TITLE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator;
+import com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator.Parameters;
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves the install page for GET and POST requests, it links the manifest with a compact token.
+ */
+final class HtmlHandler implements HttpHandler
+{
+
+  final static String CONTENT_TYPE = "text/html;charset=UTF-8";
+
+  private final static Logger LOG = Logger.getLogger(HtmlHandler.class.getSimpleName());
+
+  private final String baseUrl;
+  private final String plistPath;
+  private final String templatePath;
+  private final Map<String, String> configuration;
+
+  /**
+   * @param baseUrl
+   *          the URL of the server as seen by the devices, e.g. of a TLS proxy in front of it,
+   *          <code>null</code> to take it from the request
+   * @param plistPath
+   *          the path of the PLIST endpoint
+   * @param templatePath
+   *          the HTML template, <code>null</code> for the default template
+   * @param configuration
+   *          the values available to the template, shared by all requests
+   */
+  HtmlHandler(String baseUrl, String plistPath, String templatePath, Map<String, String> configuration)
+  {
+    this.baseUrl = baseUrl;
+    this.plistPath = plistPath;
+    this.templatePath = templatePath;
+    this.configuration = configuration;
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException
+  {
+    try {
+      Map<String, String> values = Exchanges.getParameters(exchange);
+      String referer = Exchanges.getReferer(exchange, values);
+      if (referer == null) {
+        Exchanges.sendError(exchange, 400, "Referer required");
+        return;
+      }
+      String plistUrl = OtaPlistGenerator.compactPlistRequestUrl(getBaseUrl(exchange) + plistPath, referer,
+            values.get(TITLE), values.get(BUNDLE_IDENTIFIER), values.get(BUNDLE_VERSION), values.get(IPA_CLASSIFIER),
+            values.get(OTA_CLASSIFIER));
+      ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+      OtaHtmlGenerator.getInstance(templatePath).generate(out, new Parameters(referer, values.get(TITLE),
+            values.get(BUNDLE_IDENTIFIER), plistUrl, values.get(IPA_CLASSIFIER), values.get(OTA_CLASSIFIER),
+            configuration));
+      Exchanges.send(exchange, CONTENT_TYPE, out.toByteArray());
+    }
+    catch (MalformedURLException e) {
+      Exchanges.sendError(exchange, 400, e.getMessage());
+    }
+    catch (IllegalArgumentException e) {
+      Exchanges.sendError(exchange, 400, e.getMessage());
+    }
+    catch (RuntimeException e) {
+      LOG.log(Level.SEVERE, String.format("Exception while processing request from '%s'",
+            exchange.getRemoteAddress()), e);
+      Exchanges.sendError(exchange, 500, "Internal error");
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * @return the configured base URL or the one the request was sent to: the scheme of the header
+   *         <code>X-Forwarded-Proto</code> set by a proxy, <code>http</code> without it, and the
+   *         <code>Host</code> header
+   */
+  String getBaseUrl(HttpExchange exchange)
+  {
+    if (baseUrl != null) {
+      return baseUrl;
+    }
+    String scheme = exchange.getRequestHeaders().getFirst("X-Forwarded-Proto");
+    scheme = scheme == null ? "" : scheme.split(",")[0].trim().toLowerCase(Locale.ENGLISH);
+    if (!scheme.equals("https")) {
+      scheme = "http";
+    }
+    String host = exchange.getRequestHeaders().getFirst("Host");
+    if (host == null) {
+      host = exchange.getLocalAddress().getHostString() + ":" + exchange.getLocalAddress().getPort();
+    }
+    return scheme + "://" + host;
+  }
+
+}
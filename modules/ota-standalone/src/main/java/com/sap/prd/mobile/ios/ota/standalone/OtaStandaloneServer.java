@@ -0,0 +1,272 @@
+/*
+ * #%L
+ * Over-the-air deployment standalone server
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.standalone;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator;
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.lib.StaticAssets;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the HTML and PLIST endpoints without a servlet container, on the HTTP server of the JDK.
+ * Each request runs on its own virtual thread if the JVM supports them (Java 21 and later),
+ * otherwise on a cached pool of platform threads.
+ * <p>
+ * The server is configured by a properties file, all properties are available in the HTML
+ * template like the context parameters of the web application.
+ */
+public class OtaStandaloneServer
+{
+
+  public final static String PORT_KEY = "port";
+  public final static String CONTEXT_PATH_KEY = "contextPath";
+  /**
+   * The URL of the server as seen by the devices, e.g. <code>https://ota.example.com</code> if a TLS
+   * proxy is in front of it. Without it the URL is taken from the request and the header
+   * <code>X-Forwarded-Proto</code>.
+   */
+  public final static String BASE_URL_KEY = "baseUrl";
+  public final static String HTML_TEMPLATE_PATH_KEY = "htmlTemplatePath";
+  public final static String PLIST_TEMPLATE_PATH_KEY = "plistTemplatePath";
+
+  /**
+   * System property with the path of the configuration file, used if no path is passed as argument.
+   */
+  public final static String CONFIGURATION_PROPERTY = "ota.config";
+
+  final static int DEFAULT_PORT = 8080;
+  final static String DEFAULT_CONTEXT_PATH = "/ota-service";
+
+  final static String HTML = "/HTML";
+  final static String PLIST = "/PLIST";
+
+  private final static Logger LOG = Logger.getLogger(OtaStandaloneServer.class.getSimpleName());
+
+  private final Properties configuration;
+  private HttpServer server;
+  private ExecutorService executor;
+  private boolean virtualThreads;
+  private String contextPath;
+  private long startupMillis;
+
+  public OtaStandaloneServer(Properties configuration)
+  {
+    this.configuration = configuration;
+  }
+
+  public synchronized void start() throws IOException
+  {
+    if (server != null) {
+      throw new IllegalStateException("Server already started");
+    }
+    long start = System.nanoTime();
+    contextPath = getContextPath(configuration.getProperty(CONTEXT_PATH_KEY, DEFAULT_CONTEXT_PATH));
+
+    Map<String, String> values = new HashMap<String, String>(StaticAssets.getInstance().getUrls(contextPath));
+    for (String name : configuration.stringPropertyNames()) {
+      values.put(name, configuration.getProperty(name));
+    }
+    Map<String, String> initParams = Collections.unmodifiableMap(values);
+    String htmlTemplatePath = initParams.get(HTML_TEMPLATE_PATH_KEY);
+    String plistTemplatePath = initParams.get(PLIST_TEMPLATE_PATH_KEY);
+    OtaHtmlGenerator.getInstance(htmlTemplatePath).specialize(initParams);
+    OtaPlistGenerator.getInstance(plistTemplatePath);
+
+    HttpServer created = HttpServer.create(new InetSocketAddress(getPort(configuration)), 0);
+    created.createContext(contextPath + HTML, new HtmlHandler(getBaseUrl(configuration.getProperty(BASE_URL_KEY)),
+          contextPath + PLIST, htmlTemplatePath, initParams));
+    created.createContext(contextPath + PLIST, new PlistHandler(contextPath + PLIST, plistTemplatePath));
+    String assets = contextPath + "/" + StaticAssets.PATH;
+    created.createContext(assets, new AssetHandler(assets));
+    executor = createExecutor();
+    created.setExecutor(executor);
+    created.start();
+    server = created;
+    startupMillis = (System.nanoTime() - start) / 1000000;
+    LOG.info(String.format("Listening on port %d with context path '%s' on %s threads, started in %d ms",
+          getPort(), contextPath, virtualThreads ? "virtual" : "platform", startupMillis));
+  }
+
+  public synchronized void stop()
+  {
+    if (server == null) {
+      return;
+    }
+    server.stop(0);
+    executor.shutdown();
+    server = null;
+    executor = null;
+    LOG.info("Stopped");
+  }
+
+  /**
+   * @return the port the server listens on, e.g. the one chosen for port <code>0</code>
+   */
+  public synchronized int getPort()
+  {
+    if (server == null) {
+      throw new IllegalStateException("Server not started");
+    }
+    return server.getAddress().getPort();
+  }
+
+  public synchronized String getContextPath()
+  {
+    return contextPath;
+  }
+
+  /**
+   * @return <code>true</code> if the requests are served on virtual threads
+   */
+  public synchronized boolean isVirtualThreads()
+  {
+    return virtualThreads;
+  }
+
+  /**
+   * @return the milliseconds from the call of {@link #start()} until the server accepted requests
+   */
+  public synchronized long getStartupMillis()
+  {
+    return startupMillis;
+  }
+
+  /**
+   * Starts the server with the configuration file given as first argument or by the system property
+   * {@value #CONFIGURATION_PROPERTY}. Without a configuration file the defaults are used.
+   */
+  public static void main(String[] args) throws IOException
+  {
+    String path = args.length > 0 ? args[0] : System.getProperty(CONFIGURATION_PROPERTY);
+    final OtaStandaloneServer server = new OtaStandaloneServer(path == null ? new Properties()
+          : loadConfiguration(new File(path)));
+    server.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run()
+      {
+        server.stop();
+      }
+    }));
+  }
+
+  public static Properties loadConfiguration(File file) throws IOException
+  {
+    Properties configuration = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      configuration.load(in);
+    }
+    finally {
+      in.close();
+    }
+    return configuration;
+  }
+
+  static int getPort(Properties configuration)
+  {
+    String port = configuration.getProperty(PORT_KEY);
+    if (port != null) {
+      try {
+        return Integer.parseInt(port.trim());
+      }
+      catch (NumberFormatException e) {
+        LOG.warning(String.format("Invalid %s '%s', using %d", PORT_KEY, port, DEFAULT_PORT));
+      }
+    }
+    return DEFAULT_PORT;
+  }
+
+  /**
+   * @return the base URL without trailing '/', <code>null</code> if it is not set
+   */
+  static String getBaseUrl(String baseUrl)
+  {
+    if (baseUrl == null || baseUrl.trim().isEmpty()) {
+      return null;
+    }
+    String url = baseUrl.trim();
+    while (url.endsWith("/")) {
+      url = url.substring(0, url.length() - 1);
+    }
+    return url;
+  }
+
+  /**
+   * @return the context path with leading and without trailing '/', empty for the root
+   */
+  static String getContextPath(String contextPath)
+  {
+    String path = contextPath.trim();
+    while (path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    return path.isEmpty() || path.startsWith("/") ? path : "/" + path;
+  }
+
+  /**
+   * Creates an executor with one virtual thread per task. The executor is looked up by reflection
+   * to keep the source compatible with older JVMs, which get a cached pool of daemon threads.
+   */
+  private ExecutorService createExecutor()
+  {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      virtualThreads = true;
+      return (ExecutorService) method.invoke(null);
+    }
+    catch (NoSuchMethodException e) {
+      LOG.fine("Virtual threads not available, using platform threads");
+    }
+    catch (Exception e) {
+      LOG.log(Level.WARNING, "Cannot create virtual thread executor, using platform threads", e);
+    }
+    virtualThreads = false;
+    return Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable)
+      {
+        Thread thread = new Thread(runnable, "ota-request-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * #%L
+ * Over-the-air deployment standalone server
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.standalone;
+
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.BUNDLE_IDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.BUNDLE_VERSION;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.IPA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.OTA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.REFERER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.TITLE;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.lib.PlistToken;
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.Parameters;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves the manifest for query parameters or for a compact token, <code>/PLIST/v1/&lt;token&gt;</code>.
+ */
+final class PlistHandler implements HttpHandler
+{
+
+  final static String CONTENT_TYPE = "application/xml;charset=UTF-8";
+
+  private final static Logger LOG = Logger.getLogger(PlistHandler.class.getSimpleName());
+
+  private final String path;
+  private final String templatePath;
+
+  /**
+   * @param path
+   *          the path the handler is registered for
+   * @param templatePath
+   *          the PLIST template, <code>null</code> for the default template
+   */
+  PlistHandler(String path, String templatePath)
+  {
+    this.path = path;
+    this.templatePath = templatePath;
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException
+  {
+    try {
+      PlistToken token;
+      String uri = exchange.getRequestURI().getRawPath();
+      String tokenPrefix = path + "/" + PlistToken.VERSION_1 + "/";
+      if (uri.startsWith(tokenPrefix)) {
+        int end = uri.indexOf('/', tokenPrefix.length());
+        token = PlistToken.decode(uri, tokenPrefix.length(), end < 0 ? uri.length() : end);
+      }
+      else {
+        Map<String, String> values = Exchanges.getParameters(exchange);
+        token = new PlistToken(values.get(REFERER), values.get(TITLE), values.get(BUNDLE_IDENTIFIER),
+              values.get(BUNDLE_VERSION), values.get(IPA_CLASSIFIER), values.get(OTA_CLASSIFIER));
+      }
+      //like the web application, a missing referer is taken from the header
+      String referer = token.getReferer() == null ? exchange.getRequestHeaders().getFirst(REFERER)
+            : token.getReferer();
+      if (referer == null) {
+        Exchanges.sendError(exchange, 400, "Referer required");
+        return;
+      }
+      Parameters parameters = new Parameters(referer, token.getTitle(), token.getBundleIdentifier(),
+            token.getBundleVersion(), token.getIpaClassifier(), token.getOtaClassifier());
+      Exchanges.send(exchange, CONTENT_TYPE, OtaPlistGenerator.getInstance(templatePath).generateBytes(parameters));
+    }
+    catch (MalformedURLException e) {
+      Exchanges.sendError(exchange, 400, e.getMessage());
+    }
+    catch (IllegalArgumentException e) {
+      Exchanges.sendError(exchange, 400, e.getMessage());
+    }
+    catch (RuntimeException e) {
+      LOG.log(Level.SEVERE, String.format("Exception while processing request from '%s'",
+            exchange.getRemoteAddress()), e);
+      Exchanges.sendError(exchange, 500, "Internal error");
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+}
@@ -0,0 +1,294 @@
+/*
+ * #%L
+ * Over-the-air deployment standalone server
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.standalone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.lib.StaticAssets;
+
+public class OtaStandaloneServerTest
+{
+
+  private final static String referer = "http://hostname:8080/path/MyApp.htm";
+  private final static String checkIpaURL = "http://hostname:8080/path/MyApp.ipa";
+  private final static String title = "MyApp";
+  private final static String bundleIdentifier = "com.sap.xyz.MyApp";
+  private final static String bundleVersion = "1.0.2";
+
+  private static OtaStandaloneServer server;
+  private static String root;
+
+  @BeforeClass
+  public static void start() throws IOException
+  {
+    Properties configuration = new Properties();
+    configuration.setProperty(OtaStandaloneServer.PORT_KEY, "0");
+    configuration.setProperty(OtaStandaloneServer.CONTEXT_PATH_KEY, "ota/");
+    server = new OtaStandaloneServer(configuration);
+    server.start();
+    root = "http://localhost:" + server.getPort() + server.getContextPath();
+    System.out.println(String.format("Standalone server started in %d ms on %s threads", server.getStartupMillis(),
+          server.isVirtualThreads() ? "virtual" : "platform"));
+  }
+
+  @AfterClass
+  public static void stop()
+  {
+    server.stop();
+  }
+
+  @Test
+  public void testVirtualThreadsIfAvailable()
+  {
+    boolean available;
+    try {
+      Thread.class.getMethod("ofVirtual");
+      available = true;
+    }
+    catch (NoSuchMethodException e) {
+      available = false;
+    }
+    assertEquals(available, server.isVirtualThreads());
+    assertEquals("/ota", server.getContextPath());
+  }
+
+  @Test
+  public void testPlist() throws IOException
+  {
+    HttpURLConnection connection = open(root + "/PLIST?" + query());
+    assertEquals(200, connection.getResponseCode());
+    assertEquals("application/xml;charset=UTF-8", connection.getContentType());
+    String plist = read(connection);
+    assertTrue(plist, plist.contains("<string>" + checkIpaURL + "</string>"));
+    assertTrue(plist, plist.contains("<string>" + bundleVersion + "</string>"));
+  }
+
+  @Test
+  public void testPlistToken() throws IOException
+  {
+    String url = OtaPlistGenerator.compactPlistRequestUrl(root + "/PLIST", referer, title, bundleIdentifier,
+          bundleVersion, null, null);
+    HttpURLConnection connection = open(url);
+    assertEquals(200, connection.getResponseCode());
+    String plist = read(connection);
+    assertTrue(plist, plist.contains("<string>" + checkIpaURL + "</string>"));
+    assertTrue(plist, plist.contains("<string>" + title + "</string>"));
+  }
+
+  @Test
+  public void testPlistRefererHeader() throws IOException
+  {
+    HttpURLConnection connection = open(root + "/PLIST?title=" + title);
+    connection.setRequestProperty("Referer", referer);
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(read(connection).contains("<string>" + checkIpaURL + "</string>"));
+  }
+
+  @Test
+  public void testMissingReferer() throws IOException
+  {
+    assertEquals(400, open(root + "/PLIST?title=" + title).getResponseCode());
+    assertEquals(400, open(root + "/HTML?title=" + title).getResponseCode());
+  }
+
+  @Test
+  public void testRefererWithoutExtension() throws IOException
+  {
+    String query = "?Referer=" + URLEncoder.encode("http://hostname/path/noextension", "UTF-8");
+    assertEquals(400, open(root + "/HTML" + query).getResponseCode());
+    assertEquals(400, open(root + "/PLIST" + query).getResponseCode());
+  }
+
+  @Test
+  public void testTokenWithoutReferer() throws IOException
+  {
+    String url = OtaPlistGenerator.compactPlistRequestUrl(root + "/PLIST", null, title, bundleIdentifier,
+          bundleVersion, null, null);
+    assertEquals(400, open(url).getResponseCode());
+    HttpURLConnection connection = open(url);
+    connection.setRequestProperty("Referer", referer);
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(read(connection).contains("<string>" + checkIpaURL + "</string>"));
+  }
+
+  @Test
+  public void testForwardedProto() throws IOException
+  {
+    HttpURLConnection connection = open(root + "/HTML?" + query());
+    connection.setRequestProperty("X-Forwarded-Proto", "https");
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(getPlistUrl(read(connection)).startsWith("https://localhost:" + server.getPort() + "/ota/PLIST/v1/"));
+  }
+
+  @Test
+  public void testBaseUrl() throws IOException
+  {
+    Properties configuration = new Properties();
+    configuration.setProperty(OtaStandaloneServer.PORT_KEY, "0");
+    configuration.setProperty(OtaStandaloneServer.BASE_URL_KEY, "https://ota.example.com/");
+    OtaStandaloneServer other = new OtaStandaloneServer(configuration);
+    other.start();
+    try {
+      HttpURLConnection connection = open("http://localhost:" + other.getPort() + "/ota-service/HTML?" + query());
+      assertEquals(200, connection.getResponseCode());
+      assertTrue(getPlistUrl(read(connection)).startsWith("https://ota.example.com/ota-service/PLIST/v1/"));
+    }
+    finally {
+      other.stop();
+    }
+    assertNull(OtaStandaloneServer.getBaseUrl(" "));
+  }
+
+  @Test
+  public void testInvalidToken() throws IOException
+  {
+    assertEquals(400, open(root + "/PLIST/v1/invalid").getResponseCode());
+  }
+
+  @Test
+  public void testHtml() throws IOException
+  {
+    HttpURLConnection connection = open(root + "/HTML?" + query());
+    assertEquals(200, connection.getResponseCode());
+    assertEquals("text/html;charset=UTF-8", connection.getContentType());
+    String html = read(connection);
+    assertTrue(html, html.contains("Install App: " + title));
+    assertTrue(html, html.contains("/ota/assets/" + StaticAssets.getInstance().get("ota.css").getFingerprintedName()));
+
+    String plistUrl = getPlistUrl(html);
+    assertTrue(plistUrl, plistUrl.startsWith("http://localhost:" + server.getPort() + "/ota/PLIST/v1/"));
+    HttpURLConnection plist = open(plistUrl);
+    assertEquals(200, plist.getResponseCode());
+    assertTrue(read(plist).contains("<string>" + checkIpaURL + "</string>"));
+  }
+
+  @Test
+  public void testHtmlPost() throws IOException
+  {
+    HttpURLConnection connection = open(root + "/HTML");
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+    OutputStream out = connection.getOutputStream();
+    out.write(query().getBytes("UTF-8"));
+    out.close();
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(read(connection).contains("Install App: " + title));
+  }
+
+  @Test
+  public void testAsset() throws IOException
+  {
+    StaticAssets.Asset css = StaticAssets.getInstance().get("ota.css");
+    HttpURLConnection connection = open(root + "/assets/" + css.getFingerprintedName());
+    assertEquals(200, connection.getResponseCode());
+    assertEquals(AssetHandler.IMMUTABLE_CACHE_CONTROL, connection.getHeaderField("Cache-Control"));
+    assertEquals(css.getETag(), connection.getHeaderField("ETag"));
+    assertEquals(new String(css.getContent(), "UTF-8"), read(connection));
+
+    connection = open(root + "/assets/ota.css");
+    connection.setRequestProperty("If-None-Match", css.getETag());
+    assertEquals(304, connection.getResponseCode());
+    assertEquals(AssetHandler.CACHE_CONTROL, connection.getHeaderField("Cache-Control"));
+
+    assertEquals(404, open(root + "/assets/unknown.css").getResponseCode());
+  }
+
+  @Test
+  public void testUnknownPath() throws IOException
+  {
+    assertEquals(404, open("http://localhost:" + server.getPort() + "/unknown").getResponseCode());
+  }
+
+  @Test
+  public void testGetContextPath()
+  {
+    assertEquals("", OtaStandaloneServer.getContextPath("/"));
+    assertEquals("", OtaStandaloneServer.getContextPath(""));
+    assertEquals("/a/b", OtaStandaloneServer.getContextPath(" a/b/ "));
+    assertEquals("/a", OtaStandaloneServer.getContextPath("/a"));
+  }
+
+  @Test
+  public void testGetPort()
+  {
+    Properties configuration = new Properties();
+    assertEquals(OtaStandaloneServer.DEFAULT_PORT, OtaStandaloneServer.getPort(configuration));
+    configuration.setProperty(OtaStandaloneServer.PORT_KEY, " 9090 ");
+    assertEquals(9090, OtaStandaloneServer.getPort(configuration));
+    configuration.setProperty(OtaStandaloneServer.PORT_KEY, "x");
+    assertEquals(OtaStandaloneServer.DEFAULT_PORT, OtaStandaloneServer.getPort(configuration));
+  }
+
+  private static String getPlistUrl(String html)
+  {
+    Matcher matcher = Pattern.compile("itms-services:///\\?action=download-manifest&(?:amp;)?url=([^'\"]+)").matcher(html);
+    assertTrue(html, matcher.find());
+    return matcher.group(1);
+  }
+
+  private static String query() throws IOException
+  {
+    return "Referer=" + URLEncoder.encode(referer, "UTF-8") + "&title=" + title + "&bundleIdentifier="
+          + bundleIdentifier + "&bundleVersion=" + bundleVersion;
+  }
+
+  private static HttpURLConnection open(String url) throws IOException
+  {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setUseCaches(false);
+    return connection;
+  }
+
+  private static String read(HttpURLConnection connection) throws IOException
+  {
+    InputStream in = connection.getInputStream();
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      for (int read; (read = in.read(buffer)) >= 0;) {
+        out.write(buffer, 0, read);
+      }
+      return out.toString("UTF-8");
+    }
+    finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,285 @@
+/*
+ * #%L
+ * Over-the-air deployment template compiler
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.compiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.sap.prd.mobile.ios.ota.lib.CompiledTemplateEngine;
+import com.sap.prd.mobile.ios.ota.lib.ITemplate;
+import com.sap.prd.mobile.ios.ota.lib.ITemplateEngine;
+import com.sap.prd.mobile.ios.ota.lib.PrecompiledTemplate;
+import com.sap.prd.mobile.ios.ota.lib.PrecompiledTemplateEngine;
+import com.sap.prd.mobile.ios.ota.lib.VelocityTemplateEngine;
+
+/**
+ * Compiles templates into Java classes at build time. For each template a subclass of
+ * {@link PrecompiledTemplate} is generated and registered as service, so the
+ * {@link CompiledTemplateEngine} uses it instead of loading the template at runtime.
+ * <p>
+ * Every template is parsed, a syntax error fails the build. Templates using Velocity directives are
+ * validated only, they are still merged by Velocity at runtime.
+ * <p>
+ * Usage:
+ * <code>TemplateCompiler &lt;source directory&gt; &lt;resource directory&gt; &lt;package&gt; &lt;template&gt;...</code>
+ * where a template is either a class path resource, a file or a directory ending with '/'. All
+ * files of a directory are compiled, they are registered with their path below the name of the
+ * directory, e.g. <code>templates/custom.html</code> for <code>src/main/resources/templates/custom.html</code>,
+ * which is their class path resource name when the directory is packaged as resource. A directory
+ * which does not exist contains no templates.
+ */
+public class TemplateCompiler
+{
+
+  static final String SERVICES_FILE = "META-INF/services/" + PrecompiledTemplate.class.getName();
+
+  /**
+   * Number of characters per string literal, well below the 64 KB limit of a string constant.
+   */
+  private static final int LITERAL_LENGTH = 4096;
+
+  private static final Logger LOG = Logger.getLogger(TemplateCompiler.class.getSimpleName());
+
+  private final File sourceDirectory;
+  private final File resourceDirectory;
+  private final String packageName;
+
+  public TemplateCompiler(File sourceDirectory, File resourceDirectory, String packageName)
+  {
+    this.sourceDirectory = sourceDirectory;
+    this.resourceDirectory = resourceDirectory;
+    this.packageName = packageName;
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length < 4) {
+      throw new IllegalArgumentException(
+            "Usage: TemplateCompiler <source directory> <resource directory> <package> <template>...");
+    }
+    new TemplateCompiler(new File(args[0]), new File(args[1]), args[2]).compile(Arrays.asList(args).subList(3,
+          args.length));
+  }
+
+  /**
+   * Compiles the templates and registers the generated classes.
+   * 
+   * @return the fully qualified names of the generated classes
+   * @throws org.apache.velocity.exception.VelocityException
+   *           if a template does not exist or cannot be parsed
+   */
+  public List<String> compile(List<String> templateNames) throws IOException
+  {
+    Map<String, String> templates = new LinkedHashMap<String, String>();
+    for (String templateName : templateNames) {
+      if (templateName.endsWith("/")) {
+        File directory = new File(templateName);
+        addFiles(directory, directory.getName(), templates);
+      }
+      else {
+        templates.put(templateName, null);
+      }
+    }
+
+    ITemplateEngine engine = new PrecompiledTemplateEngine(new VelocityTemplateEngine());
+    Map<String, String> classes = new HashMap<String, String>();
+    List<String> generated = new ArrayList<String>();
+    for (Map.Entry<String, String> entry : templates.entrySet()) {
+      String templateName = entry.getKey();
+      ITemplate template = engine.getTemplate(templateName);
+      if (!(template instanceof PrecompiledTemplate)) {
+        LOG.warning(String.format("Template '%s' uses Velocity directives, it has been validated but is "
+              + "interpreted at runtime", templateName));
+        continue;
+      }
+      String name = entry.getValue() == null ? template.getName() : entry.getValue();
+      String className = className(name);
+      if (classes.containsKey(className)) {
+        throw new IllegalArgumentException(String.format("Templates '%s' and '%s' map to the same class %s",
+              classes.get(className), templateName, className));
+      }
+      classes.put(className, templateName);
+      writeSource(className, name, (PrecompiledTemplate) template);
+      generated.add(packageName + "." + className);
+      LOG.info(String.format("Compiled template '%s' into %s.%s", templateName, packageName, className));
+    }
+    if (!generated.isEmpty()) {
+      writeServices(generated);
+    }
+    return generated;
+  }
+
+  /**
+   * Adds the paths of all files below the directory with their resource names.
+   */
+  private static void addFiles(File directory, String resourceName, Map<String, String> templates)
+  {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      if (file.isDirectory()) {
+        addFiles(file, resourceName + "/" + file.getName(), templates);
+      }
+      else if (file.isFile()) {
+        templates.put(file.getAbsolutePath(), resourceName + "/" + file.getName());
+      }
+    }
+  }
+
+  /**
+   * Derives the class name from the file name of the template, e.g. <code>TemplateHtml</code> for
+   * <code>template.html</code>.
+   */
+  static String className(String templateName)
+  {
+    String fileName = templateName.substring(templateName.lastIndexOf('/') + 1);
+    StringBuilder className = new StringBuilder();
+    boolean upper = true;
+    for (int i = 0; i < fileName.length(); i++) {
+      char c = fileName.charAt(i);
+      if (Character.isLetterOrDigit(c) && c < 0x80) {
+        className.append(upper ? Character.toUpperCase(c) : c);
+        upper = false;
+      }
+      else {
+        upper = true;
+      }
+    }
+    if (className.length() == 0 || Character.isDigit(className.charAt(0))) {
+      className.insert(0, "Template");
+    }
+    return className.toString();
+  }
+
+  private void writeSource(String className, String name, PrecompiledTemplate template) throws IOException
+  {
+    File directory = new File(sourceDirectory, packageName.replace('.', File.separatorChar));
+    Writer writer = open(new File(directory, className + ".java"));
+    try {
+      writer.write("// Generated by " + TemplateCompiler.class.getSimpleName() + " from " + name
+            + ", do not edit.\n");
+      writer.write("package " + packageName + ";\n\n");
+      writer.write("public final class " + className + " extends " + PrecompiledTemplate.class.getName() + "\n");
+      writer.write("{\n\n");
+      writer.write("  public " + className + "()\n");
+      writer.write("  {\n");
+      writer.write("    super(" + literal(name) + ",\n");
+      writer.write("          new String[] {\n");
+      for (String text : template.getTexts()) {
+        writer.write("            text(");
+        for (int i = 0; i < text.length(); i += LITERAL_LENGTH) {
+          writer.write(i == 0 ? "" : ",\n                 ");
+          writer.write(literal(text.substring(i, Math.min(text.length(), i + LITERAL_LENGTH))));
+        }
+        writer.write("),\n");
+      }
+      writer.write("          },\n");
+      writer.write("          new String[] {" + literals(template.getSlots()) + "},\n");
+      writer.write("          new String[] {" + literals(template.getReferences()) + "});\n");
+      writer.write("  }\n\n");
+      writer.write("}\n");
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  private void writeServices(List<String> classNames) throws IOException
+  {
+    Writer writer = open(new File(resourceDirectory, SERVICES_FILE.replace('/', File.separatorChar)));
+    try {
+      for (String className : classNames) {
+        writer.write(className + "\n");
+      }
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  private static Writer open(File file) throws IOException
+  {
+    File directory = file.getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create directory " + directory);
+    }
+    return new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+  }
+
+  private static String literals(String[] strings)
+  {
+    StringBuilder literals = new StringBuilder();
+    for (String string : strings) {
+      literals.append(literals.length() == 0 ? " " : ", ").append(literal(string));
+    }
+    return literals.append(strings.length == 0 ? "" : " ").toString();
+  }
+
+  /**
+   * @return the Java string literal for the string, all characters outside of printable ASCII are
+   *         escaped
+   */
+  static String literal(String string)
+  {
+    StringBuilder literal = new StringBuilder(string.length() + 16).append('"');
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      switch (c) {
+      case '"':
+        literal.append("\\\"");
+        break;
+      case '\\':
+        literal.append("\\\\");
+        break;
+      case '\n':
+        literal.append("\\n");
+        break;
+      case '\r':
+        literal.append("\\r");
+        break;
+      case '\t':
+        literal.append("\\t");
+        break;
+      default:
+        if (c < 0x20 || c > 0x7e) {
+          literal.append(String.format("\\u%04x", (int) c));
+        }
+        else {
+          literal.append(c);
+        }
+      }
+    }
+    return literal.append('"').toString();
+  }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * #%L
+ * Over-the-air deployment template compiler
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.apache.velocity.exception.ParseErrorException;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.CompiledTemplateEngine;
+import com.sap.prd.mobile.ios.ota.lib.ITemplate;
+import com.sap.prd.mobile.ios.ota.lib.ITemplateEngine;
+import com.sap.prd.mobile.ios.ota.lib.VelocityTemplateEngine;
+
+public class TemplateCompilerTest
+{
+
+  private File sources;
+  private File resources;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    File directory = File.createTempFile("templates", "");
+    directory.delete();
+    sources = new File(directory, "sources");
+    resources = new File(directory, "resources");
+  }
+
+  @Test
+  public void testCompile() throws Exception
+  {
+    List<String> classNames = new TemplateCompiler(sources, resources, "test.templates").compile(Arrays.asList(
+          "template.html", "buildTemplate.html", "template.plist"));
+    assertEquals(Arrays.asList("test.templates.TemplateHtml", "test.templates.BuildTemplateHtml",
+          "test.templates.TemplatePlist"), classNames);
+    assertTrue(new File(sources, "test/templates/TemplateHtml.java").isFile());
+    assertTrue(new File(resources, TemplateCompiler.SERVICES_FILE).isFile());
+
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    Assume.assumeTrue(javac != null);
+    for (String className : classNames) {
+      File source = new File(sources, className.replace('.', '/') + ".java");
+      assertEquals(0, javac.run(null, null, null, "-classpath", System.getProperty("java.class.path"), "-d",
+            resources.getAbsolutePath(), source.getAbsolutePath()));
+    }
+
+    ITemplateEngine velocity = new VelocityTemplateEngine();
+    CompiledTemplateEngine compiled = new CompiledTemplateEngine(velocity, new URLClassLoader(
+          new URL[] { resources.toURI().toURL() }, getClass().getClassLoader()));
+    Map<String, Object> mappings = new HashMap<String, Object>();
+    mappings.put("title", "My \"App\" \u00e4\u00f6\u00fc");
+    mappings.put("bundleIdentifier", "com.sap.xyz.MyApp");
+    mappings.put("bundleVersion", "1.0.2");
+    mappings.put("ipaUrl", "http://hostname:8080/path/MyApp.ipa");
+    mappings.put("plistUrl", "http://ota-server:8080/OTAService/PLIST/abc");
+    mappings.put("htmlUrl", "http://ota-server:8080/OTAService/HTML?title=MyApp");
+    mappings.put("htmlServiceUrl", "http://ota-server:8080/OTAService/HTML");
+    for (String templateName : Arrays.asList("template.html", "buildTemplate.html", "template.plist")) {
+      assertTrue(templateName, compiled.isCompiled(templateName));
+      ITemplate template = compiled.getTemplate(templateName);
+      assertEquals("test.templates." + TemplateCompiler.className(templateName), template.getClass().getName());
+      assertEquals(merge(velocity.getTemplate(templateName), mappings), merge(template, mappings));
+    }
+  }
+
+  @Test
+  public void testCompileDirectory() throws Exception
+  {
+    File directory = new File(sources.getParentFile(), "custom");
+    write(new File(directory, "page.html"), "<h1>$title</h1>");
+    write(new File(directory, "sub/part.html"), "<p>$bundleVersion</p>");
+    write(new File(directory, "directive.html"), "#if($title)$title#end");
+    List<String> classNames = new TemplateCompiler(sources, resources, "test.custom").compile(Arrays.asList(
+          directory.getPath() + "/"));
+    assertEquals(Arrays.asList("test.custom.PageHtml", "test.custom.PartHtml"), classNames);
+
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    Assume.assumeTrue(javac != null);
+    for (String className : classNames) {
+      File source = new File(sources, className.replace('.', '/') + ".java");
+      assertEquals(0, javac.run(null, null, null, "-classpath", System.getProperty("java.class.path"), "-d",
+            resources.getAbsolutePath(), source.getAbsolutePath()));
+    }
+    CompiledTemplateEngine compiled = new CompiledTemplateEngine(new VelocityTemplateEngine(), new URLClassLoader(
+          new URL[] { resources.toURI().toURL() }, getClass().getClassLoader()));
+    assertTrue(compiled.isCompiled("custom/page.html"));
+    assertTrue(compiled.isCompiled("custom/sub/part.html"));
+    assertFalse(compiled.isCompiled("custom/directive.html"));
+    Map<String, Object> mappings = new HashMap<String, Object>();
+    mappings.put("title", "MyApp");
+    assertEquals("<h1>MyApp</h1>", merge(compiled.getTemplate("custom/page.html"), mappings));
+  }
+
+  @Test
+  public void testMissingDirectory() throws IOException
+  {
+    File directory = new File(sources.getParentFile(), "missing");
+    assertEquals(0, new TemplateCompiler(sources, resources, "test.templates").compile(
+          Arrays.asList(directory.getPath() + "/")).size());
+    assertFalse(new File(resources, TemplateCompiler.SERVICES_FILE).exists());
+  }
+
+  @Test
+  public void testDirectivesAreNotCompiled() throws IOException
+  {
+    File template = writeTemplate("#if($title)Install $title#end");
+    assertEquals(0, new TemplateCompiler(sources, resources, "test.templates").compile(
+          Arrays.asList(template.getAbsolutePath())).size());
+  }
+
+  @Test(expected = ParseErrorException.class)
+  public void testSyntaxError() throws IOException
+  {
+    File template = writeTemplate("#if($title Install $title");
+    new TemplateCompiler(sources, resources, "test.templates").compile(Arrays.asList(template.getAbsolutePath()));
+  }
+
+  @Test
+  public void testClassName()
+  {
+    assertEquals("TemplateHtml", TemplateCompiler.className("template.html"));
+    assertEquals("BuildTemplateHtml", TemplateCompiler.className("/path/to/buildTemplate.html"));
+    assertEquals("MyTemplateV2Html", TemplateCompiler.className("my-template_v2.html"));
+    assertEquals("Template1Html", TemplateCompiler.className("1.html"));
+  }
+
+  @Test
+  public void testLiteral()
+  {
+    assertEquals("\"a\\\"b\\\\c\\r\\n\\t\"", TemplateCompiler.literal("a\"b\\c\r\n\t"));
+    assertEquals("\"\\u00e4\\u20ac\\u0001\"", TemplateCompiler.literal("\u00e4\u20ac\u0001"));
+  }
+
+  private static String merge(ITemplate template, Map<String, Object> mappings) throws IOException
+  {
+    StringWriter writer = new StringWriter();
+    template.merge(mappings, writer);
+    return writer.toString();
+  }
+
+  private static File writeTemplate(String content) throws IOException
+  {
+    File file = File.createTempFile("template", ".html");
+    file.deleteOnExit();
+    write(file, content);
+    return file;
+  }
+
+  private static void write(File file, String content) throws IOException
+  {
+    file.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    }
+    finally {
+      out.close();
+    }
+  }
+
+}
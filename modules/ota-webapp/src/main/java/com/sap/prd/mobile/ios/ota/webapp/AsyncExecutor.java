@@ -0,0 +1,910 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Processes requests of the OTA services on a dedicated thread pool, so the container threads are
+ * released while a request waits for slow work. The request is put into asynchronous mode and
+ * completed by the pool thread. A request which is not done within the timeout or which does not
+ * fit into the queue is answered with <code>503 Service Unavailable</code>.
+ * <p>
+ * The executor is created by the {@link OtaServiceContextListener} and shared by the services
+ * through the context attribute {@link #ATTRIBUTE}. Requests which do not support asynchronous
+ * processing are handled on the calling thread.
+ * <p>
+ * The handler writes to a {@link GuardedResponse}. When the timeout answers the request, the
+ * guard is closed first and all later writes of the handler are dropped. If a write is in progress,
+ * the timeout does not wait for it but leaves the request to the handler thread, which completes it
+ * when the handler returns. So a handler which is still running never writes to a response the
+ * container has already recycled for another request.
+ * <p>
+ * For the same reason the handler reads a {@link RequestSnapshot} taken when the request is
+ * dispatched instead of the request itself.
+ */
+public class AsyncExecutor implements AsyncExecutorMBean
+{
+
+  final static String ATTRIBUTE = AsyncExecutor.class.getName();
+
+  /**
+   * Context parameter with the number of threads, <code>0</code> disables asynchronous processing.
+   */
+  public final static String THREADS_KEY = "asyncThreads";
+  /**
+   * Context parameter with the number of requests waiting for a thread.
+   */
+  public final static String QUEUE_SIZE_KEY = "asyncQueueSize";
+  /**
+   * Context parameter with the time in milliseconds a request may take.
+   */
+  public final static String TIMEOUT_MILLIS_KEY = "asyncTimeoutMillis";
+
+  final static int DEFAULT_THREADS = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+  final static int DEFAULT_QUEUE_SIZE = 1000;
+  final static long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+  private final static Logger LOG = Logger.getLogger(AsyncExecutor.class.getSimpleName());
+
+  /**
+   * The work done for a request.
+   */
+  interface Handler
+  {
+    void handle(HttpServletRequest request, HttpServletResponse response) throws IOException;
+  }
+
+  private final ThreadPoolExecutor executor;
+  private final long timeoutMillis;
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+
+  AsyncExecutor(int threads, int queueSize, long timeoutMillis)
+  {
+    if (threads <= 0) throw new IllegalArgumentException("threads has to be positive: " + threads);
+    this.timeoutMillis = timeoutMillis;
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+              Thread thread = new Thread(runnable, "ota-async-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Creates the executor as configured by the context parameters.
+   * 
+   * @return the executor or <code>null</code> if asynchronous processing is disabled
+   */
+  static AsyncExecutor create(ServletContext context)
+  {
+    int threads = (int) getLong(context, THREADS_KEY, DEFAULT_THREADS);
+    if (threads <= 0) {
+      return null;
+    }
+    return new AsyncExecutor(threads, (int) getLong(context, QUEUE_SIZE_KEY, DEFAULT_QUEUE_SIZE), getLong(context,
+          TIMEOUT_MILLIS_KEY, DEFAULT_TIMEOUT_MILLIS));
+  }
+
+  /**
+   * @return the executor of the web application or <code>null</code> if there is none
+   */
+  static AsyncExecutor get(ServletContext context)
+  {
+    Object executor = context.getAttribute(ATTRIBUTE);
+    return executor instanceof AsyncExecutor ? (AsyncExecutor) executor : null;
+  }
+
+  private static long getLong(ServletContext context, String key, long defaultValue)
+  {
+    String value = context.getInitParameter(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    }
+    catch (NumberFormatException e) {
+      LOG.warning(String.format("Invalid value '%s' for %s, using %d", value, key, defaultValue));
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Runs the handler on the pool. Returns as soon as the request is queued.
+   */
+  void dispatch(final HttpServletRequest request, final HttpServletResponse response, final Handler handler)
+        throws IOException
+  {
+    if (!request.isAsyncSupported()) {
+      handler.handle(request, response);
+      return;
+    }
+    final AsyncContext async = request.startAsync(request, response);
+    async.setTimeout(timeoutMillis);
+    final AtomicBoolean finished = new AtomicBoolean();
+    final GuardedResponse guarded = new GuardedResponse(response);
+    final RequestSnapshot snapshot = new RequestSnapshot(request);
+    final String remoteAddr = snapshot.getRemoteAddr();
+    async.addListener(new AsyncListener() {
+      @Override
+      public void onTimeout(AsyncEvent event) throws IOException
+      {
+        if (finished.compareAndSet(false, true)) {
+          timeouts.incrementAndGet();
+          LOG.warning(String.format("Request from '%s' not done within %d ms", remoteAddr, timeoutMillis));
+          if (guarded.close()) {
+            if (!response.isCommitted()) {
+              response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Timeout");
+            }
+            async.complete();
+          } //otherwise the handler thread completes the request after its write
+        }
+      }
+
+      @Override
+      public void onError(AsyncEvent event)
+      {
+        if (finished.compareAndSet(false, true) && guarded.close()) {
+          async.complete();
+        }
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event)
+      {
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event)
+      {
+      }
+    });
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run()
+        {
+          try {
+            if (!finished.get()) {
+              handler.handle(snapshot, guarded);
+            }
+          }
+          catch (Exception e) {
+            LOG.log(Level.SEVERE, String.format("Exception while processing request from '%s'", remoteAddr), e);
+          }
+          finally {
+            if (finished.compareAndSet(false, true)) {
+              guarded.close();
+              async.complete();
+            }
+            else if (guarded.release()) {
+              async.complete();
+            }
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      if (finished.compareAndSet(false, true)) {
+        rejected.incrementAndGet();
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests");
+        async.complete();
+      }
+    }
+  }
+
+  /**
+   * Stops the threads, queued requests are still processed.
+   */
+  void shutdown()
+  {
+    executor.shutdown();
+  }
+
+  @Override
+  public int getActiveCount()
+  {
+    return executor.getActiveCount();
+  }
+
+  @Override
+  public int getQueueSize()
+  {
+    return executor.getQueue().size();
+  }
+
+  @Override
+  public int getMaximumPoolSize()
+  {
+    return executor.getMaximumPoolSize();
+  }
+
+  @Override
+  public long getCompletedCount()
+  {
+    return executor.getCompletedTaskCount();
+  }
+
+  @Override
+  public long getRejectedCount()
+  {
+    return rejected.get();
+  }
+
+  @Override
+  public long getTimeoutCount()
+  {
+    return timeouts.get();
+  }
+
+  @Override
+  public long getTimeoutMillis()
+  {
+    return timeoutMillis;
+  }
+
+  /**
+   * The values of a request the handlers read: the method, the path, the remote address, the
+   * headers and the parameters. They are copied on the container thread, so the handler does not
+   * read a request which the container recycles after a timeout. Other methods are passed to the
+   * request and must not be used by a handler.
+   */
+  static final class RequestSnapshot extends HttpServletRequestWrapper
+  {
+    private final String method;
+    private final String requestUri;
+    private final String requestUrl;
+    private final String queryString;
+    private final String contextPath;
+    private final String remoteAddr;
+    private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(
+          String.CASE_INSENSITIVE_ORDER);
+    private final Map<String, String[]> parameters;
+
+    RequestSnapshot(HttpServletRequest request)
+    {
+      super(request);
+      method = request.getMethod();
+      requestUri = request.getRequestURI();
+      StringBuffer url = request.getRequestURL();
+      requestUrl = url == null ? null : url.toString();
+      queryString = request.getQueryString();
+      contextPath = request.getContextPath();
+      remoteAddr = request.getRemoteAddr();
+      Enumeration<String> names = request.getHeaderNames();
+      while (names != null && names.hasMoreElements()) {
+        String name = names.nextElement();
+        Enumeration<String> values = request.getHeaders(name);
+        if (values != null && !headers.containsKey(name)) {
+          headers.put(name, Collections.list(values));
+        }
+      }
+      Map<String, String[]> parameterMap = request.getParameterMap();
+      parameters = Collections.unmodifiableMap(parameterMap == null ? new HashMap<String, String[]>()
+            : new LinkedHashMap<String, String[]>(parameterMap));
+    }
+
+    @Override
+    public String getMethod()
+    {
+      return method;
+    }
+
+    @Override
+    public String getRequestURI()
+    {
+      return requestUri;
+    }
+
+    @Override
+    public StringBuffer getRequestURL()
+    {
+      return requestUrl == null ? null : new StringBuffer(requestUrl);
+    }
+
+    @Override
+    public String getQueryString()
+    {
+      return queryString;
+    }
+
+    @Override
+    public String getContextPath()
+    {
+      return contextPath;
+    }
+
+    @Override
+    public String getRemoteAddr()
+    {
+      return remoteAddr;
+    }
+
+    @Override
+    public String getHeader(String name)
+    {
+      List<String> values = headers.get(name);
+      return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name)
+    {
+      List<String> values = headers.get(name);
+      return Collections.enumeration(values == null ? Collections.<String> emptyList() : values);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames()
+    {
+      return Collections.enumeration(headers.keySet());
+    }
+
+    @Override
+    public String getParameter(String name)
+    {
+      String[] values = parameters.get(name);
+      return values == null || values.length == 0 ? null : values[0];
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap()
+    {
+      return parameters;
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames()
+    {
+      return Collections.enumeration(parameters.keySet());
+    }
+
+    @Override
+    public String[] getParameterValues(String name)
+    {
+      String[] values = parameters.get(name);
+      return values == null ? null : values.clone();
+    }
+  }
+
+  /**
+   * Passes everything a handler does to the response until it is closed, afterwards the changes of
+   * the status, the headers and the content are dropped.
+   * <p>
+   * No lock is held while a change is passed on, a write blocked by a slow client does not block
+   * {@link #close()}. A change in progress is counted instead: if there is one, closing leaves the
+   * response to the handler thread, which learns by {@link #release()} that it has to complete it.
+   */
+  static final class GuardedResponse extends HttpServletResponseWrapper
+  {
+    private static final int CLOSED = 1 << 30;
+    private static final int RELEASE = 1 << 29;
+    private static final int IN_PROGRESS = RELEASE - 1;
+
+    /**
+     * The flags and the number of changes in progress.
+     */
+    private final AtomicInteger state = new AtomicInteger();
+    //only used by the handler thread
+    private ServletOutputStream out;
+    private PrintWriter writer;
+
+    GuardedResponse(HttpServletResponse response)
+    {
+      super(response);
+    }
+
+    /**
+     * Drops all following changes without waiting for a change in progress.
+     * 
+     * @return <code>true</code> if no change is in progress, so the caller may answer the request.
+     *         <code>false</code> if one is or the response was closed before.
+     */
+    boolean close()
+    {
+      for (;;) {
+        int current = state.get();
+        if ((current & CLOSED) != 0) {
+          return false;
+        }
+        int closed = (current & IN_PROGRESS) == 0 ? CLOSED : current | CLOSED | RELEASE;
+        if (state.compareAndSet(current, closed)) {
+          return closed == CLOSED;
+        }
+      }
+    }
+
+    boolean isClosed()
+    {
+      return (state.get() & CLOSED) != 0;
+    }
+
+    /**
+     * Called by the handler thread when it is done.
+     * 
+     * @return <code>true</code> once if {@link #close()} found a change of the handler in progress,
+     *         the handler thread then has to complete the request
+     */
+    boolean release()
+    {
+      for (;;) {
+        int current = state.get();
+        if ((current & RELEASE) == 0) {
+          return false;
+        }
+        if (state.compareAndSet(current, current & ~RELEASE)) {
+          return true;
+        }
+      }
+    }
+
+    /**
+     * @return <code>true</code> if the change may be passed on, {@link #exit()} has to follow
+     */
+    private boolean enter()
+    {
+      for (;;) {
+        int current = state.get();
+        if ((current & CLOSED) != 0) {
+          return false;
+        }
+        if (state.compareAndSet(current, current + 1)) {
+          return true;
+        }
+      }
+    }
+
+    private void exit()
+    {
+      state.decrementAndGet();
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException
+    {
+      if (out == null) {
+        ServletOutputStream stream = null;
+        if (enter()) {
+          try {
+            stream = super.getOutputStream();
+          }
+          finally {
+            exit();
+          }
+        }
+        final ServletOutputStream target = stream;
+        out = new ServletOutputStream() {
+          @Override
+          public void write(int b) throws IOException
+          {
+            if (enter()) {
+              try {
+                target.write(b);
+              }
+              finally {
+                exit();
+              }
+            }
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException
+          {
+            if (enter()) {
+              try {
+                target.write(b, off, len);
+              }
+              finally {
+                exit();
+              }
+            }
+          }
+
+          @Override
+          public void flush() throws IOException
+          {
+            if (enter()) {
+              try {
+                target.flush();
+              }
+              finally {
+                exit();
+              }
+            }
+          }
+
+          @Override
+          public void close() throws IOException
+          {
+            if (enter()) {
+              try {
+                target.close();
+              }
+              finally {
+                exit();
+              }
+            }
+          }
+        };
+      }
+      return out;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException
+    {
+      if (writer == null) {
+        PrintWriter printWriter = null;
+        if (enter()) {
+          try {
+            printWriter = super.getWriter();
+          }
+          finally {
+            exit();
+          }
+        }
+        final PrintWriter target = printWriter;
+        writer = new PrintWriter(new Writer() {
+          @Override
+          public void write(char[] cbuf, int off, int len)
+          {
+            if (enter()) {
+              try {
+                target.write(cbuf, off, len);
+              }
+              finally {
+                exit();
+              }
+            }
+          }
+
+          @Override
+          public void flush()
+          {
+            if (enter()) {
+              try {
+                target.flush();
+              }
+              finally {
+                exit();
+              }
+            }
+          }
+
+          @Override
+          public void close()
+          {
+            if (enter()) {
+              try {
+                target.close();
+              }
+              finally {
+                exit();
+              }
+            }
+          }
+        });
+      }
+      return writer;
+    }
+
+    @Override
+    public void setStatus(int sc)
+    {
+      if (enter()) {
+        try {
+          super.setStatus(sc);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm)
+    {
+      if (enter()) {
+        try {
+          super.setStatus(sc, sm);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException
+    {
+      if (enter()) {
+        try {
+          super.sendError(sc, msg);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException
+    {
+      if (enter()) {
+        try {
+          super.sendError(sc);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException
+    {
+      if (enter()) {
+        try {
+          super.sendRedirect(location);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setHeader(String name, String value)
+    {
+      if (enter()) {
+        try {
+          super.setHeader(name, value);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void addHeader(String name, String value)
+    {
+      if (enter()) {
+        try {
+          super.addHeader(name, value);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setDateHeader(String name, long date)
+    {
+      if (enter()) {
+        try {
+          super.setDateHeader(name, date);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void addDateHeader(String name, long date)
+    {
+      if (enter()) {
+        try {
+          super.addDateHeader(name, date);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value)
+    {
+      if (enter()) {
+        try {
+          super.setIntHeader(name, value);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value)
+    {
+      if (enter()) {
+        try {
+          super.addIntHeader(name, value);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void addCookie(Cookie cookie)
+    {
+      if (enter()) {
+        try {
+          super.addCookie(cookie);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setContentType(String type)
+    {
+      if (enter()) {
+        try {
+          super.setContentType(type);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setContentLength(int len)
+    {
+      if (enter()) {
+        try {
+          super.setContentLength(len);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset)
+    {
+      if (enter()) {
+        try {
+          super.setCharacterEncoding(charset);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setLocale(Locale loc)
+    {
+      if (enter()) {
+        try {
+          super.setLocale(loc);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setBufferSize(int size)
+    {
+      if (enter()) {
+        try {
+          super.setBufferSize(size);
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException
+    {
+      if (enter()) {
+        try {
+          super.flushBuffer();
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void resetBuffer()
+    {
+      if (enter()) {
+        try {
+          super.resetBuffer();
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void reset()
+    {
+      if (enter()) {
+        try {
+          super.reset();
+        }
+        finally {
+          exit();
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+/**
+ * Management interface of the {@link AsyncExecutor}.
+ */
+public interface AsyncExecutorMBean
+{
+  public int getActiveCount();
+
+  public int getQueueSize();
+
+  public int getMaximumPoolSize();
+
+  public long getCompletedCount();
+
+  /**
+   * @return number of requests answered with 503 because the queue was full
+   */
+  public long getRejectedCount();
+
+  /**
+   * @return number of requests answered with 503 because they were not done in time
+   */
+  public long getTimeoutCount();
+
+  public long getTimeoutMillis();
+}
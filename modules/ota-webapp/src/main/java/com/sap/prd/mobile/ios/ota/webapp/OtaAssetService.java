@@ -0,0 +1,88 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sap.prd.mobile.ios.ota.lib.StaticAssets;
+import com.sap.prd.mobile.ios.ota.lib.StaticAssets.Asset;
+
+/**
+ * Serves the {@link StaticAssets} from memory. Fingerprinted names are cached forever, plain names,
+ * e.g. the former <code>/images/title.png</code>, only for a short time.
+ */
+@SuppressWarnings("serial")
+public class OtaAssetService extends HttpServlet
+{
+
+  private final Logger LOG = Logger.getLogger(OtaAssetService.class.getSimpleName());
+
+  /**
+   * Context parameter with the <code>Cache-Control</code> policy of the fingerprinted assets.
+   */
+  public final static String CACHE_CONTROL_KEY = "assetCacheControl";
+  final static String DEFAULT_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+  private String cacheControl = DEFAULT_CACHE_CONTROL;
+
+  @Override
+  public void init() throws ServletException
+  {
+    cacheControl = Utils.getCacheControl(getServletContext(), CACHE_CONTROL_KEY, DEFAULT_CACHE_CONTROL);
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+  {
+    try {
+      String path = request.getPathInfo();
+      Asset asset = StaticAssets.getInstance().get(path == null ? null : path.substring(1));
+      if (asset == null) {
+        response.sendError(404, "Unknown asset");
+        return;
+      }
+      String policy = asset.getFingerprintedName().equals(path.substring(1)) ? cacheControl
+            : Utils.DEFAULT_CACHE_CONTROL;
+      boolean gzip = asset.getGzipContent() != null && Utils.acceptsGzip(request.getHeader("Accept-Encoding"));
+      String vary = asset.getGzipContent() == null ? null : "Accept-Encoding";
+      String etag = gzip ? asset.getGzipETag() : asset.getETag();
+      if (Utils.sendNotModified(request, response, etag, policy, vary)) {
+        return;
+      }
+      Utils.setCacheHeaders(response, etag, policy, vary);
+      if (gzip) {
+        response.setHeader("Content-Encoding", "gzip");
+      }
+      Utils.writeResponse(response, asset.getContentType(), gzip ? asset.getGzipContent() : asset.getContent());
+    }
+    catch (Exception e) {
+      LOG.log(Level.SEVERE, String.format(
+            "Exception while processing GET request from '%s'", request.getRemoteAddr()), e);
+    }
+  }
+
+}
@@ -0,0 +1,461 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sap.prd.mobile.ios.ota.lib.BulkRecordReader;
+import com.sap.prd.mobile.ios.ota.lib.LibUtils;
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.lib.PlistToken;
+
+/**
+ * Computes the PLIST, HTML and IPA URLs for many Apps at once, e.g. for all artifacts of a CI
+ * build. The records are posted as CSV (content type <code>text/csv</code>) or as JSON, see
+ * {@link BulkRecordReader}. They are processed in parallel and each result is written to the
+ * response as soon as it is done, so the results are not in the order of the records: each
+ * result carries the index of its record, starting with 0. The response has the format of the
+ * request, CSV or one JSON object per line. A record which cannot be processed gets an error as
+ * result; a malformed stream ends the response with an error for the index of the first record
+ * which could not be read.
+ */
+@SuppressWarnings("serial")
+public class OtaBulkService extends HttpServlet
+{
+
+  private final Logger LOG = Logger.getLogger(OtaBulkService.class.getSimpleName());
+
+  public final static String SERVICE_NAME = "BULK";
+
+  /**
+   * Context parameter with the number of threads processing the records, <code>0</code> processes
+   * them on the request thread.
+   */
+  public final static String THREADS_KEY = "bulkThreads";
+  /**
+   * Context parameter with the maximum number of records per request.
+   */
+  public final static String MAX_RECORDS_KEY = "bulkMaxRecords";
+
+  final static int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+  final static int DEFAULT_MAX_RECORDS = 100000;
+  /**
+   * Records processed together on the request thread, the threads process each record on its own.
+   */
+  final static int BATCH_SIZE = 64;
+  /**
+   * Records per thread which are read ahead of the results written.
+   */
+  final static int PENDING_PER_THREAD = 16;
+
+  private ExecutorService executor;
+  private String plistTemplatePath;
+  private int threads;
+  private int maxRecords;
+
+  @Override
+  public void init() throws ServletException
+  {
+    threads = getInt(THREADS_KEY, DEFAULT_THREADS);
+    maxRecords = getInt(MAX_RECORDS_KEY, DEFAULT_MAX_RECORDS);
+    plistTemplatePath = getServletContext().getInitParameter(OtaPlistService.PLIST_TEMPLATE_PATH_KEY);
+    if (threads > 0) {
+      executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+          Thread thread = new Thread(runnable, "ota-bulk-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+
+  @Override
+  public void destroy()
+  {
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  private int getInt(String key, int defaultValue)
+  {
+    String value = getServletContext().getInitParameter(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    }
+    catch (NumberFormatException e) {
+      LOG.warning(String.format("Invalid value '%s' for %s, using %d", value, key, defaultValue));
+      return defaultValue;
+    }
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+        IOException
+  {
+    request.setCharacterEncoding("UTF-8");
+    Format format = Format.forContentType(request.getContentType());
+    BulkRecordReader reader = format == Format.CSV ? BulkRecordReader.forCsv(request.getReader())
+          : BulkRecordReader.forJson(request.getReader());
+    String serviceUrl = getServiceUrl(request);
+    response.setContentType(format.contentType);
+    Writer writer = response.getWriter();
+    writer.write(format.header());
+
+    long start = System.currentTimeMillis();
+    int records = process(reader, new Batch(format, serviceUrl, plistTemplatePath), writer);
+    writer.flush();
+    LOG.info(String.format("%d records from '%s' processed in %d ms", records, request.getRemoteAddr(),
+          System.currentTimeMillis() - start));
+  }
+
+  /**
+   * Reads the records and writes the result of each record as soon as it is done, so the results of
+   * the threads are in completion order. On the request thread the records are processed in
+   * batches. At most {@link #PENDING_PER_THREAD} records per thread are in progress, so a large
+   * request does not fill the memory.
+   * 
+   * @return the number of records
+   */
+  int process(BulkRecordReader reader, Batch template, Writer writer) throws IOException
+  {
+    CompletionService<String> completion = executor == null ? null : new ExecutorCompletionService<String>(
+          executor);
+    int batchSize = completion == null ? BATCH_SIZE : 1;
+    int pending = 0;
+    int index = 0;
+    String error;
+    try {
+      for (;;) {
+        Batch batch = template.next(index);
+        error = batch.read(reader, Math.min(batchSize, maxRecords - index));
+        index += batch.size();
+        if (completion == null) {
+          writer.write(batch.call());
+          writer.flush();
+        }
+        else if (batch.size() > 0) {
+          completion.submit(batch);
+          if (++pending >= PENDING_PER_THREAD * threads) {
+            writer.write(take(completion));
+            pending--;
+          }
+          pending -= drain(completion, writer);
+        }
+        if (error != null) {
+          break;
+        }
+        if (batch.size() < batchSize) {
+          if (index >= maxRecords && hasMore(reader)) {
+            error = "More than " + maxRecords + " records";
+          }
+          break;
+        }
+      }
+    }
+    finally {
+      for (; pending > 0; pending--) {
+        writer.write(take(completion));
+        pending -= drain(completion, writer);
+      }
+    }
+    if (error != null) {
+      writer.write(template.format.error(index, error));
+    }
+    return index;
+  }
+
+  private static boolean hasMore(BulkRecordReader reader) throws IOException
+  {
+    try {
+      return reader.read() != null;
+    }
+    catch (IllegalArgumentException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Writes the results which are done without waiting for the others.
+   * 
+   * @return the number of results written
+   */
+  private static int drain(CompletionService<String> completion, Writer writer) throws IOException
+  {
+    int count = 0;
+    for (Future<String> done; (done = completion.poll()) != null; count++) {
+      writer.write(get(done));
+    }
+    if (count > 0) {
+      writer.flush();
+    }
+    return count;
+  }
+
+  private static String take(CompletionService<String> completion) throws IOException
+  {
+    try {
+      return get(completion.take());
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted");
+    }
+  }
+
+  private static String get(Future<String> done) throws IOException
+  {
+    try {
+      return done.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted");
+    }
+    catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  static String getServiceUrl(HttpServletRequest request)
+  {
+    String url = request.getRequestURL().toString();
+    return url.substring(0, url.lastIndexOf("/" + SERVICE_NAME));
+  }
+
+  /**
+   * Records which are processed together, the result is the output for all of them.
+   */
+  static class Batch implements Callable<String>
+  {
+    private final Format format;
+    private final String plistServiceUrl;
+    private final String plistTemplatePath;
+    private final String htmlServiceUrl;
+    private final int offset;
+    private final List<PlistToken> records = new ArrayList<PlistToken>();
+
+    Batch(Format format, String serviceUrl)
+    {
+      this(format, serviceUrl, null);
+    }
+
+    /**
+     * @param plistTemplatePath
+     *          the template of the PLIST service, see {@link OtaPlistService#versioned(String, String)}
+     */
+    Batch(Format format, String serviceUrl, String plistTemplatePath)
+    {
+      this(format, serviceUrl + "/" + OtaPlistService.SERVICE_NAME, plistTemplatePath,
+            serviceUrl + "/" + OtaHtmlService.SERVICE_NAME, 0);
+    }
+
+    private Batch(Format format, String plistServiceUrl, String plistTemplatePath, String htmlServiceUrl, int offset)
+    {
+      this.format = format;
+      this.plistServiceUrl = plistServiceUrl;
+      this.plistTemplatePath = plistTemplatePath;
+      this.htmlServiceUrl = htmlServiceUrl;
+      this.offset = offset;
+    }
+
+    Batch next(int offset)
+    {
+      return new Batch(format, plistServiceUrl, plistTemplatePath, htmlServiceUrl, offset);
+    }
+
+    /**
+     * @return the message if the stream is malformed, <code>null</code> otherwise
+     */
+    String read(BulkRecordReader reader, int count) throws IOException
+    {
+      try {
+        for (PlistToken record; records.size() < count && (record = reader.read()) != null;) {
+          records.add(record);
+        }
+        return null;
+      }
+      catch (IllegalArgumentException e) {
+        return e.getMessage();
+      }
+    }
+
+    int size()
+    {
+      return records.size();
+    }
+
+    @Override
+    public String call()
+    {
+      StringBuilder out = new StringBuilder(records.size() * 400);
+      for (int i = 0; i < records.size(); i++) {
+        PlistToken record = records.get(i);
+        try {
+          out.append(format.result(offset + i, getPlistUrl(record), getHtmlUrl(record), getIpaUrl(record)));
+        }
+        catch (Exception e) {
+          out.append(format.error(offset + i, String.valueOf(e.getMessage())));
+        }
+      }
+      return out.toString();
+    }
+
+    private String getPlistUrl(PlistToken record)
+    {
+      return OtaPlistService.versioned(OtaPlistGenerator.compactPlistRequestUrl(plistServiceUrl, referer(record),
+            record.getTitle(), record.getBundleIdentifier(), record.getBundleVersion(), record.getIpaClassifier(),
+            record.getOtaClassifier()), plistTemplatePath);
+    }
+
+    private String getHtmlUrl(PlistToken record)
+    {
+      referer(record);
+      return OtaShortLinkService.getHtmlUrl(htmlServiceUrl, record);
+    }
+
+    private String getIpaUrl(PlistToken record) throws IOException
+    {
+      URL url = LibUtils.generateDirectIpaUrl(referer(record), record.getIpaClassifier(), record.getOtaClassifier());
+      return url.toExternalForm();
+    }
+
+    private static String referer(PlistToken record)
+    {
+      if (record.getReferer() == null) {
+        throw new IllegalArgumentException("Referer required");
+      }
+      return record.getReferer();
+    }
+  }
+
+  enum Format
+  {
+    CSV("text/csv;charset=UTF-8")
+    {
+      @Override
+      String header()
+      {
+        return "index,plistUrl,htmlUrl,ipaUrl,error\r\n";
+      }
+
+      @Override
+      String result(int index, String plistUrl, String htmlUrl, String ipaUrl)
+      {
+        return index + "," + quote(plistUrl) + "," + quote(htmlUrl) + "," + quote(ipaUrl) + ",\r\n";
+      }
+
+      @Override
+      String error(int index, String message)
+      {
+        return index + ",,,," + quote(message) + "\r\n";
+      }
+    },
+    JSON("application/x-ndjson;charset=UTF-8")
+    {
+      @Override
+      String header()
+      {
+        return "";
+      }
+
+      @Override
+      String result(int index, String plistUrl, String htmlUrl, String ipaUrl)
+      {
+        return "{\"index\":" + index + ",\"plistUrl\":" + quote(plistUrl) + ",\"htmlUrl\":" + quote(htmlUrl)
+              + ",\"ipaUrl\":" + quote(ipaUrl) + "}\n";
+      }
+
+      @Override
+      String error(int index, String message)
+      {
+        return "{\"index\":" + index + ",\"error\":" + quote(message) + "}\n";
+      }
+    };
+
+    final String contentType;
+
+    private Format(String contentType)
+    {
+      this.contentType = contentType;
+    }
+
+    abstract String header();
+
+    abstract String result(int index, String plistUrl, String htmlUrl, String ipaUrl);
+
+    abstract String error(int index, String message);
+
+    String quote(String value)
+    {
+      StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == '"') {
+          quoted.append(this == CSV ? "\"\"" : "\\\"");
+        }
+        else if (this == JSON && c == '\\') {
+          quoted.append("\\\\");
+        }
+        else if (this == JSON && c < 0x20) {
+          quoted.append(String.format("\\u%04x", (int) c));
+        }
+        else {
+          quoted.append(c);
+        }
+      }
+      return quoted.append('"').toString();
+    }
+
+    static Format forContentType(String contentType)
+    {
+      return contentType != null && contentType.toLowerCase().startsWith("text/csv") ? CSV : JSON;
+    }
+  }
+
+}
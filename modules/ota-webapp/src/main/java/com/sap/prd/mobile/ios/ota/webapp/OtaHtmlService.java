@@ -25,22 +25,31 @@ import static com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator.IPA_CLASSIFIER;
 import static com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator.OTA_CLASSIFIER;
 import static com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator.TITLE;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.URL;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.sap.prd.mobile.ios.ota.lib.GzipCompressor;
 import com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator;
 import com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator.Parameters;
 import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.lib.RenderCache;
+import com.sap.prd.mobile.ios.ota.lib.RenderCoalescer;
+import com.sap.prd.mobile.ios.ota.lib.StaticAssets;
 
 @SuppressWarnings("serial")
 public class OtaHtmlService extends HttpServlet
@@ -48,7 +57,71 @@ public class OtaHtmlService extends HttpServlet
 
   private final Logger LOG = Logger.getLogger(OtaPlistService.class.getSimpleName());
   public final static String HTML_TEMPLATE_PATH_KEY = "htmlTemplatePath";
-  
+  public final static String CONTENT_TYPE = "text/html;charset=UTF-8";
+  public final static String SERVICE_NAME = "HTML";
+  /**
+   * Context parameter with the <code>Cache-Control</code> policy of the HTML pages. An empty value
+   * disables the header.
+   */
+  public final static String CACHE_CONTROL_KEY = "htmlCacheControl";
+
+  private RenderCache<RenderKey> renderCache;
+  private final RenderCoalescer<RenderKey> coalescer = new RenderCoalescer<RenderKey>();
+  private ObjectName renderCacheName;
+  private volatile Map<String, String> initParameters;
+  private String cacheControl = Utils.DEFAULT_CACHE_CONTROL;
+  private GzipCompressor compressor = new GzipCompressor(Deflater.DEFAULT_COMPRESSION, Utils.DEFAULT_GZIP_MIN_BYTES);
+  private ObjectName compressorName;
+  private AsyncExecutor executor;
+  private final AsyncExecutor.Handler handler = new AsyncExecutor.Handler() {
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+      process(request, response);
+    }
+  };
+
+  @Override
+  public void init() throws ServletException
+  {
+    initParameters = snapshotInitParameters();
+    cacheControl = Utils.getCacheControl(getServletContext(), CACHE_CONTROL_KEY, Utils.DEFAULT_CACHE_CONTROL);
+    try {
+      OtaHtmlGenerator.getInstance(initParameters.get(HTML_TEMPLATE_PATH_KEY)).specialize(initParameters);
+    }
+    catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Cannot load the HTML template", e);
+    }
+    renderCache = Utils.createRenderCache(getServletContext());
+    if (renderCache != null) {
+      renderCacheName = Utils.registerMBean(renderCache, "RenderCache", SERVICE_NAME, getServletContext());
+    }
+    compressor = Utils.createGzipCompressor(getServletContext());
+    if (compressor != null) {
+      compressorName = Utils.registerMBean(compressor, "GzipCompressor", SERVICE_NAME, getServletContext());
+    }
+    executor = AsyncExecutor.get(getServletContext());
+  }
+
+  @Override
+  public void destroy()
+  {
+    Utils.unregisterMBean(renderCacheName);
+    renderCacheName = null;
+    Utils.unregisterMBean(compressorName);
+    compressorName = null;
+  }
+
+  RenderCache<RenderKey> getRenderCache()
+  {
+    return renderCache;
+  }
+
+  GzipCompressor getCompressor()
+  {
+    return compressor;
+  }
+
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
   {
@@ -57,6 +130,17 @@ public class OtaHtmlService extends HttpServlet
 
   @Override
   protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+  {
+    AsyncExecutor executor = this.executor;
+    if (executor == null) {
+      process(request, response);
+    }
+    else {
+      executor.dispatch(request, response, handler);
+    }
+  }
+
+  private void process(HttpServletRequest request, HttpServletResponse response) throws IOException
   {
     //TODO: REWORK. PlistService now uses Base64+URLEncoded parameters, and no URL Parameters but slashes!
 
@@ -64,7 +148,8 @@ public class OtaHtmlService extends HttpServlet
       String originalReferer = Utils.getRefererSendError(request, response);
       //String referer = removeFilePartFromURL(originalReferer);
 
-      URL plistUrl = OtaPlistGenerator.generatePlistRequestUrl(
+      Map<String, String> initParameters = getInitParameters();
+      String plistUrl = OtaPlistService.versioned(OtaPlistGenerator.compactPlistRequestUrl(
             getPlistServiceUrl(request),
             originalReferer,
             request.getParameter(TITLE),
@@ -72,22 +157,62 @@ public class OtaHtmlService extends HttpServlet
             request.getParameter(BUNDLE_VERSION),
             request.getParameter(IPA_CLASSIFIER),
             request.getParameter(OTA_CLASSIFIER)
-          );
+          ), initParameters.get(OtaPlistService.PLIST_TEMPLATE_PATH_KEY));
 
       LOG.info(String.format("GET request from '%s' with referer '%s' and parameters '%s', '%s', '%s', '%s', '%s'",
             request.getRemoteAddr(), originalReferer, request.getParameter(TITLE), request
               .getParameter(BUNDLE_IDENTIFIER), request.getParameter(BUNDLE_VERSION),
             request.getParameter(IPA_CLASSIFIER), request.getParameter(OTA_CLASSIFIER)));
-
-      HashMap<String, String> initParameters = getInitParameters();
+
       String htmlTemplatePath =initParameters.get(HTML_TEMPLATE_PATH_KEY);
       
-      PrintWriter writer = response.getWriter();
-      OtaHtmlGenerator.getInstance(htmlTemplatePath).generate(writer,
-            new Parameters(originalReferer, request.getParameter(TITLE), request.getParameter(BUNDLE_IDENTIFIER), plistUrl,
-                  request.getParameter(IPA_CLASSIFIER), request.getParameter(OTA_CLASSIFIER), initParameters));
-      writer.flush();
-      writer.close();
+      final OtaHtmlGenerator generator = OtaHtmlGenerator.getInstance(htmlTemplatePath);
+      generator.specialize(initParameters);
+      final Parameters parameters = new Parameters(originalReferer, request.getParameter(TITLE),
+            request.getParameter(BUNDLE_IDENTIFIER), plistUrl, request.getParameter(IPA_CLASSIFIER),
+            request.getParameter(OTA_CLASSIFIER), initParameters);
+      //the page links the plist with the referer, which may come from the header
+      final GzipCompressor compressor = this.compressor;
+      String vary = compressor == null ? "Referer" : "Referer, Accept-Encoding";
+      boolean gzip = compressor != null && Utils.acceptsGzip(request.getHeader("Accept-Encoding"));
+      RenderKey key = new RenderKey(generator, parameters, initParameters);
+      String etag = key.getETag();
+      if (gzip && Utils.matches(request.getHeader("If-None-Match"), key.gzip().getETag())) {
+        etag = key.gzip().getETag();
+      }
+      if (Utils.sendNotModified(request, response, etag, cacheControl, vary)) {
+        return;
+      }
+      byte[] content = Utils.render(renderCache, coalescer, key,
+            new Callable<byte[]>() {
+              @Override
+              public byte[] call() throws IOException
+              {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+                generator.generate(out, parameters);
+                return out.toByteArray();
+              }
+            });
+      if (gzip && compressor.isCompressible(content.length)) {
+        if (renderCache == null) {
+          Utils.setCacheHeaders(response, key.gzip().getETag(), cacheControl, vary);
+          Utils.writeCompressedResponse(response, CONTENT_TYPE, compressor, content);
+          return;
+        }
+        //the cached variant is compressed once
+        final byte[] identity = content;
+        key = key.gzip();
+        content = Utils.render(renderCache, coalescer, key, new Callable<byte[]>() {
+          @Override
+          public byte[] call()
+          {
+            return compressor.compress(identity);
+          }
+        });
+        response.setHeader("Content-Encoding", "gzip");
+      }
+      Utils.setCacheHeaders(response, key.getETag(), cacheControl, vary);
+      Utils.writeResponse(response, CONTENT_TYPE, content);
     }
     catch (Exception e) {
       LOG.log(Level.SEVERE, String.format(
@@ -95,19 +220,46 @@ public class OtaHtmlService extends HttpServlet
     }
   }
 
-  private HashMap<String,String> getInitParameters()
+  /**
+   * The context parameters are copied once when the servlet is initialized, a changed configuration
+   * comes with a new initialization. All requests share the same immutable snapshot.
+   */
+  Map<String, String> getInitParameters()
+  {
+    Map<String, String> snapshot = initParameters;
+    if (snapshot == null) {
+      snapshot = snapshotInitParameters();
+      initParameters = snapshot;
+    }
+    return snapshot;
+  }
+
+  private Map<String,String> snapshotInitParameters()
   {
-    HashMap<String, String> map = new HashMap<String, String>();
     try {
-      Enumeration<String> initParameterNames = this.getServletContext().getInitParameterNames();
-      while(initParameterNames.hasMoreElements()) {
-        String name = initParameterNames.nextElement();
-        map.put(name,  this.getServletContext().getInitParameter(name));
-      }
+      return snapshotInitParameters(this.getServletContext());
     } catch(IllegalStateException e) {
       if(!e.getMessage().equals("ServletConfig has not been initialized")) throw e;
     }
-    return map;
+    return Collections.emptyMap();
+  }
+
+  /**
+   * The snapshot also contains the URLs of the static assets, a context parameter of the same name
+   * overrides them. The warm-up renders with the same snapshot, see
+   * {@link OtaServiceContextListener}.
+   */
+  static Map<String, String> snapshotInitParameters(ServletContext context)
+  {
+    HashMap<String, String> map = new HashMap<String, String>();
+    String contextPath = context.getContextPath();
+    map.putAll(StaticAssets.getInstance().getUrls(contextPath == null ? "" : contextPath));
+    Enumeration<String> initParameterNames = context.getInitParameterNames();
+    while(initParameterNames != null && initParameterNames.hasMoreElements()) {
+      String name = initParameterNames.nextElement();
+      map.put(name, context.getInitParameter(name));
+    }
+    return Collections.unmodifiableMap(map);
   }
 
   String getPlistServiceUrl(HttpServletRequest request)
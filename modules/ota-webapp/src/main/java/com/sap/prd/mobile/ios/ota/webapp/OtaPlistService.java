@@ -20,10 +20,11 @@
 package com.sap.prd.mobile.ios.ota.webapp;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -31,6 +32,10 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
 import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.Parameters;
+import com.sap.prd.mobile.ios.ota.lib.RenderCache;
+import com.sap.prd.mobile.ios.ota.lib.RenderCoalescer;
+import com.sap.prd.mobile.ios.ota.webapp.UriParameters.InvalidUriException;
+import com.sap.prd.mobile.ios.ota.webapp.UriParameters.Key;
 
 @SuppressWarnings("serial")
 public class OtaPlistService extends HttpServlet
@@ -39,18 +44,88 @@ public class OtaPlistService extends HttpServlet
   private final Logger LOG = Logger.getLogger(OtaPlistService.class.getSimpleName());
 
   public final static String SERVICE_NAME = "PLIST"; //todo: dynamic
+  public final static String CONTENT_TYPE = "application/xml;charset=UTF-8";
+  public final static String PLIST_TEMPLATE_PATH_KEY = "plistTemplatePath";
+  /**
+   * Context parameter with the <code>Cache-Control</code> policy of manifests requested with plain
+   * parameters. An empty value disables the header.
+   */
+  public final static String CACHE_CONTROL_KEY = "plistCacheControl";
+  /**
+   * Context parameter with the <code>Cache-Control</code> policy of manifests requested with a
+   * compact token carrying the referer and rendered by the bundled template. Such a URL identifies
+   * the content, so the manifest can be cached for long. A configured template may change without
+   * a change of the URL, so its manifests get the policy of {@link #CACHE_CONTROL_KEY}.
+   */
+  public final static String IMMUTABLE_CACHE_CONTROL_KEY = "plistImmutableCacheControl";
+  final static String DEFAULT_IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+  private RenderCache<RenderKey> renderCache;
+  private final RenderCoalescer<RenderKey> coalescer = new RenderCoalescer<RenderKey>();
+  private ObjectName renderCacheName;
+  private String plistTemplatePath;
+  private String cacheControl = Utils.DEFAULT_CACHE_CONTROL;
+  private String immutableCacheControl = DEFAULT_IMMUTABLE_CACHE_CONTROL;
+  private AsyncExecutor executor;
+  private final AsyncExecutor.Handler handler = new AsyncExecutor.Handler() {
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+      process(request, response);
+    }
+  };
+
+  @Override
+  public void init() throws ServletException
+  {
+    plistTemplatePath = getServletContext().getInitParameter(PLIST_TEMPLATE_PATH_KEY);
+    cacheControl = Utils.getCacheControl(getServletContext(), CACHE_CONTROL_KEY, Utils.DEFAULT_CACHE_CONTROL);
+    immutableCacheControl = Utils.getCacheControl(getServletContext(), IMMUTABLE_CACHE_CONTROL_KEY,
+          DEFAULT_IMMUTABLE_CACHE_CONTROL);
+    executor = AsyncExecutor.get(getServletContext());
+    renderCache = Utils.createRenderCache(getServletContext());
+    if (renderCache != null) {
+      renderCacheName = Utils.registerMBean(renderCache, "RenderCache", SERVICE_NAME, getServletContext());
+    }
+  }
+
+  @Override
+  public void destroy()
+  {
+    Utils.unregisterMBean(renderCacheName);
+    renderCacheName = null;
+  }
+
+  RenderCache<RenderKey> getRenderCache()
+  {
+    return renderCache;
+  }
 
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+  {
+    AsyncExecutor executor = this.executor;
+    if (executor == null) {
+      process(request, response);
+    }
+    else {
+      executor.dispatch(request, response, handler);
+    }
+  }
+
+  private void process(HttpServletRequest request, HttpServletResponse response) throws IOException
   {
     try {
-      String title;
-      String bundleIdentifier;
-      String bundleVersion;
+      String title = null;
+      String bundleIdentifier = null;
+      String bundleVersion = null;
       String ipaClassifier = null;
       String otaClassifier = null;
+      boolean compact = false;
+      String version = null;
 
       String originalReferer = Utils.getReferer(request);
+      boolean refererFromHeader = request.getParameter("Referer") == null;
       //String referer;
 
       if(request.getParameterMap().size() != 0) {
@@ -61,15 +136,27 @@ public class OtaPlistService extends HttpServlet
         otaClassifier = request.getParameter(OtaPlistGenerator.OTA_CLASSIFIER);
       }
       else { //handling with slashes to separate the parameters
-        String[][] extractedParametersFromUri = Utils.extractParametersFromUri(request, SERVICE_NAME);
-        String uriReferer = Utils.getValueFromUriParameterMap(extractedParametersFromUri, OtaPlistGenerator.REFERER);
-        originalReferer = uriReferer == null ? originalReferer : uriReferer;
-        title = Utils.getValueFromUriParameterMap(extractedParametersFromUri, OtaPlistGenerator.TITLE);
-        bundleIdentifier = Utils.getValueFromUriParameterMap(extractedParametersFromUri,
-              OtaPlistGenerator.BUNDLE_IDENTIFIER);
-        bundleVersion = Utils.getValueFromUriParameterMap(extractedParametersFromUri, OtaPlistGenerator.BUNDLE_VERSION);
-        ipaClassifier = Utils.getValueFromUriParameterMap(extractedParametersFromUri, OtaPlistGenerator.IPA_CLASSIFIER);
-        otaClassifier = Utils.getValueFromUriParameterMap(extractedParametersFromUri, OtaPlistGenerator.OTA_CLASSIFIER);
+        UriParameters parameters;
+        try {
+          parameters = UriParameters.parse(request.getRequestURI(), SERVICE_NAME);
+        }
+        catch (InvalidUriException e) {
+          LOG.warning(String.format("Rejected GET request from '%s': %s", request.getRemoteAddr(), e.getMessage()));
+          response.sendError(e.getStatus(), e.getMessage());
+          return;
+        }
+        if (parameters != null) {
+          String uriReferer = parameters.get(Key.REFERER);
+          originalReferer = uriReferer == null ? originalReferer : uriReferer;
+          refererFromHeader = uriReferer == null;
+          compact = parameters.isCompact();
+          version = parameters.getVersion();
+          title = parameters.get(Key.TITLE);
+          bundleIdentifier = parameters.get(Key.BUNDLE_IDENTIFIER);
+          bundleVersion = parameters.get(Key.BUNDLE_VERSION);
+          ipaClassifier = parameters.get(Key.IPA_CLASSIFIER);
+          otaClassifier = parameters.get(Key.OTA_CLASSIFIER);
+        }
       }
 
       if (originalReferer == null) {
@@ -81,11 +168,25 @@ public class OtaPlistService extends HttpServlet
       LOG.info(String.format("GET request from '%s' with referer '%s' and parameters '%s', '%s', '%s'",
             request.getRemoteAddr(), originalReferer, title, bundleIdentifier, bundleVersion));
 
-      PrintWriter writer = response.getWriter();
-      OtaPlistGenerator.getInstance().generate(writer,
-            new Parameters(originalReferer, title, bundleIdentifier, bundleVersion, ipaClassifier, otaClassifier));
-      writer.flush();
-      writer.close();
+      final OtaPlistGenerator generator = OtaPlistGenerator.getInstance(plistTemplatePath);
+      final Parameters parameters = new Parameters(originalReferer, title, bundleIdentifier, bundleVersion,
+            ipaClassifier, otaClassifier);
+      RenderKey key = new RenderKey(generator, parameters);
+      String policy = isImmutable(compact, version, refererFromHeader, generator) ? immutableCacheControl : cacheControl;
+      String vary = refererFromHeader ? "Referer" : null;
+      if (Utils.sendNotModified(request, response, key.getETag(), policy, vary)) {
+        return;
+      }
+      byte[] content = Utils.render(renderCache, coalescer, key,
+            new Callable<byte[]>() {
+              @Override
+              public byte[] call() throws IOException
+              {
+                return generator.generateBytes(parameters);
+              }
+            });
+      Utils.setCacheHeaders(response, key.getETag(), policy, vary);
+      Utils.writeResponse(response, CONTENT_TYPE, content);
     }
     catch (Exception e) {
       LOG.log(Level.SEVERE, String.format(
@@ -93,4 +194,34 @@ public class OtaPlistService extends HttpServlet
     }
   }
 
+  /**
+   * @return <code>true</code> if the URL determines the manifest: the values including the referer
+   *         come from a compact token and the bundled template renders them in the version named
+   *         by the URL, see {@link #versioned(String, String)}
+   */
+  static boolean isImmutable(boolean compact, String version, boolean refererFromHeader,
+        OtaPlistGenerator generator)
+  {
+    return compact && !refererFromHeader && generator == OtaPlistGenerator.getInstance()
+          && generator.getTemplateFingerprint().equals(version);
+  }
+
+  /**
+   * Appends the fingerprint of the bundled template to a compact PLIST URL. A new release of the
+   * library or a changed template thus comes with new URLs, a cached manifest is never served for
+   * a version it was not rendered by.
+   * 
+   * @param plistTemplatePath
+   *          the template configured for the PLIST service, <code>null</code> for the bundled one.
+   *          URLs of other templates are not versioned, their manifests are not immutable.
+   */
+  static String versioned(String compactPlistUrl, String plistTemplatePath)
+  {
+    OtaPlistGenerator generator = OtaPlistGenerator.getInstance(plistTemplatePath);
+    if (generator != OtaPlistGenerator.getInstance()) {
+      return compactPlistUrl;
+    }
+    return compactPlistUrl + '/' + generator.getTemplateFingerprint();
+  }
+
 }
@@ -0,0 +1,173 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator;
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.lib.TemplateWatcher;
+
+/**
+ * Prepares the OTA services before the container reports the web application as started and
+ * releases the shared resources when it is stopped.
+ * <p>
+ * On startup the configured templates are loaded and rendered a number of times with synthetic
+ * parameters, so the first real request neither parses templates nor runs cold code. The number of
+ * renders is configured with the context parameter <code>warmupRenders</code>, <code>0</code>
+ * only loads the templates.
+ * <p>
+ * The HTML generators are kept per template path, at most <code>generatorRegistryMaxSize</code>
+ * of them. The registry is exposed as MBean.
+ * <p>
+ * The {@link AsyncExecutor} shared by the services is created here and stopped with the web
+ * application.
+ */
+public class OtaServiceContextListener implements ServletContextListener
+{
+
+  public final static String WARMUP_RENDERS_KEY = "warmupRenders";
+  final static int DEFAULT_WARMUP_RENDERS = 200;
+  public final static String GENERATOR_REGISTRY_MAX_SIZE_KEY = "generatorRegistryMaxSize";
+
+  private final static String WARMUP_REFERER = "http://localhost/warmup/Warmup.htm";
+  private final static String WARMUP_PLIST_SERVICE_URL = "http://localhost/ota-service/PLIST";
+
+  private final Logger LOG = Logger.getLogger(OtaServiceContextListener.class.getSimpleName());
+
+  private ObjectName generatorRegistryName;
+  private AsyncExecutor asyncExecutor;
+  private ObjectName asyncExecutorName;
+
+  @Override
+  public void contextInitialized(ServletContextEvent event)
+  {
+    ServletContext context = event.getServletContext();
+    String maxSize = context.getInitParameter(GENERATOR_REGISTRY_MAX_SIZE_KEY);
+    if (maxSize != null) {
+      try {
+        OtaHtmlGenerator.getRegistry().setMaximumSize(Integer.parseInt(maxSize.trim()));
+      }
+      catch (IllegalArgumentException e) {
+        LOG.warning(String.format("Invalid value '%s' for %s, keeping %d", maxSize, GENERATOR_REGISTRY_MAX_SIZE_KEY,
+              OtaHtmlGenerator.getRegistry().getMaximumSize()));
+      }
+    }
+    generatorRegistryName = Utils.registerMBean(OtaHtmlGenerator.getRegistry(), "GeneratorRegistry",
+          OtaHtmlService.SERVICE_NAME, context);
+    asyncExecutor = AsyncExecutor.create(context);
+    if (asyncExecutor != null) {
+      context.setAttribute(AsyncExecutor.ATTRIBUTE, asyncExecutor);
+      asyncExecutorName = Utils.registerMBean(asyncExecutor, "AsyncExecutor", "services", context);
+    }
+    try {
+      warmUp(OtaHtmlService.snapshotInitParameters(context), getWarmupRenders(context));
+    }
+    catch (Exception e) {
+      LOG.log(Level.WARNING, "Warm-up of the OTA services failed", e);
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event)
+  {
+    Utils.unregisterMBean(generatorRegistryName);
+    generatorRegistryName = null;
+    if (asyncExecutor != null) {
+      event.getServletContext().removeAttribute(AsyncExecutor.ATTRIBUTE);
+      Utils.unregisterMBean(asyncExecutorName);
+      asyncExecutorName = null;
+      asyncExecutor.shutdown();
+      asyncExecutor = null;
+    }
+    TemplateWatcher.getInstance().close();
+  }
+
+  /**
+   * Loads the templates and renders them <code>renders</code> times like the services do: the HTML
+   * template is specialized for the configuration and rendered against it.
+   * 
+   * @param initParameters
+   *          the snapshot of the configuration the HTML service renders with, see
+   *          {@link OtaHtmlService#snapshotInitParameters(ServletContext)}
+   * @return the number of renders done
+   */
+  int warmUp(Map<String, String> initParameters, int renders) throws IOException
+  {
+    long start = System.nanoTime();
+    String plistTemplatePath = initParameters.get(OtaPlistService.PLIST_TEMPLATE_PATH_KEY);
+    OtaPlistGenerator plistGenerator = OtaPlistGenerator.getInstance(plistTemplatePath);
+    OtaHtmlGenerator htmlGenerator = OtaHtmlGenerator.getInstance(initParameters
+      .get(OtaHtmlService.HTML_TEMPLATE_PATH_KEY));
+    htmlGenerator.specialize(initParameters);
+    long loaded = System.nanoTime();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+    long firstRender = 0;
+    long lastRender = 0;
+    for (int i = 0; i < renders; i++) {
+      long renderStart = System.nanoTime();
+      String title = "Warmup" + i;
+      String plistUrl = OtaPlistService.versioned(OtaPlistGenerator.compactPlistRequestUrl(WARMUP_PLIST_SERVICE_URL,
+            WARMUP_REFERER, title, "com.sap.ota.warmup", "1.0", null, null), plistTemplatePath);
+      plistGenerator.generateBytes(new OtaPlistGenerator.Parameters(WARMUP_REFERER, title, "com.sap.ota.warmup",
+            "1.0", null, null));
+      htmlGenerator.generate(out, new OtaHtmlGenerator.Parameters(WARMUP_REFERER, title, "com.sap.ota.warmup",
+            plistUrl, null, null, initParameters));
+      out.reset();
+      lastRender = System.nanoTime() - renderStart;
+      if (i == 0) {
+        firstRender = lastRender;
+      }
+    }
+    long end = System.nanoTime();
+
+    LOG.info(String.format("Warm-up added %d ms to the startup: templates loaded in %d ms, %d synthetic renders "
+          + "in %d ms. First render took %.2f ms, last render %.2f ms", (end - start) / 1000000,
+          (loaded - start) / 1000000, renders, (end - loaded) / 1000000, firstRender / 1e6, lastRender / 1e6));
+    return renders;
+  }
+
+  private int getWarmupRenders(ServletContext context)
+  {
+    String renders = context.getInitParameter(WARMUP_RENDERS_KEY);
+    if (renders == null) {
+      return DEFAULT_WARMUP_RENDERS;
+    }
+    try {
+      return Math.max(0, Integer.parseInt(renders.trim()));
+    }
+    catch (NumberFormatException e) {
+      LOG.warning(String.format("Invalid value '%s' for %s, using %d", renders, WARMUP_RENDERS_KEY,
+            DEFAULT_WARMUP_RENDERS));
+      return DEFAULT_WARMUP_RENDERS;
+    }
+  }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.BUNDLE_IDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.BUNDLE_VERSION;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.IPA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.OTA_CLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.REFERER;
+import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.TITLE;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sap.prd.mobile.ios.ota.lib.LibUtils;
+import com.sap.prd.mobile.ios.ota.lib.PlistToken;
+import com.sap.prd.mobile.ios.ota.lib.ShortLinkStore;
+
+/**
+ * Short links to the OTA HTML page. A POST with the same parameters as for the HTML service stores
+ * them and answers with the short URL <code>.../S/&lt;id&gt;</code>; a GET of the short URL
+ * redirects to the HTML page.
+ * <p>
+ * The service is disabled unless the context parameter {@link #SHORT_LINKS_ENABLED_KEY} is
+ * <code>true</code>, anyone reaching it can store links. The links are kept in a
+ * {@link ShortLinkStore} in the directory configured by the context parameter
+ * {@link #SHORT_LINK_DIRECTORY_KEY}, by default in the temporary directory of the web application.
+ * The store is limited by {@link #SHORT_LINK_MAX_BYTES_KEY} and {@link #SHORT_LINK_MAX_LINKS_KEY},
+ * a new link beyond the quota is answered with <code>507 Insufficient Storage</code>.
+ */
+@SuppressWarnings("serial")
+public class OtaShortLinkService extends HttpServlet
+{
+
+  private final Logger LOG = Logger.getLogger(OtaShortLinkService.class.getSimpleName());
+
+  public final static String SERVICE_NAME = "S";
+  public final static String CONTENT_TYPE = "text/plain;charset=UTF-8";
+  public final static String SHORT_LINK_DIRECTORY_KEY = "shortLinkDirectory";
+  /**
+   * Context parameter enabling the service, <code>false</code> by default.
+   */
+  public final static String SHORT_LINKS_ENABLED_KEY = "shortLinksEnabled";
+  /**
+   * Context parameter with the maximum size of the stored links in bytes.
+   */
+  public final static String SHORT_LINK_MAX_BYTES_KEY = "shortLinkMaxBytes";
+  /**
+   * Context parameter with the maximum number of stored links.
+   */
+  public final static String SHORT_LINK_MAX_LINKS_KEY = "shortLinkMaxLinks";
+
+  final static long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+  final static long DEFAULT_MAX_LINKS = 100000;
+
+  private ShortLinkStore store;
+
+  @Override
+  public void init() throws ServletException
+  {
+    if (!Boolean.parseBoolean(getServletContext().getInitParameter(SHORT_LINKS_ENABLED_KEY))) {
+      LOG.info("Short links are disabled, set " + SHORT_LINKS_ENABLED_KEY + " to enable them");
+      return;
+    }
+    long maxBytes = getLong(SHORT_LINK_MAX_BYTES_KEY, DEFAULT_MAX_BYTES);
+    long maxLinks = getLong(SHORT_LINK_MAX_LINKS_KEY, DEFAULT_MAX_LINKS);
+    String directory = getServletContext().getInitParameter(SHORT_LINK_DIRECTORY_KEY);
+    File storeDirectory;
+    if (directory == null) {
+      File tempDir = (File) getServletContext().getAttribute("javax.servlet.context.tempdir");
+      storeDirectory = new File(tempDir == null ? new File(System.getProperty("java.io.tmpdir")) : tempDir,
+            "short-links");
+    }
+    else {
+      storeDirectory = new File(directory);
+    }
+    try {
+      store = new ShortLinkStore(storeDirectory, maxBytes, (int) Math.min(maxLinks, Integer.MAX_VALUE));
+      LOG.info(String.format("Short link store in %s with %d links", storeDirectory, store.size()));
+    }
+    catch (IOException e) {
+      throw new ServletException("Cannot open the short link store in " + storeDirectory, e);
+    }
+  }
+
+  @Override
+  public void destroy()
+  {
+    if (store != null) {
+      try {
+        store.close();
+      }
+      catch (IOException e) {
+        LOG.log(Level.WARNING, "Cannot close the short link store", e);
+      }
+      store = null;
+    }
+  }
+
+  private long getLong(String key, long defaultValue)
+  {
+    String value = getServletContext().getInitParameter(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    }
+    catch (NumberFormatException e) {
+      LOG.warning(String.format("Invalid value '%s' for %s, using %d", value, key, defaultValue));
+      return defaultValue;
+    }
+  }
+
+  ShortLinkStore getStore()
+  {
+    return store;
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+        IOException
+  {
+    ShortLinkStore store = this.store;
+    if (store == null) {
+      response.sendError(404, "Short links disabled");
+      return;
+    }
+    String referer;
+    try {
+      referer = Utils.getRefererSendError(request, response);
+    }
+    catch (ServletException e) {
+      LOG.warning(String.format("Rejected POST request from '%s': %s", request.getRemoteAddr(), e.getMessage()));
+      return;
+    }
+    String id;
+    try {
+      id = store.put(new PlistToken(referer, request.getParameter(TITLE), request.getParameter(BUNDLE_IDENTIFIER),
+            request.getParameter(BUNDLE_VERSION), request.getParameter(IPA_CLASSIFIER),
+            request.getParameter(OTA_CLASSIFIER)));
+    }
+    catch (IllegalArgumentException e) {
+      response.sendError(400, e.getMessage());
+      return;
+    }
+    catch (ShortLinkStore.FullException e) {
+      LOG.warning(String.format("Rejected POST request from '%s': %s", request.getRemoteAddr(), e.getMessage()));
+      response.sendError(507, "Short link quota exceeded");
+      return;
+    }
+    String shortUrl = getShortLinkUrl(request, id);
+    LOG.info(String.format("Short link %s for referer '%s' requested from '%s'", shortUrl, referer,
+          request.getRemoteAddr()));
+    response.setStatus(HttpServletResponse.SC_CREATED);
+    response.setHeader("Location", shortUrl);
+    Utils.writeResponse(response, CONTENT_TYPE, shortUrl.getBytes("UTF-8"));
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+        IOException
+  {
+    ShortLinkStore store = this.store;
+    String pathInfo = request.getPathInfo();
+    PlistToken token = store == null || pathInfo == null ? null : store.get(pathInfo.substring(1));
+    if (token == null) {
+      response.sendError(404, "Unknown short link");
+      return;
+    }
+    response.sendRedirect(getHtmlUrl(request, token));
+  }
+
+  String getShortLinkUrl(HttpServletRequest request, String id)
+  {
+    String url = request.getRequestURL().toString();
+    String pathInfo = request.getPathInfo();
+    if (pathInfo != null && url.endsWith(pathInfo)) {
+      url = url.substring(0, url.length() - pathInfo.length());
+    }
+    return url + "/" + id;
+  }
+
+  static String getHtmlUrl(HttpServletRequest request, PlistToken token)
+  {
+    return getHtmlUrl(request.getContextPath() + "/" + OtaHtmlService.SERVICE_NAME, token);
+  }
+
+  /**
+   * @return the URL of the HTML page for the parameters of the token, with the referer as
+   *         parameter and without the parameters which are <code>null</code>
+   */
+  static String getHtmlUrl(String htmlServiceUrl, PlistToken token)
+  {
+    StringBuilder url = new StringBuilder(htmlServiceUrl);
+    url.append('?').append(REFERER).append('=').append(LibUtils.urlEncode(token.getReferer()));
+    appendParameter(url, TITLE, token.getTitle());
+    appendParameter(url, BUNDLE_IDENTIFIER, token.getBundleIdentifier());
+    appendParameter(url, BUNDLE_VERSION, token.getBundleVersion());
+    appendParameter(url, IPA_CLASSIFIER, token.getIpaClassifier());
+    appendParameter(url, OTA_CLASSIFIER, token.getOtaClassifier());
+    return url.toString();
+  }
+
+  private static void appendParameter(StringBuilder url, String name, String value)
+  {
+    if (value != null) {
+      url.append('&').append(name).append('=').append(LibUtils.urlEncode(value));
+    }
+  }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator;
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.lib.VelocityBase;
+
+/**
+ * Key of a rendered document: the generator, the fingerprint of its template and the typed
+ * parameters of the render. The generator is compared by identity, a reloaded template with a
+ * different text changes the fingerprint.
+ * <p>
+ * The key also provides the strong entity tag of the document. It is derived from the template
+ * name and fingerprint, each field of the parameters and the configuration, so it is known before the
+ * document is rendered and is the same in every process serving the same template with the same
+ * library, see {@link VelocityBase#getTemplateFingerprint()}. The gzip encoded variant of a document has its own key and entity tag.
+ */
+final class RenderKey
+{
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final VelocityBase<?> generator;
+  private final String templateFingerprint;
+  private final Object parameters;
+  private final String[] fields;
+  private final Map<String, String> configuration;
+  private final boolean gzip;
+  private final int hash;
+  private volatile String etag;
+
+  RenderKey(OtaPlistGenerator generator, OtaPlistGenerator.Parameters parameters)
+  {
+    this(generator, parameters, new String[] { parameters.getIpaUrl(), parameters.getBundleIdentifier(),
+          parameters.getBundleVersion(), parameters.getTitle() }, null);
+  }
+
+  /**
+   * @param configuration
+   *          the configuration the page depends on, only used for the entity tag. <code>null</code>
+   *          for none.
+   */
+  RenderKey(OtaHtmlGenerator generator, OtaHtmlGenerator.Parameters parameters, Map<String, String> configuration)
+  {
+    this(generator, parameters, new String[] { parameters.getIpaUrl(), parameters.getBundleIdentifier(),
+          parameters.getPlistUrl(), parameters.getTitle() }, configuration);
+  }
+
+  /**
+   * @param fields
+   *          the values the parameters are compared by, they make up the entity tag
+   */
+  private RenderKey(VelocityBase<?> generator, Object parameters, String[] fields, Map<String, String> configuration)
+  {
+    this.generator = generator;
+    this.templateFingerprint = generator.getTemplateFingerprint();
+    this.parameters = parameters;
+    this.fields = fields;
+    this.configuration = configuration;
+    this.gzip = false;
+    this.hash = 31 * (31 * System.identityHashCode(generator) + templateFingerprint.hashCode())
+          + parameters.hashCode();
+  }
+
+  private RenderKey(RenderKey identity)
+  {
+    this.generator = identity.generator;
+    this.templateFingerprint = identity.templateFingerprint;
+    this.parameters = identity.parameters;
+    this.fields = identity.fields;
+    this.configuration = identity.configuration;
+    this.gzip = true;
+    this.hash = 31 * identity.hash + 1;
+  }
+
+  /**
+   * @return the key of the gzip encoded document
+   */
+  RenderKey gzip()
+  {
+    return gzip ? this : new RenderKey(this);
+  }
+
+  /**
+   * @return the quoted strong entity tag of the document
+   */
+  String getETag()
+  {
+    String result = etag;
+    if (result == null) {
+      StringBuilder source = new StringBuilder(256).append(generator.getTemplateName()).append('\u0000')
+        .append(templateFingerprint);
+      for (String field : fields) {
+        source.append('\u0000');
+        if (field == null) {
+          source.append('\u0001'); //differs from the empty value and from "null"
+        }
+        else {
+          source.append('\u0002').append(field);
+        }
+      }
+      if (configuration != null) {
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(configuration).entrySet()) {
+          source.append('\u0000').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+      }
+      byte[] digest = digest(source.toString());
+      String suffix = gzip ? "-gzip" : "";
+      char[] tag = new char[2 + 2 * 16 + suffix.length()];
+      tag[0] = tag[tag.length - 1] = '"';
+      suffix.getChars(0, suffix.length(), tag, 1 + 2 * 16);
+      for (int i = 0; i < 16; i++) { //the first 128 bits are sufficient
+        tag[1 + 2 * i] = HEX[digest[i] >> 4 & 0xf];
+        tag[2 + 2 * i] = HEX[digest[i] & 0xf];
+      }
+      etag = result = new String(tag);
+    }
+    return result;
+  }
+
+  private static byte[] digest(String source)
+  {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(source.getBytes("UTF-8"));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); //every JRE has SHA-256
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e); //should never happen
+    }
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj) return true;
+    if (!(obj instanceof RenderKey)) return false;
+    RenderKey other = (RenderKey) obj;
+    return hash == other.hash && generator == other.generator
+          && templateFingerprint.equals(other.templateFingerprint)
+          && gzip == other.gzip && parameters.equals(other.parameters);
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("%s (template %s%s) %s", generator.getTemplateName(), templateFingerprint, gzip ? ", gzip" : "",
+          parameters);
+  }
+
+}
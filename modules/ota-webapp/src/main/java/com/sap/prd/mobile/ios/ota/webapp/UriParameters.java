@@ -0,0 +1,248 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import com.sap.prd.mobile.ios.ota.lib.Base64UrlCodec;
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.lib.PlistToken;
+
+/**
+ * The parameters passed in the path of a request, e.g.
+ * <code>/ota-service/PLIST/&lt;encoded key=value&gt;/&lt;encoded key=value&gt;...</code> where each
+ * segment after the service name is encoded by {@link Base64UrlCodec}, or in the compact form
+ * <code>/ota-service/PLIST/v1/&lt;token&gt;[/&lt;template version&gt;]</code>, see {@link PlistToken}.
+ * <p>
+ * The URI is scanned once by index; only the segments after the service name are decoded, and
+ * only values of the known {@link Key}s are kept. URIs longer than {@link #MAX_URI_LENGTH} or with
+ * more than {@link #MAX_SEGMENTS} parameter segments are rejected before anything is decoded.
+ */
+public final class UriParameters
+{
+
+  /**
+   * The parameters recognized in the path.
+   */
+  public enum Key
+  {
+    REFERER(OtaPlistGenerator.REFERER),
+    TITLE(OtaPlistGenerator.TITLE),
+    BUNDLE_IDENTIFIER(OtaPlistGenerator.BUNDLE_IDENTIFIER),
+    BUNDLE_VERSION(OtaPlistGenerator.BUNDLE_VERSION),
+    IPA_CLASSIFIER(OtaPlistGenerator.IPA_CLASSIFIER),
+    OTA_CLASSIFIER(OtaPlistGenerator.OTA_CLASSIFIER);
+
+    private final String name;
+
+    private Key(String name)
+    {
+      this.name = name;
+    }
+
+    /**
+     * @return the name used in the encoded <code>name=value</code> pair
+     */
+    public String getName()
+    {
+      return name;
+    }
+  }
+
+  /**
+   * Thrown if the URI violates one of the limits or contains malformed segments.
+   */
+  @SuppressWarnings("serial")
+  public static class InvalidUriException extends IllegalArgumentException
+  {
+    private final int status;
+
+    InvalidUriException(int status, String message)
+    {
+      super(message);
+      this.status = status;
+    }
+
+    /**
+     * @return the HTTP status to send
+     */
+    public int getStatus()
+    {
+      return status;
+    }
+  }
+
+  public final static int MAX_URI_LENGTH = 8192;
+  public final static int MAX_SEGMENTS = 16;
+
+  private static final Key[] KEYS = Key.values();
+
+  private final String[] values = new String[KEYS.length];
+  private boolean compact;
+  private String version;
+
+  private UriParameters()
+  {
+  }
+
+  /**
+   * Parses the segments following the first segment equal to <code>serviceName</code>. The first
+   * occurrence of a key wins; empty segments, segments without '=' and unknown keys are ignored.
+   * 
+   * @return the parameters or <code>null</code> if <code>uri</code> is <code>null</code> or does not
+   *         contain the service name
+   * @throws InvalidUriException
+   *           with status 414 if the URI is too long, with status 400 if it has too many segments or
+   *           a segment cannot be decoded
+   */
+  public static UriParameters parse(String uri, String serviceName)
+  {
+    if (uri == null) {
+      return null;
+    }
+    if (uri.length() > MAX_URI_LENGTH) {
+      throw new InvalidUriException(414, String.format("URI length %d exceeds %d", uri.length(), MAX_URI_LENGTH));
+    }
+    int start = indexAfterSegment(uri, serviceName);
+    if (start < 0) {
+      return null;
+    }
+    int segments = 1;
+    for (int i = start; i < uri.length(); i++) {
+      if (uri.charAt(i) == '/' && ++segments > MAX_SEGMENTS) {
+        throw new InvalidUriException(400, String.format("More than %d parameters in URI", MAX_SEGMENTS));
+      }
+    }
+
+    UriParameters parameters = new UriParameters();
+    if (uri.startsWith(PlistToken.VERSION_1, start)
+          && segmentEnd(uri, start) == start + PlistToken.VERSION_1.length()) {
+      parameters.put(uri, start + PlistToken.VERSION_1.length() + 1);
+      return parameters;
+    }
+    while (start < uri.length()) {
+      int end = segmentEnd(uri, start);
+      if (end > start) {
+        String decoded;
+        try {
+          decoded = Base64UrlCodec.decode(uri, start, end);
+        }
+        catch (IllegalArgumentException e) {
+          throw new InvalidUriException(400, e.getMessage());
+        }
+        parameters.put(decoded);
+      }
+      start = end + 1;
+    }
+    return parameters;
+  }
+
+  /**
+   * @return the index after the '/' following the first segment equal to <code>segment</code>, the
+   *         length of <code>uri</code> if it is the last segment, or -1 if there is no such segment
+   */
+  private static int indexAfterSegment(String uri, String segment)
+  {
+    int start = 0;
+    while (start <= uri.length()) {
+      int end = segmentEnd(uri, start);
+      if (end - start == segment.length() && uri.regionMatches(start, segment, 0, segment.length())) {
+        return Math.min(end + 1, uri.length());
+      }
+      start = end + 1;
+    }
+    return -1;
+  }
+
+  private static int segmentEnd(String uri, int start)
+  {
+    int end = uri.indexOf('/', start);
+    return end < 0 ? uri.length() : end;
+  }
+
+  /**
+   * Takes the values from the token starting at <code>start</code> and the version from the segment
+   * following it, further segments are ignored.
+   */
+  private void put(String uri, int start)
+  {
+    int end = start < uri.length() ? segmentEnd(uri, start) : start;
+    if (end == start) {
+      throw new InvalidUriException(400, "Missing " + PlistToken.VERSION_1 + " token");
+    }
+    PlistToken token;
+    try {
+      token = PlistToken.decode(uri, start, end);
+    }
+    catch (IllegalArgumentException e) {
+      throw new InvalidUriException(400, e.getMessage());
+    }
+    values[Key.REFERER.ordinal()] = token.getReferer();
+    values[Key.TITLE.ordinal()] = token.getTitle();
+    values[Key.BUNDLE_IDENTIFIER.ordinal()] = token.getBundleIdentifier();
+    values[Key.BUNDLE_VERSION.ordinal()] = token.getBundleVersion();
+    values[Key.IPA_CLASSIFIER.ordinal()] = token.getIpaClassifier();
+    values[Key.OTA_CLASSIFIER.ordinal()] = token.getOtaClassifier();
+    compact = true;
+    if (end + 1 < uri.length()) {
+      version = uri.substring(end + 1, segmentEnd(uri, end + 1));
+    }
+  }
+
+  private void put(String pair)
+  {
+    int idx = pair.indexOf('=');
+    if (idx < 0) {
+      return;
+    }
+    for (Key key : KEYS) {
+      if (values[key.ordinal()] == null && idx == key.name.length() && pair.startsWith(key.name)) {
+        values[key.ordinal()] = pair.substring(idx + 1);
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return the value or <code>null</code> if the key was not part of the URI
+   */
+  public String get(Key key)
+  {
+    return values[key.ordinal()];
+  }
+
+  /**
+   * @return <code>true</code> if the values were taken from a versioned token. Such a URI
+   *         identifies the values it carries, a token without referer still depends on the
+   *         <code>Referer</code> header and any token on the template rendering the values.
+   */
+  public boolean isCompact()
+  {
+    return compact;
+  }
+
+  /**
+   * @return the segment following the token of a compact URI, the version of the template the URI
+   *         was created for, or <code>null</code> if there is none
+   */
+  public String getVersion()
+  {
+    return version;
+  }
+
+}
@@ -20,23 +20,50 @@
 package com.sap.prd.mobile.ios.ota.webapp;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.sonatype.plexus.components.cipher.Base64;
-
-import com.sap.prd.mobile.ios.ota.lib.LibUtils;
+import com.sap.prd.mobile.ios.ota.lib.Base64UrlCodec;
+import com.sap.prd.mobile.ios.ota.lib.GzipCompressor;
+import com.sap.prd.mobile.ios.ota.lib.RenderCache;
+import com.sap.prd.mobile.ios.ota.lib.RenderCoalescer;
 
 public class Utils
 {
 
-  private static final String US_ASCII = "US-ASCII";
-  private static final String UTF_8 = "UTF-8";
+  private static final Logger LOG = Logger.getLogger(Utils.class.getSimpleName());
+
+  /**
+   * Context parameter with the maximum number of bytes cached per service. 0 disables the cache.
+   */
+  public final static String RENDER_CACHE_MAX_BYTES_KEY = "renderCacheMaxBytes";
+  final static long DEFAULT_RENDER_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+
+  /**
+   * Default <code>Cache-Control</code> policy of the rendered documents: cacheable, but revalidated
+   * after five minutes.
+   */
+  final static String DEFAULT_CACHE_CONTROL = "public, max-age=300";
+
+  /**
+   * Context parameter with the minimum size of a document sent gzip encoded. A negative value
+   * disables the compression.
+   */
+  public final static String GZIP_MIN_BYTES_KEY = "gzipMinBytes";
+  final static int DEFAULT_GZIP_MIN_BYTES = 1024;
+
+  final static String MBEAN_DOMAIN = "com.sap.prd.mobile.ios.ota";
 
   /**
    * Removes the file part of a URL if it has one
@@ -99,155 +126,263 @@ public class Utils
     return referer;
   }
 
+  /**
+   * @see Base64UrlCodec#encode(CharSequence)
+   */
   public static String urlEncode(String string)
   {
-    if (string == null) {
-      return null;
-    }
-    try {
-      byte[] bytes = string.getBytes(UTF_8);
-      byte[] base64Bytes = Base64.encodeBase64(bytes);
-      String base64String = new String(base64Bytes, US_ASCII);
-      return URLEncoder.encode(base64String, UTF_8);
+    return Base64UrlCodec.encode(string);
+  }
+
+  /**
+   * @see Base64UrlCodec#decode(CharSequence)
+   */
+  public static String urlDecode(String string)
+  {
+    return Base64UrlCodec.decode(string);
+  }
+
+  /**
+   * Creates the cache for the rendered documents of a service as configured by the context
+   * parameter {@link #RENDER_CACHE_MAX_BYTES_KEY}.
+   * 
+   * @return the cache or <code>null</code> if caching is disabled
+   */
+  static RenderCache<RenderKey> createRenderCache(ServletContext context)
+  {
+    String maxBytes = context.getInitParameter(RENDER_CACHE_MAX_BYTES_KEY);
+    long maximumBytes = maxBytes == null ? DEFAULT_RENDER_CACHE_MAX_BYTES : Long.parseLong(maxBytes.trim());
+    return maximumBytes <= 0 ? null : new RenderCache<RenderKey>(maximumBytes);
+  }
+
+  /**
+   * Returns the cached document or renders it. Concurrent renders of the same document are
+   * coalesced into one, its result is cached.
+   * 
+   * @param cache
+   *          the cache, <code>null</code> if caching is disabled
+   */
+  static byte[] render(final RenderCache<RenderKey> cache, RenderCoalescer<RenderKey> coalescer,
+        final RenderKey key, final Callable<byte[]> renderer) throws IOException
+  {
+    byte[] content = cache == null ? null : cache.get(key);
+    if (content != null) {
+      return content;
     }
-    catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e); //should never happen
+    return coalescer.render(key, new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception
+      {
+        byte[] rendered = renderer.call();
+        if (cache != null) {
+          cache.put(key, rendered);
+        }
+        return rendered;
+      }
+    });
+  }
+
+  /**
+   * Returns the <code>Cache-Control</code> policy configured by the context parameter
+   * <code>key</code>. An empty value disables the header.
+   * 
+   * @return the policy, <code>defaultValue</code> if the parameter is not set or <code>null</code>
+   *         if it is empty
+   */
+  static String getCacheControl(ServletContext context, String key, String defaultValue)
+  {
+    String value = context.getInitParameter(key);
+    if (value == null) {
+      return defaultValue;
     }
+    value = value.trim();
+    return value.length() == 0 ? null : value;
   }
 
-  public static String urlDecode(String string)
+  /**
+   * Answers a conditional GET or HEAD request with <code>304 Not Modified</code> if one of the
+   * entity tags in its <code>If-None-Match</code> header matches <code>etag</code>. The check is
+   * done before the document is rendered.
+   * 
+   * @return <code>true</code> if the response was sent
+   */
+  static boolean sendNotModified(HttpServletRequest request, HttpServletResponse response, String etag,
+        String cacheControl, String vary)
   {
-    if (string == null) {
-      return null;
+    String method = request.getMethod();
+    if (!"GET".equals(method) && !"HEAD".equals(method)) {
+      return false;
     }
-    try {
-      String urlDecodedString = URLDecoder.decode(string, UTF_8);
-      byte[] urlDecodedBytes = urlDecodedString.getBytes(US_ASCII);
-      byte[] decodedBase64Bytes = Base64.decodeBase64(urlDecodedBytes);
-      return new String(decodedBase64Bytes, UTF_8);
-    }
-    catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e); //should never happen
-    }
-  }
-
-  /**
-   * This method parses an URI after the <code>serviceName</code> into the elements separated by '/'
-   * and '=' and returns the key value pairs.<br>
-   * <ol>
-   * <li>First the serviceName element is identified. Only elements after it are parsed.
-   * <li>The single elements are split at '/'
-   * <li>Each element is URLDecoded
-   * <li>Each element is split into key and value at '=' and put into a String[2].<br>
-   * If no '=' is contained the element is put into a String[1].
-   * </ol>
-   * Here some examples: <br>
-   * <table border='1'>
-   * <tr>
-   * <th>uri</th>
-   * <th>result</th>
-   * <th>comment</th>
-   * </tr>
-   * <tr>
-   * <td>/mywebapp/serviceName/a=b/c=d/e=f</td>
-   * <td>{{"a", "b"}, {"c", "d"}, {"e", "f"}}</td>
-   * <td>key value pairs are split</td>
-   * </tr>
-   * <tr>
-   * <td>/mywebapp/serviceName/a%3Db/c%3Dd/e%3Df</td>
-   * <td>{{"a", "b"}, {"c", "d"}, {"e", "f"}}</td>
-   * <td>URLEncoded elements are first decoded</td>
-   * </tr>
-   * <tr>
-   * <td>/mywebapp/serviceName/a=b=c</td>
-   * <td>{{"a", "b=c"}}</td>
-   * <td>key/value pairs are only split at the first '='</td>
-   * </tr>
-   * <tr>
-   * <td>/mywebapp/serviceName/b/c=d/f</td>
-   * <td>{{"b"}, {"c", "d"}, {"f"}}</td>
-   * <td>Single values are returned in a <code>String[1]</code></td>
-   * </tr>
-   * <tr>
-   * <td>/mywebapp/NOserviceName/a=b</td>
-   * <td><code>null</code></td>
-   * <td>If the <code>serviceName</code> is missing null is returned</code></td>
-   * </tr>
-   * </table>
-   *
-   *
-   * @param request
-   *          The request containing the requestURI
-   * @param serviceName
-   *          The name of the service in the URI
-   * @return <code>String</code> array containing <code>String[1]</code> and <code>String[2]</code>
-   *         elements
+    if (!matches(request.getHeader("If-None-Match"), etag)) {
+      return false;
+    }
+    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    setCacheHeaders(response, etag, cacheControl, vary);
+    return true;
+  }
+
+  /**
+   * Compares the entity tags of an <code>If-None-Match</code> header with the weak comparison
+   * function of RFC 7232.
    */
-  public static String[][] extractParametersFromUri(HttpServletRequest request, String serviceName)
+  static boolean matches(String ifNoneMatch, String etag)
   {
-    if (request.getRequestURI() == null) {
-      return null;
+    if (ifNoneMatch == null) {
+      return false;
     }
-    String[] requestURI = request.getRequestURI().split("/");
-    String[][] result = null;
-    boolean startFound = false;
-    int readIdx = 0, writeIdx = 0;
-    for (String element : requestURI) {
-      readIdx++;
-      if (startFound) {
-        String decoded = LibUtils.decode(element);
-        result[writeIdx++] = parseKeyValuePair(decoded);
+    int start = 0;
+    while (start < ifNoneMatch.length()) {
+      int end = ifNoneMatch.indexOf(',', start);
+      if (end < 0) {
+        end = ifNoneMatch.length();
       }
-      else {
-        if (element.equals(serviceName)) {
-          startFound = true;
-          result = new String[requestURI.length - readIdx][2];
-        }
+      String tag = ifNoneMatch.substring(start, end).trim();
+      if (tag.equals("*")) {
+        return true;
+      }
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
       }
+      if (tag.equals(etag)) {
+        return true;
+      }
+      start = end + 1;
     }
-    return result;
+    return false;
   }
 
   /**
-   * Splits "key=value" at '=' and returns {"key", "value"}.<br>
-   * For "value" (without '=') {"value"} is returned.
-   *
-   * @param decoded
-   * @return
+   * Sets the validator and the caching policy of a response.
+   * 
+   * @param cacheControl
+   *          the <code>Cache-Control</code> policy, <code>null</code> for none
+   * @param vary
+   *          the request headers the document depends on, <code>null</code> for none
    */
-  static String[] parseKeyValuePair(String decoded)
+  static void setCacheHeaders(HttpServletResponse response, String etag, String cacheControl, String vary)
   {
-    if(decoded == null) {
-      return null;
+    response.setHeader("ETag", etag);
+    if (cacheControl != null) {
+      response.setHeader("Cache-Control", cacheControl);
     }
-    int idx = decoded.indexOf("=");
-    if(idx < 0) {
-      return new String[] { decoded };
-    } else {
-      return new String[] { decoded.substring(0, idx), decoded.substring(idx + 1) };
+    if (vary != null) {
+      response.setHeader("Vary", vary);
     }
   }
 
   /**
-   * Searches in the map for an element having the specified key assigned and returns the value.
-   *
-   * @param map
-   * @param key
-   * @return
+   * Creates the compressor of a service as configured by the context parameter
+   * {@link #GZIP_MIN_BYTES_KEY}.
+   * 
+   * @return the compressor or <code>null</code> if compression is disabled
    */
-  public static String getValueFromUriParameterMap(String[][] map, String key)
+  static GzipCompressor createGzipCompressor(ServletContext context)
   {
-    if (map == null || key == null) {
-      return null;
+    String minBytes = context.getInitParameter(GZIP_MIN_BYTES_KEY);
+    int minimumBytes = minBytes == null ? DEFAULT_GZIP_MIN_BYTES : Integer.parseInt(minBytes.trim());
+    return minimumBytes < 0 ? null : new GzipCompressor(Deflater.DEFAULT_COMPRESSION, minimumBytes);
+  }
+
+  /**
+   * @return <code>true</code> if the <code>Accept-Encoding</code> header accepts gzip, either by
+   *         name or by '*', with a quality greater than 0
+   */
+  static boolean acceptsGzip(String acceptEncoding)
+  {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    Boolean gzip = null;
+    boolean any = false;
+    for (String coding : acceptEncoding.split(",")) {
+      int semicolon = coding.indexOf(';');
+      String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+      boolean accepted = semicolon < 0 || !isZeroQuality(coding.substring(semicolon + 1));
+      if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+        gzip = Boolean.valueOf(accepted);
+      }
+      else if (name.equals("*")) {
+        any = accepted;
+      }
     }
-    for (String[] element : map) {
-      if (element.length == 2) {
-        if (element[0] != null && key.equals(element[0])) {
-          return element[1];
+    return gzip == null ? any : gzip.booleanValue();
+  }
+
+  private static boolean isZeroQuality(String parameters)
+  {
+    for (String parameter : parameters.split(";")) {
+      parameter = parameter.trim();
+      if (parameter.startsWith("q=")) {
+        try {
+          return Float.parseFloat(parameter.substring(2).trim()) <= 0;
+        }
+        catch (NumberFormatException e) {
+          return true;
         }
       }
     }
-    return null;
+    return false;
+  }
+
+  /**
+   * Writes the document with an exact <code>Content-Length</code>.
+   */
+  static void writeResponse(HttpServletResponse response, String contentType, byte[] content) throws IOException
+  {
+    response.setContentType(contentType);
+    response.setContentLength(content.length);
+    OutputStream out = response.getOutputStream();
+    out.write(content);
+    out.flush();
+    out.close();
+  }
+
+  /**
+   * Writes the document gzip encoded while it is compressed. The length is not known in advance, so
+   * there is no <code>Content-Length</code>.
+   */
+  static void writeCompressedResponse(HttpServletResponse response, String contentType, GzipCompressor compressor,
+        byte[] content) throws IOException
+  {
+    response.setContentType(contentType);
+    response.setHeader("Content-Encoding", "gzip");
+    OutputStream out = response.getOutputStream();
+    compressor.compress(content, out);
+    out.flush();
+    out.close();
+  }
+
+  /**
+   * Registers the MBean with the platform MBean server.
+   * 
+   * @return the name of the MBean or <code>null</code> if the registration failed
+   */
+  static ObjectName registerMBean(Object mbean, String type, String name, ServletContext context)
+  {
+    String contextPath = context.getContextPath() == null ? "" : context.getContextPath();
+    try {
+      ObjectName objectName = new ObjectName(String.format("%s:type=%s,context=%s,name=%s", MBEAN_DOMAIN, type,
+            ObjectName.quote(contextPath), name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+      return objectName;
+    }
+    catch (JMException e) {
+      LOG.log(Level.WARNING, String.format("Cannot register %s MBean '%s'", type, name), e);
+      return null;
+    }
+  }
+
+  static void unregisterMBean(ObjectName objectName)
+  {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+    catch (JMException e) {
+      LOG.log(Level.WARNING, String.format("Cannot unregister MBean '%s'", objectName), e);
+    }
   }
 
 }
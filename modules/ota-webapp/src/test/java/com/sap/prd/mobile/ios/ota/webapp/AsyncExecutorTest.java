@@ -0,0 +1,488 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.sap.prd.mobile.ios.ota.webapp.TestUtils.BufferedServletOutputStream;
+
+public class AsyncExecutorTest
+{
+
+  @Test
+  public void testSynchronousFallback() throws IOException
+  {
+    AsyncExecutor executor = new AsyncExecutor(1, 1, 1000);
+    try {
+      final Thread caller = Thread.currentThread();
+      final AtomicInteger handled = new AtomicInteger();
+      HttpServletRequest request = mock(HttpServletRequest.class);
+      executor.dispatch(request, mock(HttpServletResponse.class), new AsyncExecutor.Handler() {
+        @Override
+        public void handle(HttpServletRequest request, HttpServletResponse response)
+        {
+          assertSame(caller, Thread.currentThread());
+          handled.incrementAndGet();
+        }
+      });
+      assertEquals(1, handled.get());
+      verify(request, never()).startAsync(any(HttpServletRequest.class), any(HttpServletResponse.class));
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testDispatch() throws Exception
+  {
+    AsyncExecutor executor = new AsyncExecutor(2, 10, 1000);
+    try {
+      HttpServletRequest request = mockAsyncRequest();
+      HttpServletResponse response = mock(HttpServletResponse.class);
+      AsyncContext async = request.startAsync(request, response);
+      final CountDownLatch handled = new CountDownLatch(1);
+      final Thread caller = Thread.currentThread();
+      executor.dispatch(request, response, new AsyncExecutor.Handler() {
+        @Override
+        public void handle(HttpServletRequest request, HttpServletResponse response)
+        {
+          assertFalse(caller == Thread.currentThread());
+          handled.countDown();
+        }
+      });
+      assertTrue(handled.await(5, TimeUnit.SECONDS));
+      verify(async).setTimeout(1000);
+      verify(async, timeout(5000)).complete();
+      verify(response, never()).sendError(eq(503), anyString());
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testTimeout() throws Exception
+  {
+    AsyncExecutor executor = new AsyncExecutor(1, 10, 100);
+    final CountDownLatch release = new CountDownLatch(1);
+    try {
+      HttpServletRequest request = mockAsyncRequest();
+      HttpServletResponse response = mock(HttpServletResponse.class);
+      AsyncContext async = request.startAsync(request, response);
+      executor.dispatch(request, response, new BlockingHandler(release));
+
+      ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+      verify(async).addListener(listener.capture());
+      listener.getValue().onTimeout(null); //as the container does after 100 ms
+      verify(response).sendError(eq(503), anyString());
+      verify(async).complete();
+      assertEquals(1, executor.getTimeoutCount());
+
+      release.countDown();
+      Thread.sleep(100);
+      verify(async, times(1)).complete(); //not completed twice
+    }
+    finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * The handler is still writing when the timeout answers the request: nothing it writes afterwards
+   * reaches the response, which the container may already use for another request.
+   */
+  @Test
+  public void testTimeoutWhileWriting() throws Exception
+  {
+    AsyncExecutor executor = new AsyncExecutor(1, 10, 100);
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch timedOut = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    try {
+      HttpServletRequest request = mockAsyncRequest();
+      HttpServletResponse response = mock(HttpServletResponse.class);
+      BufferedServletOutputStream out = new BufferedServletOutputStream();
+      when(response.getOutputStream()).thenReturn(out);
+      AsyncContext async = request.startAsync(request, response);
+      executor.dispatch(request, response, new AsyncExecutor.Handler() {
+        @Override
+        public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+        {
+          try {
+            ServletOutputStream stream = response.getOutputStream();
+            stream.write(new byte[] { 'a', 'b' });
+            writing.countDown();
+            timedOut.await(5, TimeUnit.SECONDS);
+            for (int i = 0; i < 1000; i++) {
+              stream.write('x');
+            }
+            stream.flush();
+            response.setHeader("ETag", "\"late\"");
+            response.setStatus(200);
+          }
+          catch (InterruptedException e) {
+            throw new IOException(e.getMessage());
+          }
+          finally {
+            done.countDown();
+          }
+        }
+      });
+      assertTrue(writing.await(5, TimeUnit.SECONDS));
+      ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+      verify(async).addListener(listener.capture());
+      listener.getValue().onTimeout(null);
+      timedOut.countDown();
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+
+      assertEquals("ab", out.toString());
+      verify(response).sendError(eq(503), anyString());
+      verify(response, never()).setHeader(eq("ETag"), anyString());
+      verify(response, never()).setStatus(200);
+      Thread.sleep(100);
+      verify(async, times(1)).complete();
+    }
+    finally {
+      timedOut.countDown();
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * The handler is blocked in a write when the timeout occurs: the timeout returns without waiting
+   * for the write, and the handler thread completes the request once the write returns.
+   */
+  @Test
+  public void testTimeoutDuringBlockedWrite() throws Exception
+  {
+    AsyncExecutor executor = new AsyncExecutor(1, 10, 100);
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch unblock = new CountDownLatch(1);
+    try {
+      HttpServletRequest request = mockAsyncRequest();
+      HttpServletResponse response = mock(HttpServletResponse.class);
+      final BufferedServletOutputStream out = new BufferedServletOutputStream();
+      when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) throws IOException
+        {
+          writing.countDown();
+          try {
+            unblock.await(5, TimeUnit.SECONDS); //a slow client
+          }
+          catch (InterruptedException e) {
+            throw new IOException(e.getMessage());
+          }
+          out.write(b);
+        }
+      });
+      AsyncContext async = request.startAsync(request, response);
+      executor.dispatch(request, response, new AsyncExecutor.Handler() {
+        @Override
+        public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+        {
+          ServletOutputStream stream = response.getOutputStream();
+          stream.write('a');
+          stream.write('b');
+        }
+      });
+      assertTrue(writing.await(5, TimeUnit.SECONDS));
+      ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+      verify(async).addListener(listener.capture());
+      long start = System.nanoTime();
+      listener.getValue().onTimeout(null);
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1)); //not blocked by the write
+      verify(async, never()).complete();
+      verify(response, never()).sendError(eq(503), anyString());
+      assertEquals(1, executor.getTimeoutCount());
+
+      unblock.countDown();
+      verify(async, timeout(5000)).complete();
+      assertEquals("a", out.toString());
+      Thread.sleep(100);
+      verify(async, times(1)).complete();
+    }
+    finally {
+      unblock.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testRequestSnapshot() throws Exception
+  {
+    AsyncExecutor executor = new AsyncExecutor(1, 10, 1000);
+    try {
+      HttpServletRequest request = mockAsyncRequest();
+      when(request.getRequestURI()).thenReturn("/ota-service/PLIST");
+      when(request.getRemoteAddr()).thenReturn("10.0.0.1");
+      when(request.getHeaderNames()).thenReturn(Collections.enumeration(Arrays.asList("Referer")));
+      when(request.getHeaders("Referer")).thenReturn(Collections.enumeration(Arrays.asList("http://host/a.htm")));
+      when(request.getParameterMap()).thenReturn(
+            Collections.singletonMap("title", new String[] { "MyApp" }));
+      HttpServletResponse response = mock(HttpServletResponse.class);
+      AsyncContext async = request.startAsync(request, response);
+      final CountDownLatch release = new CountDownLatch(1);
+      final HttpServletRequest[] seen = new HttpServletRequest[1];
+      executor.dispatch(request, response, new AsyncExecutor.Handler() {
+        @Override
+        public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+        {
+          seen[0] = request;
+          try {
+            release.await(5, TimeUnit.SECONDS);
+          }
+          catch (InterruptedException e) {
+            throw new IOException(e.getMessage());
+          }
+        }
+      });
+      when(request.getRequestURI()).thenReturn("/recycled"); //the container reuses the request
+      when(request.getParameterMap()).thenReturn(null);
+      release.countDown();
+      verify(async, timeout(5000)).complete();
+
+      assertEquals("/ota-service/PLIST", seen[0].getRequestURI());
+      assertEquals("10.0.0.1", seen[0].getRemoteAddr());
+      assertEquals("http://host/a.htm", seen[0].getHeader("referer"));
+      assertNull(seen[0].getHeader("If-None-Match"));
+      assertEquals("MyApp", seen[0].getParameter("title"));
+      assertNull(seen[0].getParameter("Referer"));
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testGuardedResponse() throws Exception
+  {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
+    when(response.getOutputStream()).thenReturn(out);
+    AsyncExecutor.GuardedResponse guarded = new AsyncExecutor.GuardedResponse(response);
+    guarded.getOutputStream().write('a');
+    guarded.setContentType("text/plain");
+    guarded.close();
+    assertTrue(guarded.isClosed());
+    guarded.getOutputStream().write('b');
+    guarded.getWriter().write("c");
+    guarded.setContentType("text/html");
+    guarded.sendError(500);
+    assertEquals("a", out.toString());
+    verify(response).setContentType("text/plain");
+    verify(response, never()).setContentType("text/html");
+    verify(response, never()).getWriter();
+    verify(response, never()).sendError(500);
+  }
+
+  @Test
+  public void testRejected() throws Exception
+  {
+    AsyncExecutor executor = new AsyncExecutor(1, 1, 1000);
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      HttpServletResponse[] responses = new HttpServletResponse[3];
+      for (int i = 0; i < responses.length; i++) {
+        responses[i] = mock(HttpServletResponse.class);
+        executor.dispatch(mockAsyncRequest(), responses[i], new BlockingHandler(release));
+      }
+      verify(responses[0], never()).sendError(eq(503), anyString());
+      verify(responses[1], never()).sendError(eq(503), anyString());
+      verify(responses[2]).sendError(eq(503), anyString());
+      assertEquals(1, executor.getRejectedCount());
+      assertEquals(1, executor.getQueueSize());
+    }
+    finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testCreate()
+  {
+    ServletContext context = mock(ServletContext.class);
+    AsyncExecutor executor = AsyncExecutor.create(context);
+    try {
+      assertEquals(AsyncExecutor.DEFAULT_THREADS, executor.getMaximumPoolSize());
+      assertEquals(AsyncExecutor.DEFAULT_TIMEOUT_MILLIS, executor.getTimeoutMillis());
+    }
+    finally {
+      executor.shutdown();
+    }
+    when(context.getInitParameter(AsyncExecutor.THREADS_KEY)).thenReturn("0");
+    assertNull(AsyncExecutor.create(context));
+    assertNull(AsyncExecutor.get(context));
+  }
+
+  /**
+   * Simulates a container with a few request threads and requests which wait for a slow lookup.
+   * Processed on the request threads, the number of requests in progress is limited by the
+   * container threads. Dispatched to the executor, the container threads only accept the requests.
+   * The number of requests in progress at the same time and the duration are printed.
+   */
+  @Test
+  public void testConcurrentConnections() throws Exception
+  {
+    int containerThreads = 4;
+    int requests = 64;
+    long lookupMillis = 50;
+    int[] sync = load(containerThreads, requests, lookupMillis, null);
+    AsyncExecutor executor = new AsyncExecutor(32, requests, 10000);
+    int[] async;
+    try {
+      async = load(containerThreads, requests, lookupMillis, executor);
+    }
+    finally {
+      executor.shutdown();
+    }
+    System.out.println(String.format("%d container threads, %d requests waiting %d ms each. Synchronous: "
+          + "%d requests in progress, %d ms. Asynchronous: %d requests in progress, %d ms", containerThreads,
+          requests, lookupMillis, sync[0], sync[1], async[0], async[1]));
+    assertTrue(sync[0] <= containerThreads);
+    assertTrue(async[0] > containerThreads);
+  }
+
+  /**
+   * @return the maximum number of requests in progress and the duration in milliseconds
+   */
+  private static int[] load(int containerThreads, int requests, final long lookupMillis,
+        final AsyncExecutor executor) throws Exception
+  {
+    final AtomicInteger inProgress = new AtomicInteger();
+    final AtomicInteger maxInProgress = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(requests);
+    final AsyncExecutor.Handler handler = new AsyncExecutor.Handler() {
+      @Override
+      public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+      {
+        int current = inProgress.incrementAndGet();
+        for (int max; (max = maxInProgress.get()) < current && !maxInProgress.compareAndSet(max, current);) {
+        }
+        try {
+          Thread.sleep(lookupMillis);
+        }
+        catch (InterruptedException e) {
+          throw new IOException(e.getMessage());
+        }
+        finally {
+          inProgress.decrementAndGet();
+          done.countDown();
+        }
+      }
+    };
+    ExecutorService container = Executors.newFixedThreadPool(containerThreads);
+    long start = System.nanoTime();
+    try {
+      for (int i = 0; i < requests; i++) {
+        final HttpServletRequest request = executor == null ? mock(HttpServletRequest.class) : mockAsyncRequest();
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+        container.execute(new Runnable() {
+          @Override
+          public void run()
+          {
+            try {
+              if (executor == null) {
+                handler.handle(request, response);
+              }
+              else {
+                executor.dispatch(request, response, handler);
+              }
+            }
+            catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+      }
+      assertTrue(done.await(60, TimeUnit.SECONDS));
+    }
+    finally {
+      container.shutdown();
+    }
+    return new int[] { maxInProgress.get(), (int) ((System.nanoTime() - start) / 1000000) };
+  }
+
+  private static HttpServletRequest mockAsyncRequest()
+  {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    AsyncContext async = mock(AsyncContext.class);
+    when(request.isAsyncSupported()).thenReturn(true);
+    when(request.startAsync(any(HttpServletRequest.class), any(HttpServletResponse.class))).thenReturn(async);
+    return request;
+  }
+
+  private static class BlockingHandler implements AsyncExecutor.Handler
+  {
+    private final CountDownLatch release;
+
+    BlockingHandler(CountDownLatch release)
+    {
+      this.release = release;
+    }
+
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+      try {
+        release.await();
+      }
+      catch (InterruptedException e) {
+        throw new IOException(e.getMessage());
+      }
+    }
+  }
+
+}
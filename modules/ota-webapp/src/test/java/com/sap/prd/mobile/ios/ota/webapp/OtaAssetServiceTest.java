@@ -0,0 +1,133 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static com.sap.prd.mobile.ios.ota.webapp.TestUtils.gunzip;
+import static org.junit.Assert.assertArrayEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.StaticAssets;
+import com.sap.prd.mobile.ios.ota.lib.StaticAssets.Asset;
+import com.sap.prd.mobile.ios.ota.webapp.TestUtils.BufferedServletOutputStream;
+
+public class OtaAssetServiceTest
+{
+
+  private final OtaAssetService service = new OtaAssetService();
+
+  @Test
+  public void testFingerprintedAsset() throws ServletException, IOException
+  {
+    Asset asset = StaticAssets.getInstance().get("title.png");
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
+    HttpServletResponse response = mockResponse(out);
+    service.doGet(mockRequest("/" + asset.getFingerprintedName()), response);
+
+    verify(response).setContentType("image/png");
+    verify(response).setContentLength(asset.getContent().length);
+    verify(response).setHeader("Cache-Control", OtaAssetService.DEFAULT_CACHE_CONTROL);
+    verify(response).setHeader("ETag", asset.getETag());
+    verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+    assertArrayEquals(asset.getContent(), out.toByteArray());
+  }
+
+  @Test
+  public void testPlainName() throws ServletException, IOException
+  {
+    Asset asset = StaticAssets.getInstance().get("poweredByProduction.png");
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
+    HttpServletResponse response = mockResponse(out);
+    service.doGet(mockRequest("/poweredByProduction.png"), response); //e.g. /images/poweredByProduction.png
+
+    verify(response).setHeader("Cache-Control", Utils.DEFAULT_CACHE_CONTROL);
+    assertArrayEquals(asset.getContent(), out.toByteArray());
+  }
+
+  @Test
+  public void testGzip() throws ServletException, IOException
+  {
+    Asset asset = StaticAssets.getInstance().get("ota.css");
+    HttpServletRequest request = mockRequest("/" + asset.getFingerprintedName());
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
+    HttpServletResponse response = mockResponse(out);
+    service.doGet(request, response);
+
+    verify(response).setContentType("text/css;charset=UTF-8");
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader("Vary", "Accept-Encoding");
+    verify(response).setHeader("ETag", asset.getGzipETag());
+    assertArrayEquals(asset.getContent(), gunzip(out.toByteArray()));
+  }
+
+  @Test
+  public void testNotModified() throws ServletException, IOException
+  {
+    Asset asset = StaticAssets.getInstance().get("ota.css");
+    HttpServletRequest request = mockRequest("/" + asset.getFingerprintedName());
+    when(request.getHeader("If-None-Match")).thenReturn(asset.getETag());
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    service.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response, never()).getOutputStream();
+  }
+
+  @Test
+  public void testUnknownAsset() throws ServletException, IOException
+  {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    service.doGet(mockRequest("/ota.0000000000000000.css"), response);
+    verify(response).sendError(eq(404), anyString());
+
+    response = mock(HttpServletResponse.class);
+    service.doGet(mockRequest(null), response);
+    verify(response).sendError(eq(404), anyString());
+  }
+
+  private static HttpServletRequest mockRequest(String pathInfo)
+  {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn(pathInfo);
+    return request;
+  }
+
+  private static HttpServletResponse mockResponse(BufferedServletOutputStream out) throws IOException
+  {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(out);
+    return response;
+  }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_BUNDLEIDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_BUNDLEVERSION;
+import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_IPACLASSIFIER;
+import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_IPA_LINK;
+import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_REFERER;
+import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_TITLE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.BulkRecordReader;
+import com.sap.prd.mobile.ios.ota.lib.LibUtils;
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+
+public class OtaBulkServiceTest
+{
+
+  private final static String SERVICE_ROOT = "http://ota-server:8080/OTAService";
+
+  private OtaBulkService service;
+
+  @After
+  public void tearDown()
+  {
+    if (service != null) {
+      service.destroy();
+    }
+  }
+
+  @Test
+  public void testJson() throws Exception
+  {
+    init(null, null);
+    String[] lines = post("application/json", "{\"Referer\":\"" + TEST_REFERER + "\",\"title\":\"" + TEST_TITLE
+          + "\",\"bundleIdentifier\":\"" + TEST_BUNDLEIDENTIFIER + "\",\"bundleVersion\":\"" + TEST_BUNDLEVERSION
+          + "\"}\n{\"title\":\"NoReferer\"}\n").split("\n");
+    assertEquals(2, lines.length);
+    assertEquals("{\"index\":0,\"plistUrl\":\""
+          + OtaPlistService.versioned(OtaPlistGenerator.compactPlistRequestUrl(SERVICE_ROOT + "/PLIST", TEST_REFERER,
+                TEST_TITLE, TEST_BUNDLEIDENTIFIER, TEST_BUNDLEVERSION, null, null), null)
+          + "\",\"htmlUrl\":\"" + SERVICE_ROOT + "/HTML?Referer=" + LibUtils.urlEncode(TEST_REFERER) + "&title="
+          + TEST_TITLE + "&bundleIdentifier=" + TEST_BUNDLEIDENTIFIER + "&bundleVersion=" + TEST_BUNDLEVERSION
+          + "\",\"ipaUrl\":\"" + TEST_IPA_LINK + "\"}", lines[0]);
+    assertEquals("{\"index\":1,\"error\":\"Referer required\"}", lines[1]);
+  }
+
+  @Test
+  public void testCsv() throws Exception
+  {
+    init(null, null);
+    String[] lines = post("text/csv", "Referer,title,ipaClassifier\r\n" + TEST_REFERER + ",\"My, App\","
+          + TEST_IPACLASSIFIER + "\r\n").split("\r\n");
+    assertEquals(2, lines.length);
+    assertEquals("index,plistUrl,htmlUrl,ipaUrl,error", lines[0]);
+    assertTrue(lines[1], lines[1].startsWith("0,\"" + SERVICE_ROOT + "/PLIST/v1/"));
+    assertTrue(lines[1], lines[1].contains("/HTML?Referer=" + LibUtils.urlEncode(TEST_REFERER) + "&title=My%2C+App&ipaClassifier="
+          + TEST_IPACLASSIFIER + "\","));
+    assertTrue(lines[1], lines[1].endsWith(",\"http://nexus:8081/abc/MyHHH-" + TEST_IPACLASSIFIER + ".ipa\","));
+  }
+
+  @Test
+  public void testParallel() throws Exception
+  {
+    init("4", null);
+    assertAllRecords(10000);
+  }
+
+  @Test
+  public void testFewRecordsInParallel() throws Exception
+  {
+    final int threads = 4;
+    init(String.valueOf(threads), null);
+    final CountDownLatch running = new CountDownLatch(threads);
+    OtaBulkService.Batch template = new OtaBulkService.Batch(OtaBulkService.Format.JSON, SERVICE_ROOT) {
+      @Override
+      OtaBulkService.Batch next(final int offset)
+      {
+        return new OtaBulkService.Batch(OtaBulkService.Format.JSON, SERVICE_ROOT) {
+          @Override
+          public String call()
+          {
+            running.countDown();
+            try {
+              return offset + (running.await(10, TimeUnit.SECONDS) ? "" : " alone") + "\n";
+            }
+            catch (InterruptedException e) {
+              throw new IllegalStateException(e);
+            }
+          }
+        };
+      }
+    };
+    StringBuilder json = new StringBuilder();
+    for (int i = 0; i < threads; i++) {
+      json.append("{\"title\":\"App").append(i).append("\"}\n");
+    }
+    StringWriter writer = new StringWriter();
+    assertEquals(threads, service.process(BulkRecordReader.forJson(new StringReader(json.toString())), template,
+          writer));
+    String[] lines = writer.toString().split("\n");
+    Arrays.sort(lines);
+    assertEquals("[0, 1, 2, 3]", Arrays.toString(lines));
+  }
+
+  @Test
+  public void testSequential() throws Exception
+  {
+    init("0", null);
+    String[] lines = assertAllRecords(200);
+    for (int i = 0; i < lines.length; i++) {
+      assertTrue(lines[i].startsWith("{\"index\":" + i + ","));
+    }
+  }
+
+  @Test
+  public void testMalformed() throws Exception
+  {
+    init("2", null);
+    StringBuilder json = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      json.append("{\"Referer\":\"").append(TEST_REFERER).append("\"}\n");
+    }
+    json.append("{\"Referer\" \"").append(TEST_REFERER).append("\"}\n");
+    String[] lines = post(null, json.toString()).split("\n");
+    assertEquals(101, lines.length);
+    assertEquals("{\"index\":100,\"error\":\"Expected ':' in line 101\"}", lines[100]);
+  }
+
+  @Test
+  public void testMaxRecords() throws Exception
+  {
+    init(null, "64");
+    StringBuilder json = new StringBuilder();
+    for (int i = 0; i < 65; i++) {
+      json.append("{\"Referer\":\"").append(TEST_REFERER).append("\"}\n");
+    }
+    String[] lines = post(null, json.toString()).split("\n");
+    assertEquals(65, lines.length);
+    assertEquals("{\"index\":64,\"error\":\"More than 64 records\"}", lines[64]);
+  }
+
+  @Test
+  public void testQuote()
+  {
+    assertEquals("\"a\"\"b\\c\"", OtaBulkService.Format.CSV.quote("a\"b\\c"));
+    assertEquals("\"a\\\"b\\\\c\\u000a\"", OtaBulkService.Format.JSON.quote("a\"b\\c\n"));
+  }
+
+  private String[] assertAllRecords(int records) throws ServletException, IOException
+  {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < records; i++) {
+      json.append("{\"Referer\":\"").append(TEST_REFERER).append("\",\"title\":\"App").append(i).append("\"},\n");
+    }
+    json.append("]");
+    long start = System.nanoTime();
+    String[] lines = post(null, json.toString()).split("\n");
+    long duration = System.nanoTime() - start;
+    System.out.println(String.format("Bulk: %d records in %.1f ms", records, duration / 1e6));
+    assertEquals(records, lines.length);
+    Set<String> indices = new HashSet<String>();
+    for (String line : lines) {
+      String index = line.substring("{\"index\":".length(), line.indexOf(','));
+      assertTrue(line, line.contains("title=App" + index + "\""));
+      indices.add(index);
+    }
+    assertEquals(records, indices.size());
+    return lines;
+  }
+
+  private void init(String threads, String maxRecords) throws ServletException
+  {
+    ServletContext context = mock(ServletContext.class);
+    when(context.getInitParameter(OtaBulkService.THREADS_KEY)).thenReturn(threads);
+    when(context.getInitParameter(OtaBulkService.MAX_RECORDS_KEY)).thenReturn(maxRecords);
+    ServletConfig config = mock(ServletConfig.class);
+    when(config.getServletContext()).thenReturn(context);
+    service = new OtaBulkService();
+    service.init(config);
+  }
+
+  private String post(String contentType, String body) throws ServletException, IOException
+  {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getContentType()).thenReturn(contentType);
+    when(request.getReader()).thenReturn(new BufferedReader(new StringReader(body)));
+    when(request.getRequestURL()).thenReturn(new StringBuffer(SERVICE_ROOT + "/BULK"));
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    StringWriter writer = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(writer));
+    service.doPost(request, response);
+    verify(response).setContentType(contentType != null && contentType.startsWith("text/csv") ? "text/csv;charset=UTF-8"
+          : "application/x-ndjson;charset=UTF-8");
+    return writer.toString();
+  }
+
+}
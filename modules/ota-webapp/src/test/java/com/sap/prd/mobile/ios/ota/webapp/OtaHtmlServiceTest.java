@@ -27,18 +27,27 @@ import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.REFERER;
 import static com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator.TITLE;
 import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlService.HTML_TEMPLATE_PATH_KEY;
 import static com.sap.prd.mobile.ios.ota.webapp.TestUtils.assertContains;
+import static com.sap.prd.mobile.ios.ota.webapp.TestUtils.gunzip;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.endsWith;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -49,10 +58,13 @@ import javax.servlet.http.HttpServletResponse;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.lib.StaticAssets;
 import com.sap.prd.mobile.ios.ota.lib.TestUtils;
+import com.sap.prd.mobile.ios.ota.webapp.TestUtils.BufferedServletOutputStream;
 
 public class OtaHtmlServiceTest
 {
@@ -81,13 +93,13 @@ public class OtaHtmlServiceTest
   @BeforeClass
   public static void beforeClass() throws IOException
   {
-    TEST_PLIST_URL = OtaPlistGenerator.generatePlistRequestUrl(
+    TEST_PLIST_URL = new URL(OtaPlistService.versioned(OtaPlistGenerator.compactPlistRequestUrl(
           "http://ota-server:8080/PLIST", TEST_REFERER, TEST_TITLE, TEST_BUNDLEIDENTIFIER, TEST_BUNDLEVERSION,
-          null, null);
+          null, null), null));
     TEST_OTA_LINK = String.format("<a href='itms-services:///?action=download-manifest&url=%s'>", TEST_PLIST_URL);
-    TEST_PLIST_URL_WITH_CLASSIFIERS = OtaPlistGenerator.generatePlistRequestUrl(
+    TEST_PLIST_URL_WITH_CLASSIFIERS = new URL(OtaPlistService.versioned(OtaPlistGenerator.compactPlistRequestUrl(
           "http://ota-server:8080/PLIST", TEST_REFERER_WITH_CLASSIFIER, TEST_TITLE, TEST_BUNDLEIDENTIFIER,
-          TEST_BUNDLEVERSION, IPA_CLASSIFIER, OTA_CLASSIFIER);
+          TEST_BUNDLEVERSION, IPA_CLASSIFIER, OTA_CLASSIFIER), null));
   }
 
   @Before
@@ -101,13 +113,13 @@ public class OtaHtmlServiceTest
   public void testCorrectValues() throws ServletException, IOException
   {
     OtaHtmlService service = new OtaHtmlService();
-    StringWriter writer = new StringWriter();
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
 
     HttpServletRequest request = mockRequest();
-    HttpServletResponse response = mockResponse(writer);
+    HttpServletResponse response = mockResponse(out);
     service.doPost(request, response);
 
-    String result = writer.getBuffer().toString();
+    String result = out.toString();
     assertContains(CHECK_TITLE, result);
     assertContains(TEST_IPA_LINK, result);
     TestUtils.assertOtaLink(result, TEST_PLIST_URL.toString(), TEST_BUNDLEIDENTIFIER);
@@ -118,21 +130,37 @@ public class OtaHtmlServiceTest
   public void testWithConfiguration() throws ServletException, IOException
   {
     OtaHtmlService service = new OtaHtmlService();
-    StringWriter writer = new StringWriter();
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
 
     HttpServletRequest request = mockRequest();
-    HttpServletResponse response = mockResponse(writer);
+    HttpServletResponse response = mockResponse(out);
     service = mockServletContextInitParameters(service, 
           HTML_TEMPLATE_PATH_KEY, TEST_ALTERNATIVE_TEMPLATE);
     service.doPost(request, response);
 
-    String result = writer.getBuffer().toString();
+    String result = out.toString();
     assertContains("ALTERNATIVE HTML TEMPLATE", result);
     assertContains(CHECK_TITLE, result);
     assertContains("<a href='itms-services:///?action=download-manifest&url="+TEST_PLIST_URL+"'>OTA</a>", result);
     assertContains("<a href='"+TEST_IPA_LINK+"'>IPA</a>", result);
   }
   
+  @Test
+  public void testInitParametersSnapshot() throws ServletException, IOException
+  {
+    OtaHtmlService service = mockServletContextInitParameters(new OtaHtmlService(),
+          HTML_TEMPLATE_PATH_KEY, TEST_ALTERNATIVE_TEMPLATE);
+    Map<String, String> initParameters = service.getInitParameters();
+    assertEquals(TEST_ALTERNATIVE_TEMPLATE, initParameters.get(HTML_TEMPLATE_PATH_KEY));
+
+    for (int i = 0; i < 2; i++) {
+      BufferedServletOutputStream out = new BufferedServletOutputStream();
+      service.doPost(mockRequest(), mockResponse(out));
+      assertContains("ALTERNATIVE HTML TEMPLATE", out.toString());
+    }
+    assertSame(initParameters, service.getInitParameters());
+  }
+
   private OtaHtmlService mockServletContextInitParameters(OtaHtmlService service, String...keyValuePairs)
   {
     if (keyValuePairs.length % 2 != 0) {
@@ -156,10 +184,10 @@ public class OtaHtmlServiceTest
     return serviceSpy;
   }
 
-  private HttpServletResponse mockResponse(StringWriter writer) throws IOException
+  private HttpServletResponse mockResponse(BufferedServletOutputStream out) throws IOException
   {
     HttpServletResponse response = mock(HttpServletResponse.class);
-    when(response.getWriter()).thenReturn(new PrintWriter(writer));
+    when(response.getOutputStream()).thenReturn(out);
     return response;
   }
 
@@ -177,11 +205,126 @@ public class OtaHtmlServiceTest
   }
   
   
+  @Test
+  public void testConditionalRequest() throws ServletException, IOException
+  {
+    OtaHtmlService service = new OtaHtmlService();
+    HttpServletRequest request = mockRequest();
+    when(request.getMethod()).thenReturn("GET");
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
+    HttpServletResponse response = mockResponse(out);
+    service.doGet(request, response);
+
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(eq("ETag"), etag.capture());
+    verify(response).setHeader("Cache-Control", Utils.DEFAULT_CACHE_CONTROL);
+    verify(response).setHeader("Vary", "Referer, Accept-Encoding");
+    assertContains(CHECK_TITLE, out.toString());
+
+    request = mockRequest();
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + etag.getValue());
+    response = mock(HttpServletResponse.class);
+    service.doGet(request, response);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response).setHeader("ETag", etag.getValue());
+    verify(response, never()).getOutputStream();
+
+    request = mockRequest();
+    when(request.getParameter(TITLE)).thenReturn("Other");
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getHeader("If-None-Match")).thenReturn(etag.getValue());
+    out = new BufferedServletOutputStream();
+    response = mockResponse(out);
+    service.doGet(request, response);
+    verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertContains("Other", out.toString());
+  }
+
+  @Test
+  public void testGzipStreamed() throws ServletException, IOException
+  {
+    OtaHtmlService service = new OtaHtmlService(); //no render cache
+    BufferedServletOutputStream identity = new BufferedServletOutputStream();
+    service.doGet(mockRequest(), mockResponse(identity));
+
+    HttpServletRequest request = mockRequest();
+    when(request.getHeader("Accept-Encoding")).thenReturn("deflate, gzip;q=0.8");
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
+    HttpServletResponse response = mockResponse(out);
+    service.doGet(request, response);
+
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader(eq("ETag"), endsWith("-gzip\""));
+    assertEquals(identity.toString(), new String(gunzip(out.toByteArray()), "UTF-8"));
+    assertEquals(1, service.getCompressor().getCompressedCount());
+    assertTrue(service.getCompressor().getSavedBytes() > 0);
+
+    request = mockRequest();
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip;q=0, *");
+    response = mockResponse(new BufferedServletOutputStream());
+    service.doGet(request, response);
+    verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+  }
+
+  @Test
+  public void testGzipCached() throws ServletException, IOException
+  {
+    OtaHtmlService service = mockServletContextInitParameters(new OtaHtmlService(),
+          Utils.GZIP_MIN_BYTES_KEY, "100");
+    service.init();
+    try {
+      byte[] first = null;
+      for (int i = 0; i < 3; i++) {
+        HttpServletRequest request = mockRequest();
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+        BufferedServletOutputStream out = new BufferedServletOutputStream();
+        HttpServletResponse response = mockResponse(out);
+        service.doGet(request, response);
+        verify(response).setHeader("Content-Encoding", "gzip");
+        verify(response).setContentLength(out.toByteArray().length);
+        assertContains(CHECK_TITLE, new String(gunzip(out.toByteArray()), "UTF-8"));
+        if (first == null) {
+          first = out.toByteArray();
+        }
+        assertArrayEquals(first, out.toByteArray());
+      }
+      assertEquals(1, service.getCompressor().getCompressedCount()); //precompressed once
+      assertEquals(100, service.getCompressor().getMinimumBytes());
+    }
+    finally {
+      service.destroy();
+    }
+  }
+
+  @Test
+  public void testGzipDisabled() throws ServletException, IOException
+  {
+    OtaHtmlService service = mockServletContextInitParameters(new OtaHtmlService(),
+          Utils.GZIP_MIN_BYTES_KEY, "-1");
+    service.init();
+    try {
+      HttpServletRequest request = mockRequest();
+      when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+      BufferedServletOutputStream out = new BufferedServletOutputStream();
+      HttpServletResponse response = mockResponse(out);
+      service.doGet(request, response);
+      verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+      verify(response).setHeader("Vary", "Referer");
+      assertContains(CHECK_TITLE, out.toString());
+      assertContains("href=\"/" + StaticAssets.PATH + "/"
+            + StaticAssets.getInstance().get("ota.css").getFingerprintedName() + "\"", out.toString());
+    }
+    finally {
+      service.destroy();
+    }
+  }
+
   @Test
   public void testWithClassifiers() throws ServletException, IOException
   {
     OtaHtmlService service = new OtaHtmlService();
-    StringWriter writer = new StringWriter();
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
 
     HttpServletRequest request = mock(HttpServletRequest.class);
     when(request.getHeader(REFERER)).thenReturn(TEST_REFERER_WITH_CLASSIFIER);
@@ -192,11 +335,11 @@ public class OtaHtmlServiceTest
     when(request.getParameter(IPA_CLASSIFIER)).thenReturn(TEST_IPACLASSIFIER);
     when(request.getParameter(OTA_CLASSIFIER)).thenReturn(TEST_OTACLASSIFIER);
 
-    HttpServletResponse response = mockResponse(writer);
+    HttpServletResponse response = mockResponse(out);
 
     service.doPost(request, response);
 
-    String result = writer.getBuffer().toString();
+    String result = out.toString();
     assertContains(CHECK_TITLE, result);
     assertContains(TEST_IPA_LINK_WITH_CLASSIFIER, result);
     TestUtils.assertOtaLink(result, TEST_PLIST_URL_WITH_CLASSIFIERS.toString(), TEST_BUNDLEIDENTIFIER);
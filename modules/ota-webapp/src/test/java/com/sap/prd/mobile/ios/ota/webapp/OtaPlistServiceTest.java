@@ -26,23 +26,35 @@ import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_IPA_LINK
 import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_REFERER;
 import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_TITLE;
 import static com.sap.prd.mobile.ios.ota.webapp.TestUtils.assertContains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
 import com.sap.prd.mobile.ios.ota.webapp.OtaPlistService;
+import com.sap.prd.mobile.ios.ota.webapp.TestUtils.BufferedServletOutputStream;
 
 public class OtaPlistServiceTest
 {
@@ -53,7 +65,7 @@ public class OtaPlistServiceTest
   public void testWithURLParameters() throws ServletException, IOException
   {
     OtaPlistService service = new OtaPlistService();
-    StringWriter writer = new StringWriter();
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
 
     HttpServletRequest request = mock(HttpServletRequest.class);
 
@@ -66,11 +78,11 @@ public class OtaPlistServiceTest
     when(request.getParameter(OtaPlistGenerator.BUNDLE_VERSION)).thenReturn(TEST_BUNDLEVERSION);
 
     HttpServletResponse response = mock(HttpServletResponse.class);
-    when(response.getWriter()).thenReturn(new PrintWriter(writer));
+    when(response.getOutputStream()).thenReturn(out);
 
     service.doGet(request, response);
 
-    String result = writer.getBuffer().toString();
+    String result = out.toString();
     assertContains(STRING_TAG_START + TEST_TITLE + STRING_TAG_END, result);
     assertContains(STRING_TAG_START + TEST_BUNDLEVERSION + STRING_TAG_END, result);
     assertContains(STRING_TAG_START + TEST_BUNDLEIDENTIFIER + STRING_TAG_END, result);
@@ -81,7 +93,7 @@ public class OtaPlistServiceTest
   public void testWithSlashSeparatedParameters() throws ServletException, IOException
   {
     OtaPlistService service = new OtaPlistService();
-    StringWriter writer = new StringWriter();
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
 
     HttpServletRequest request = mock(HttpServletRequest.class);
 
@@ -94,15 +106,248 @@ public class OtaPlistServiceTest
     when(request.getRequestURI()).thenReturn(sb.toString());
 
     HttpServletResponse response = mock(HttpServletResponse.class);
-    when(response.getWriter()).thenReturn(new PrintWriter(writer));
+    when(response.getOutputStream()).thenReturn(out);
 
     service.doGet(request, response);
 
-    String result = writer.getBuffer().toString();
+    String result = out.toString();
     assertContains(STRING_TAG_START + TEST_TITLE + STRING_TAG_END, result);
     assertContains(STRING_TAG_START + TEST_BUNDLEVERSION + STRING_TAG_END, result);
     assertContains(STRING_TAG_START + TEST_BUNDLEIDENTIFIER + STRING_TAG_END, result);
     assertContains(STRING_TAG_START + TEST_IPA_LINK + STRING_TAG_END, result);
   }
 
+  @Test
+  public void testWithCompactToken() throws ServletException, IOException
+  {
+    URL plistUrl = OtaPlistGenerator.generateCompactPlistRequestUrl("http://ota-server:8080/abc/"
+          + OtaPlistService.SERVICE_NAME, TEST_REFERER, TEST_TITLE, TEST_BUNDLEIDENTIFIER, TEST_BUNDLEVERSION, null,
+          null);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRequestURI()).thenReturn(plistUrl.getPath());
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(out);
+
+    new OtaPlistService().doGet(request, response);
+
+    String result = out.toString();
+    assertContains(STRING_TAG_START + TEST_TITLE + STRING_TAG_END, result);
+    assertContains(STRING_TAG_START + TEST_BUNDLEVERSION + STRING_TAG_END, result);
+    assertContains(STRING_TAG_START + TEST_BUNDLEIDENTIFIER + STRING_TAG_END, result);
+    assertContains(STRING_TAG_START + TEST_IPA_LINK + STRING_TAG_END, result);
+  }
+
+  @Test
+  public void testConditionalRequest() throws ServletException, IOException
+  {
+    OtaPlistService service = new OtaPlistService();
+    HttpServletRequest request = mockRequest(TEST_TITLE);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new BufferedServletOutputStream());
+    service.doGet(request, response);
+
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(eq("ETag"), etag.capture());
+    assertTrue(etag.getValue().matches("\"[0-9a-f]{32}\""));
+    verify(response).setHeader("Cache-Control", Utils.DEFAULT_CACHE_CONTROL);
+    verify(response, never()).setHeader(eq("Vary"), anyString()); //referer is a parameter
+
+    request = mockRequest(TEST_TITLE);
+    when(request.getHeader("If-None-Match")).thenReturn("W/" + etag.getValue());
+    response = mock(HttpServletResponse.class);
+    service.doGet(request, response);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response, never()).getOutputStream();
+
+    request = mockRequest("Other");
+    when(request.getHeader("If-None-Match")).thenReturn(etag.getValue());
+    response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new BufferedServletOutputStream());
+    service.doGet(request, response);
+    verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response, never()).setHeader("ETag", etag.getValue());
+  }
+
+  @Test
+  public void testCacheControlPolicies() throws ServletException, IOException
+  {
+    ServletContext context = mock(ServletContext.class);
+    when(context.getContextPath()).thenReturn("/testCacheControlPolicies");
+    when(context.getInitParameter(OtaPlistService.CACHE_CONTROL_KEY)).thenReturn(" ");
+    when(context.getInitParameter(Utils.RENDER_CACHE_MAX_BYTES_KEY)).thenReturn("0");
+    ServletConfig config = mock(ServletConfig.class);
+    when(config.getServletContext()).thenReturn(context);
+    OtaPlistService service = new OtaPlistService();
+    service.init(config);
+
+    String plistUrl = OtaPlistGenerator.compactPlistRequestUrl("http://ota-server:8080/abc/"
+          + OtaPlistService.SERVICE_NAME, TEST_REFERER, TEST_TITLE, TEST_BUNDLEIDENTIFIER, TEST_BUNDLEVERSION, null,
+          null);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRequestURI()).thenReturn(new URL(OtaPlistService.versioned(plistUrl, null)).getPath());
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new BufferedServletOutputStream());
+    service.doGet(request, response);
+    verify(response).setHeader("Cache-Control", OtaPlistService.DEFAULT_IMMUTABLE_CACHE_CONTROL);
+    verify(response, never()).setHeader(eq("Vary"), anyString());
+
+    for (String stale : new String[] { plistUrl, plistUrl + "/0123456789abcdef" }) {
+      request = mock(HttpServletRequest.class);
+      when(request.getRequestURI()).thenReturn(new URL(stale).getPath());
+      response = mock(HttpServletResponse.class);
+      when(response.getOutputStream()).thenReturn(new BufferedServletOutputStream());
+      service.doGet(request, response);
+      verify(response, never()).setHeader(eq("Cache-Control"), anyString()); //rendered by another version
+    }
+
+    StringBuilder uri = new StringBuilder("/abc/").append(OtaPlistService.SERVICE_NAME).append("/");
+    uri.append(encode(OtaPlistGenerator.TITLE + "=" + TEST_TITLE));
+    request = mock(HttpServletRequest.class);
+    when(request.getRequestURI()).thenReturn(uri.toString());
+    when(request.getHeader(OtaPlistGenerator.REFERER)).thenReturn(TEST_REFERER);
+    response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new BufferedServletOutputStream());
+    service.doGet(request, response);
+    verify(response, never()).setHeader(eq("Cache-Control"), anyString()); //disabled by the empty value
+    verify(response).setHeader("Vary", "Referer");
+  }
+
+  @Test
+  public void testImmutableCacheControl() throws ServletException, IOException
+  {
+    URL withoutReferer = OtaPlistGenerator.generateCompactPlistRequestUrl("http://ota-server:8080/abc/"
+          + OtaPlistService.SERVICE_NAME, null, TEST_TITLE, TEST_BUNDLEIDENTIFIER, TEST_BUNDLEVERSION, null, null);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRequestURI()).thenReturn(withoutReferer.getPath());
+    when(request.getHeader(OtaPlistGenerator.REFERER)).thenReturn(TEST_REFERER);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new BufferedServletOutputStream());
+    new OtaPlistService().doGet(request, response);
+    verify(response).setHeader("Cache-Control", Utils.DEFAULT_CACHE_CONTROL); //depends on the header
+    verify(response).setHeader("Vary", "Referer");
+
+    ServletContext context = mock(ServletContext.class);
+    when(context.getContextPath()).thenReturn("/testImmutableCacheControl");
+    when(context.getInitParameter(OtaPlistService.PLIST_TEMPLATE_PATH_KEY)).thenReturn(
+          new File("./src/test/resources/alternativeTemplate.html").getAbsolutePath());
+    when(context.getInitParameter(Utils.RENDER_CACHE_MAX_BYTES_KEY)).thenReturn("0");
+    ServletConfig config = mock(ServletConfig.class);
+    when(config.getServletContext()).thenReturn(context);
+    OtaPlistService service = new OtaPlistService();
+    service.init(config);
+    URL withReferer = OtaPlistGenerator.generateCompactPlistRequestUrl("http://ota-server:8080/abc/"
+          + OtaPlistService.SERVICE_NAME, TEST_REFERER, TEST_TITLE, TEST_BUNDLEIDENTIFIER, TEST_BUNDLEVERSION, null,
+          null);
+    request = mock(HttpServletRequest.class);
+    when(request.getRequestURI()).thenReturn(withReferer.getPath());
+    response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new BufferedServletOutputStream());
+    service.doGet(request, response);
+    verify(response).setHeader("Cache-Control", Utils.DEFAULT_CACHE_CONTROL); //the template may change
+    verify(response, never()).setHeader(eq("Vary"), anyString());
+  }
+
+  @Test
+  public void testAsync() throws Exception
+  {
+    AsyncExecutor executor = new AsyncExecutor(1, 1, 1000);
+    ServletContext context = mock(ServletContext.class);
+    when(context.getContextPath()).thenReturn("/testAsync");
+    when(context.getAttribute(AsyncExecutor.ATTRIBUTE)).thenReturn(executor);
+    when(context.getInitParameter(Utils.RENDER_CACHE_MAX_BYTES_KEY)).thenReturn("0");
+    ServletConfig config = mock(ServletConfig.class);
+    when(config.getServletContext()).thenReturn(context);
+    OtaPlistService service = new OtaPlistService();
+    service.init(config);
+    try {
+      HttpServletRequest request = mockRequest(TEST_TITLE);
+      BufferedServletOutputStream out = new BufferedServletOutputStream();
+      HttpServletResponse response = mock(HttpServletResponse.class);
+      when(response.getOutputStream()).thenReturn(out);
+      AsyncContext async = mock(AsyncContext.class);
+      when(request.isAsyncSupported()).thenReturn(true);
+      when(request.startAsync(request, response)).thenReturn(async);
+
+      service.doGet(request, response);
+
+      verify(async, timeout(5000)).complete();
+      assertContains(STRING_TAG_START + TEST_TITLE + STRING_TAG_END, out.toString());
+    }
+    finally {
+      service.destroy();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testOversizedUriRejected() throws ServletException, IOException
+  {
+    StringBuilder uri = new StringBuilder("/abc/").append(OtaPlistService.SERVICE_NAME).append("/");
+    while (uri.length() <= UriParameters.MAX_URI_LENGTH) {
+      uri.append(encode(OtaPlistGenerator.TITLE + "=" + TEST_TITLE));
+    }
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRequestURI()).thenReturn(uri.toString());
+    HttpServletResponse response = mock(HttpServletResponse.class);
+
+    new OtaPlistService().doGet(request, response);
+
+    verify(response).sendError(eq(414), anyString());
+  }
+
+  @Test
+  public void testRenderCache() throws ServletException, IOException
+  {
+    ServletContext context = mock(ServletContext.class);
+    when(context.getContextPath()).thenReturn("/testRenderCache");
+    ServletConfig config = mock(ServletConfig.class);
+    when(config.getServletContext()).thenReturn(context);
+
+    OtaPlistService service = new OtaPlistService();
+    service.init(config);
+    try {
+      String first = doGet(service, TEST_TITLE);
+      String second = doGet(service, TEST_TITLE);
+      String other = doGet(service, "Other");
+
+      assertEquals(first, second);
+      assertContains(STRING_TAG_START + TEST_TITLE + STRING_TAG_END, second);
+      assertContains(STRING_TAG_START + "Other" + STRING_TAG_END, other);
+      assertEquals(1, service.getRenderCache().getHitCount());
+      assertEquals(2, service.getRenderCache().getMissCount());
+    }
+    finally {
+      service.destroy();
+    }
+  }
+
+  private String doGet(OtaPlistService service, String title) throws ServletException, IOException
+  {
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
+    HttpServletRequest request = mockRequest(title);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(out);
+    service.doGet(request, response);
+    return out.toString();
+  }
+
+  private HttpServletRequest mockRequest(String title)
+  {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    Map<String, String[]> paramsDummy = new HashMap<String, String[]>();
+    paramsDummy.put("x", null);
+    paramsDummy.put(OtaPlistGenerator.REFERER, new String[] { TEST_REFERER });
+    paramsDummy.put(OtaPlistGenerator.TITLE, new String[] { title });
+    paramsDummy.put(OtaPlistGenerator.BUNDLE_IDENTIFIER, new String[] { TEST_BUNDLEIDENTIFIER });
+    paramsDummy.put(OtaPlistGenerator.BUNDLE_VERSION, new String[] { TEST_BUNDLEVERSION });
+    when(request.getParameterMap()).thenReturn(paramsDummy);
+    when(request.getParameter(OtaPlistGenerator.REFERER)).thenReturn(TEST_REFERER);
+    when(request.getParameter(OtaPlistGenerator.TITLE)).thenReturn(title);
+    when(request.getParameter(OtaPlistGenerator.BUNDLE_IDENTIFIER)).thenReturn(TEST_BUNDLEIDENTIFIER);
+    when(request.getParameter(OtaPlistGenerator.BUNDLE_VERSION)).thenReturn(TEST_BUNDLEVERSION);
+    return request;
+  }
+
 }
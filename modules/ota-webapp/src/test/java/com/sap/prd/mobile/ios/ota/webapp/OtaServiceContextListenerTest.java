@@ -0,0 +1,91 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.StaticAssets;
+
+public class OtaServiceContextListenerTest
+{
+
+  @Test
+  public void testWarmUp() throws Exception
+  {
+    Map<String, String> initParameters = Collections.emptyMap();
+    assertEquals(5, new OtaServiceContextListener().warmUp(initParameters, 5));
+    assertEquals(0, new OtaServiceContextListener().warmUp(
+          Collections.singletonMap(OtaHtmlService.HTML_TEMPLATE_PATH_KEY, "template.html"), 0));
+  }
+
+  /**
+   * The warm-up renders against the same snapshot as the HTML service, so the page is specialized
+   * for the configuration and links the assets of the web application.
+   */
+  @Test
+  public void testWarmUpUsesServiceSnapshot() throws Exception
+  {
+    ServletContext context = mock(ServletContext.class);
+    when(context.getContextPath()).thenReturn("/testWarmUpUsesServiceSnapshot");
+    when(context.getInitParameterNames()).thenReturn(
+          Collections.enumeration(Arrays.asList(OtaHtmlService.HTML_TEMPLATE_PATH_KEY)));
+    when(context.getInitParameter(OtaHtmlService.HTML_TEMPLATE_PATH_KEY)).thenReturn("template.html");
+    Map<String, String> initParameters = OtaHtmlService.snapshotInitParameters(context);
+    assertEquals("template.html", initParameters.get(OtaHtmlService.HTML_TEMPLATE_PATH_KEY));
+    for (Map.Entry<String, String> asset : StaticAssets.getInstance().getUrls("/testWarmUpUsesServiceSnapshot")
+      .entrySet()) {
+      assertEquals(asset.getValue(), initParameters.get(asset.getKey()));
+      assertTrue(asset.getValue().startsWith("/testWarmUpUsesServiceSnapshot/"));
+    }
+
+    assertEquals(1, new OtaServiceContextListener().warmUp(initParameters, 1));
+  }
+
+  @Test
+  public void testContextInitialized()
+  {
+    ServletContext context = mock(ServletContext.class);
+    when(context.getInitParameter(OtaServiceContextListener.WARMUP_RENDERS_KEY)).thenReturn("invalid");
+    when(context.getInitParameter(OtaHtmlService.HTML_TEMPLATE_PATH_KEY)).thenReturn("doesnotexist.htm");
+    ServletContextEvent event = new ServletContextEvent(context);
+
+    OtaServiceContextListener listener = new OtaServiceContextListener();
+    listener.contextInitialized(event);
+    verify(context).setAttribute(eq(AsyncExecutor.ATTRIBUTE), any(AsyncExecutor.class));
+    listener.contextDestroyed(event);
+    verify(context).removeAttribute(AsyncExecutor.ATTRIBUTE);
+  }
+
+}
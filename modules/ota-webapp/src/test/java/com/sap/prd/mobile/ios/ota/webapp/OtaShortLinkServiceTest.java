@@ -0,0 +1,194 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_BUNDLEIDENTIFIER;
+import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_BUNDLEVERSION;
+import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_REFERER;
+import static com.sap.prd.mobile.ios.ota.webapp.OtaHtmlServiceTest.TEST_TITLE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.sap.prd.mobile.ios.ota.lib.LibUtils;
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+import com.sap.prd.mobile.ios.ota.webapp.TestUtils.BufferedServletOutputStream;
+
+public class OtaShortLinkServiceTest
+{
+
+  private File directory;
+  private OtaShortLinkService service;
+
+  @Before
+  public void setUp() throws IOException, ServletException
+  {
+    directory = File.createTempFile("shortlinks", "");
+    directory.delete();
+    init("true", null);
+  }
+
+  private void init(String enabled, String maxLinks) throws ServletException
+  {
+    ServletContext context = mock(ServletContext.class);
+    when(context.getInitParameter(OtaShortLinkService.SHORT_LINKS_ENABLED_KEY)).thenReturn(enabled);
+    when(context.getInitParameter(OtaShortLinkService.SHORT_LINK_MAX_LINKS_KEY)).thenReturn(maxLinks);
+    when(context.getInitParameter(OtaShortLinkService.SHORT_LINK_DIRECTORY_KEY)).thenReturn(
+          directory.getAbsolutePath());
+    ServletConfig config = mock(ServletConfig.class);
+    when(config.getServletContext()).thenReturn(context);
+    service = new OtaShortLinkService();
+    service.init(config);
+  }
+
+  @After
+  public void tearDown()
+  {
+    service.destroy();
+    if (directory.isDirectory()) {
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  private static HttpServletRequest mockPost(String title)
+  {
+    HttpServletRequest post = mock(HttpServletRequest.class);
+    when(post.getRequestURL()).thenReturn(new StringBuffer("http://ota-server:8080/ota-service/S"));
+    when(post.getHeader(OtaPlistGenerator.REFERER)).thenReturn(TEST_REFERER);
+    when(post.getParameter(OtaPlistGenerator.TITLE)).thenReturn(title);
+    return post;
+  }
+
+  @Test
+  public void testCreateAndResolve() throws ServletException, IOException
+  {
+    HttpServletRequest post = mock(HttpServletRequest.class);
+    when(post.getRequestURL()).thenReturn(new StringBuffer("http://ota-server:8080/ota-service/S"));
+    when(post.getHeader(OtaPlistGenerator.REFERER)).thenReturn(TEST_REFERER);
+    when(post.getParameter(OtaPlistGenerator.TITLE)).thenReturn(TEST_TITLE);
+    when(post.getParameter(OtaPlistGenerator.BUNDLE_IDENTIFIER)).thenReturn(TEST_BUNDLEIDENTIFIER);
+    when(post.getParameter(OtaPlistGenerator.BUNDLE_VERSION)).thenReturn(TEST_BUNDLEVERSION);
+    BufferedServletOutputStream out = new BufferedServletOutputStream();
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(out);
+
+    service.doPost(post, response);
+
+    String shortUrl = out.toString();
+    assertTrue(shortUrl, shortUrl.matches("http://ota-server:8080/ota-service/S/[A-Za-z0-9_-]{8}"));
+    verify(response).setStatus(HttpServletResponse.SC_CREATED);
+    verify(response).setHeader("Location", shortUrl);
+    assertEquals(1, service.getStore().size());
+
+    HttpServletRequest get = mock(HttpServletRequest.class);
+    when(get.getContextPath()).thenReturn("/ota-service");
+    when(get.getPathInfo()).thenReturn(shortUrl.substring(shortUrl.lastIndexOf('/')));
+    response = mock(HttpServletResponse.class);
+
+    service.doGet(get, response);
+
+    ArgumentCaptor<String> location = ArgumentCaptor.forClass(String.class);
+    verify(response).sendRedirect(location.capture());
+    assertEquals("/ota-service/HTML?Referer=" + LibUtils.urlEncode(TEST_REFERER) + "&title="
+          + LibUtils.urlEncode(TEST_TITLE) + "&bundleIdentifier=" + LibUtils.urlEncode(TEST_BUNDLEIDENTIFIER)
+          + "&bundleVersion=" + LibUtils.urlEncode(TEST_BUNDLEVERSION), location.getValue());
+  }
+
+  @Test
+  public void testDisabledByDefault() throws ServletException, IOException
+  {
+    service.destroy();
+    init(null, null);
+    assertNull(service.getStore());
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    service.doPost(mockPost(TEST_TITLE), response);
+    verify(response).sendError(eq(404), anyString());
+
+    HttpServletRequest get = mock(HttpServletRequest.class);
+    when(get.getPathInfo()).thenReturn("/AAAAAAAA");
+    response = mock(HttpServletResponse.class);
+    service.doGet(get, response);
+    verify(response).sendError(eq(404), anyString());
+  }
+
+  @Test
+  public void testMissingReferer() throws ServletException, IOException
+  {
+    HttpServletRequest post = mock(HttpServletRequest.class);
+    when(post.getParameter(OtaPlistGenerator.TITLE)).thenReturn(TEST_TITLE);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+
+    service.doPost(post, response); //no exception for the container
+
+    verify(response).sendError(400, "Referer required");
+    assertEquals(0, service.getStore().size());
+  }
+
+  @Test
+  public void testQuota() throws ServletException, IOException
+  {
+    service.destroy();
+    init("true", "1");
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new BufferedServletOutputStream());
+    service.doPost(mockPost("App1"), response);
+    verify(response).setStatus(HttpServletResponse.SC_CREATED);
+
+    response = mock(HttpServletResponse.class);
+    service.doPost(mockPost("App2"), response);
+    verify(response).sendError(eq(507), anyString());
+    assertEquals(1, service.getStore().size());
+  }
+
+  @Test
+  public void testUnknownLink() throws ServletException, IOException
+  {
+    HttpServletRequest get = mock(HttpServletRequest.class);
+    when(get.getPathInfo()).thenReturn("/AAAAAAAA");
+    HttpServletResponse response = mock(HttpServletResponse.class);
+
+    service.doGet(get, response);
+
+    verify(response).sendError(eq(404), anyString());
+  }
+
+}
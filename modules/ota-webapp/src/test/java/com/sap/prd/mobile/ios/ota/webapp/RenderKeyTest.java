@@ -0,0 +1,92 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.OtaHtmlGenerator;
+import com.sap.prd.mobile.ios.ota.lib.OtaPlistGenerator;
+
+public class RenderKeyTest
+{
+
+  private final static String REFERER = "http://nexus:8081/abc/MyApp.htm";
+  private final static String PLIST_URL = "http://ota-server:8080/OTAService/PLIST/v1/abc";
+
+  @Test
+  public void testPlistETag()
+  {
+    OtaPlistGenerator generator = OtaPlistGenerator.getInstance();
+    String etag = plistKey("MyApp", "1.0").getETag();
+    assertTrue(etag, etag.matches("\"[0-9a-f]{32}\""));
+    assertEquals(etag, plistKey("MyApp", "1.0").getETag());
+    assertFalse(etag.equals(plistKey("Other", "1.0").getETag()));
+    assertFalse(etag.equals(plistKey("MyApp", "2.0").getETag()));
+    assertFalse(plistKey("MyApp", null).getETag().equals(plistKey("MyApp", "").getETag()));
+    assertFalse(plistKey("MyApp", null).getETag().equals(plistKey("MyApp", "null").getETag()));
+    assertEquals(etag.substring(0, 33) + "-gzip\"", plistKey("MyApp", "1.0").gzip().getETag());
+    assertEquals(new RenderKey(generator, parameters("MyApp", "1.0")), plistKey("MyApp", "1.0"));
+  }
+
+  @Test
+  public void testHtmlETag() throws IOException
+  {
+    Map<String, String> configuration = new HashMap<String, String>();
+    configuration.put("otaCssUrl", "/ota-service/assets/ota.css");
+    RenderKey key = htmlKey("MyApp", configuration);
+    assertEquals(key.getETag(), htmlKey("MyApp", configuration).getETag());
+    assertFalse(key.getETag().equals(htmlKey("Other", configuration).getETag()));
+
+    Map<String, String> changed = new HashMap<String, String>(configuration);
+    changed.put("otaCssUrl", "/other/assets/ota.css");
+    assertFalse(key.getETag().equals(htmlKey("MyApp", changed).getETag()));
+    assertFalse(key.getETag().equals(htmlKey("MyApp", null).getETag()));
+  }
+
+  private static RenderKey plistKey(String title, String bundleVersion)
+  {
+    return new RenderKey(OtaPlistGenerator.getInstance(), parameters(title, bundleVersion));
+  }
+
+  private static OtaPlistGenerator.Parameters parameters(String title, String bundleVersion)
+  {
+    try {
+      return new OtaPlistGenerator.Parameters(REFERER, title, "com.sap.MyApp", bundleVersion, null, null);
+    }
+    catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static RenderKey htmlKey(String title, Map<String, String> configuration) throws IOException
+  {
+    return new RenderKey(OtaHtmlGenerator.getInstance(), new OtaHtmlGenerator.Parameters(REFERER, title,
+          "com.sap.MyApp", PLIST_URL, null, null, configuration), configuration);
+  }
+
+}
@@ -21,9 +21,59 @@ package com.sap.prd.mobile.ios.ota.webapp;
 
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+
 public class TestUtils
 {
 
+  /**
+   * Collects the bytes written by a servlet, <code>toString()</code> returns them UTF-8 decoded.
+   */
+  public static class BufferedServletOutputStream extends ServletOutputStream
+  {
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    @Override
+    public void write(int b)
+    {
+      buffer.write(b);
+    }
+
+    public byte[] toByteArray()
+    {
+      return buffer.toByteArray();
+    }
+
+    @Override
+    public String toString()
+    {
+      try {
+        return buffer.toString("UTF-8");
+      }
+      catch (UnsupportedEncodingException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  public static byte[] gunzip(byte[] compressed) throws IOException
+  {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int read; (read = in.read(buffer)) >= 0;) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
   public static void assertContains(String expected, String value)
   {
     if (!value.contains(expected)) {
@@ -0,0 +1,122 @@
+/*
+ * #%L
+ * Over-the-air deployment webapp
+ * %%
+ * Copyright (C) 2012 SAP AG
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.sap.prd.mobile.ios.ota.webapp;
+
+import static com.sap.prd.mobile.ios.ota.lib.LibUtils.encode;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.sap.prd.mobile.ios.ota.lib.PlistToken;
+import com.sap.prd.mobile.ios.ota.webapp.UriParameters.InvalidUriException;
+import com.sap.prd.mobile.ios.ota.webapp.UriParameters.Key;
+
+public class UriParametersTest
+{
+
+  @Test
+  public void testParse()
+  {
+    UriParameters parameters = UriParameters.parse("/blabla/SERVICE/" + encode("title=abc") + "/"
+          + encode("bundleVersion=1.0=2") + "/" + encode("unknown=x") + "/" + encode("noPair") + "//"
+          + encode("bundleIdentifier=") + "/" + encode("title=second") + "/", "SERVICE");
+    assertNotNull(parameters);
+    assertEquals("abc", parameters.get(Key.TITLE)); //first occurrence wins
+    assertEquals("1.0=2", parameters.get(Key.BUNDLE_VERSION)); //split at the first '='
+    assertEquals("", parameters.get(Key.BUNDLE_IDENTIFIER));
+    assertNull(parameters.get(Key.REFERER));
+    assertNull(parameters.get(Key.IPA_CLASSIFIER));
+    assertNull(parameters.get(Key.OTA_CLASSIFIER));
+    assertFalse(parameters.isCompact());
+
+    parameters = UriParameters.parse("/SERVICE/" + encode("Referer=http://host/app.htm"), "SERVICE");
+    assertEquals("http://host/app.htm", parameters.get(Key.REFERER));
+    assertNull(UriParameters.parse("/SERVICE", "SERVICE").get(Key.TITLE));
+    assertNull(UriParameters.parse("/xSERVICE/SERVICEx/" + encode("title=abc"), "SERVICE"));
+  }
+
+  @Test
+  public void testCompactToken()
+  {
+    String token = new PlistToken("http://host/app.htm", "abc", "com.sap.App", "1.0", null, "ota").toString();
+    UriParameters parameters = UriParameters.parse("/blabla/SERVICE/v1/" + token, "SERVICE");
+    assertEquals("http://host/app.htm", parameters.get(Key.REFERER));
+    assertEquals("abc", parameters.get(Key.TITLE));
+    assertEquals("com.sap.App", parameters.get(Key.BUNDLE_IDENTIFIER));
+    assertEquals("1.0", parameters.get(Key.BUNDLE_VERSION));
+    assertNull(parameters.get(Key.IPA_CLASSIFIER));
+    assertEquals("ota", parameters.get(Key.OTA_CLASSIFIER));
+    assertTrue(parameters.isCompact());
+    assertNull(parameters.getVersion());
+
+    parameters = UriParameters.parse("/blabla/SERVICE/v1/" + token + "/0123abcd/more", "SERVICE");
+    assertEquals("abc", parameters.get(Key.TITLE));
+    assertEquals("0123abcd", parameters.getVersion());
+
+    assertRejected(400, "/SERVICE/v1");
+    assertRejected(400, "/SERVICE/v1/");
+    assertRejected(400, "/SERVICE/v1/" + token.substring(0, token.length() - 8));
+  }
+
+  @Test
+  public void testNoService()
+  {
+    assertNull(UriParameters.parse("/blabla/noservice/" + encode("title=abc") + "/", "SERVICE"));
+    assertNull(UriParameters.parse(null, "SERVICE"));
+    assertNull(UriParameters.parse("", "SERVICE"));
+  }
+
+  @Test
+  public void testLimits()
+  {
+    StringBuilder uri = new StringBuilder("/SERVICE");
+    for (int i = 0; i < UriParameters.MAX_SEGMENTS; i++) {
+      uri.append('/').append(encode("title=" + i));
+    }
+    assertEquals("0", UriParameters.parse(uri.toString(), "SERVICE").get(Key.TITLE));
+    assertRejected(400, uri.append("/").toString());
+
+    uri = new StringBuilder("/SERVICE/");
+    while (uri.length() <= UriParameters.MAX_URI_LENGTH) {
+      uri.append('A');
+    }
+    assertRejected(414, uri.toString());
+
+    assertRejected(400, "/SERVICE/" + encode("title=abc") + "%");
+    assertRejected(400, "/SERVICE/%zz" + encode("title=abc"));
+  }
+
+  private static void assertRejected(int status, String uri)
+  {
+    try {
+      UriParameters.parse(uri, "SERVICE");
+      fail("Not rejected: " + uri);
+    }
+    catch (InvalidUriException e) {
+      assertEquals(status, e.getStatus());
+    }
+  }
+
+}
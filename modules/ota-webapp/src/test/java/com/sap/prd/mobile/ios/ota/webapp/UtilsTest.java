@@ -20,12 +20,8 @@
 package com.sap.prd.mobile.ios.ota.webapp;
 
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
-import static org.junit.Assert.assertNull;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
-
-import javax.servlet.http.HttpServletRequest;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -47,97 +43,34 @@ public class UtilsTest
   }
 
   @Test
-  public void testParseKeyValuePair() {
-    testParseKeyValuePairCheck(null, true, 0);
-    testParseKeyValuePairCheck("", false, 1, "");
-    testParseKeyValuePairCheck("xyz", false, 1, "xyz");
-    testParseKeyValuePairCheck("abc=xyz", false, 2, "abc", "xyz");
-    testParseKeyValuePairCheck("=xyz", false, 2, "", "xyz");
-    testParseKeyValuePairCheck("abc=", false, 2, "abc", "");
-    testParseKeyValuePairCheck("=", false, 2, "", "");
-    testParseKeyValuePairCheck("abc=xyz=hij", false, 2, "abc", "xyz=hij");
-  }
-
-  private void testParseKeyValuePairCheck(String value, boolean assertNull, int assertSize, String... expectedResult)
+  public void testMatches()
   {
-    String[] result;
-    result = Utils.parseKeyValuePair(value);
-    if (assertNull) {
-      assertNull(result);
-    }
-    else {
-      assertNotNull(result);
-      assertEquals(assertSize, result.length);
-      for (int i = 0; i < assertSize; i++) {
-        assertEquals(expectedResult[i], result[i]);
-      }
-    }
+    String etag = "\"0123abcd\"";
+    assertTrue(Utils.matches(etag, etag));
+    assertTrue(Utils.matches("W/" + etag, etag));
+    assertTrue(Utils.matches("\"other\" ,W/" + etag + " , \"x\"", etag));
+    assertTrue(Utils.matches("*", etag));
+    assertFalse(Utils.matches(null, etag));
+    assertFalse(Utils.matches("", etag));
+    assertFalse(Utils.matches("0123abcd", etag));
+    assertFalse(Utils.matches("\"0123abcd0\"", etag));
   }
 
   @Test
-  public void testExtractParametersFromUri()
-  {
-    testExtractParametersFromUriCheck(
-          "/blabla/SERVICE/" + LibUtils.encode("abc") + "/" + LibUtils.encode("def") + "/"
-                + LibUtils.encode("xyz"),
-          "SERVICE",
-          3,
-          new String[] { "abc" },
-          new String[] { "def" },
-          new String[] { "xyz" });
-//    testExtractParametersFromUriCheck(
-//          "/blabla/SERVICE/abc/def%3Dqwe/xyz",
-//          "SERVICE",
-//          3,
-//          new String[] { "abc" },
-//          new String[] { "def", "qwe" },
-//          new String[] { "xyz" });
-    testExtractParametersFromUriCheck(
-          "/blabla/SERVICE/" + LibUtils.encode("abc") + "/" + LibUtils.encode("def=qwe") + "/"
-                + LibUtils.encode("xyz"),
-          "SERVICE",
-          3,
-          new String[] { "abc" },
-          new String[] { "def", "qwe" },
-          new String[] { "xyz" });
-    testExtractParametersFromUriCheck(
-          "/blabla/SERVICE/" + LibUtils.encode("abc") + "/",
-          "SERVICE",
-          1,
-          new String[] { "abc" });
-    testExtractParametersFromUriCheck(
-          "/blabla/noservice/" + LibUtils.encode("abc") + "/",
-          "SERVICE",
-          -1); //null
-    testExtractParametersFromUriCheck(
-          null,
-          "SERVICE",
-          -1); //null
-    testExtractParametersFromUriCheck(
-          "",
-          "SERVICE",
-          -1); //null
-  }
-
-  private void testExtractParametersFromUriCheck(String uri, String serviceName, int expectedNr, String[]... expected)
+  public void testAcceptsGzip()
   {
-    HttpServletRequest request = mock(HttpServletRequest.class);
-    when(request.getRequestURI()).thenReturn(uri);
-    String[][] result = Utils.extractParametersFromUri(request, serviceName);
-    if (expectedNr < 0) {
-      assertNull(result);
-      return;
-    }
-    assertEquals(expectedNr, result.length);
-    assertEquals(expected.length, result.length);
-    for (int i = 0; i < expectedNr; i++) {
-      String[] resultElement = result[i];
-      String[] expectedElement = expected[i];
-      assertEquals(expectedElement.length, resultElement.length);
-      for (int j = 0; j < expectedElement.length; j++) {
-        assertEquals(expectedElement[j], resultElement[j]);
-      }
-    }
+    assertTrue(Utils.acceptsGzip("gzip"));
+    assertTrue(Utils.acceptsGzip("deflate, GZIP;q=0.5"));
+    assertTrue(Utils.acceptsGzip("x-gzip"));
+    assertTrue(Utils.acceptsGzip("*"));
+    assertTrue(Utils.acceptsGzip("br;q=1.0, gzip;q=0.8, *;q=0.1"));
+    assertFalse(Utils.acceptsGzip(null));
+    assertFalse(Utils.acceptsGzip(""));
+    assertFalse(Utils.acceptsGzip("deflate, br"));
+    assertFalse(Utils.acceptsGzip("gzip;q=0"));
+    assertFalse(Utils.acceptsGzip("gzip;q=0.0, *"));
+    assertFalse(Utils.acceptsGzip("*;q=0"));
+    assertFalse(Utils.acceptsGzip("gzip;q=x"));
   }
 
   @Test